@@ -192,7 +192,7 @@ public ResultInterface executeQuery(int maxrows, boolean scrollable) {
         }
         //noinspection SynchronizationOnLocalVariableOrMethodParameter
         synchronized (sync) {
-            session.startStatementWithinTransaction();
+            session.startStatementWithinTransaction(!writing || session.isReadOnly());
             session.setCurrentCommand(this, false);
             try {
                 while (true) {
@@ -253,7 +253,7 @@ public ResultWithGeneratedKeys executeUpdate(Object generatedKeysRequest) {
         //noinspection SynchronizationOnLocalVariableOrMethodParameter
         synchronized (sync) {
             Session.Savepoint rollback = session.setSavepoint();
-            session.startStatementWithinTransaction();
+            session.startStatementWithinTransaction(!writing);
             session.setCurrentCommand(this, generatedKeysRequest);
             DbException ex = null;
             try {
@@ -9,6 +9,7 @@
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import org.h2.api.ErrorCode;
 import org.h2.api.Trigger;
@@ -18,6 +19,7 @@
 import org.h2.engine.Database;
 import org.h2.engine.Session;
 import org.h2.engine.SysProperties;
+import org.h2.expression.Aggregate;
 import org.h2.expression.Alias;
 import org.h2.expression.Comparison;
 import org.h2.expression.ConditionAndOr;
@@ -28,7 +30,10 @@
 import org.h2.index.Cursor;
 import org.h2.index.Index;
 import org.h2.index.IndexType;
+import org.h2.index.ParallelScanIndex;
 import org.h2.message.DbException;
+import org.h2.mvstore.db.MVGroupTempResult;
+import org.h2.mvstore.db.MVPrimaryIndex;
 import org.h2.result.LazyResult;
 import org.h2.result.LocalResult;
 import org.h2.result.ResultInterface;
@@ -125,6 +130,13 @@ public class Select extends Query {
     private boolean isForUpdate, isForUpdateMvcc;
     private double cost;
     private boolean isQuickAggregateQuery, isDistinctQuery;
+
+    /**
+     * The aggregates of a query without GROUP BY that only computes
+     * aggregates, if the threads of a parallel scan can compute them for
+     * parts of the table (or null).
+     */
+    private Aggregate[] parallelAggregates;
     private boolean isPrepared, checkInit;
     private boolean sortUsingIndex;
     private SortOrder sort;
@@ -329,6 +341,103 @@ private Index getGroupSortedIndex() {
         return null;
     }
 
+    /**
+     * Get the index to read the rows of the top table filter using multiple
+     * threads, if the table is scanned and if the rows can be filtered by
+     * parts of the condition in the other threads.
+     *
+     * @return the index, or null
+     */
+    private Index getParallelScanIndex() {
+        Index current = topTableFilter.getIndex();
+        if (!(current instanceof MVPrimaryIndex) || isForUpdate ||
+                isQuickAggregateQuery || topTableFilter.isJoinOuter() ||
+                session.isJoinBatchEnabled()) {
+            return null;
+        }
+        ArrayList<Comparison> list = Utils.newSmallArrayList();
+        if (addParallelScanConditions(condition, list)) {
+            parallelAggregates = getParallelAggregates();
+        }
+        if (list.isEmpty() && parallelAggregates == null) {
+            return null;
+        }
+        return new ParallelScanIndex((MVPrimaryIndex) current, list);
+    }
+
+    /**
+     * Add the parts of the condition that can be evaluated by the threads of
+     * a parallel scan.
+     *
+     * @param expr the condition, or null
+     * @param list the list to add the parts to
+     * @return true if all parts were added
+     */
+    private boolean addParallelScanConditions(Expression expr,
+            ArrayList<Comparison> list) {
+        if (expr == null) {
+            return true;
+        } else if (expr instanceof ConditionAndOr &&
+                ((ConditionAndOr) expr).getAndOrType() == ConditionAndOr.AND) {
+            ConditionAndOr and = (ConditionAndOr) expr;
+            boolean all = addParallelScanConditions(and.getExpression(true), list);
+            return addParallelScanConditions(and.getExpression(false), list) && all;
+        } else if (ParallelScanIndex.canEvaluate(topTableFilter, expr)) {
+            list.add((Comparison) expr);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the aggregates of the query, if the query has no GROUP BY, and only
+     * computes aggregates that can be computed for parts of the table.
+     *
+     * @return the aggregates, or null
+     */
+    private Aggregate[] getParallelAggregates() {
+        if (!isGroupQuery || groupIndex != null || sampleSizeExpr != null ||
+                topTableFilter.getJoin() != null) {
+            return null;
+        }
+        Aggregate[] list = new Aggregate[expressions.size()];
+        for (int i = 0; i < list.length; i++) {
+            Expression expr = expressions.get(i).getNonAliasExpression();
+            if (!(expr instanceof Aggregate) ||
+                    !((Aggregate) expr).canAggregateParts(topTableFilter)) {
+                return null;
+            }
+            list[i] = (Aggregate) expr;
+        }
+        return list;
+    }
+
+    /**
+     * Compute the aggregates of the query using the threads of the parallel
+     * scan, if possible.
+     *
+     * @param group the key of the group
+     * @return true if the aggregates were computed
+     */
+    private boolean queryParallelAggregates(ValueArray group) {
+        Index index = topTableFilter.getIndex();
+        if (parallelAggregates == null || !(index instanceof ParallelScanIndex)) {
+            return false;
+        }
+        Object[] data = ((ParallelScanIndex) index).aggregate(session,
+                parallelAggregates);
+        if (data == null) {
+            return false;
+        }
+        currentGroupsKey = group;
+        currentGroupByExprData = new Object[expressions.size()];
+        groupByData.put(group, currentGroupByExprData);
+        for (int i = 0; i < data.length; i++) {
+            setCurrentGroupExprData(parallelAggregates[i], data[i]);
+        }
+        return true;
+    }
+
     private boolean isGroupSortedIndex(TableFilter tableFilter, Index index) {
         // check that all the GROUP BY expressions are part of the index
         Column[] indexColumns = index.getColumns();
@@ -389,12 +498,19 @@ private void queryGroup(int columnCount, LocalResult result) {
         currentGroupByExprData = null;
         currentGroupsKey = null;
         exprToIndexInGroupByData.clear();
+        MVGroupTempResult external = null;
         try {
             int rowNumber = 0;
             setCurrentRowNumber(0);
             ValueArray defaultGroup = ValueArray.get(new Value[0]);
             int sampleSize = getSampleSizeValue(session);
-            while (topTableFilter.next()) {
+            int maxGroups = Integer.MAX_VALUE;
+            Database db = session.getDatabase();
+            if (groupIndex != null && db.isPersistent() && !db.isReadOnly()) {
+                maxGroups = db.getMaxMemoryRows();
+            }
+            boolean done = queryParallelAggregates(defaultGroup);
+            while (!done && topTableFilter.next()) {
                 setCurrentRowNumber(rowNumber + 1);
                 if (isConditionMet()) {
                     rowNumber++;
@@ -412,6 +528,15 @@ private void queryGroup(int columnCount, LocalResult result) {
                     }
                     Object[] values = groupByData.get(currentGroupsKey);
                     if (values == null) {
+                        if (groupByData.size() >= maxGroups) {
+                            if (external == null) {
+                                external = new MVGroupTempResult(db, groupIndex.length);
+                            }
+                            if (!storeGroups(external)) {
+                                // keep the remaining groups in memory
+                                maxGroups = Integer.MAX_VALUE;
+                            }
+                        }
                         values = new Object[Math.max(exprToIndexInGroupByData.size(), expressions.size())];
                         groupByData.put(currentGroupsKey, values);
                     }
@@ -432,28 +557,16 @@ private void queryGroup(int columnCount, LocalResult result) {
                 groupByData.put(defaultGroup,
                         new Object[Math.max(exprToIndexInGroupByData.size(), expressions.size())]);
             }
+            if (external != null) {
+                addStoredGroups(external, columnCount, result);
+            }
             for (Map.Entry<Value, Object[]> entry : groupByData.entrySet()) {
-                currentGroupsKey = (ValueArray) entry.getKey();
-                currentGroupByExprData = entry.getValue();
-                Value[] keyValues = currentGroupsKey.getList();
-                Value[] row = new Value[columnCount];
-                for (int j = 0; groupIndex != null && j < groupIndex.length; j++) {
-                    row[groupIndex[j]] = keyValues[j];
-                }
-                for (int j = 0; j < columnCount; j++) {
-                    if (groupByExpression != null && groupByExpression[j]) {
-                        continue;
-                    }
-                    Expression expr = expressions.get(j);
-                    row[j] = expr.getValue(session);
-                }
-                if (isHavingNullOrFalse(row)) {
-                    continue;
-                }
-                row = keepOnlyDistinct(row, columnCount);
-                result.addRow(row);
+                addGroupRow((ValueArray) entry.getKey(), entry.getValue(), columnCount, result);
             }
         } finally {
+            if (external != null) {
+                external.close();
+            }
             groupByData = null;
             currentGroupsKey = null;
             currentGroupByExprData = null;
@@ -461,6 +574,111 @@ private void queryGroup(int columnCount, LocalResult result) {
         }
     }
 
+    /**
+     * Get the expressions that store group data, by the index of the data.
+     *
+     * @return the expressions
+     */
+    private Expression[] getGroupDataExpressions() {
+        Expression[] exprs = new Expression[exprToIndexInGroupByData.size()];
+        for (Map.Entry<Expression, Integer> entry : exprToIndexInGroupByData.entrySet()) {
+            exprs[entry.getValue()] = entry.getKey();
+        }
+        return exprs;
+    }
+
+    /**
+     * Move the groups that are currently kept in memory to a temporary file.
+     * Groups are moved until a group is found that can not be stored.
+     *
+     * @param external the temporary file
+     * @return true if all groups were moved
+     */
+    private boolean storeGroups(MVGroupTempResult external) {
+        Expression[] exprs = getGroupDataExpressions();
+        int keyLength = groupIndex.length;
+        for (Iterator<Map.Entry<Value, Object[]>> it = groupByData.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Value, Object[]> entry = it.next();
+            Value[] row = Arrays.copyOf(((ValueArray) entry.getKey()).getList(), keyLength + exprs.length);
+            Object[] data = entry.getValue();
+            for (int i = 0; i < exprs.length; i++) {
+                Object d = data[i];
+                if (d == null) {
+                    row[keyLength + i] = ValueNull.INSTANCE;
+                } else {
+                    Value state = exprs[i].getGroupState(d);
+                    if (state == null) {
+                        return false;
+                    }
+                    // wrapped, to distinguish it from missing data
+                    row[keyLength + i] = ValueArray.get(new Value[] { state });
+                }
+            }
+            external.addRow(row);
+            it.remove();
+            session.checkCanceled();
+        }
+        return true;
+    }
+
+    /**
+     * Add the rows for the groups that were moved to a temporary file. The
+     * parts of each group are merged, together with the part that is still
+     * kept in memory.
+     *
+     * @param external the temporary file
+     * @param columnCount the number of columns
+     * @param result the result
+     */
+    private void addStoredGroups(MVGroupTempResult external, int columnCount, LocalResult result) {
+        Expression[] exprs = getGroupDataExpressions();
+        int keyLength = groupIndex.length;
+        int dataLength = Math.max(exprToIndexInGroupByData.size(), expressions.size());
+        Value[] row = external.next();
+        while (row != null) {
+            Value[] first = row;
+            ValueArray key = ValueArray.get(Arrays.copyOf(first, keyLength));
+            Object[] data = groupByData.remove(key);
+            if (data == null) {
+                data = new Object[dataLength];
+            }
+            do {
+                for (int i = keyLength; i < row.length; i++) {
+                    Value state = row[i];
+                    if (state != ValueNull.INSTANCE) {
+                        int index = i - keyLength;
+                        data[index] = exprs[index].mergeGroupState(session, data[index],
+                                ((ValueArray) state).getList()[0]);
+                    }
+                }
+                row = external.next();
+            } while (row != null && external.isSameGroup(first, row));
+            addGroupRow(key, data, columnCount, result);
+        }
+    }
+
+    private void addGroupRow(ValueArray key, Object[] data, int columnCount, LocalResult result) {
+        currentGroupsKey = key;
+        currentGroupByExprData = data;
+        Value[] keyValues = key.getList();
+        Value[] row = new Value[columnCount];
+        for (int j = 0; groupIndex != null && j < groupIndex.length; j++) {
+            row[groupIndex[j]] = keyValues[j];
+        }
+        for (int j = 0; j < columnCount; j++) {
+            if (groupByExpression != null && groupByExpression[j]) {
+                continue;
+            }
+            Expression expr = expressions.get(j);
+            row[j] = expr.getValue(session);
+        }
+        if (isHavingNullOrFalse(row)) {
+            return;
+        }
+        row = keepOnlyDistinct(row, columnCount);
+        result.addRow(row);
+    }
+
     /**
      * Get the index that matches the ORDER BY list, if one exists. This is to
      * avoid running a separate ORDER BY if an index can be used. This is
@@ -675,6 +893,16 @@ protected ResultInterface queryWithoutCache(int maxRows, ResultTarget target) {
         if (!lazy && (limitRows >= 0 || offsetExpr != null)) {
             result = createLocalResult(result);
         }
+        if (result != null) {
+            // set before the rows are added, so that a sorted result only
+            // needs to keep the first rows
+            if (offsetExpr != null) {
+                result.setOffset(offsetExpr.getValue(session).getInt());
+            }
+            if (limitRows >= 0) {
+                result.setLimit(limitRows);
+            }
+        }
         topTableFilter.startQuery(session);
         topTableFilter.reset();
         boolean exclusive = isForUpdate && !isForUpdateMvcc;
@@ -715,6 +943,7 @@ protected ResultInterface queryWithoutCache(int maxRows, ResultTarget target) {
             } finally {
                 if (!lazy) {
                     resetJoinBatchAfterQuery();
+                    topTableFilter.endQuery();
                 }
             }
         }
@@ -725,12 +954,6 @@ protected ResultInterface queryWithoutCache(int maxRows, ResultTarget target) {
             }
             return lazyResult;
         }
-        if (offsetExpr != null) {
-            result.setOffset(offsetExpr.getValue(session).getInt());
-        }
-        if (limitRows >= 0) {
-            result.setLimit(limitRows);
-        }
         if (result != null) {
             result.done();
             if (target != null) {
@@ -1039,6 +1262,13 @@ public void prepare() {
                 isGroupSortedQuery = true;
             }
         }
+        if ((condition != null || isGroupQuery) &&
+                session.getMaxParallelism() > 1) {
+            Index index = getParallelScanIndex();
+            if (index != null) {
+                topTableFilter.setIndex(index);
+            }
+        }
         expressionArray = expressions.toArray(new Expression[0]);
         isPrepared = true;
     }
@@ -1502,6 +1732,7 @@ public void close() {
             if (!isClosed()) {
                 super.close();
                 resetJoinBatchAfterQuery();
+                topTableFilter.endQuery();
             }
         }
 
@@ -523,6 +523,15 @@ public int update() {
             session.setLazyQueryExecution(value == 1);
             break;
         }
+        case SetTypes.MAX_PARALLELISM: {
+            int value = getIntValue();
+            if (value < 1) {
+                throw DbException.getInvalidValueException("MAX_PARALLELISM",
+                        value);
+            }
+            session.setMaxParallelism(value);
+            break;
+        }
         case SetTypes.BUILTIN_ALIAS_OVERRIDE: {
             session.getUser().checkAdmin();
             int value = getIntValue();
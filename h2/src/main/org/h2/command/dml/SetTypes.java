@@ -252,7 +252,12 @@ public class SetTypes {
      */
     public static final int AUTHENTICATOR = 48;
 
-    private static final int COUNT = AUTHENTICATOR + 1;
+    /**
+     * The type of a SET MAX_PARALLELISM statement.
+     */
+    public static final int MAX_PARALLELISM = 49;
+
+    private static final int COUNT = MAX_PARALLELISM + 1;
 
     private static final ArrayList<String> TYPES;
 
@@ -311,6 +316,7 @@ private SetTypes() {
         list.add(BUILTIN_ALIAS_OVERRIDE, "BUILTIN_ALIAS_OVERRIDE");
         list.add(COLUMN_NAME_RULES, "COLUMN_NAME_RULES");
         list.add(AUTHENTICATOR, "AUTHENTICATOR");
+        list.add(MAX_PARALLELISM, "MAX_PARALLELISM");
         TYPES = list;
     }
 
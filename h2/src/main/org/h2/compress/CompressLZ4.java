@@ -0,0 +1,225 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.compress;
+
+/**
+ * <p>
+ * This class implements a compressor that writes the LZ4 block format. Like
+ * LZF, it is a byte-aligned Lempel-Ziv variant, but it supports larger
+ * back-reference offsets (up to 64 KB), and long literal runs and
+ * back-references are not split into multiple chunks. Expanding the data is
+ * faster than with LZF, mainly because runs are copied using
+ * System.arraycopy.
+ * </p>
+ * <p>
+ * Safety/Use Notes:
+ * </p>
+ * <ul>
+ * <li>Compressing requires one instance per thread; expanding does not use any
+ * state and can be done concurrently.</li>
+ * <li>For performance reasons, safety checks on expansion are omitted.</li>
+ * <li>Invalid compressed data can cause an ArrayIndexOutOfBoundsException.</li>
+ * </ul>
+ * <p>
+ * The data is a list of sequences. Each sequence starts with a token byte:
+ * the high four bits are the number of literals, and the low four bits are
+ * the back-reference length minus 4. If a value is 15, the length continues
+ * in the next bytes: each byte is added, until a byte is not 255. The literal
+ * length is followed by the literals, then the back-reference offset (two
+ * bytes, little endian), and then the back-reference length. The last
+ * sequence only contains literals, and is at least 5 bytes long.
+ * </p>
+ */
+public final class CompressLZ4 implements Compressor {
+
+    /**
+     * The number of bits of the hash table index.
+     */
+    private static final int HASH_LOG = 14;
+
+    /**
+     * The minimum back-reference length.
+     */
+    private static final int MIN_MATCH = 4;
+
+    /**
+     * The number of bytes at the end that are always literals.
+     */
+    private static final int LAST_LITERALS = 5;
+
+    /**
+     * A back-reference must start at least this many bytes before the end.
+     */
+    private static final int MATCH_LIMIT = 12;
+
+    /**
+     * The maximum offset allowed for a back-reference.
+     */
+    private static final int MAX_OFFSET = 65535;
+
+    /**
+     * The length value in a token that means more length bytes follow.
+     */
+    private static final int RUN_MASK = 15;
+
+    /**
+     * Hash table for matching byte sequences (reused for performance). Entries
+     * from earlier calls are verified before they are used.
+     */
+    private int[] cachedHashTable;
+
+    @Override
+    public int getAlgorithm() {
+        return Compressor.LZ4;
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // nothing to do
+    }
+
+    private static int readInt(byte[] in, int pos) {
+        return (in[pos] << 24) | ((in[pos + 1] & 255) << 16) |
+                ((in[pos + 2] & 255) << 8) | (in[pos + 3] & 255);
+    }
+
+    /**
+     * Compute the address in the hash table.
+     */
+    private static int hash(int x) {
+        return (x * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        if (cachedHashTable == null) {
+            cachedHashTable = new int[1 << HASH_LOG];
+        }
+        int[] hashTab = cachedHashTable;
+        int anchor = 0;
+        if (inLen > MATCH_LIMIT) {
+            int limit = inLen - MATCH_LIMIT;
+            int matchEnd = inLen - LAST_LITERALS;
+            int inPos = 0;
+            while (inPos < limit) {
+                int x = readInt(in, inPos);
+                int h = hash(x);
+                int ref = hashTab[h];
+                hashTab[h] = inPos;
+                if (ref >= inPos || inPos - ref > MAX_OFFSET ||
+                        readInt(in, ref) != x) {
+                    // skip faster over data that does not compress
+                    inPos += 1 + ((inPos - anchor) >>> 6);
+                    continue;
+                }
+                while (inPos > anchor && ref > 0 &&
+                        in[inPos - 1] == in[ref - 1]) {
+                    inPos--;
+                    ref--;
+                }
+                int len = MIN_MATCH;
+                while (inPos + len < matchEnd && in[inPos + len] == in[ref + len]) {
+                    len++;
+                }
+                outPos = writeSequence(in, anchor, inPos - anchor, out, outPos,
+                        inPos - ref, len);
+                inPos += len;
+                anchor = inPos;
+                if (inPos - 2 < limit) {
+                    hashTab[hash(readInt(in, inPos - 2))] = inPos - 2;
+                }
+            }
+        }
+        int literals = inLen - anchor;
+        int token = outPos++;
+        if (literals >= RUN_MASK) {
+            out[token] = (byte) (RUN_MASK << 4);
+            outPos = writeLength(out, outPos, literals - RUN_MASK);
+        } else {
+            out[token] = (byte) (literals << 4);
+        }
+        System.arraycopy(in, anchor, out, outPos, literals);
+        return outPos + literals;
+    }
+
+    private static int writeSequence(byte[] in, int inPos, int literals,
+            byte[] out, int outPos, int offset, int len) {
+        int token = outPos++;
+        int t;
+        if (literals >= RUN_MASK) {
+            t = RUN_MASK << 4;
+            outPos = writeLength(out, outPos, literals - RUN_MASK);
+        } else {
+            t = literals << 4;
+        }
+        System.arraycopy(in, inPos, out, outPos, literals);
+        outPos += literals;
+        out[outPos++] = (byte) offset;
+        out[outPos++] = (byte) (offset >> 8);
+        len -= MIN_MATCH;
+        if (len >= RUN_MASK) {
+            t |= RUN_MASK;
+            outPos = writeLength(out, outPos, len - RUN_MASK);
+        } else {
+            t |= len;
+        }
+        out[token] = (byte) t;
+        return outPos;
+    }
+
+    private static int writeLength(byte[] out, int outPos, int len) {
+        while (len >= 255) {
+            out[outPos++] = (byte) 255;
+            len -= 255;
+        }
+        out[outPos++] = (byte) len;
+        return outPos;
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos,
+            int outLen) {
+        int inEnd = inPos + inLen;
+        while (true) {
+            int token = in[inPos++] & 255;
+            int len = token >>> 4;
+            if (len == RUN_MASK) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    len += b;
+                } while (b == 255);
+            }
+            System.arraycopy(in, inPos, out, outPos, len);
+            inPos += len;
+            outPos += len;
+            if (inPos >= inEnd) {
+                break;
+            }
+            int offset = (in[inPos++] & 255) | ((in[inPos++] & 255) << 8);
+            len = token & RUN_MASK;
+            if (len == RUN_MASK) {
+                int b;
+                do {
+                    b = in[inPos++] & 255;
+                    len += b;
+                } while (b == 255);
+            }
+            len += MIN_MATCH;
+            int ref = outPos - offset;
+            if (offset >= len) {
+                System.arraycopy(out, ref, out, outPos, len);
+                outPos += len;
+            } else {
+                // overlapping (repeating) data
+                for (int end = outPos + len; outPos < end;) {
+                    out[outPos++] = out[ref++];
+                }
+            }
+        }
+    }
+
+}
@@ -189,6 +189,13 @@ public class DbSettings extends SettingsBase {
     public final boolean optimizeEvaluatableSubqueries = get(
             "OPTIMIZE_EVALUATABLE_SUBQUERIES", true);
 
+    /**
+     * Database setting <code>OPTIMIZE_HASH_JOIN</code> (default: true).<br />
+     * Join tables using a hash table if a table has no index for the columns
+     * compared for equality. The hash table is built once per query.
+     */
+    public final boolean optimizeHashJoin = get("OPTIMIZE_HASH_JOIN", true);
+
     /**
      * Database setting <code>OPTIMIZE_INSERT_FROM_SELECT</code>
      * (default: true).<br />
@@ -218,6 +225,14 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean optimizeIsNull = get("OPTIMIZE_IS_NULL", true);
 
+    /**
+     * Database setting <code>OPTIMIZE_MERGE_JOIN</code> (default: true).<br />
+     * Join tables by moving an index cursor forward, instead of searching the
+     * index for each row, if the other table is read in the order of the join
+     * column.
+     */
+    public final boolean optimizeMergeJoin = get("OPTIMIZE_MERGE_JOIN", true);
+
     /**
      * Database setting <code>OPTIMIZE_OR</code> (default: true).<br />
      * Convert (C=? OR C=?) to (C IN(?, ?)).
@@ -341,6 +356,51 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean compressData = get("COMPRESS", false);
 
+    /**
+     * Database setting <code>COMPRESS_INDEX_KEYS</code>
+     * (default: false).<br />
+     * Store the keys of secondary index pages in compressed form: leading
+     * columns that are the same as in the previous key, and repeated values,
+     * are only stored once per page. Databases that are opened with this
+     * setting are upgraded to a file format that older versions can not open.
+     */
+    public final boolean compressIndexKeys = get("COMPRESS_INDEX_KEYS", false);
+
+    /**
+     * Database setting <code>LAZY_COMMIT</code>
+     * (default: false).<br />
+     * Commit transactions in constant time: a commit only marks the
+     * transaction as committed, and the changed rows are cleaned up by a
+     * background thread afterwards. Only used with the MVStore.
+     */
+    public final boolean lazyCommit = get("LAZY_COMMIT", false);
+
+    /**
+     * Database setting <code>GROUP_COMMIT</code>
+     * (default: false).<br />
+     * Store and sync the changes before a commit returns, so that each
+     * committed transaction is durable. Commits of concurrent sessions are
+     * grouped into one write and sync. Only used with the MVStore.
+     */
+    public final boolean groupCommit = get("GROUP_COMMIT", false);
+
+    /**
+     * Database setting <code>GROUP_COMMIT_WINDOW</code>
+     * (default: 0).<br />
+     * The time in microseconds to wait for other sessions to commit before
+     * writing a group of commits. 0 means the changes are written
+     * immediately; sessions that commit during the write are grouped.
+     */
+    public final int groupCommitWindow = get("GROUP_COMMIT_WINDOW", 0);
+
+    /**
+     * Database setting <code>GROUP_COMMIT_MAX_BATCH</code>
+     * (default: 64).<br />
+     * The number of waiting sessions after which a group of commits is
+     * written, even if the group commit window has not passed yet.
+     */
+    public final int groupCommitMaxBatch = get("GROUP_COMMIT_MAX_BATCH", 64);
+
     /**
      * Database setting <code>STANDARD_DROP_TABLE_RESTRICT</code> (default:
      * false).<br />
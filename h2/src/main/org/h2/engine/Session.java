@@ -138,6 +138,7 @@ public enum State { INIT, RUNNING, BLOCKED, SLEEP, CLOSED }
     private boolean joinBatchEnabled;
     private boolean forceJoinOrder;
     private boolean lazyQueryExecution;
+    private int maxParallelism = 1;
     private ColumnNamerConfiguration columnNamerConfiguration;
     /**
      * Tables marked for ANALYZE after the current transaction is committed.
@@ -161,9 +162,23 @@ public enum State { INIT, RUNNING, BLOCKED, SLEEP, CLOSED }
     private ArrayList<Value> temporaryLobs;
 
     private Transaction transaction;
+
+    /**
+     * The read-only transactions that were replaced by a regular transaction
+     * within the current statement (or null). They are only ended when the
+     * statement ends, as its cursors may still read through them.
+     */
+    private ArrayList<Transaction> replacedReadOnlyTransactions;
+    private boolean readOnly;
     private State state = State.INIT;
     private long startStatement = -1;
 
+    /**
+     * The tables (or null) by map id of the changes that are rolled back, so
+     * that the table is not looked up again for each change.
+     */
+    private HashMap<Integer, MVTable> rollbackTables;
+
     public Session(Database database, User user, int id) {
         this.database = database;
         this.queryTimeout = database.getSettings().maxQueryTimeout;
@@ -200,6 +215,20 @@ public boolean isJoinBatchEnabled() {
         return joinBatchEnabled;
     }
 
+    /**
+     * Set the maximum number of threads that are used to read the rows of a
+     * table for one query.
+     *
+     * @param maxParallelism the number of threads (1 to disable)
+     */
+    public void setMaxParallelism(int maxParallelism) {
+        this.maxParallelism = maxParallelism;
+    }
+
+    public int getMaxParallelism() {
+        return maxParallelism;
+    }
+
     /**
      * Create a new row for a table.
      *
@@ -546,6 +575,22 @@ public void setAutoCommit(boolean b) {
         autoCommit = b;
     }
 
+    @Override
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Check whether the session is in read-only mode. This is only a hint: in
+     * read-only mode, queries use read-only transactions even if they are
+     * not known to be read-only.
+     *
+     * @return true if the session is in read-only mode
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     public int getLockTimeout() {
         return lockTimeout;
     }
@@ -669,8 +714,10 @@ public void commit(boolean ddl) {
 
         currentTransactionName = null;
         transactionStart = null;
+        boolean durable = false;
         if (transaction != null) {
             try {
+                durable = transaction.hasChanges();
                 // increment the data mod count, so that other sessions
                 // see the changes
                 // TODO should not rely on locking
@@ -720,6 +767,10 @@ public void commit(boolean ddl) {
         }
 
         endTransaction();
+        if (durable) {
+            // wait until the changes are stored (if group commit is enabled)
+            database.getMvStore().groupCommit();
+        }
     }
 
     private void removeTemporaryLobs(boolean onTimeout) {
@@ -805,11 +856,15 @@ public void rollbackTo(Savepoint savepoint, boolean trimToSize) {
             undoLog.removeLast(trimToSize);
         }
         if (transaction != null) {
-            if (savepoint == null) {
-                transaction.rollback();
-                transaction = null;
-            } else {
-                transaction.rollbackToSavepoint(savepoint.transactionSavepoint);
+            try {
+                if (savepoint == null) {
+                    transaction.rollback();
+                    transaction = null;
+                } else {
+                    transaction.rollbackToSavepoint(savepoint.transactionSavepoint);
+                }
+            } finally {
+                rollbackTables = null;
             }
         }
         if (savepoints != null) {
@@ -868,6 +923,7 @@ public void close() {
 
                 // release any open table locks
                 rollback();
+                endReplacedReadOnlyTransactions();
 
                 removeTemporaryLobs(false);
                 cleanTempTables(true);
@@ -1684,6 +1740,45 @@ public Transaction getTransaction() {
         return transaction;
     }
 
+    /**
+     * Get the transaction to use to change data. If the current transaction
+     * is read-only, it is replaced by a new transaction. The read-only
+     * transaction is ended when the current statement ends.
+     *
+     * @return the transaction
+     */
+    public Transaction getWritableTransaction() {
+        if (replaceReadOnlyTransaction()) {
+            Transaction t = getTransaction();
+            t.markStatementStart();
+            return t;
+        }
+        return getTransaction();
+    }
+
+    private boolean replaceReadOnlyTransaction() {
+        Transaction t = transaction;
+        if (t == null || !t.isReadOnly()) {
+            return false;
+        }
+        transaction = null;
+        if (replacedReadOnlyTransactions == null) {
+            replacedReadOnlyTransactions = Utils.newSmallArrayList();
+        }
+        replacedReadOnlyTransactions.add(t);
+        return true;
+    }
+
+    private void endReplacedReadOnlyTransactions() {
+        ArrayList<Transaction> list = replacedReadOnlyTransactions;
+        if (list != null) {
+            replacedReadOnlyTransactions = null;
+            for (Transaction t : list) {
+                t.commit();
+            }
+        }
+    }
+
     private long getStatementSavepoint() {
         if (startStatement == -1) {
             startStatement = getTransaction().setSavepoint();
@@ -1695,7 +1790,30 @@ private long getStatementSavepoint() {
      * Start a new statement within a transaction.
      */
     public void startStatementWithinTransaction() {
-        Transaction transaction = getTransaction();
+        startStatementWithinTransaction(false);
+    }
+
+    /**
+     * Start a new statement within a transaction. If there is no current
+     * transaction, a read-only statement starts a read-only transaction. A
+     * statement that is not read-only replaces a read-only transaction with a
+     * regular one.
+     *
+     * @param readOnly whether the statement is known to be read-only
+     */
+    public void startStatementWithinTransaction(boolean readOnly) {
+        Transaction transaction = this.transaction;
+        MVTableEngine.Store store;
+        if (readOnly && transaction == null && (store = database.getMvStore()) != null &&
+                !store.getStore().isClosed()) {
+            transaction = store.getTransactionStore().beginReadOnly();
+            this.transaction = transaction;
+        } else {
+            if (!readOnly) {
+                replaceReadOnlyTransaction();
+            }
+            transaction = getTransaction();
+        }
         if(transaction != null) {
             transaction.markStatementStart();
         }
@@ -1710,6 +1828,7 @@ public void endStatement() {
         if(transaction != null) {
             transaction.markStatementEnd();
         }
+        endReplacedReadOnlyTransactions();
         startStatement = -1;
         closeTemporaryResults();
     }
@@ -1775,30 +1894,35 @@ public void onRollback(MVMap<Object, VersionedValue> map, Object key,
                             VersionedValue restoredValue) {
         // Here we are relying on the fact that map which backs table's primary index
         // has the same name as the table itself
-        MVTableEngine.Store store = database.getMvStore();
-        if(store != null) {
-            MVTable table = store.getTable(map.getName());
-            if (table != null) {
-                long recKey = ((ValueLong)key).getLong();
-                Row oldRow = getRowFromVersionedValue(table, recKey, existingValue);
-                Row newRow = getRowFromVersionedValue(table, recKey, restoredValue);
-                table.fireAfterRow(this, oldRow, newRow, true);
-
-                if (table.getContainsLargeObject()) {
-                    if (oldRow != null) {
-                        for (int i = 0, len = oldRow.getColumnCount(); i < len; i++) {
-                            Value v = oldRow.getValue(i);
-                            if (v.isLinkedToTable()) {
-                                removeAtCommit(v);
-                            }
+        if (rollbackTables == null) {
+            rollbackTables = new HashMap<>();
+        }
+        MVTable table = rollbackTables.get(map.getId());
+        if (table == null && !rollbackTables.containsKey(map.getId())) {
+            MVTableEngine.Store store = database.getMvStore();
+            table = store == null ? null : store.getTable(map.getName());
+            rollbackTables.put(map.getId(), table);
+        }
+        if (table != null) {
+            long recKey = ((ValueLong)key).getLong();
+            Row oldRow = getRowFromVersionedValue(table, recKey, existingValue);
+            Row newRow = getRowFromVersionedValue(table, recKey, restoredValue);
+            table.fireAfterRow(this, oldRow, newRow, true);
+
+            if (table.getContainsLargeObject()) {
+                if (oldRow != null) {
+                    for (int i = 0, len = oldRow.getColumnCount(); i < len; i++) {
+                        Value v = oldRow.getValue(i);
+                        if (v.isLinkedToTable()) {
+                            removeAtCommit(v);
                         }
                     }
-                    if (newRow != null) {
-                        for (int i = 0, len = newRow.getColumnCount(); i < len; i++) {
-                            Value v = newRow.getValue(i);
-                            if (v.isLinkedToTable()) {
-                                removeAtCommitStop(v);
-                            }
+                }
+                if (newRow != null) {
+                    for (int i = 0, len = newRow.getColumnCount(); i < len; i++) {
+                        Value v = newRow.getValue(i);
+                        if (v.isLinkedToTable()) {
+                            removeAtCommitStop(v);
                         }
                     }
                 }
@@ -126,6 +126,14 @@ public interface SessionInterface extends Closeable {
      */
     void setAutoCommit(boolean autoCommit);
 
+    /**
+     * Set the read-only mode. This is only a hint, data can still be changed
+     * in read-only mode.
+     *
+     * @param readOnly the new value
+     */
+    void setReadOnly(boolean readOnly);
+
     /**
      * Add a temporary LOB, which is closed when the session commits.
      *
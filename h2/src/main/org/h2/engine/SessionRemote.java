@@ -233,6 +233,12 @@ public void setAutoCommit(boolean autoCommit) {
         this.autoCommit = autoCommit;
     }
 
+    @Override
+    public void setReadOnly(boolean readOnly) {
+        // ignored: queries that are known to be read-only use read-only
+        // transactions on the server anyway
+    }
+
     public void setAutoCommitFromServer(boolean autoCommit) {
         if (cluster) {
             if (autoCommit) {
@@ -12,6 +12,7 @@
 import org.h2.api.ErrorCode;
 import org.h2.command.dml.Select;
 import org.h2.command.dml.SelectOrderBy;
+import org.h2.engine.Database;
 import org.h2.engine.Session;
 import org.h2.index.Cursor;
 import org.h2.index.Index;
@@ -331,6 +332,76 @@ public void updateAggregate(Session session) {
         data.add(session.getDatabase(), dataType, distinct, v);
     }
 
+    /**
+     * Check whether this aggregate can be computed for parts of the rows of
+     * the given table filter by other threads, without evaluating
+     * expressions. This is the case for COUNT(*), and for COUNT, SUM, AVG,
+     * MIN, and MAX of a column of the table, without DISTINCT, FILTER, or
+     * ORDER BY. The states of the parts are merged with
+     * {@link #mergeGroupState(Session, Object, Value)}.
+     *
+     * @param filter the table filter
+     * @return true if yes
+     */
+    public boolean canAggregateParts(TableFilter filter) {
+        if (distinct || filterCondition != null || orderByList != null) {
+            return false;
+        }
+        switch (type) {
+        case COUNT_ALL:
+            return true;
+        case COUNT:
+        case SUM:
+        case AVG:
+        case MIN:
+        case MAX:
+            return on instanceof ExpressionColumn &&
+                    ((ExpressionColumn) on).getTableFilter() == filter &&
+                    ((ExpressionColumn) on).getColumn().getColumnId() >= 0;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Create the data to aggregate a part of the rows. See
+     * {@link #canAggregateParts(TableFilter)}.
+     *
+     * @return the data
+     */
+    public Object createPartData() {
+        return AggregateData.create(type);
+    }
+
+    /**
+     * Add a row to the data of a part. This method may be called by any
+     * thread.
+     *
+     * @param database the database
+     * @param data the data of the part
+     * @param row the values of the row
+     */
+    public void addPartRow(Database database, Object data, Value[] row) {
+        Value v = on == null ? null :
+                row[((ExpressionColumn) on).getColumn().getColumnId()];
+        ((AggregateData) data).add(database, dataType, false, v);
+    }
+
+    @Override
+    public Value getGroupState(Object data) {
+        return ((AggregateData) data).getState(distinct);
+    }
+
+    @Override
+    public Object mergeGroupState(Session session, Object data, Value state) {
+        AggregateData d = (AggregateData) data;
+        if (d == null) {
+            d = AggregateData.create(type);
+        }
+        d.mergeState(session.getDatabase(), dataType, distinct, state);
+        return d;
+    }
+
     @Override
     public Value getValue(Session session) {
         if (select.isQuickAggregateQuery()) {
@@ -7,7 +7,9 @@
 
 import org.h2.engine.Database;
 import org.h2.expression.Aggregate.AggregateType;
+import org.h2.util.ValueHashMap;
 import org.h2.value.Value;
+import org.h2.value.ValueArray;
 
 /**
  * Abstract class for the computation of an aggregate.
@@ -59,4 +61,42 @@ static AggregateData create(AggregateType aggregateType) {
      * @return the value
      */
     abstract Value getValue(Database database, int dataType, boolean distinct);
+
+    /**
+     * Get the state of this aggregate in a form that can be stored in a
+     * temporary file.
+     *
+     * @param distinct if the calculation should be distinct
+     * @return the state
+     */
+    abstract Value getState(boolean distinct);
+
+    /**
+     * Merge a state that was returned by {@link #getState(boolean)} of another
+     * object of the same type into this object.
+     *
+     * @param database the database
+     * @param dataType the datatype of the computed result
+     * @param distinct if the calculation should be distinct
+     * @param state the state
+     */
+    abstract void mergeState(Database database, int dataType, boolean distinct, Value state);
+
+    /**
+     * Get the keys of the given map as an array value.
+     *
+     * @param map the map, or null
+     * @return the array
+     */
+    static ValueArray getKeys(ValueHashMap<?> map) {
+        if (map == null) {
+            return ValueArray.get(new Value[0]);
+        }
+        Value[] keys = new Value[map.size()];
+        int i = 0;
+        for (Value v : map.keys()) {
+            keys[i++] = v;
+        }
+        return ValueArray.get(keys);
+    }
 }
@@ -11,6 +11,7 @@
 
 import org.h2.engine.Database;
 import org.h2.value.Value;
+import org.h2.value.ValueArray;
 import org.h2.value.ValueNull;
 
 /**
@@ -44,6 +45,19 @@ Value getValue(Database database, int dataType, boolean distinct) {
         return null;
     }
 
+    @Override
+    Value getState(boolean distinct) {
+        Value[] array = getArray();
+        return ValueArray.get(array == null ? new Value[0] : array);
+    }
+
+    @Override
+    void mergeState(Database database, int dataType, boolean distinct, Value state) {
+        for (Value v : ((ValueArray) state).getList()) {
+            add(database, dataType, distinct, v);
+        }
+    }
+
     /**
      * Returns array with values or {@code null}.
      *
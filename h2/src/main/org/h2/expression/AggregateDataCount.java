@@ -8,6 +8,7 @@
 import org.h2.engine.Database;
 import org.h2.util.ValueHashMap;
 import org.h2.value.Value;
+import org.h2.value.ValueArray;
 import org.h2.value.ValueLong;
 import org.h2.value.ValueNull;
 
@@ -44,4 +45,20 @@ Value getValue(Database database, int dataType, boolean distinct) {
         return ValueLong.get(count).convertTo(dataType);
     }
 
+    @Override
+    Value getState(boolean distinct) {
+        return distinct ? getKeys(distinctValues) : ValueLong.get(count);
+    }
+
+    @Override
+    void mergeState(Database database, int dataType, boolean distinct, Value state) {
+        if (distinct) {
+            for (Value v : ((ValueArray) state).getList()) {
+                add(database, dataType, true, v);
+            }
+        } else {
+            count += state.getLong();
+        }
+    }
+
 }
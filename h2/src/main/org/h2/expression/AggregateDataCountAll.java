@@ -32,4 +32,14 @@ Value getValue(Database database, int dataType, boolean distinct) {
         return ValueLong.get(count).convertTo(dataType);
     }
 
+    @Override
+    Value getState(boolean distinct) {
+        return ValueLong.get(count);
+    }
+
+    @Override
+    void mergeState(Database database, int dataType, boolean distinct, Value state) {
+        count += state.getLong();
+    }
+
 }
@@ -11,6 +11,7 @@
 import org.h2.util.ValueHashMap;
 import org.h2.value.DataType;
 import org.h2.value.Value;
+import org.h2.value.ValueArray;
 import org.h2.value.ValueBoolean;
 import org.h2.value.ValueDouble;
 import org.h2.value.ValueLong;
@@ -182,6 +183,58 @@ Value getValue(Database database, int dataType, boolean distinct) {
         return v == null ? ValueNull.INSTANCE : v.convertTo(dataType);
     }
 
+    @Override
+    Value getState(boolean distinct) {
+        if (distinct) {
+            return getKeys(distinctValues);
+        }
+        return ValueArray.get(new Value[] { ValueLong.get(count),
+                value == null ? ValueNull.INSTANCE : value,
+                ValueDouble.get(m2), ValueDouble.get(mean) });
+    }
+
+    @Override
+    void mergeState(Database database, int dataType, boolean distinct, Value state) {
+        Value[] s = ((ValueArray) state).getList();
+        if (distinct) {
+            for (Value v : s) {
+                add(database, dataType, true, v);
+            }
+            return;
+        }
+        long n = s[0].getLong();
+        if (n == 0) {
+            return;
+        }
+        switch (aggregateType) {
+        case STDDEV_POP:
+        case STDDEV_SAMP:
+        case VAR_POP:
+        case VAR_SAMP: {
+            // combine the partial results, see also
+            // http://en.wikipedia.org/wiki/Algorithms_for_calculating_variance
+            double otherM2 = s[2].getDouble(), otherMean = s[3].getDouble();
+            if (count == 0) {
+                m2 = otherM2;
+                mean = otherMean;
+            } else {
+                double delta = otherMean - mean;
+                long total = count + n;
+                mean += delta * n / total;
+                m2 += otherM2 + delta * delta * count * n / total;
+            }
+            count += n;
+            break;
+        }
+        default: {
+            // the partial result can be added like a single value
+            long c = count;
+            add(database, dataType, false, s[1]);
+            count = c + n;
+        }
+        }
+    }
+
     private static Value divide(Value a, long by) {
         if (by == 0) {
             return ValueNull.INSTANCE;
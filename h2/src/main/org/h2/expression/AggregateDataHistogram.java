@@ -66,6 +66,33 @@ public int compare(ValueArray v1, ValueArray v2) {
         return v.convertTo(dataType);
     }
 
+    @Override
+    Value getState(boolean distinct) {
+        if (distinctValues == null) {
+            return ValueArray.get(new Value[0]);
+        }
+        Value[] values = new Value[distinctValues.size() * 2];
+        int i = 0;
+        for (Map.Entry<Value, AggregateDataHistogram> entry : distinctValues.entries()) {
+            values[i++] = entry.getKey();
+            values[i++] = ValueLong.get(entry.getValue().count);
+        }
+        return ValueArray.get(values);
+    }
+
+    @Override
+    void mergeState(Database database, int dataType, boolean distinct, Value state) {
+        Value[] values = ((ValueArray) state).getList();
+        for (int i = 0; i < values.length; i += 2) {
+            Value v = values[i];
+            add(database, dataType, distinct, v);
+            AggregateDataHistogram a = distinctValues.get(v);
+            if (a != null) {
+                a.count += values[i + 1].getLong() - 1;
+            }
+        }
+    }
+
     private void groupDistinct(Database database, int dataType) {
         if (distinctValues == null) {
             return;
@@ -9,7 +9,10 @@
 import org.h2.engine.Database;
 import org.h2.util.IntIntHashMap;
 import org.h2.value.Value;
+import org.h2.value.ValueArray;
+import org.h2.value.ValueDouble;
 import org.h2.value.ValueInt;
+import org.h2.value.ValueLong;
 
 /**
  * Data stored while calculating a SELECTIVITY aggregate.
@@ -53,4 +56,23 @@ Value getValue(Database database, int dataType, boolean distinct) {
         v = ValueInt.get(s);
         return v.convertTo(dataType);
     }
+
+    @Override
+    Value getState(boolean distinct) {
+        int size = distinctHashes == null ? 0 : distinctHashes.size();
+        return ValueArray.get(new Value[] { ValueLong.get(count), ValueDouble.get(m2 + size) });
+    }
+
+    @Override
+    void mergeState(Database database, int dataType, boolean distinct, Value state) {
+        // the distinct values of the parts are not compared, which is good
+        // enough for an estimate
+        Value[] s = ((ValueArray) state).getList();
+        if (distinctHashes == null) {
+            distinctHashes = new IntIntHashMap();
+        }
+        count += s[0].getLong();
+        m2 += s[1].getDouble();
+    }
+
 }
@@ -246,6 +246,28 @@ public Expression optimize(Session session) {
     @Override
     public Value getValue(Session session) {
         Value l = left.getValue(session);
+        if (right == null) {
+            return getValue(l, null);
+        }
+        if (l == ValueNull.INSTANCE) {
+            if ((compareType & NULL_SAFE) == 0) {
+                return ValueNull.INSTANCE;
+            }
+        }
+        return getValue(l, right.getValue(session));
+    }
+
+    /**
+     * Get the value of this comparison for the given values of the left and
+     * the right side. The sub-expressions are not evaluated, so this method
+     * can be used by other threads than the thread of the session.
+     *
+     * @param l the value of the left side
+     * @param r the value of the right side, or null for IS NULL and IS NOT
+     *            NULL
+     * @return the result
+     */
+    public Value getValue(Value l, Value r) {
         if (right == null) {
             boolean result;
             switch (compareType) {
@@ -265,7 +287,6 @@ public Value getValue(Session session) {
                 return ValueNull.INSTANCE;
             }
         }
-        Value r = right.getValue(session);
         if (r == ValueNull.INSTANCE) {
             if ((compareType & NULL_SAFE) == 0) {
                 return ValueNull.INSTANCE;
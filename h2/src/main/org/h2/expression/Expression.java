@@ -108,6 +108,33 @@ public abstract class Expression {
      */
     public abstract void updateAggregate(Session session);
 
+    /**
+     * Get the group data of this expression in a form that can be stored in a
+     * temporary file. This is used if a query has too many groups to keep them
+     * in memory.
+     *
+     * @param data the group data of this expression
+     * @return the state, or null if the group data can not be stored
+     */
+    public Value getGroupState(@SuppressWarnings("unused") Object data) {
+        return null;
+    }
+
+    /**
+     * Merge a state that was returned by {@link #getGroupState(Object)} into
+     * the group data of this expression.
+     *
+     * @param session the session
+     * @param data the group data, or null
+     * @param state the state
+     * @return the new group data
+     */
+    public Object mergeGroupState(@SuppressWarnings("unused") Session session,
+            @SuppressWarnings("unused") Object data,
+            @SuppressWarnings("unused") Value state) {
+        throw DbException.throwInternalError(getSQL());
+    }
+
     /**
      * Check if this expression and all sub-expressions can fulfill a criteria.
      * If any part returns false, the result is false.
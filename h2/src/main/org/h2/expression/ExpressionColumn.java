@@ -172,6 +172,19 @@ public void updateAggregate(Session session) {
         }
     }
 
+    @Override
+    public Value getGroupState(Object data) {
+        return (Value) data;
+    }
+
+    @Override
+    public Object mergeGroupState(Session session, Object data, Value state) {
+        if (data != null && !database.areEqual((Value) data, state)) {
+            throw DbException.get(ErrorCode.MUST_GROUP_BY_COLUMN_1, getSQL());
+        }
+        return state;
+    }
+
     @Override
     public Value getValue(Session session) {
         Select select = columnResolver.getSelect();
@@ -204,6 +204,25 @@ public Value getValue(Session session) {
         }
     }
 
+    @Override
+    public Value getGroupState(Object data) {
+        if (data instanceof AggregateDataCollecting) {
+            return ((AggregateDataCollecting) data).getState(true);
+        }
+        // the state of a user-defined aggregate can not be stored
+        return null;
+    }
+
+    @Override
+    public Object mergeGroupState(Session session, Object data, Value state) {
+        AggregateDataCollecting d = (AggregateDataCollecting) data;
+        if (d == null) {
+            d = new AggregateDataCollecting();
+        }
+        d.mergeState(session.getDatabase(), dataType, true, state);
+        return d;
+    }
+
     @Override
     public void updateAggregate(Session session) {
         if (!select.isCurrentGroup()) {
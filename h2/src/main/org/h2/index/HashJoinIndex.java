@@ -0,0 +1,306 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.h2.command.dml.AllColumnsForPlan;
+import org.h2.engine.Database;
+import org.h2.engine.Session;
+import org.h2.message.DbException;
+import org.h2.mvstore.db.MVHashJoinTempResult;
+import org.h2.result.Row;
+import org.h2.result.SearchRow;
+import org.h2.result.SortOrder;
+import org.h2.table.Column;
+import org.h2.table.IndexColumn;
+import org.h2.table.Table;
+import org.h2.table.TableFilter;
+import org.h2.util.Utils;
+import org.h2.value.CompareMode;
+import org.h2.value.Value;
+import org.h2.value.ValueArray;
+import org.h2.value.ValueLong;
+
+/**
+ * A virtual index that is used to join a table on columns that are compared
+ * for equality, if the table has no index on those columns. When the first
+ * row is looked up, all rows of the table are read once using the source
+ * index, and are stored in a hash table by the values of the join columns.
+ * Lookups are then hash table probes. If there are more rows than
+ * MAX_MEMORY_ROWS, the rows are moved to a temporary file. The hash table is
+ * kept until the query is completed.
+ */
+public class HashJoinIndex extends BaseIndex {
+
+    private static final ArrayList<Row> NO_ROWS = new ArrayList<>(0);
+
+    private final Index source;
+    private final int maxMemoryRows;
+    private HashMap<Value, ArrayList<Row>> rows;
+    private MVHashJoinTempResult external;
+    private int rowCount;
+
+    /**
+     * Create a new hash join index.
+     *
+     * @param table the table
+     * @param columns the join columns
+     * @param source the index used to read all rows of the table
+     */
+    public HashJoinIndex(Table table, IndexColumn[] columns, Index source) {
+        initBaseIndex(table, 0, null, columns, IndexType.createNonUnique(false, true, false));
+        this.source = source;
+        if (database.isPersistent() && !database.isReadOnly()) {
+            maxMemoryRows = database.getMaxMemoryRows();
+        } else {
+            maxMemoryRows = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Check whether rows can be joined on this column using a hash table,
+     * that is, whether two values of the column are equal if and only if they
+     * compare as equal.
+     *
+     * @param database the database
+     * @param column the column
+     * @return true if yes
+     */
+    public static boolean canHash(Database database, Column column) {
+        switch (column.getType()) {
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DOUBLE:
+        case Value.FLOAT:
+        case Value.TIME:
+        case Value.DATE:
+        case Value.TIMESTAMP:
+        case Value.BYTES:
+        case Value.UUID:
+            return true;
+        case Value.STRING:
+        case Value.STRING_IGNORECASE:
+        case Value.STRING_FIXED:
+            // a collation may treat different strings as equal
+            return CompareMode.OFF.equals(database.getCompareMode().getName());
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Discard the rows read for the current query.
+     */
+    public void clear() {
+        rows = null;
+        rowCount = 0;
+        if (external != null) {
+            external.close();
+            external = null;
+        }
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        Value key = getKey(first, last);
+        if (key == null) {
+            // not a lookup by the join columns; the conditions are checked by
+            // the table filter, so all rows can be returned
+            return source.find(session, null, null);
+        }
+        if (rows == null) {
+            build(session, source.find(session, null, null));
+        }
+        if (external == null) {
+            ArrayList<Row> list = rows.get(key);
+            return new MetaCursor(list == null ? NO_ROWS : list);
+        }
+        Value[] k = columns.length == 1 ? new Value[] { key } : ((ValueArray) key).getList();
+        ArrayList<Value[]> found = external.get(k);
+        ArrayList<Row> list = new ArrayList<>(found.size());
+        int offset = columns.length;
+        for (Value[] values : found) {
+            Row row = table.createRow(Arrays.copyOfRange(values, offset, values.length - 1),
+                    Row.MEMORY_CALCULATE);
+            row.setKey(values[values.length - 1].getLong());
+            list.add(row);
+        }
+        return new MetaCursor(list);
+    }
+
+    private void build(Session session, Cursor cursor) {
+        rows = new HashMap<>();
+        while (cursor.next()) {
+            if ((++rowCount & 4095) == 0) {
+                session.checkCanceled();
+            }
+            Row row = cursor.get();
+            Value key = getKey(row);
+            if (external != null) {
+                addExternal(key, row);
+            } else {
+                ArrayList<Row> list = rows.get(key);
+                if (list == null) {
+                    list = Utils.newSmallArrayList();
+                    rows.put(key, list);
+                }
+                list.add(row);
+                if (rowCount > maxMemoryRows) {
+                    external = new MVHashJoinTempResult(database, columns.length);
+                    for (ArrayList<Row> l : rows.values()) {
+                        for (Row r : l) {
+                            addExternal(getKey(r), r);
+                        }
+                    }
+                    rows.clear();
+                }
+            }
+        }
+    }
+
+    private void addExternal(Value key, Row row) {
+        int keyLength = columns.length;
+        int columnCount = row.getColumnCount();
+        Value[] values = new Value[keyLength + columnCount + 1];
+        if (keyLength == 1) {
+            values[0] = key;
+        } else {
+            System.arraycopy(((ValueArray) key).getList(), 0, values, 0, keyLength);
+        }
+        for (int i = 0; i < columnCount; i++) {
+            values[keyLength + i] = row.getValue(i);
+        }
+        values[keyLength + columnCount] = ValueLong.get(row.getKey());
+        external.addRow(values);
+    }
+
+    private Value getKey(Row row) {
+        if (columns.length == 1) {
+            return convert(row.getValue(columnIds[0]), columns[0]);
+        }
+        Value[] key = new Value[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            key[i] = convert(row.getValue(columnIds[i]), columns[i]);
+        }
+        return ValueArray.get(key);
+    }
+
+    /**
+     * Get the join key of a lookup.
+     *
+     * @param first the lower bound
+     * @param last the upper bound
+     * @return the key, or null if this is not a lookup of one join key
+     */
+    private Value getKey(SearchRow first, SearchRow last) {
+        if (first == null || last == null) {
+            return null;
+        }
+        Value[] key = new Value[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            int id = columnIds[i];
+            Value a = first.getValue(id);
+            Value b = last.getValue(id);
+            if (a == null || b == null || (a != b && !database.areEqual(a, b))) {
+                return null;
+            }
+            key[i] = convert(a, columns[i]);
+        }
+        return key.length == 1 ? key[0] : ValueArray.get(key);
+    }
+
+    private Value convert(Value v, Column column) {
+        return v.convertTo(column.getType(), -1, database.getMode());
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks,
+            TableFilter[] filters, int filter, SortOrder sortOrder,
+            AllColumnsForPlan allColumnsSet) {
+        // the cost of one lookup, the same as for a regular index on the
+        // join columns, so that existing indexes are preferred; reading the
+        // rows is not included
+        return 10 * getCostRangeIndex(masks, table.getRowCountApproximation(),
+                filters, filter, sortOrder, false, allColumnsSet);
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return "hashJoin(" + source.getPlanSQL() + ")";
+    }
+
+    @Override
+    public void close(Session session) {
+        // nothing to do
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public void remove(Session session) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public void truncate(Session session) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public void checkRename() {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("HASH JOIN");
+    }
+
+    @Override
+    public boolean canScan() {
+        return false;
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return source.getRowCount(session);
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return source.getRowCountApproximation();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+}
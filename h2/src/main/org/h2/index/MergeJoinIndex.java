@@ -0,0 +1,309 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.index;
+
+import java.util.ArrayList;
+
+import org.h2.command.dml.AllColumnsForPlan;
+import org.h2.engine.Session;
+import org.h2.message.DbException;
+import org.h2.mvstore.db.MVIndex;
+import org.h2.mvstore.db.MVPrimaryIndex;
+import org.h2.mvstore.db.MVSecondaryIndex;
+import org.h2.result.Row;
+import org.h2.result.SearchRow;
+import org.h2.result.SortOrder;
+import org.h2.table.Column;
+import org.h2.table.IndexColumn;
+import org.h2.table.TableFilter;
+import org.h2.util.Utils;
+import org.h2.value.Value;
+import org.h2.value.ValueNull;
+
+/**
+ * A virtual index that is used to join a table if the rows of the outer table
+ * are read in the order of the join column, and the inner table has an
+ * ordered index on the join column. Instead of searching the index for each
+ * row of the outer table, one cursor of the index is moved forward as the
+ * join key grows, and the rows of the last join key are kept for duplicate
+ * keys of the outer table. If the join key gets smaller, or if too many rows
+ * would need to be skipped, the index is searched again.
+ */
+public class MergeJoinIndex extends BaseIndex {
+
+    /**
+     * The number of index rows that are skipped before the index is searched
+     * again.
+     */
+    private static final int MAX_SKIP = 128;
+
+    private static final ArrayList<SearchRow> NO_ROWS = new ArrayList<>(0);
+
+    private final Index source;
+    private final int columnId;
+    private final Column column;
+    /**
+     * Whether the cursors of the source index return complete rows.
+     */
+    private final boolean completeRows;
+    private Cursor cursor;
+    private boolean pending, end;
+    private Value lastKey;
+    private ArrayList<SearchRow> lastRows;
+
+    /**
+     * Create a new merge join index.
+     *
+     * @param source the ordered index of the table
+     * @param column the join column, the first column of the index
+     */
+    public MergeJoinIndex(Index source, Column column) {
+        IndexColumn c = new IndexColumn();
+        c.column = column;
+        initBaseIndex(source.getTable(), 0, null, new IndexColumn[] { c },
+                IndexType.createNonUnique(false));
+        this.source = source;
+        this.column = column;
+        columnId = column.getColumnId();
+        completeRows = !(source instanceof MVSecondaryIndex);
+    }
+
+    /**
+     * Get the column by which the given index returns rows in ascending
+     * order, if the index can be used for a merge join.
+     *
+     * @param index the index
+     * @return the column, or null
+     */
+    public static Column getOrderColumn(Index index) {
+        if (index instanceof MergeJoinIndex) {
+            return ((MergeJoinIndex) index).column;
+        }
+        if (index instanceof MVPrimaryIndex) {
+            int main = ((MVPrimaryIndex) index).getMainIndexColumn();
+            return main < 0 ? null : index.getTable().getColumn(main);
+        }
+        if (!(index instanceof MVIndex) || index.getIndexType().isSpatial()) {
+            return null;
+        }
+        IndexColumn first = index.getIndexColumns()[0];
+        if ((first.sortType & SortOrder.DESCENDING) != 0) {
+            return null;
+        }
+        return first.column;
+    }
+
+    /**
+     * Discard the position of the cursor.
+     */
+    public void clear() {
+        cursor = null;
+        pending = end = false;
+        lastKey = null;
+        lastRows = null;
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        Value key = getKey(first, last);
+        if (key == null) {
+            // not a lookup of one join key
+            return source.find(session, first, last);
+        }
+        if (lastKey != null) {
+            int comp = database.compare(key, lastKey);
+            if (comp == 0) {
+                return new RowsCursor(session, lastRows);
+            } else if (comp < 0) {
+                cursor = null;
+            }
+        }
+        lastKey = key;
+        lastRows = NO_ROWS;
+        if (cursor == null) {
+            seek(session, key);
+        }
+        int skipped = 0;
+        while (true) {
+            if (!pending) {
+                if (end || !cursor.next()) {
+                    // there are no rows with a larger key
+                    end = true;
+                    break;
+                }
+                pending = true;
+            }
+            Value v = cursor.getSearchRow().getValue(columnId);
+            int comp = database.compare(v, key);
+            if (comp > 0) {
+                break;
+            }
+            if (comp == 0) {
+                if (lastRows == NO_ROWS) {
+                    lastRows = Utils.newSmallArrayList();
+                }
+                lastRows.add(cursor.getSearchRow());
+            } else if (++skipped > MAX_SKIP) {
+                seek(session, key);
+                skipped = 0;
+                continue;
+            }
+            pending = false;
+        }
+        return new RowsCursor(session, lastRows);
+    }
+
+    private void seek(Session session, Value key) {
+        SearchRow row = table.getTemplateRow();
+        row.setValue(columnId, key);
+        cursor = source.find(session, row, null);
+        pending = end = false;
+    }
+
+    /**
+     * Get the join key of a lookup.
+     *
+     * @param first the lower bound
+     * @param last the upper bound
+     * @return the key, or null if this is not a lookup of one join key
+     */
+    private Value getKey(SearchRow first, SearchRow last) {
+        if (first == null || last == null) {
+            return null;
+        }
+        Value a = first.getValue(columnId);
+        Value b = last.getValue(columnId);
+        if (a == null || b == null || a == ValueNull.INSTANCE ||
+                (a != b && !database.areEqual(a, b))) {
+            return null;
+        }
+        return column.convert(a);
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks,
+            TableFilter[] filters, int filter, SortOrder sortOrder,
+            AllColumnsForPlan allColumnsSet) {
+        return source.getCost(session, masks, filters, filter, sortOrder,
+                allColumnsSet);
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return "mergeJoin(" + source.getPlanSQL() + ")";
+    }
+
+    @Override
+    public void close(Session session) {
+        // nothing to do
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public void remove(Session session) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public void truncate(Session session) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public void checkRename() {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("MERGE JOIN");
+    }
+
+    @Override
+    public boolean canScan() {
+        return false;
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return source.getRowCount(session);
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return source.getRowCountApproximation();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+    /**
+     * A cursor over the rows of one join key. The rows are only read from the
+     * table if required.
+     */
+    private final class RowsCursor implements Cursor {
+
+        private final Session session;
+        private final ArrayList<SearchRow> rows;
+        private int index;
+        private SearchRow current;
+        private Row row;
+
+        RowsCursor(Session session, ArrayList<SearchRow> rows) {
+            this.session = session;
+            this.rows = rows;
+        }
+
+        @Override
+        public Row get() {
+            if (row == null && current != null) {
+                row = completeRows ? (Row) current :
+                        table.getRow(session, current.getKey());
+            }
+            return row;
+        }
+
+        @Override
+        public SearchRow getSearchRow() {
+            return current;
+        }
+
+        @Override
+        public boolean next() {
+            current = index < rows.size() ? rows.get(index++) : null;
+            row = null;
+            return current != null;
+        }
+
+        @Override
+        public boolean previous() {
+            throw DbException.throwInternalError(toString());
+        }
+
+    }
+
+}
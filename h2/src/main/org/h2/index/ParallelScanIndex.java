@@ -0,0 +1,474 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.h2.command.dml.AllColumnsForPlan;
+import org.h2.engine.Database;
+import org.h2.engine.Session;
+import org.h2.expression.Aggregate;
+import org.h2.expression.Comparison;
+import org.h2.expression.Expression;
+import org.h2.expression.ExpressionColumn;
+import org.h2.expression.Parameter;
+import org.h2.message.DbException;
+import org.h2.mvstore.db.MVPrimaryIndex;
+import org.h2.result.Row;
+import org.h2.result.SearchRow;
+import org.h2.result.SortOrder;
+import org.h2.table.Column;
+import org.h2.table.TableFilter;
+import org.h2.value.Value;
+import org.h2.value.ValueArray;
+import org.h2.value.ValueBoolean;
+
+/**
+ * A virtual index that is used to scan a large MVStore table using multiple
+ * threads. The key range of the table is split into parts, which are read
+ * by the threads of a fork-join pool from the same snapshot of the table.
+ * The threads skip the rows that don't match the comparisons of columns
+ * with constants of the WHERE condition. The remaining rows are returned in
+ * key order, and the thread of the session evaluates the complete
+ * condition, and computes the result of the query, as usual.
+ * <p>
+ * If the query only computes simple aggregates, and the comparisons are the
+ * complete condition, the threads also compute the aggregates of each part,
+ * and the thread of the session only merges the results of the parts.
+ */
+public class ParallelScanIndex extends BaseIndex {
+
+    /**
+     * The minimum number of rows of a table to read it using multiple
+     * threads.
+     */
+    private static final long MIN_ROWS = 10000;
+
+    /**
+     * The number of rows of a part of the table that is read by one task.
+     */
+    private static final int PART_ROWS = 8192;
+
+    private static ForkJoinPool pool;
+
+    private final MVPrimaryIndex source;
+    private final Comparison[] conditions;
+    private final int[] columnIds;
+    private ParallelCursor cursor;
+
+    /**
+     * Create a new parallel scan index.
+     *
+     * @param source the primary index of the table
+     * @param conditions the conditions that compare a column of the table
+     *            with a constant or a parameter
+     */
+    public ParallelScanIndex(MVPrimaryIndex source,
+            ArrayList<Comparison> conditions) {
+        initBaseIndex(source.getTable(), 0, null, source.getIndexColumns(),
+                source.getIndexType());
+        this.source = source;
+        this.conditions = conditions.toArray(new Comparison[0]);
+        columnIds = new int[this.conditions.length];
+        for (int i = 0; i < columnIds.length; i++) {
+            ExpressionColumn column = (ExpressionColumn) this.conditions[i]
+                    .getExpression(true);
+            columnIds[i] = column.getColumn().getColumnId();
+        }
+    }
+
+    /**
+     * Check whether the rows of the given table filter can be filtered by
+     * the given condition without evaluating it in the thread of the
+     * session, that is, whether it compares a column of the table with a
+     * value that doesn't change while the query is run.
+     *
+     * @param filter the table filter
+     * @param condition the condition
+     * @return true if yes
+     */
+    public static boolean canEvaluate(TableFilter filter, Expression condition) {
+        if (!(condition instanceof Comparison)) {
+            return false;
+        }
+        Comparison comp = (Comparison) condition;
+        Expression left = comp.getExpression(true);
+        if (!(left instanceof ExpressionColumn) ||
+                ((ExpressionColumn) left).getTableFilter() != filter) {
+            return false;
+        }
+        Column column = ((ExpressionColumn) left).getColumn();
+        if (column.getColumnId() < 0) {
+            return false;
+        }
+        Expression right = comp.getExpression(false);
+        return right == null || right.isConstant() ||
+                right instanceof Parameter;
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Stop reading the rows for the current query.
+     */
+    public void clear() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    @Override
+    public Cursor find(Session session, SearchRow first, SearchRow last) {
+        clear();
+        int parallelism = session.getMaxParallelism();
+        long rowCount = source.getRowCountApproximation();
+        if (parallelism <= 1 || rowCount < MIN_ROWS) {
+            return source.find(session, first, last);
+        }
+        cursor = new ParallelCursor(session, source.findParts(session, first,
+                last, getPartCount(parallelism, rowCount)),
+                getConditionValues(session), parallelism);
+        return cursor;
+    }
+
+    /**
+     * Compute the given aggregates for the rows that match the conditions,
+     * which need to be the complete condition of the query. Each part of the
+     * table is aggregated by a thread of the pool, and the thread of the
+     * session merges the results of the parts.
+     *
+     * @param session the session
+     * @param aggregates the aggregates, see
+     *            {@link Aggregate#canAggregateParts(TableFilter)}
+     * @return the data of the aggregates, or null if the table is not read
+     *         using multiple threads, for example because it is small
+     */
+    public Object[] aggregate(Session session, final Aggregate[] aggregates) {
+        clear();
+        int parallelism = session.getMaxParallelism();
+        long rowCount = source.getRowCountApproximation();
+        if (parallelism <= 1 || rowCount < MIN_ROWS) {
+            return null;
+        }
+        final Value[] values = getConditionValues(session);
+        final Database database = session.getDatabase();
+        final AtomicBoolean stop = new AtomicBoolean();
+        ForkJoinPool p = getPool();
+        ArrayList<FutureTask<Value[]>> tasks = new ArrayList<>();
+        for (final Iterator<Entry<Value, Value>> it : source.findParts(session,
+                null, null, getPartCount(parallelism, rowCount))) {
+            FutureTask<Value[]> task = new FutureTask<>(new Callable<Value[]>() {
+                @Override
+                public Value[] call() {
+                    Object[] data = new Object[aggregates.length];
+                    for (int i = 0; i < aggregates.length; i++) {
+                        data[i] = aggregates[i].createPartData();
+                    }
+                    while (!stop.get() && it.hasNext()) {
+                        Value[] row = ((ValueArray) it.next().getValue()).getList();
+                        if (isMatch(row, values, true)) {
+                            for (int i = 0; i < aggregates.length; i++) {
+                                aggregates[i].addPartRow(database, data[i], row);
+                            }
+                        }
+                    }
+                    Value[] states = new Value[aggregates.length];
+                    for (int i = 0; i < aggregates.length; i++) {
+                        states[i] = aggregates[i].getGroupState(data[i]);
+                    }
+                    return states;
+                }
+            });
+            tasks.add(task);
+            p.execute(task);
+        }
+        Object[] result = new Object[aggregates.length];
+        try {
+            for (FutureTask<Value[]> task : tasks) {
+                session.checkCanceled();
+                // aggregate the part in this thread if no other thread
+                // started yet
+                task.run();
+                Value[] states = getResult(task);
+                for (int i = 0; i < aggregates.length; i++) {
+                    result[i] = aggregates[i].mergeGroupState(session,
+                            result[i], states[i]);
+                }
+            }
+        } finally {
+            stop.set(true);
+        }
+        return result;
+    }
+
+    private Value[] getConditionValues(Session session) {
+        Value[] values = new Value[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            Expression right = conditions[i].getExpression(false);
+            if (right != null) {
+                values[i] = right.getValue(session);
+            }
+        }
+        return values;
+    }
+
+    private static int getPartCount(int parallelism, long rowCount) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(
+                parallelism * 4L, rowCount / PART_ROWS));
+    }
+
+    private static <T> T getResult(FutureTask<T> task) {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw DbException.convert(e.getCause());
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    /**
+     * Check whether the row may match the conditions.
+     *
+     * @param data the values of the row
+     * @param values the values of the right sides of the conditions
+     * @param exact whether an exception while evaluating a condition is
+     *            thrown, instead of treating the row as a possible match
+     *            that the thread of the session evaluates again
+     * @return false if the row doesn't match
+     */
+    boolean isMatch(Value[] data, Value[] values, boolean exact) {
+        for (int i = 0; i < conditions.length; i++) {
+            Value v;
+            try {
+                v = conditions[i].getValue(data[columnIds[i]], values[i]);
+            } catch (RuntimeException e) {
+                if (exact) {
+                    throw e;
+                }
+                // the thread of the session evaluates the condition again
+                continue;
+            }
+            if (v != ValueBoolean.TRUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getColumnIndex(Column col) {
+        return source.getColumnIndex(col);
+    }
+
+    @Override
+    public double getCost(Session session, int[] masks,
+            TableFilter[] filters, int filter, SortOrder sortOrder,
+            AllColumnsForPlan allColumnsSet) {
+        return source.getCost(session, masks, filters, filter, sortOrder,
+                allColumnsSet);
+    }
+
+    @Override
+    public String getPlanSQL() {
+        return "parallelScan(" + source.getPlanSQL() + ")";
+    }
+
+    @Override
+    public void close(Session session) {
+        // nothing to do
+    }
+
+    @Override
+    public void add(Session session, Row row) {
+        throw DbException.getUnsupportedException("PARALLEL SCAN");
+    }
+
+    @Override
+    public void remove(Session session, Row row) {
+        throw DbException.getUnsupportedException("PARALLEL SCAN");
+    }
+
+    @Override
+    public void remove(Session session) {
+        throw DbException.getUnsupportedException("PARALLEL SCAN");
+    }
+
+    @Override
+    public void truncate(Session session) {
+        throw DbException.getUnsupportedException("PARALLEL SCAN");
+    }
+
+    @Override
+    public void checkRename() {
+        throw DbException.getUnsupportedException("PARALLEL SCAN");
+    }
+
+    @Override
+    public boolean needRebuild() {
+        return false;
+    }
+
+    @Override
+    public boolean isRowIdIndex() {
+        return source.isRowIdIndex();
+    }
+
+    @Override
+    public boolean canGetFirstOrLast() {
+        return false;
+    }
+
+    @Override
+    public Cursor findFirstOrLast(Session session, boolean first) {
+        throw DbException.getUnsupportedException("PARALLEL SCAN");
+    }
+
+    @Override
+    public Row getRow(Session session, long key) {
+        return source.getRow(session, key);
+    }
+
+    @Override
+    public long getRowCount(Session session) {
+        return source.getRowCount(session);
+    }
+
+    @Override
+    public long getRowCountApproximation() {
+        return source.getRowCountApproximation();
+    }
+
+    @Override
+    public long getDiskSpaceUsed() {
+        return 0;
+    }
+
+    /**
+     * A cursor that reads the parts of the table using the threads of the
+     * pool. At most as many parts as the degree of parallelism are read
+     * ahead. If the part that is needed next was not started yet, it is read
+     * by the thread of the session.
+     */
+    private final class ParallelCursor implements Cursor {
+
+        private final Session session;
+        private final List<Iterator<Entry<Value, Value>>> parts;
+        private final Value[] values;
+        private final int parallelism;
+        private final ArrayList<FutureTask<ArrayList<Entry<Value, Value>>>> tasks;
+        private volatile boolean closed;
+        private int partIndex;
+        private ArrayList<Entry<Value, Value>> rows;
+        private int rowIndex;
+        private Entry<Value, Value> current;
+        private Row row;
+
+        ParallelCursor(Session session,
+                List<Iterator<Entry<Value, Value>>> parts, Value[] values,
+                int parallelism) {
+            this.session = session;
+            this.parts = parts;
+            this.values = values;
+            this.parallelism = parallelism;
+            tasks = new ArrayList<>(parts.size());
+        }
+
+        @Override
+        public Row get() {
+            if (row == null && current != null) {
+                ValueArray array = (ValueArray) current.getValue();
+                row = session.createRow(array.getList(), 0);
+                row.setKey(current.getKey().getLong());
+            }
+            return row;
+        }
+
+        @Override
+        public SearchRow getSearchRow() {
+            return get();
+        }
+
+        @Override
+        public boolean next() {
+            row = null;
+            while (rows == null || rowIndex >= rows.size()) {
+                if (partIndex >= parts.size()) {
+                    current = null;
+                    return false;
+                }
+                rows = readPart(partIndex++);
+                rowIndex = 0;
+            }
+            current = rows.get(rowIndex++);
+            return true;
+        }
+
+        private ArrayList<Entry<Value, Value>> readPart(int index) {
+            ForkJoinPool p = getPool();
+            for (int i = tasks.size(), end = Math.min(parts.size(),
+                    index + parallelism); i < end; i++) {
+                FutureTask<ArrayList<Entry<Value, Value>>> task = createTask(
+                        parts.get(i));
+                tasks.add(task);
+                p.execute(task);
+            }
+            FutureTask<ArrayList<Entry<Value, Value>>> task = tasks.get(index);
+            // release the rows when they were read
+            tasks.set(index, null);
+            // read the part in this thread if no other thread started yet
+            task.run();
+            return getResult(task);
+        }
+
+        private FutureTask<ArrayList<Entry<Value, Value>>> createTask(
+                final Iterator<Entry<Value, Value>> it) {
+            return new FutureTask<>(
+                    new Callable<ArrayList<Entry<Value, Value>>>() {
+                @Override
+                public ArrayList<Entry<Value, Value>> call() {
+                    ArrayList<Entry<Value, Value>> list = new ArrayList<>();
+                    while (!closed && it.hasNext()) {
+                        Entry<Value, Value> e = it.next();
+                        if (isMatch(((ValueArray) e.getValue()).getList(),
+                                values, false)) {
+                            list.add(e);
+                        }
+                    }
+                    return list;
+                }
+            });
+        }
+
+        /**
+         * Stop reading the parts.
+         */
+        void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean previous() {
+            throw DbException.throwInternalError(toString());
+        }
+
+    }
+
+}
@@ -561,8 +561,9 @@ public String nativeSQL(String sql) throws SQLException {
     /**
      * According to the JDBC specs, this setting is only a hint to the database
      * to enable optimizations - it does not cause writes to be prohibited.
+     * In read-only mode, queries use read-only transactions.
      *
-     * @param readOnly ignored
+     * @param readOnly the new value
      * @throws SQLException if the connection is closed
      */
     @Override
@@ -572,6 +573,7 @@ public void setReadOnly(boolean readOnly) throws SQLException {
                 debugCode("setReadOnly(" + readOnly + ");");
             }
             checkClosed();
+            session.setReadOnly(readOnly);
         } catch (Exception e) {
             throw logAndConvert(e);
         }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import org.h2.util.IntArray;
+
+/**
+ * A thread that compacts the store incrementally, with a limited rate, so
+ * that compaction doesn't cause latency spikes for other operations.
+ * <p>
+ * Each pass selects the chunks with a low fill rate (the same way as
+ * MVStore.compact), and then moves their live pages page by page, by
+ * re-writing the first key of each page. Unlike MVStore.compact, the store
+ * lock is not held while moving pages; the moved pages are stored with the
+ * next commit. The number of bytes moved per second is limited. While another
+ * thread holds or waits for the store lock, or if there are many unsaved
+ * changes, moving pages is paused.
+ */
+final class BackgroundCompactor extends Thread {
+
+    /**
+     * The delay between two passes, in milliseconds.
+     */
+    private static final int PASS_DELAY = 1000;
+
+    /**
+     * The time to wait if other operations have priority, in milliseconds.
+     */
+    private static final int YIELD_DELAY = 10;
+
+    private final MVStore store;
+
+    private final int targetFillRate;
+
+    private final long bytesPerSecond;
+
+    private boolean stop;
+
+    /**
+     * The store version after the last pass. The next pass is only started
+     * after the moved pages were stored.
+     */
+    private long lastPassVersion = -1;
+
+    /**
+     * The number of pages moved.
+     */
+    private volatile long pageCount;
+
+    /**
+     * The number of bytes moved (estimated from the page lengths).
+     */
+    private volatile long byteCount;
+
+    /**
+     * The time spent moving pages, in nanoseconds, excluding the time
+     * between passes.
+     */
+    private volatile long activeNanos;
+
+    /**
+     * The number of pages to move in the current pass.
+     */
+    private volatile int passPageCount;
+
+    /**
+     * The number of pages processed in the current pass.
+     */
+    private volatile int passDoneCount;
+
+    /**
+     * Create a new compactor thread.
+     *
+     * @param store the store
+     * @param targetFillRate the fill rate below which chunks are compacted
+     * @param bytesPerSecond the maximum number of bytes to move per second
+     */
+    BackgroundCompactor(MVStore store, int targetFillRate, long bytesPerSecond) {
+        super("MVStore background compactor " + store.getFileStore().getFileName());
+        this.store = store;
+        this.targetFillRate = targetFillRate;
+        this.bytesPerSecond = bytesPerSecond;
+        setDaemon(true);
+    }
+
+    /**
+     * Stop the thread and wait until it has stopped. The thread is not
+     * interrupted, as this would close the file channel.
+     */
+    void close() {
+        synchronized (this) {
+            stop = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!isStopped()) {
+            pause(PASS_DELAY);
+            if (isStopped() || store.isClosed()) {
+                break;
+            }
+            try {
+                compact();
+            } catch (Throwable e) {
+                store.handleException(e);
+            }
+        }
+    }
+
+    private void compact() {
+        long version = store.getCurrentVersion();
+        if (version == lastPassVersion) {
+            // the pages moved in the last pass are not stored yet
+            store.tryCommit();
+            return;
+        }
+        // about one second of work per pass
+        ArrayList<Chunk> old = store.findChunksToCompact(targetFillRate,
+                (int) Math.min(Integer.MAX_VALUE, bytesPerSecond));
+        if (old == null || old.isEmpty()) {
+            return;
+        }
+        HashSet<Integer> set = new HashSet<>();
+        for (Chunk c : old) {
+            set.add(c.id);
+        }
+        ArrayList<MVMap<?, ?>> maps = store.getOpenMaps();
+        ArrayList<ArrayList<?>> keys = new ArrayList<>(maps.size());
+        ArrayList<IntArray> lengths = new ArrayList<>(maps.size());
+        int count = 0;
+        for (MVMap<?, ?> map : maps) {
+            ArrayList<Object> k = new ArrayList<>();
+            IntArray l = new IntArray();
+            collectRewriteKeys(map, set, k, l);
+            keys.add(k);
+            lengths.add(l);
+            count += k.size();
+        }
+        passPageCount = count;
+        passDoneCount = 0;
+        long start = System.nanoTime();
+        long passBytes = 0;
+        try {
+            for (int i = 0; i < maps.size(); i++) {
+                MVMap<?, ?> map = maps.get(i);
+                ArrayList<?> k = keys.get(i);
+                IntArray l = lengths.get(i);
+                for (int j = 0; j < k.size(); j++) {
+                    if (!awaitTurn(start, passBytes)) {
+                        return;
+                    }
+                    if (map.isClosed()) {
+                        break;
+                    }
+                    if (rewriteKey(map, k.get(j))) {
+                        int length = l.get(j);
+                        passBytes += length;
+                        byteCount += length;
+                        pageCount++;
+                    }
+                    passDoneCount++;
+                }
+            }
+            store.compactMetaPages(set);
+            if (passBytes > 0) {
+                lastPassVersion = store.getCurrentVersion();
+                store.tryCommit();
+            }
+        } finally {
+            activeNanos += System.nanoTime() - start;
+            passDoneCount = passPageCount;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> void collectRewriteKeys(MVMap<K, ?> map,
+            HashSet<Integer> set, ArrayList<?> keys, IntArray lengths) {
+        map.collectRewriteKeys(set, (ArrayList<K>) keys, lengths);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> boolean rewriteKey(MVMap<K, ?> map, Object key) {
+        return map.rewriteKey((K) key);
+    }
+
+    /**
+     * Wait until the next page may be moved: until the rate is within the
+     * budget, and no other thread needs the store lock.
+     *
+     * @param start the start time of the pass
+     * @param passBytes the bytes moved in this pass so far
+     * @return false if the thread was stopped or the store is closed
+     */
+    private boolean awaitTurn(long start, long passBytes) {
+        while (true) {
+            if (isStopped() || store.isClosed()) {
+                return false;
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            long allowed = micros * bytesPerSecond / TimeUnit.SECONDS.toMicros(1);
+            if (passBytes > allowed) {
+                long millis = (passBytes - allowed) * 1000 / bytesPerSecond;
+                pause((int) Math.max(1, Math.min(millis, PASS_DELAY)));
+            } else if (store.isStoreLockBusy() || store.hasManyUnsavedChanges()) {
+                pause(YIELD_DELAY);
+            } else {
+                return true;
+            }
+        }
+    }
+
+    private synchronized boolean isStopped() {
+        return stop;
+    }
+
+    private synchronized void pause(int millis) {
+        if (!stop) {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Get the number of pages moved so far.
+     *
+     * @return the number of pages
+     */
+    long getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Get the (estimated) number of bytes moved so far.
+     *
+     * @return the number of bytes
+     */
+    long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Get the average number of bytes moved per second while compacting.
+     *
+     * @return the bytes per second
+     */
+    long getRate() {
+        long millis = TimeUnit.NANOSECONDS.toMillis(activeNanos);
+        return millis == 0 ? 0 : byteCount * 1000 / millis;
+    }
+
+    /**
+     * Get the progress of the current pass.
+     *
+     * @return the percentage of pages processed (100 if idle)
+     */
+    int getProgress() {
+        int total = passPageCount;
+        return total == 0 ? 100 : (int) (100L * passDoneCount / total);
+    }
+
+}
@@ -98,6 +98,13 @@ public class Chunk {
      */
     public long unused;
 
+    /**
+     * The version in which the last live page of this chunk was removed, or 0
+     * if the chunk is still live. Versions before that could still reference
+     * pages of this chunk.
+     */
+    public long unusedAtVersion;
+
     /**
      * The last used map id.
      */
@@ -193,6 +200,7 @@ public static Chunk fromString(String s) {
         c.metaRootPos = DataUtils.readHexLong(map, "root", 0);
         c.time = DataUtils.readHexLong(map, "time", 0);
         c.unused = DataUtils.readHexLong(map, "unused", 0);
+        c.unusedAtVersion = DataUtils.readHexLong(map, "unusedAtVersion", 0);
         c.version = DataUtils.readHexLong(map, "version", id);
         c.next = DataUtils.readHexLong(map, "next", 0);
         return c;
@@ -212,6 +220,16 @@ public int getFillRate() {
         return 1 + (int) (98 * maxLenLive / maxLen);
     }
 
+    /**
+     * Whether this chunk still contains pages that are in use in the newest
+     * version, according to the live page counters.
+     *
+     * @return true if it is live
+     */
+    boolean isLive() {
+        return pageCountLive > 0;
+    }
+
     @Override
     public int hashCode() {
         return id;
@@ -249,6 +267,9 @@ public String asString() {
         if (unused != 0) {
             DataUtils.appendMap(buff, "unused", unused);
         }
+        if (unusedAtVersion != 0) {
+            DataUtils.appendMap(buff, "unusedAtVersion", unusedAtVersion);
+        }
         DataUtils.appendMap(buff, "version", version);
         return buff.toString();
     }
@@ -22,6 +22,13 @@
     private V lastValue;
     private Page lastPage;
 
+    /**
+     * The parent page of the leaves that are read ahead, and the index after
+     * the last leaf that was requested to be read ahead.
+     */
+    private Page readAheadParent;
+    private int readAheadEnd;
+
     public Cursor(Page root, K from) {
         this(root, from, null);
     }
@@ -49,7 +56,12 @@ public boolean hasNext() {
                     }
                 } else {
                     while (!page.isLeaf()) {
+                        Page parent = page;
                         page = page.getChildPage(index);
+                        if (page.isLeaf()) {
+                            // the previous leaf was read completely
+                            readAhead(parent, index);
+                        }
                         if (keeper == null) {
                             cursorPos = new CursorPos(page, 0, cursorPos);
                         } else {
@@ -85,6 +97,31 @@ public K next() {
         return last;
     }
 
+    /**
+     * Read the leaves following the given leaf in the background, if enabled.
+     * Leaves are requested in batches, the next batch when half of the
+     * previous one is consumed.
+     *
+     * @param parent the parent of the leaf
+     * @param index the index of the leaf within the parent
+     */
+    private void readAhead(Page parent, int index) {
+        MVStore store = parent.map.getStore();
+        int count = store.getReadAheadPageCount();
+        if (count == 0) {
+            return;
+        }
+        if (parent != readAheadParent) {
+            readAheadParent = parent;
+            readAheadEnd = index + 1;
+        }
+        if (index + (count + 1) / 2 >= readAheadEnd) {
+            int from = Math.max(readAheadEnd, index + 1);
+            store.readAhead(parent, from);
+            readAheadEnd = from + count;
+        }
+    }
+
     /**
      * Get the last read key if there was one.
      *
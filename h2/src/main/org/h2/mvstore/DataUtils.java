@@ -126,6 +126,12 @@ public final class DataUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for compressed pages where the compression algorithm is
+     * stored in the byte before the compressed data.
+     */
+    public static final int PAGE_COMPRESSED_CODEC = 2 + 8;
+
     /**
      * The maximum length of a variable size int.
      */
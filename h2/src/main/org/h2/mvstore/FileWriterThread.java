@@ -0,0 +1,279 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A thread that writes completed chunks (and store headers) to the file and
+ * syncs the file, so that the next version can be serialized while the
+ * previous chunk is still being written.
+ * <p>
+ * Writes are done in the order they were requested. After the queue becomes
+ * empty, the file is synced once for all chunks written so far. The number of
+ * bytes waiting to be written is limited; if the limit is reached, the storing
+ * thread is blocked until enough data was written.
+ * <p>
+ * If this thread is interrupted, it stops without writing the pending data,
+ * as an interrupt would close the file channel, and the following writes
+ * fail. Threads that wait for this thread are not interrupted: they keep
+ * waiting, and their interrupt status is set again afterwards.
+ */
+final class FileWriterThread extends Thread {
+
+    private final FileStore fileStore;
+
+    /**
+     * The maximum number of bytes waiting to be written. One write is always
+     * accepted, even if it is larger than that.
+     */
+    private final long maxPendingBytes;
+
+    /**
+     * The pending writes, including the one currently written.
+     */
+    private final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+
+    /**
+     * The ids of the chunks that are not completely written yet.
+     */
+    private final ConcurrentHashMap<Integer, PendingWrite> pendingChunks =
+            new ConcurrentHashMap<>();
+
+    /**
+     * A buffer that was written and can be re-used.
+     */
+    private final AtomicReference<WriteBuffer> spareBuffer = new AtomicReference<>();
+
+    private long pendingBytes;
+
+    /**
+     * The end of the last byte written or to be written since the last flush.
+     */
+    private long pendingEnd;
+
+    /**
+     * Whether data was written since the file was last synced.
+     */
+    private boolean unsynced;
+
+    private boolean stop;
+
+    private IllegalStateException failure;
+
+    FileWriterThread(FileStore fileStore, long maxPendingBytes) {
+        super("MVStore file writer " + fileStore.getFileName());
+        this.fileStore = fileStore;
+        this.maxPendingBytes = maxPendingBytes;
+        setDaemon(true);
+    }
+
+    /**
+     * Queue a write. This method blocks while too many bytes are waiting to
+     * be written.
+     *
+     * @param pos the file position
+     * @param buffer the data
+     * @param writeBuffer the buffer that contains the data and may be re-used
+     *            afterwards, or null
+     * @param chunkId the id of the chunk, or -1 if no chunk is written
+     */
+    synchronized void write(long pos, ByteBuffer buffer, WriteBuffer writeBuffer,
+            int chunkId) {
+        int length = buffer.remaining();
+        boolean interrupted = false;
+        while (pendingBytes > 0 && pendingBytes + length > maxPendingBytes &&
+                failure == null) {
+            interrupted |= waitForChange();
+        }
+        restoreInterrupt(interrupted);
+        checkFailure();
+        PendingWrite w = new PendingWrite(pos, buffer, writeBuffer, chunkId);
+        if (chunkId >= 0) {
+            pendingChunks.put(chunkId, w);
+        }
+        queue.add(w);
+        pendingBytes += length;
+        pendingEnd = Math.max(pendingEnd, pos + length);
+        notifyAll();
+    }
+
+    /**
+     * Wait until the given chunk is completely written to the file.
+     *
+     * @param chunkId the chunk id
+     */
+    void awaitChunk(int chunkId) {
+        if (!pendingChunks.containsKey(chunkId)) {
+            return;
+        }
+        synchronized (this) {
+            boolean interrupted = false;
+            while (pendingChunks.containsKey(chunkId) && failure == null) {
+                interrupted |= waitForChange();
+            }
+            restoreInterrupt(interrupted);
+            checkFailure();
+        }
+    }
+
+    /**
+     * Wait until all pending writes are done and the file is synced.
+     */
+    synchronized void flush() {
+        boolean interrupted = false;
+        while ((!queue.isEmpty() || unsynced) && failure == null) {
+            interrupted |= waitForChange();
+        }
+        restoreInterrupt(interrupted);
+        checkFailure();
+        pendingEnd = 0;
+    }
+
+    /**
+     * Get the file size, including the pending writes.
+     *
+     * @return the file size
+     */
+    synchronized long getFileSize() {
+        return Math.max(pendingEnd, fileStore.size());
+    }
+
+    /**
+     * Get a buffer that was already written, if available.
+     *
+     * @return the buffer, or null
+     */
+    WriteBuffer takeSpareBuffer() {
+        return spareBuffer.getAndSet(null);
+    }
+
+    /**
+     * Write all pending data and stop the thread.
+     */
+    void close() {
+        synchronized (this) {
+            stop = true;
+            notifyAll();
+        }
+        if (Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            PendingWrite w;
+            boolean sync;
+            synchronized (this) {
+                boolean interrupted = isInterrupted();
+                while (queue.isEmpty() && !unsynced && !stop && !interrupted) {
+                    interrupted = waitForChange();
+                }
+                if (interrupted) {
+                    failure = DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_WRITING_FAILED,
+                            "The file writer thread was interrupted");
+                    notifyAll();
+                    break;
+                }
+                if (failure != null || queue.isEmpty() && !unsynced) {
+                    // stopped
+                    break;
+                }
+                w = queue.peek();
+                sync = w == null;
+            }
+            try {
+                if (sync) {
+                    fileStore.sync();
+                } else {
+                    fileStore.writeFully(w.pos, w.buffer);
+                }
+            } catch (IllegalStateException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                break;
+            }
+            synchronized (this) {
+                if (sync) {
+                    unsynced = false;
+                } else {
+                    queue.poll();
+                    pendingBytes -= w.length;
+                    if (w.chunkId >= 0) {
+                        pendingChunks.remove(w.chunkId, w);
+                    }
+                    unsynced = true;
+                    if (w.writeBuffer != null) {
+                        spareBuffer.set(w.writeBuffer);
+                    }
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Writing failed in the file writer thread", failure);
+        }
+    }
+
+    /**
+     * Wait until another thread calls notifyAll().
+     *
+     * @return whether the current thread was interrupted while waiting
+     */
+    private boolean waitForChange() {
+        try {
+            wait();
+            return false;
+        } catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    private static void restoreInterrupt(boolean interrupted) {
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A write that is not done yet.
+     */
+    private static final class PendingWrite {
+
+        final long pos;
+        final ByteBuffer buffer;
+        final WriteBuffer writeBuffer;
+        final int chunkId;
+        final int length;
+
+        PendingWrite(long pos, ByteBuffer buffer, WriteBuffer writeBuffer,
+                int chunkId) {
+            this.pos = pos;
+            this.buffer = buffer;
+            this.writeBuffer = writeBuffer;
+            this.chunkId = chunkId;
+            this.length = buffer.remaining();
+        }
+    }
+
+}
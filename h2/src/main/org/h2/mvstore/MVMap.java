@@ -8,15 +8,18 @@
 import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
+import org.h2.compress.Compressor;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.mvstore.type.StringDataType;
+import org.h2.util.IntArray;
 
 /**
  * A stored map.
@@ -43,6 +46,12 @@
 
     private final int id;
     private final long createVersion;
+
+    /**
+     * The compression algorithm for new pages, or -1 to use the algorithm of
+     * the store.
+     */
+    private final int compressionAlgorithm;
     private final DataType keyType;
     private final DataType valueType;
 
@@ -54,18 +63,31 @@
     private boolean readOnly;
     private boolean isVolatile;
 
+    /**
+     * The redo log the changes are written to, or null if changes are not
+     * logged.
+     */
+    private RedoLog redoLog;
+
     /**
      * This designates the "last stored" version for a store which was
      * just open for the first time.
      */
     static final long INITIAL_VERSION = -1;
 
+    /**
+     * The maximum number of times a changed leaf is applied to a concurrently
+     * changed root, before the change is repeated from the start.
+     */
+    private static final int MAX_REBASE_ATTEMPTS = 8;
+
     protected MVMap(Map<String, Object> config) {
         this((MVStore) config.get("store"),
                 (DataType) config.get("key"),
                 (DataType) config.get("val"),
                 DataUtils.readHexInt(config, "id", 0),
                 DataUtils.readHexLong(config, "createVersion", 0),
+                DataUtils.readHexInt(config, "compress", -1),
                 new AtomicReference<RootReference>()
         );
         setInitialRoot(createEmptyLeaf(), store.getCurrentVersion());
@@ -74,20 +96,22 @@ protected MVMap(Map<String, Object> config) {
     // constructor for cloneIt()
     protected MVMap(MVMap<K, V> source) {
         this(source.store, source.keyType, source.valueType, source.id, source.createVersion,
-                new AtomicReference<>(source.root.get()));
+                source.compressionAlgorithm, new AtomicReference<>(source.root.get()));
     }
 
     // meta map constructor
     MVMap(MVStore store) {
-        this(store, StringDataType.INSTANCE,StringDataType.INSTANCE, 0, 0, new AtomicReference<RootReference>());
+        this(store, StringDataType.INSTANCE,StringDataType.INSTANCE, 0, 0, -1,
+                new AtomicReference<RootReference>());
         setInitialRoot(createEmptyLeaf(), store.getCurrentVersion());
     }
 
     private MVMap(MVStore store, DataType keyType, DataType valueType, int id, long createVersion,
-                    AtomicReference<RootReference> root) {
+                    int compressionAlgorithm, AtomicReference<RootReference> root) {
         this.store = store;
         this.id = id;
         this.createVersion = createVersion;
+        this.compressionAlgorithm = compressionAlgorithm;
         this.keyType = keyType;
         this.valueType = valueType;
         this.root = root;
@@ -173,10 +197,22 @@ public final K lastKey() {
      * @return the key
      */
     public final K getKey(long index) {
-        if (index < 0 || index >= sizeAsLong()) {
+        return getKey(getRootPage(), index);
+    }
+
+    /**
+     * Get the key at the given index in the given version of the map.
+     * <p>
+     * This is a O(log(size)) operation.
+     *
+     * @param p the root page of the version
+     * @param index the index
+     * @return the key
+     */
+    public final K getKey(Page p, long index) {
+        if (index < 0 || index >= p.getTotalCount()) {
             return null;
         }
-        Page p = getRootPage();
         long offset = 0;
         while (true) {
             if (p.isLeaf()) {
@@ -245,7 +281,19 @@ public int indexOf(Object key) {
      * @return the index
      */
     public final long getKeyIndex(K key) {
-        Page p = getRootPage();
+        return getKeyIndex(getRootPage(), key);
+    }
+
+    /**
+     * Get the index of the given key in the given version of the map.
+     * <p>
+     * This is a O(log(size)) operation.
+     *
+     * @param p the root page of the version
+     * @param key the key
+     * @return the index, see {@link #getKeyIndex(Object)}
+     */
+    public final long getKeyIndex(Page p, K key) {
         if (p.getTotalCount() == 0) {
             return -1;
         }
@@ -408,12 +456,117 @@ public void clear() {
         RootReference rootReference;
         Page emptyRootPage = createEmptyLeaf();
         int attempt = 0;
-        do {
-            rootReference = getRoot();
-        } while (!updateRoot(rootReference, emptyRootPage, ++attempt));
+        RedoLog log = getRedoLog();
+        if (log == null) {
+            do {
+                rootReference = getRoot();
+            } while (!updateRoot(rootReference, emptyRootPage, ++attempt));
+        } else {
+            synchronized (log) {
+                do {
+                    rootReference = getRoot();
+                } while (!updateRoot(rootReference, emptyRootPage, ++attempt));
+                log.logClear(this);
+            }
+        }
         rootReference.root.removeAllRecursive();
     }
 
+    /**
+     * Remove all entries with a key larger or equal to the given key. Only
+     * the pages on the path to the key are copied, and the pages after it are
+     * removed as a whole, so this is much faster than removing the entries
+     * one by one.
+     *
+     * @param from the smallest key to remove
+     */
+    public void removeTail(K from) {
+        beforeWrite();
+        int attempt = 0;
+        while (true) {
+            RootReference rootReference = getRoot();
+            CursorPos tip = traverseDown(rootReference.root, from);
+            Page original = tip.page;
+            int index = tip.index < 0 ? -tip.index - 1 : tip.index;
+            int keyCount = original.getKeyCount();
+            int unsavedMemory = 0;
+            // the new page (null if all entries are removed), and the
+            // lowest changed position
+            Page p;
+            CursorPos changed = tip;
+            if (index == 0) {
+                p = null;
+            } else if (index == keyCount) {
+                p = original;
+                changed = null;
+            } else {
+                p = original.copy();
+                for (int i = keyCount - 1; i >= index; i--) {
+                    p.remove(i);
+                }
+                unsavedMemory += p.getMemory();
+            }
+            for (CursorPos pos = tip.parent; pos != null; pos = pos.parent) {
+                Page node = pos.page;
+                int childCount = getChildPageCount(node);
+                if (changed == null && pos.index == childCount - 1) {
+                    p = node;
+                    continue;
+                }
+                if (changed == null) {
+                    changed = pos;
+                }
+                int keep = p == null ? pos.index : pos.index + 1;
+                if (keep == 0) {
+                    p = null;
+                } else if (keep == 1) {
+                    // a node needs at least two children
+                    p = p == null ? node.getChildPage(0) : p;
+                } else {
+                    Page c = p;
+                    p = node.copy();
+                    for (int i = childCount - 1; i >= keep; i--) {
+                        p.remove(i);
+                    }
+                    if (c != null) {
+                        p.setChild(pos.index, c);
+                    }
+                    unsavedMemory += p.getMemory();
+                }
+            }
+            if (changed == null) {
+                return;
+            }
+            if (p == null) {
+                p = createEmptyLeaf();
+            }
+            boolean success;
+            RedoLog log = getRedoLog();
+            if (log == null) {
+                success = updateRoot(rootReference, p, ++attempt);
+            } else {
+                synchronized (log) {
+                    success = updateRoot(rootReference, p, ++attempt);
+                    if (success) {
+                        log.logRemoveTail(this, from);
+                    }
+                }
+            }
+            if (success) {
+                for (CursorPos pos = changed; pos != null; pos = pos.parent) {
+                    if (!pos.page.isLeaf()) {
+                        pos.page.removeChildrenRecursive(pos.index + 1);
+                    }
+                    pos.page.removePage();
+                }
+                if (store.getFileStore() != null) {
+                    store.registerUnsavedPage(unsavedMemory);
+                }
+                return;
+            }
+        }
+    }
+
     /**
      * Close the map. Accessing the data is still possible (to allow concurrent
      * reads), but it is marked as closed.
@@ -655,6 +808,79 @@ private int rewrite(Page p, Set<Integer> set) {
         return writtenPageCount;
     }
 
+    /**
+     * Collect the keys that need to be re-written to move the pages that are
+     * stored in one of the given chunks: the first key of each such leaf
+     * page, and of each such node page whose child pages are all in other
+     * chunks. Unlike rewrite, this method does not modify the map.
+     *
+     * @param set the set of chunk ids
+     * @param keys the list to add the keys to
+     * @param lengths the list to add the maximum lengths of the pages to
+     */
+    final void collectRewriteKeys(Set<Integer> set, ArrayList<K> keys, IntArray lengths) {
+        collectRewriteKeys(getRootPage(), set, keys, lengths);
+    }
+
+    private int collectRewriteKeys(Page p, Set<Integer> set, ArrayList<K> keys,
+            IntArray lengths) {
+        long pos = p.getPos();
+        boolean inSet = DataUtils.isPageSaved(pos) &&
+                set.contains(DataUtils.getPageChunkId(pos));
+        if (p.isLeaf()) {
+            if (!inSet || p.getKeyCount() == 0) {
+                return 0;
+            }
+            @SuppressWarnings("unchecked")
+            K key = (K) p.getKey(0);
+            keys.add(key);
+            lengths.add(DataUtils.getPageMaxLength(pos));
+            return 1;
+        }
+        int count = 0;
+        for (int i = 0; i < getChildPageCount(p); i++) {
+            long childPos = p.getChildPagePos(i);
+            if (childPos != 0 && DataUtils.getPageType(childPos) == DataUtils.PAGE_TYPE_LEAF) {
+                // only load leaf pages that are in one of the chunks
+                int chunkId = DataUtils.getPageChunkId(childPos);
+                if (!set.contains(chunkId)) {
+                    continue;
+                }
+            }
+            count += collectRewriteKeys(p.getChildPage(i), set, keys, lengths);
+        }
+        if (count == 0 && inSet) {
+            // re-writing any key moves this page as well
+            Page p2 = p;
+            while (!p2.isLeaf()) {
+                p2 = p2.getChildPage(0);
+            }
+            if (p2.getKeyCount() > 0) {
+                @SuppressWarnings("unchecked")
+                K key = (K) p2.getKey(0);
+                keys.add(key);
+                lengths.add(DataUtils.getPageMaxLength(pos));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Re-write the pages on the path to the given key (if the key still
+     * exists), by replacing the value with the same value.
+     *
+     * @param key the key
+     * @return true if the pages were re-written
+     */
+    final boolean rewriteKey(K key) {
+        V value = get(key);
+        if (value == null || isClosed()) {
+            return false;
+        }
+        return replace(key, value, value);
+    }
+
     /**
      * Get a cursor to iterate over a number of keys and values.
      *
@@ -855,6 +1081,57 @@ protected final boolean updateRoot(RootReference oldRoot, Page newRoot, int atte
         return setNewRoot(oldRoot, newRoot, attemptUpdateCounter, true) != null;
     }
 
+    /**
+     * Use the new root page from now on, and log the new state of the changed
+     * entry, if changes of this map are logged. The change is logged while
+     * holding the lock of the redo log, so that the changes of the map are
+     * logged in the order they are applied.
+     *
+     * @param oldRoot the old root reference
+     * @param newRoot the new root page
+     * @param attemptUpdateCounter how many attempt (including current)
+     *                            were made to update root
+     * @param key the key of the changed entry
+     * @param value the new value, or null if the entry was removed
+     * @return whether updating the root was successful
+     */
+    protected final boolean updateRoot(RootReference oldRoot, Page newRoot, int attemptUpdateCounter,
+                                        Object key, Object value) {
+        RedoLog log = getRedoLog();
+        if (log == null) {
+            return updateRoot(oldRoot, newRoot, attemptUpdateCounter);
+        }
+        synchronized (log) {
+            if (!updateRoot(oldRoot, newRoot, attemptUpdateCounter)) {
+                return false;
+            }
+            log.log(this, key, value);
+            return true;
+        }
+    }
+
+    private RedoLog getRedoLog() {
+        return isVolatile ? null : redoLog;
+    }
+
+    /**
+     * Check whether the changes of this map are written to a redo log.
+     *
+     * @return true if yes
+     */
+    protected final boolean isLogged() {
+        return getRedoLog() != null;
+    }
+
+    /**
+     * Write the changes of this map to the given redo log from now on.
+     *
+     * @param redoLog the redo log
+     */
+    final void setRedoLog(RedoLog redoLog) {
+        this.redoLog = redoLog;
+    }
+
     /**
      * Forget those old versions that are no longer needed.
      * @param rootReference to inspect
@@ -960,6 +1237,16 @@ public final long getCreateVersion() {
         return createVersion;
     }
 
+    /**
+     * Get the compression algorithm for new pages of this map.
+     *
+     * @return the algorithm (see the constants in Compressor), or -1 if the
+     *         algorithm of the store is used
+     */
+    public final int getCompressionAlgorithm() {
+        return compressionAlgorithm;
+    }
+
     /**
      * Remove the given page (make the space available).
      *
@@ -1072,6 +1359,9 @@ protected String asString(String name) {
         if (createVersion != 0) {
             DataUtils.appendMap(buff, "createVersion", createVersion);
         }
+        if (compressionAlgorithm >= 0) {
+            DataUtils.appendMap(buff, "compress", compressionAlgorithm);
+        }
         String type = getType();
         if (type != null) {
             DataUtils.appendMap(buff, "type", type);
@@ -1280,6 +1570,7 @@ public String toString() {
 
         private DataType keyType;
         private DataType valueType;
+        private int compressionAlgorithm = -1;
 
         /**
          * Create a new builder with the default key and value data types.
@@ -1330,6 +1621,25 @@ public BasicBuilder<M, K, V> valueType(DataType valueType) {
             return this;
         }
 
+        /**
+         * Set the compression algorithm for new pages of this map, for example
+         * Compressor.NO for maps that are updated often, or Compressor.LZ4
+         * for maps that are read often. By default, the algorithm of the
+         * store is used. The algorithm is stored when the map is created; if
+         * it is set when opening an existing map, it is used instead of the
+         * stored one until the store is closed.
+         *
+         * @param algorithm the algorithm (see the constants in Compressor)
+         * @return this
+         */
+        public BasicBuilder<M, K, V> compress(int algorithm) {
+            if (algorithm != Compressor.NO) {
+                MVStore.createCompressor(algorithm);
+            }
+            this.compressionAlgorithm = algorithm;
+            return this;
+        }
+
         @Override
         public M create(MVStore store, Map<String, Object> config) {
             if (getKeyType() == null) {
@@ -1343,6 +1653,9 @@ public M create(MVStore store, Map<String, Object> config) {
             config.put("store", store);
             config.put("key", keyType);
             config.put("val", valueType);
+            if (compressionAlgorithm >= 0) {
+                config.put("compress", compressionAlgorithm);
+            }
             return create(config);
         }
 
@@ -1372,6 +1685,12 @@ public Builder<K, V> valueType(DataType dataType) {
             return this;
         }
 
+        @Override
+        public Builder<K, V> compress(int algorithm) {
+            super.compress(algorithm);
+            return this;
+        }
+
         @Override
         protected MVMap<K, V> create(Map<String, Object> config) {
             Object type = config.get("type");
@@ -1518,6 +1837,8 @@ public V operate(K key, V value, DecisionMaker<? super V> decisionMaker) {
 
             int unsavedMemory = 0;
             boolean needUnlock = false;
+            // the changed copy of the leaf, if no other page was changed
+            Page leaf = null;
             try {
                 switch (decision) {
                     case REPEAT:
@@ -1554,6 +1875,9 @@ public V operate(K key, V value, DecisionMaker<? super V> decisionMaker) {
                         }
                         p = p.copy();
                         p.remove(index);
+                        if (p.isLeaf()) {
+                            leaf = p;
+                        }
                         break;
                     }
                     case PUT: {
@@ -1563,12 +1887,14 @@ public V operate(K key, V value, DecisionMaker<? super V> decisionMaker) {
                         }
                         value = decisionMaker.selectValue(result, value);
                         p = p.copy();
+                        leaf = p;
                         if (index < 0) {
                             p.insertLeaf(-index - 1, key, value);
                             int keyCount;
                             while ((keyCount = p.getKeyCount()) > store.getKeysPerPage()
                                     || p.getMemory() > store.getMaxPageSize()
                                     && keyCount > (p.isLeaf() ? 1 : 2)) {
+                                leaf = null;
                                 long totalCount = p.getTotalCount();
                                 int at = keyCount >> 1;
                                 Object k = p.getKey(at);
@@ -1607,12 +1933,55 @@ public V operate(K key, V value, DecisionMaker<? super V> decisionMaker) {
                     unsavedMemory += p.getMemory();
                     pos = pos.parent;
                 }
+                Object newValue = decision == Decision.PUT ? value : null;
                 if(needUnlock) {
-                    unlockRoot(p, attempt);
+                    RedoLog log = getRedoLog();
+                    if (log == null) {
+                        unlockRoot(p, attempt);
+                    } else {
+                        synchronized (log) {
+                            log.log(this, key, newValue);
+                            unlockRoot(p, attempt);
+                        }
+                    }
                     needUnlock = false;
-                } else if(!updateRoot(rootReference, p, attempt)) {
-                    decisionMaker.reset();
-                    continue;
+                } else if(!updateRoot(rootReference, p, attempt, key, newValue)) {
+                    // The root was changed concurrently. If only the leaf was
+                    // changed here, and the new root still contains the same
+                    // leaf, the decision is still valid, and the changed leaf
+                    // can be used with the new root, without deciding again.
+                    // So concurrent changes of different leaves don't need to
+                    // be repeated, and don't lead to locking the root.
+                    CursorPos replaced = null;
+                    if (leaf != null) {
+                        for (int i = 0; i < MAX_REBASE_ATTEMPTS; i++) {
+                            rootReference = getRoot();
+                            if (rootReference.lockedForUpdate) {
+                                break;
+                            }
+                            CursorPos newPos = traverseDown(rootReference.root, key);
+                            if (newPos.page != tip.page) {
+                                break;
+                            }
+                            p = leaf;
+                            unsavedMemory = p.getMemory();
+                            for (pos = newPos.parent; pos != null; pos = pos.parent) {
+                                Page c = p;
+                                p = pos.page.copy();
+                                p.setChild(pos.index, c);
+                                unsavedMemory += p.getMemory();
+                            }
+                            if (updateRoot(rootReference, p, ++attempt, key, newValue)) {
+                                replaced = newPos;
+                                break;
+                            }
+                        }
+                    }
+                    if (replaced == null) {
+                        decisionMaker.reset();
+                        continue;
+                    }
+                    tip = replaced;
                 }
                 while (tip != null) {
                     tip.page.removePage();
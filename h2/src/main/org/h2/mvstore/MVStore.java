@@ -22,16 +22,22 @@
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import org.h2.compress.CompressDeflate;
+import org.h2.compress.CompressLZ4;
 import org.h2.compress.CompressLZF;
 import org.h2.compress.Compressor;
 import org.h2.engine.Constants;
+import org.h2.mvstore.cache.CacheLongKey;
 import org.h2.mvstore.cache.CacheLongKeyLIRS;
+import org.h2.mvstore.cache.CacheLongKeyOffHeap;
+import org.h2.mvstore.cache.CacheLongKeyTinyLFU;
+import org.h2.store.fs.FileUtils;
 import org.h2.util.MathUtils;
 import static org.h2.mvstore.MVMap.INITIAL_VERSION;
 import org.h2.util.Utils;
@@ -73,7 +79,6 @@
     use a transaction log where only the deltas are stored
 - serialization for lists, sets, sets, sorted sets, maps, sorted maps
 - maybe rename 'rollback' to 'revert' to distinguish from transactions
-- support other compression algorithms (deflate, LZ4,...)
 - remove features that are not really needed; simplify the code
     possibly using a separate layer or tools
     (retainVersion?)
@@ -137,8 +142,15 @@ public class MVStore {
      */
     static final int BLOCK_SIZE = 4 * 1024;
 
-    private static final int FORMAT_WRITE = 1;
-    private static final int FORMAT_READ = 1;
+    /**
+     * The format of new stores. Stores are only upgraded to the current
+     * format when they use a feature that older versions can not read, see
+     * upgradeFormat().
+     */
+    private static final int FORMAT_WRITE_MIN = 1;
+
+    private static final int FORMAT_WRITE = 2;
+    private static final int FORMAT_READ = 2;
 
     /**
      * Used to mark a chunk as free, when it was detected that live bookkeeping
@@ -146,6 +158,27 @@ public class MVStore {
      */
     private static final int MARKED_FREE = 10_000_000;
 
+    /**
+     * The metadata key that marks the live page counters of the chunks as
+     * exact. The value is the version of the chunk that was stored with it,
+     * and the counters are only exact if this is the newest chunk. Files
+     * written by older versions don't have this key, or an older version
+     * if the file was changed by an older version later; the counters are
+     * re-calculated once when opening such a file.
+     */
+    private static final String LIVE_COUNTERS_KEY = "setting.liveCounters";
+
+    /**
+     * The suffix of the redo log file name.
+     */
+    static final String REDO_LOG_SUFFIX = ".redo";
+
+    /**
+     * The size of the redo log after which a chunk is stored on commit, if
+     * the auto-commit buffer size is 0.
+     */
+    private static final int DEFAULT_MAX_REDO_LOG_SIZE = 16 * 1024 * 1024;
+
     /**
      * Lock which governs access to major store operations: store(), close(), ...
      * It should used in a non-reentrant fashion.
@@ -172,10 +205,10 @@ public class MVStore {
 
     /**
      * The page cache. The default size is 16 MB, and the average size is 2 KB.
-     * It is split in 16 segments. The stack move distance is 2% of the expected
-     * number of entries.
+     * By default, a LIRS cache is used that is split in 16 segments. The stack
+     * move distance is 2% of the expected number of entries.
      */
-    final CacheLongKeyLIRS<Page> cache;
+    final CacheLongKey<Page> cache;
 
     /**
      * The page chunk references cache. The default size is 4 MB, and the
@@ -184,6 +217,13 @@ public class MVStore {
      */
     final CacheLongKeyLIRS<int[]> cacheChunkRef;
 
+    /**
+     * The second level page cache, which keeps the serialized pages outside
+     * of the heap, or null if disabled. The stamp of an entry is the version
+     * of the chunk.
+     */
+    private final CacheLongKeyOffHeap offHeapCache;
+
     /**
      * The newest chunk. If nothing was stored yet, this field is not set.
      */
@@ -200,9 +240,17 @@ public class MVStore {
 
     /**
      * The map of temporarily freed storage space caused by freed pages.
-     * It contains the number of freed entries per chunk.
+     * It contains the number of freed entries per chunk, grouped by the
+     * version in which the pages were freed.
      */
-    private final Map<Integer, Chunk> freedPageSpace = new HashMap<>();
+    private final TreeMap<Long, HashMap<Integer, Chunk>> freedPageSpace =
+            new TreeMap<>();
+
+    /**
+     * Whether the live page counters of the chunks are known to be exact, so
+     * that unused chunks can be found without reading all pages.
+     */
+    private boolean liveCountersExact;
 
     /**
      * The metadata map. Write access to this map needs to be done under storeLock.
@@ -221,14 +269,39 @@ public class MVStore {
     private int versionsToKeep = 5;
 
     /**
-     * The compression level for new pages (0 for disabled, 1 for fast, 2 for
-     * high). Even if disabled, the store may contain (old) compressed pages.
+     * The compression algorithm for new pages of maps that don't define their
+     * own (Compressor.NO for disabled). Even if disabled, the store may
+     * contain (old) compressed pages.
+     */
+    private final int compressionAlgorithm;
+
+    /**
+     * The compressors, indexed by algorithm. They are created when needed.
      */
-    private final int compressionLevel;
+    private final Compressor[] compressors = new Compressor[Compressor.LZ4 + 1];
 
-    private Compressor compressorFast;
+    /**
+     * Serializes the changed pages using multiple threads, or null if pages
+     * are serialized by the storing thread only.
+     */
+    private final ParallelPageWriter pageWriter;
 
-    private Compressor compressorHigh;
+    /**
+     * The thread that writes chunks and syncs the file, or null if writes are
+     * done by the storing thread.
+     */
+    private final FileWriterThread fileWriter;
+
+    /**
+     * Reads the pages ahead of sequential cursors, or null if disabled.
+     */
+    private final PageReadAhead readAhead;
+
+    /**
+     * Compacts the store in the background with a limited rate, or null if
+     * disabled.
+     */
+    private final BackgroundCompactor compactor;
 
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
@@ -285,6 +358,11 @@ public class MVStore {
 
     private volatile boolean metaChanged;
 
+    /**
+     * The redo log, or null if changes are only stored in chunks.
+     */
+    private final RedoLog redoLog;
+
     /**
      * The delay in milliseconds to automatically commit and write changes.
      */
@@ -312,12 +390,16 @@ public class MVStore {
      * @throws IllegalArgumentException if the directory does not exist
      */
     MVStore(Map<String, Object> config) {
-        this.compressionLevel = DataUtils.getConfigParam(config, "compress", 0);
+        this.compressionAlgorithm = DataUtils.getConfigParam(config, "compress", Compressor.NO);
+        if (compressionAlgorithm != Compressor.NO) {
+            getCompressor(compressionAlgorithm);
+        }
         String fileName = (String) config.get("fileName");
         FileStore fileStore = (FileStore) config.get("fileStore");
         fileStoreIsProvided = fileStore != null;
         if(fileStore == null && fileName != null) {
-            fileStore = new FileStore();
+            fileStore = config.containsKey("memoryMappedRead") ?
+                    new MappedFileStore() : new FileStore();
         }
         this.fileStore = fileStore;
 
@@ -336,13 +418,29 @@ public class MVStore {
             pgSplitSize = 16 * 1024;
         }
         if (cc != null) {
-            cache = new CacheLongKeyLIRS<>(cc);
+            String cacheType = (String) config.get("cacheType");
+            if (cacheType == null || "LIRS".equalsIgnoreCase(cacheType)) {
+                cache = new CacheLongKeyLIRS<>(cc);
+            } else {
+                DataUtils.checkArgument("TinyLFU".equalsIgnoreCase(cacheType),
+                        "Unsupported cache type {0}", cacheType);
+                cache = new CacheLongKeyTinyLFU<>(cc.maxMemory, cc.segmentCount);
+            }
             cc.maxMemory /= 4;
             cacheChunkRef = new CacheLongKeyLIRS<>(cc);
         } else {
             cache = null;
             cacheChunkRef = null;
         }
+        int offHeapMb = this.fileStore == null ? 0 :
+                DataUtils.getConfigParam(config, "offHeapCacheSize", 0);
+        if (offHeapMb > 0) {
+            int segmentCount = DataUtils.getConfigParam(config, "cacheConcurrency", 16);
+            offHeapCache = new CacheLongKeyOffHeap(offHeapMb * 1024L * 1024L,
+                    segmentCount);
+        } else {
+            offHeapCache = null;
+        }
 
         pgSplitSize = DataUtils.getConfigParam(config, "pageSplitSize", pgSplitSize);
         // Make sure pages will fit into cache
@@ -363,22 +461,40 @@ public class MVStore {
             autoCommitMemory = kb * 1024;
             autoCompactFillRate = DataUtils.getConfigParam(config, "autoCompactFillRate", 40);
             char[] encryptionKey = (char[]) config.get("encryptionKey");
+            if (encryptionKey != null && config.containsKey("redoLog")) {
+                // reject the options before the file is opened and locked
+                Arrays.fill(encryptionKey, (char) 0);
+                throw DataUtils.newIllegalArgumentException(
+                        "The redo log can not be used for an encrypted store");
+            }
+            RedoLog log = null;
             try {
                 if (!fileStoreIsProvided) {
                     boolean readOnly = config.containsKey("readOnly");
                     this.fileStore.open(fileName, readOnly, encryptionKey);
                 }
-                if (this.fileStore.size() == 0) {
+                boolean newStore = this.fileStore.size() == 0;
+                if (newStore) {
                     creationTime = getTimeAbsolute();
                     lastCommitTime = creationTime;
                     storeHeader.put("H", 2);
                     storeHeader.put("blockSize", BLOCK_SIZE);
-                    storeHeader.put("format", FORMAT_WRITE);
+                    storeHeader.put("format", FORMAT_WRITE_MIN);
                     storeHeader.put("created", creationTime);
                     writeStoreHeader();
+                    liveCountersExact = true;
                 } else {
                     readStoreHeader();
+                    liveCountersExact = hasExactLiveCounters();
+                    if (!liveCountersExact && !this.fileStore.isReadOnly()) {
+                        recountLivePages();
+                    }
+                }
+                if (isCodec(compressionAlgorithm)) {
+                    upgradeFormat();
                 }
+                log = openRedoLog(config.containsKey("redoLog"), newStore,
+                        encryptionKey != null);
             } catch (IllegalStateException e) {
                 panic(e);
             } finally {
@@ -386,7 +502,28 @@ public class MVStore {
                     Arrays.fill(encryptionKey, (char) 0);
                 }
             }
+            redoLog = log;
             lastCommitTime = getTimeSinceCreation();
+            int writeConcurrency = DataUtils.getConfigParam(config, "writeConcurrency", 1);
+            pageWriter = writeConcurrency > 1 ?
+                    new ParallelPageWriter(this, writeConcurrency) : null;
+            if (config.containsKey("pipelinedWrite") && !this.fileStore.isReadOnly()) {
+                fileWriter = new FileWriterThread(this.fileStore, autoCommitMemory);
+                fileWriter.start();
+            } else {
+                fileWriter = null;
+            }
+            int readAheadPages = DataUtils.getConfigParam(config, "readAhead", 0);
+            readAhead = readAheadPages > 0 && cache != null ?
+                    new PageReadAhead(this, cache, readAheadPages) : null;
+            int compactionRate = DataUtils.getConfigParam(config, "backgroundCompactionRate", 0);
+            if (compactionRate > 0 && autoCompactFillRate > 0 && !this.fileStore.isReadOnly()) {
+                compactor = new BackgroundCompactor(this, autoCompactFillRate,
+                        compactionRate * 1024L * 1024L);
+                compactor.start();
+            } else {
+                compactor = null;
+            }
 
             Set<String> rootsToRemove = new HashSet<>();
             for (Iterator<String> it = meta.keyIterator("root."); it.hasNext();) {
@@ -401,8 +538,10 @@ public class MVStore {
             }
 
             for (String key : rootsToRemove) {
-                meta.remove(key);
+                String root = meta.remove(key);
                 markMetaChanged();
+                int mapId = DataUtils.parseHexInt(key.substring(key.lastIndexOf('.') + 1));
+                removeMapPages(mapId, null, DataUtils.parseHexLong(root));
             }
 
             // setAutoCommitDelay starts the thread, but only if
@@ -412,6 +551,69 @@ public class MVStore {
         } else {
             autoCommitMemory = 0;
             autoCompactFillRate = 0;
+            redoLog = null;
+            pageWriter = null;
+            fileWriter = null;
+            readAhead = null;
+            compactor = null;
+        }
+    }
+
+    /**
+     * Open the redo log, if it is enabled, or if the log file exists (so that
+     * committed changes are not lost if the store is opened without the
+     * redo log), and apply the changes of the meta map.
+     *
+     * @param enabled whether the redo log is enabled
+     * @param newStore whether the store was just created
+     * @param encrypted whether the store is encrypted
+     * @return the redo log, or null
+     */
+    private RedoLog openRedoLog(boolean enabled, boolean newStore, boolean encrypted) {
+        String name = fileStore.getFileName();
+        if (name == null) {
+            return null;
+        }
+        name += REDO_LOG_SUFFIX;
+        if (newStore && !fileStore.isReadOnly()) {
+            // the log of a store that was deleted
+            FileUtils.delete(name);
+        }
+        boolean exists = FileUtils.exists(name);
+        if (!exists && (!enabled || fileStore.isReadOnly())) {
+            return null;
+        }
+        if (encrypted) {
+            // an IllegalStateException, so that the store is closed
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_UNSUPPORTED_FORMAT,
+                    "The redo log {0} can not be used for an encrypted store",
+                    name);
+        }
+        long firstVersion = lastChunk == null ? 0 : lastChunk.version;
+        RedoLog log = new RedoLog(name, fileStore.isReadOnly(), creationTime,
+                firstVersion, autoCommitMemory > 0 ? autoCommitMemory : DEFAULT_MAX_REDO_LOG_SIZE);
+        try {
+            replayRedoLog(log, meta);
+        } catch (IllegalStateException e) {
+            log.close(false);
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * Apply the changes of the redo log to a map that is opened.
+     *
+     * @param log the redo log
+     * @param map the map
+     */
+    @SuppressWarnings("unchecked")
+    private void replayRedoLog(RedoLog log, MVMap<?, ?> map) {
+        if (log.replay((MVMap<Object, Object>) map)) {
+            // the changes are committed (a rollback must not revert them), and
+            // need to be stored in the next chunk
+            map.setInitialRoot(map.getRootPage(), currentVersion);
         }
     }
 
@@ -490,6 +692,12 @@ public <M extends MVMap<K, V>, K, V> M openMap(String name, MVMap.MapBuilder<M,
             c.put("createVersion", currentVersion);
             map = builder.create(this, c);
             map.init();
+            if (isCodec(getCompressionAlgorithm(map))) {
+                upgradeFormat();
+            }
+            if (redoLog != null) {
+                map.setRedoLog(redoLog);
+            }
             String x = Integer.toHexString(id);
             meta.put(MVMap.getMapKey(id), map.asString(name));
             meta.put("name." + name, x);
@@ -520,8 +728,15 @@ public <M extends MVMap<K, V>, K, V> M openMap(int id, MVMap.MapBuilder<M, K, V>
                 config.put("id", id);
                 map = builder.create(this, config);
                 map.init();
+                if (isCodec(getCompressionAlgorithm(map))) {
+                    upgradeFormat();
+                }
                 long root = getRootPos(meta, id);
                 map.setRootPos(root, lastStoredVersion);
+                if (redoLog != null) {
+                    replayRedoLog(redoLog, map);
+                    map.setRedoLog(redoLog);
+                }
                 maps.put(id, map);
             }
             return map;
@@ -570,6 +785,7 @@ public Set<String> getMapNames() {
      * name.{name} = {mapId}
      * map.{mapId} = {map metadata}
      * root.{mapId} = {root position}
+     * setting.liveCounters = 1 (if the live page counters are exact)
      * setting.storeVersion = {version}
      * </pre>
      *
@@ -583,6 +799,9 @@ public MVMap<String, String> getMetaMap() {
     private MVMap<String, String> getMetaMap(long version) {
         Chunk c = getChunkForVersion(version);
         DataUtils.checkArgument(c != null, "Unknown version {0}", version);
+        if (fileWriter != null) {
+            fileWriter.awaitChunk(c.id);
+        }
         c = readChunkHeader(c.block);
         MVMap<String, String> oldMeta = meta.openReadOnly(c.metaRootPos, version);
         return oldMeta;
@@ -610,8 +829,20 @@ public boolean hasMap(String name) {
         return meta.containsKey("name." + name);
     }
 
+    /**
+     * Check whether a given map exists, and may contain data (its data is
+     * stored, or there are changes in the redo log that were not applied
+     * yet).
+     *
+     * @param name the map name
+     * @return true if it may contain data
+     */
     public boolean hasData(String name) {
-        return hasMap(name) && getRootPos(meta, getMapId(name)) != 0;
+        if (!hasMap(name)) {
+            return false;
+        }
+        int id = getMapId(name);
+        return getRootPos(meta, id) != 0 || redoLog != null && redoLog.hasPending(id);
     }
 
     private void markMetaChanged() {
@@ -919,12 +1150,36 @@ private void writeStoreHeader() {
 
     private void write(long pos, ByteBuffer buffer) {
         try {
-            fileStore.writeFully(pos, buffer);
+            if (fileWriter != null) {
+                fileWriter.write(pos, buffer, null, -1);
+            } else {
+                fileStore.writeFully(pos, buffer);
+            }
         } catch (IllegalStateException e) {
             panic(e);
         }
     }
 
+    /**
+     * Write a chunk and release the buffer.
+     *
+     * @param pos the file position
+     * @param buff the buffer with the chunk data
+     * @param chunkId the chunk id
+     */
+    private void writeChunk(long pos, WriteBuffer buff, int chunkId) {
+        if (fileWriter != null) {
+            try {
+                fileWriter.write(pos, buff.getBuffer(), buff, chunkId);
+            } catch (IllegalStateException e) {
+                panic(e);
+            }
+        } else {
+            write(pos, buff.getBuffer());
+            releaseWriteBuffer(buff);
+        }
+    }
+
     /**
      * Close the file and the store. Unsaved changes are written to disk first.
      */
@@ -942,7 +1197,7 @@ public void close() {
                     }
                 }
             }
-            commit();
+            commit(false);
         }
         closeStore(true);
     }
@@ -964,9 +1219,23 @@ private void closeStore(boolean shrinkIfPossible) {
             return;
         }
         stopBackgroundThread();
+        if (compactor != null) {
+            // the compactor may wait for the store lock
+            compactor.close();
+        }
         closed = true;
         storeLock.lock();
         try {
+            if (readAhead != null) {
+                readAhead.close();
+            }
+            if (pageWriter != null) {
+                pageWriter.close();
+            }
+            if (fileWriter != null) {
+                // writes the remaining chunks
+                fileWriter.close();
+            }
             if (fileStore != null && shrinkIfPossible) {
                 shrinkFileIfPossible(0);
             }
@@ -978,11 +1247,18 @@ private void closeStore(boolean shrinkIfPossible) {
             if (cacheChunkRef != null) {
                 cacheChunkRef.clear();
             }
+            if (offHeapCache != null) {
+                offHeapCache.clear();
+            }
             for (MVMap<?, ?> m : new ArrayList<>(maps.values())) {
                 m.close();
             }
             chunks.clear();
             maps.clear();
+            if (redoLog != null) {
+                // the log is deleted if all changes are stored
+                redoLog.close(shrinkIfPossible);
+            }
             if (fileStore != null && !fileStoreIsProvided) {
                 fileStore.close();
             }
@@ -1052,13 +1328,21 @@ private void setWriteVersion(long version) {
      * @return the new version (incremented if there were changes)
      */
     public long tryCommit() {
+        return tryCommit(redoLog != null);
+    }
+
+    private long tryCommit(boolean useRedoLog) {
         // we need to prevent re-entrance, which may be possible,
         // because meta map is modified within storeNow() and that
         // causes beforeWrite() call with possibility of going back here
         if ((!storeLock.isHeldByCurrentThread() || currentStoreVersion < 0) &&
                 storeLock.tryLock()) {
             try {
-                store();
+                if (useRedoLog && !closed && !metaChanged && !redoLog.isFull()) {
+                    commitToRedoLog();
+                } else {
+                    store();
+                }
             } finally {
                 storeLock.unlock();
             }
@@ -1078,18 +1362,30 @@ public long tryCommit() {
      * when enough changes have accumulated. However, it may still be called to
      * flush all changes to disk.
      * <p>
+     * If a redo log is used, the changes are appended to the log, and the log
+     * is synced, instead of storing a new chunk; unless maps were created or
+     * removed, or the log is too large.
+     * <p>
      * At most one store operation may run at any time.
      *
      * @return the new version (incremented if there were changes)
      */
     public long commit() {
+        return commit(redoLog != null);
+    }
+
+    private long commit(boolean useRedoLog) {
         // we need to prevent re-entrance, which may be possible,
         // because meta map is modified within storeNow() and that
         // causes beforeWrite() call with possibility of going back here
         if(!storeLock.isHeldByCurrentThread() || currentStoreVersion < 0) {
             storeLock.lock();
             try {
-                store();
+                if (useRedoLog && !closed && !metaChanged && !redoLog.isFull()) {
+                    commitToRedoLog();
+                } else {
+                    store();
+                }
             } finally {
                 storeLock.unlock();
             }
@@ -1097,6 +1393,32 @@ public long commit() {
         return currentVersion;
     }
 
+    private void commitToRedoLog() {
+        WriteBuffer batch;
+        long version;
+        synchronized (redoLog) {
+            if (!redoLog.hasChanges()) {
+                return;
+            }
+            if (fileStore.isReadOnly()) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_WRITING_FAILED, "This store is read-only");
+            }
+            // changes are applied and logged while holding the lock of the
+            // log, so the logged changes are exactly the changes of this
+            // version
+            version = currentVersion;
+            currentVersion = version + 1;
+            setWriteVersion(version + 1);
+            batch = redoLog.removeChanges();
+        }
+        try {
+            redoLog.write(batch, version);
+        } catch (IllegalStateException e) {
+            panic(e);
+        }
+    }
+
     private void store() {
         try {
             if (!closed && hasUnsavedChangesInternal()) {
@@ -1136,11 +1458,24 @@ private void storeNow() {
         long storeVersion = currentStoreVersion;
         long version = ++currentVersion;
         lastCommitTime = time;
+        if (redoLog != null) {
+            synchronized (redoLog) {
+                // the changes logged so far are stored in this chunk
+                for (MVMap<?, ?> map : maps.values()) {
+                    map.setWriteVersion(version);
+                }
+                redoLog.removeChanges();
+            }
+            redoLog.prepareCheckpoint(version);
+        }
 
         // the metadata of the last chunk was not stored so far, and needs to be
         // set now (it's better not to update right after storing, because that
         // would modify the meta map again)
         int lastChunkId;
+        if (liveCountersExact) {
+            meta.put(LIVE_COUNTERS_KEY, Long.toHexString(version));
+        }
         if (lastChunk == null) {
             lastChunkId = 0;
         } else {
@@ -1190,6 +1525,7 @@ private void storeNow() {
                 assert map.getVersion() < getOldestVersionToKeep();
                 meta.remove(MVMap.getMapRootKey(map.getId()));
                 iter.remove();
+                removeMapPages(map.getId(), map.getRoot().root, 0);
             } else if (map.getCreateVersion() <= storeVersion && // if map was created after storing started, skip it
                     !map.isVolatile() &&
                     map.hasChangesSince(lastStoredVersion)) {
@@ -1212,17 +1548,28 @@ private void storeNow() {
         c.pageCountLive = 0;
         c.maxLen = 0;
         c.maxLenLive = 0;
+        if (pageWriter != null) {
+            ArrayList<Page> roots = new ArrayList<>(changed.size());
+            for (Page p : changed) {
+                if (p.getTotalCount() > 0) {
+                    roots.add(p);
+                }
+            }
+            pageWriter.writeUnsaved(roots, c, buff);
+        }
         for (Page p : changed) {
             String key = MVMap.getMapRootKey(p.getMapId());
             if (p.getTotalCount() == 0) {
                 meta.remove(key);
             } else {
-                p.writeUnsavedRecursive(c, buff);
+                if (pageWriter == null) {
+                    p.writeUnsavedRecursive(c, buff);
+                }
                 long root = p.getPos();
                 meta.put(key, Long.toHexString(root));
             }
         }
-        applyFreedSpace();
+        applyFreedSpace(storeVersion, time);
         MVMap.RootReference metaRootReference = meta.setWriteVersion(version);
         assert metaRootReference != null;
         assert metaRootReference.version == version : metaRootReference.version + " != " + version;
@@ -1259,13 +1606,13 @@ private void storeNow() {
         buff.put(c.getFooterBytes());
 
         buff.position(0);
-        write(filePos, buff.getBuffer());
-        releaseWriteBuffer(buff);
+        writeChunk(filePos, buff, c.id);
 
         // whether we need to write the store header
         boolean writeStoreHeader = false;
         // end of the used space is not necessarily the end of the file
-        boolean storeAtEndOfFile = filePos + length >= fileStore.size();
+        long fileSize = fileWriter == null ? fileStore.size() : fileWriter.getFileSize();
+        boolean storeAtEndOfFile = filePos + length >= fileSize;
         if (!storeAtEndOfFile) {
             if (lastChunk == null) {
                 writeStoreHeader = true;
@@ -1318,6 +1665,15 @@ private void storeNow() {
                 - currentUnsavedPageCount);
 
         lastStoredVersion = storeVersion;
+        if (redoLog != null) {
+            // the log may only be truncated after the chunk is synced
+            if (fileWriter != null) {
+                fileWriter.flush();
+            } else {
+                fileStore.sync();
+            }
+            redoLog.checkpoint(version);
+        }
     }
 
     /**
@@ -1329,21 +1685,50 @@ private void freeUnusedIfNeeded(long time) {
         if (time >= lastFreeUnusedChunks + freeDelay) {
             // set early in case it fails (out of memory or so)
             lastFreeUnusedChunks = time;
-            freeUnusedChunks();
+            freeUnusedChunks(true);
             // set it here as well, to avoid calling it often if it was slow
             lastFreeUnusedChunks = getTimeSinceCreation();
         }
     }
 
-    private void freeUnusedChunks() {
+    /**
+     * Free the chunks that are no longer used. If the live page counters are
+     * exact and a fast check is requested, the unused chunks are found using
+     * the counters only. Otherwise, all pages of all versions that are still
+     * kept are visited to find the referenced chunks.
+     *
+     * @param fast whether the live page counters may be used
+     */
+    private void freeUnusedChunks(boolean fast) {
         assert storeLock.isHeldByCurrentThread();
         if (lastChunk != null && reuseSpace) {
-            Set<Integer> referenced = collectReferencedChunks();
+            Set<Integer> referenced = fast && liveCountersExact ?
+                    null : collectReferencedChunks();
             long time = getTimeSinceCreation();
+            long oldestVersionToKeep = getOldestVersionToKeep();
 
             for (Iterator<Chunk> iterator = chunks.values().iterator(); iterator.hasNext(); ) {
                 Chunk c = iterator.next();
-                if (c.block != Long.MAX_VALUE && !referenced.contains(c.id)) {
+                if (c.block == Long.MAX_VALUE) {
+                    continue;
+                }
+                boolean unused;
+                if (referenced == null) {
+                    if (c.isLive()) {
+                        continue;
+                    }
+                    if (c.unusedAtVersion == 0) {
+                        markUnused(c, time);
+                        continue;
+                    }
+                    // a chunk without live pages may still be referenced
+                    // by older versions, or by the last stored version
+                    unused = c.unusedAtVersion <= oldestVersionToKeep &&
+                            c.unusedAtVersion <= lastChunk.version;
+                } else {
+                    unused = !referenced.contains(c.id);
+                }
+                if (unused) {
                     if (canOverwriteChunk(c, time)) {
                         iterator.remove();
                         if (meta.remove(Chunk.getMetaKey(c.id)) != null) {
@@ -1354,16 +1739,89 @@ private void freeUnusedChunks() {
                         fileStore.free(start, length);
                         assert fileStore.getFileLengthInUse() == measureFileLengthInUse() :
                                 fileStore.getFileLengthInUse() + " != " + measureFileLengthInUse();
+                    } else if (c.unused == 0 || c.isLive()) {
+                        // not referenced by any version that is kept,
+                        // even if the counters say otherwise
+                        c.pageCountLive = 0;
+                        c.maxLenLive = 0;
+                        markUnused(c, time);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remember when the chunk was found to be no longer used in the newest
+     * version.
+     *
+     * @param c the chunk
+     * @param time the current time
+     */
+    private void markUnused(Chunk c, long time) {
+        if (c.unused == 0) {
+            c.unused = time;
+        }
+        if (c.unusedAtVersion == 0) {
+            c.unusedAtVersion = currentVersion;
+        }
+        meta.put(Chunk.getMetaKey(c.id), c.asString());
+        markMetaChanged();
+    }
+
+    /**
+     * Re-calculate the live page counters of all chunks, by visiting all pages
+     * of the last stored version. This is done once when opening a file that
+     * was written by an older version, as the counters in such files might be
+     * wrong (for example after a rollback).
+     */
+    private void recountLivePages() {
+        if (lastChunk != null) {
+            HashMap<Integer, Chunk> live = new HashMap<>();
+            ChunkIdsCollector collector = new ChunkIdsCollector(meta.getId(), live);
+            collector.visit(lastChunk.metaRootPos);
+            for (Iterator<String> it = meta.keyIterator("root."); it.hasNext();) {
+                String key = it.next();
+                if (!key.startsWith("root.")) {
+                    break;
+                }
+                long pos = DataUtils.parseHexLong(meta.get(key));
+                int mapId = DataUtils.parseHexInt(key.substring(key.lastIndexOf('.') + 1));
+                collector.setMapId(mapId);
+                collector.visit(pos);
+            }
+            long time = getTimeSinceCreation();
+            for (Chunk c : chunks.values()) {
+                Chunk l = live.get(c.id);
+                int pageCountLive = l == null ? 0 : l.pageCountLive;
+                long maxLenLive = l == null ? 0 : l.maxLenLive;
+                if (c.pageCountLive != pageCountLive || c.maxLenLive != maxLenLive) {
+                    c.pageCountLive = pageCountLive;
+                    c.maxLenLive = maxLenLive;
+                    if (c.isLive()) {
+                        meta.put(Chunk.getMetaKey(c.id), c.asString());
                     } else {
-                        if (c.unused == 0) {
-                            c.unused = time;
-                            meta.put(Chunk.getMetaKey(c.id), c.asString());
-                            markMetaChanged();
-                        }
+                        markUnused(c, time);
                     }
                 }
             }
+            markMetaChanged();
         }
+        liveCountersExact = true;
+    }
+
+    /**
+     * Check whether the live page counters were maintained up to the newest
+     * chunk. Older versions keep the metadata entry, but don't update it.
+     *
+     * @return true if the counters are exact
+     */
+    private boolean hasExactLiveCounters() {
+        if (lastChunk == null) {
+            return true;
+        }
+        String v = meta.get(LIVE_COUNTERS_KEY);
+        return v != null && DataUtils.parseHexLong(v) == lastChunk.version;
     }
 
     private Set<Integer> collectReferencedChunks() {
@@ -1412,14 +1870,32 @@ final class ChunkIdsCollector {
         private       ChunkIdsCollector child;
         private       int               mapId;
 
+        /**
+         * The number of pages and the sum of their max length per chunk, or
+         * null if the pages are not counted.
+         */
+        private final Map<Integer, Chunk> livePages;
+
         ChunkIdsCollector(int mapId) {
+            this(mapId, null);
+        }
+
+        /**
+         * Create a collector.
+         *
+         * @param mapId the map id
+         * @param livePages the map to count the visited pages in, or null
+         */
+        ChunkIdsCollector(int mapId, Map<Integer, Chunk> livePages) {
             this.parent = null;
             this.mapId = mapId;
+            this.livePages = livePages;
         }
 
         private ChunkIdsCollector(ChunkIdsCollector parent) {
             this.parent = parent;
             this.mapId = parent.mapId;
+            this.livePages = parent.livePages;
         }
 
         public int getMapId() {
@@ -1448,6 +1924,7 @@ public void visit(Page page) {
                 for (int i = 0; i < count; i++) {
                     Page childPage = page.getChildPageIfLoaded(i);
                     if (childPage != null) {
+                        childCollector.count(childPage.getPos());
                         childCollector.visit(childPage);
                     } else {
                         childCollector.visit(page.getChildPagePos(i));
@@ -1466,9 +1943,11 @@ public void visit(long pos) {
                 return;
             }
             register(DataUtils.getPageChunkId(pos));
+            count(pos);
             if (DataUtils.getPageType(pos) != DataUtils.PAGE_TYPE_LEAF) {
                 int chunkIds[];
-                if (cacheChunkRef != null && (chunkIds = cacheChunkRef.get(pos)) != null) {
+                if (livePages == null && cacheChunkRef != null &&
+                        (chunkIds = cacheChunkRef.get(pos)) != null) {
                     // there is a cached set of chunk ids for this position
                     for (int chunkId : chunkIds) {
                         register(chunkId);
@@ -1482,6 +1961,9 @@ public void visit(long pos) {
                     } else {
                         // page was not cached: read the data
                         Chunk chunk = getChunk(pos);
+                        if (fileWriter != null) {
+                            fileWriter.awaitChunk(chunk.id);
+                        }
                         long filePos = chunk.block * BLOCK_SIZE;
                         filePos += DataUtils.getPageOffset(pos);
                         if (filePos < 0) {
@@ -1510,6 +1992,24 @@ private ChunkIdsCollector getChild() {
             return child;
         }
 
+        /**
+         * Count the page, if pages are counted.
+         *
+         * @param pos the page position
+         */
+        void count(long pos) {
+            if (livePages != null && DataUtils.isPageSaved(pos)) {
+                int chunkId = DataUtils.getPageChunkId(pos);
+                Chunk c = livePages.get(chunkId);
+                if (c == null) {
+                    c = new Chunk(chunkId);
+                    livePages.put(chunkId, c);
+                }
+                c.pageCountLive++;
+                c.maxLenLive += DataUtils.getPageMaxLength(pos);
+            }
+        }
+
         private void register(int chunkId) {
             if (referenced.add(chunkId) && parent != null) {
                 parent.register(chunkId);
@@ -1533,9 +2033,11 @@ private int[] getChunkIds() {
      * @return the buffer
      */
     private WriteBuffer getWriteBuffer() {
-        WriteBuffer buff;
-        if (writeBuffer != null) {
-            buff = writeBuffer;
+        WriteBuffer buff = writeBuffer;
+        if (buff == null && fileWriter != null) {
+            buff = fileWriter.takeSpareBuffer();
+        }
+        if (buff != null) {
             buff.clear();
         } else {
             buff = new WriteBuffer();
@@ -1588,31 +2090,46 @@ private long getTimeAbsolute() {
      * Apply the freed space to the chunk metadata. The metadata is updated, but
      * completely free chunks are not removed from the set of chunks, and the
      * disk space is not yet marked as free.
+     * <p>
+     * Only pages freed up to the given version are applied, so that the
+     * counters match the stored version. Pages freed concurrently in a newer
+     * version are applied when the next version is stored.
+     *
+     * @param version the newest version to apply
+     * @param time the current time
      */
-    private void applyFreedSpace() {
+    private void applyFreedSpace(long version, long time) {
         while (true) {
-            ArrayList<Chunk> modified = new ArrayList<>();
+            HashSet<Chunk> modified = new HashSet<>();
             synchronized (freedPageSpace) {
-                for (Chunk f : freedPageSpace.values()) {
-                    Chunk c = chunks.get(f.id);
-                    if (c != null) { // skip if was already removed
-                        c.maxLenLive += f.maxLenLive;
-                        c.pageCountLive += f.pageCountLive;
-                        if (c.pageCountLive < 0 && c.pageCountLive > -MARKED_FREE) {
-                            // can happen after a rollback
-                            c.pageCountLive = 0;
-                        }
-                        if (c.maxLenLive < 0 && c.maxLenLive > -MARKED_FREE) {
-                            // can happen after a rollback
-                            c.maxLenLive = 0;
+                for (Iterator<HashMap<Integer, Chunk>> it =
+                        freedPageSpace.headMap(version, true).values().iterator();
+                        it.hasNext();) {
+                    for (Chunk f : it.next().values()) {
+                        Chunk c = chunks.get(f.id);
+                        if (c != null) { // skip if was already removed
+                            c.maxLenLive += f.maxLenLive;
+                            c.pageCountLive += f.pageCountLive;
+                            if (c.pageCountLive < 0 && c.pageCountLive > -MARKED_FREE) {
+                                // can happen after a rollback
+                                c.pageCountLive = 0;
+                            }
+                            if (c.maxLenLive < 0 && c.maxLenLive > -MARKED_FREE) {
+                                // can happen after a rollback
+                                c.maxLenLive = 0;
+                            }
+                            modified.add(c);
                         }
-                        modified.add(c);
                     }
+                    it.remove();
                 }
-                freedPageSpace.clear();
             }
             for (Chunk c : modified) {
-                meta.put(Chunk.getMetaKey(c.id), c.asString());
+                if (!c.isLive() && c.unusedAtVersion == 0) {
+                    markUnused(c, time);
+                } else {
+                    meta.put(Chunk.getMetaKey(c.id), c.asString());
+                }
             }
             if (modified.isEmpty()) {
                 break;
@@ -1732,7 +2249,7 @@ public boolean compactRewriteFully() {
                     lastPage = p;
                 }
             }
-            commit();
+            commit(false);
             return true;
         } finally {
             storeLock.unlock();
@@ -1766,7 +2283,7 @@ public void compactMoveChunks(int targetFillRate, long moveSize) {
                 boolean oldReuse = reuseSpace;
                 try {
                     retentionTime = -1;
-                    freeUnusedChunks();
+                    freeUnusedChunks(false);
                     if (fileStore.getFillRate() <= targetFillRate) {
                         long start = fileStore.getFirstFree() / BLOCK_SIZE;
                         ArrayList<Chunk> move = findChunksToMove(start, moveSize);
@@ -1823,7 +2340,7 @@ private void compactMoveChunks(ArrayList<Chunk> move) {
 
         // update the metadata (store at the end of the file)
         reuseSpace = false;
-        commit();
+        commit(false);
         sync();
 
         Chunk chunk = this.lastChunk;
@@ -1838,17 +2355,21 @@ private void compactMoveChunks(ArrayList<Chunk> move) {
         }
 
         // update the metadata (within the file)
-        commit();
+        commit(false);
         sync();
         if (chunks.containsKey(chunk.id)) {
             moveChunk(chunk, false);
-            commit();
+            commit(false);
         }
         shrinkFileIfPossible(0);
         sync();
     }
 
     private void moveChunk(Chunk c, boolean toTheEnd) {
+        if (fileWriter != null) {
+            // the chunk is read from the file
+            fileWriter.flush();
+        }
         WriteBuffer buff = getWriteBuffer();
         long start = c.block * BLOCK_SIZE;
         int length = c.len * BLOCK_SIZE;
@@ -1867,8 +2388,7 @@ private void moveChunk(Chunk c, boolean toTheEnd) {
         buff.position(length - Chunk.FOOTER_LENGTH);
         buff.put(c.getFooterBytes());
         buff.position(0);
-        write(pos, buff.getBuffer());
-        releaseWriteBuffer(buff);
+        writeChunk(pos, buff, c.id);
         meta.put(Chunk.getMetaKey(c.id), c.asString());
         markMetaChanged();
     }
@@ -1886,10 +2406,19 @@ private long allocateFileSpace(int length, boolean atTheEnd) {
 
     /**
      * Force all stored changes to be written to the storage. The default
-     * implementation calls FileChannel.force(true).
+     * implementation calls FileChannel.force(true). If writes are pipelined,
+     * this method waits until all pending chunks are written and synced.
      */
     public void sync() {
         checkOpen();
+        if (fileWriter != null) {
+            try {
+                fileWriter.flush();
+            } catch (IllegalStateException e) {
+                panic(e);
+            }
+            return;
+        }
         FileStore f = fileStore;
         if (f != null) {
             f.sync();
@@ -2048,6 +2577,72 @@ public int compare(Chunk o1, Chunk o2) {
         return old;
     }
 
+    /**
+     * Find the chunks that should be compacted (see compact), unless another
+     * thread holds the store lock.
+     *
+     * @param targetFillRate the minimum percentage of live entries
+     * @param write the minimum number of bytes to write
+     * @return the chunks, or null if there are none or the lock is not
+     *         available
+     */
+    ArrayList<Chunk> findChunksToCompact(int targetFillRate, int write) {
+        if (!reuseSpace || closed || !storeLock.tryLock()) {
+            return null;
+        }
+        try {
+            return closed ? null : findOldChunks(targetFillRate, write);
+        } finally {
+            storeLock.unlock();
+        }
+    }
+
+    /**
+     * Re-write the pages of the metadata map that are in one of the given
+     * chunks, unless another thread holds the store lock.
+     *
+     * @param set the set of chunk ids
+     */
+    void compactMetaPages(Set<Integer> set) {
+        if (storeLock.tryLock()) {
+            try {
+                if (!closed) {
+                    meta.rewrite(set);
+                }
+            } finally {
+                storeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the currently open maps (without the metadata map).
+     *
+     * @return the list of maps
+     */
+    ArrayList<MVMap<?, ?>> getOpenMaps() {
+        return new ArrayList<MVMap<?, ?>>(maps.values());
+    }
+
+    /**
+     * Check whether another thread holds or waits for the store lock.
+     *
+     * @return true if the lock is busy
+     */
+    boolean isStoreLockBusy() {
+        return storeLock.isLocked() || storeLock.hasQueuedThreads();
+    }
+
+    /**
+     * Check whether there are so many unsaved changes that they should be
+     * stored before more changes are made in the background.
+     *
+     * @return true if a store is needed
+     */
+    boolean hasManyUnsavedChanges() {
+        return autoCommitMemory > 0 && unsavedMemory > autoCommitMemory / 2;
+    }
+
     private void compactRewrite(Iterable<Chunk> old) {
         HashSet<Integer> set = new HashSet<>();
         for (Chunk c : old) {
@@ -2061,8 +2656,8 @@ private void compactRewrite(Iterable<Chunk> old) {
             }
         }
         meta.rewrite(set);
-        freeUnusedChunks();
-        commit();
+        freeUnusedChunks(true);
+        commit(false);
     }
 
     /**
@@ -2079,7 +2674,29 @@ Page readPage(MVMap<?, ?> map, long pos) {
         }
         Page p = cache == null ? null : cache.get(pos);
         if (p == null) {
-            Chunk c = getChunk(pos);
+            p = readPageFromFile(map, pos);
+            cachePage(p);
+        } else if (readAhead != null && p.clearReadAhead()) {
+            readAhead.hit();
+        }
+        return p;
+    }
+
+    /**
+     * Read a page from the off-heap cache or from the file, without using
+     * the page cache.
+     *
+     * @param map the map
+     * @param pos the page position
+     * @return the page
+     */
+    Page readPageFromFile(MVMap<?, ?> map, long pos) {
+        Chunk c = getChunk(pos);
+        ByteBuffer buff = offHeapCache == null ? null : offHeapCache.get(pos, c.version);
+        if (buff == null) {
+            if (fileWriter != null) {
+                fileWriter.awaitChunk(c.id);
+            }
             long filePos = c.block * BLOCK_SIZE;
             filePos += DataUtils.getPageOffset(pos);
             if (filePos < 0) {
@@ -2088,10 +2705,40 @@ Page readPage(MVMap<?, ?> map, long pos) {
                         "Negative position {0}; p={1}, c={2}", filePos, pos, c.toString());
             }
             long maxPos = (c.block + c.len) * BLOCK_SIZE;
-            p = Page.read(fileStore, pos, map, filePos, maxPos);
-            cachePage(p);
+            buff = Page.readBuffer(fileStore, pos, filePos, maxPos);
+            if (offHeapCache != null) {
+                // the buffer may contain more than the page
+                int length = buff.getInt(buff.position());
+                if (length >= 4 && length <= buff.remaining()) {
+                    ByteBuffer page = buff.duplicate();
+                    page.limit(page.position() + length);
+                    offHeapCache.put(pos, c.version, page);
+                }
+            }
+        }
+        return Page.read(buff, pos, map);
+    }
+
+    /**
+     * Get the number of sibling pages that cursors read ahead.
+     *
+     * @return the number of pages, or 0 if disabled
+     */
+    int getReadAheadPageCount() {
+        return readAhead == null ? 0 : readAhead.getPageCount();
+    }
+
+    /**
+     * Read the child pages of the given page in the background, starting at
+     * the given index.
+     *
+     * @param parent the parent page
+     * @param from the index of the first child page
+     */
+    void readAhead(Page parent, int from) {
+        if (readAhead != null) {
+            readAhead.readAhead(parent, from);
         }
-        return p;
     }
 
     /**
@@ -2126,35 +2773,167 @@ void removePage(MVMap<?, ?> map, long pos, int memory) {
             }
         }
 */
-        int chunkId = DataUtils.getPageChunkId(pos);
+        freePageSpace(map, DataUtils.getPageChunkId(pos), 1,
+                DataUtils.getPageMaxLength(pos));
+    }
+
+    /**
+     * Remove all stored pages of a map that is removed. As the pages of maps
+     * that are not open are not in memory, only the inner nodes are read.
+     *
+     * @param mapId the map id
+     * @param root the root page, or null if the map is not open
+     * @param rootPos the position of the root page, if the map is not open
+     */
+    private void removeMapPages(int mapId, Page root, long rootPos) {
+        HashMap<Integer, Chunk> stored = new HashMap<>();
+        ChunkIdsCollector collector = new ChunkIdsCollector(mapId, stored);
+        if (root == null) {
+            collector.visit(rootPos);
+        } else {
+            collector.count(root.getPos());
+            collector.visit(root);
+        }
+        // the pages are freed together with the root position in the metadata
+        for (Chunk c : stored.values()) {
+            freePageSpace(meta, c.id, c.pageCountLive, c.maxLenLive);
+        }
+    }
+
+    /**
+     * Register the space of freed pages. It is applied to the chunk metadata
+     * when the version in which the pages were freed is stored.
+     *
+     * @param map the map that changed
+     * @param chunkId the chunk id
+     * @param pageCount the number of freed pages
+     * @param maxLen the sum of the max length of the freed pages
+     */
+    private void freePageSpace(MVMap<?, ?> map, int chunkId, int pageCount, long maxLen) {
+        long version = currentVersion;
+        if (map == meta && currentStoreVersion >= 0 && storeLock.isHeldByCurrentThread()) {
+            // the metadata changed while storing belongs to the stored version
+            version = currentStoreVersion;
+        }
         // synchronize, because pages could be freed concurrently
         synchronized (freedPageSpace) {
-            Chunk chunk = freedPageSpace.get(chunkId);
+            HashMap<Integer, Chunk> freed = freedPageSpace.get(version);
+            if (freed == null) {
+                freed = new HashMap<>();
+                freedPageSpace.put(version, freed);
+            }
+            Chunk chunk = freed.get(chunkId);
             if (chunk == null) {
                 chunk = new Chunk(chunkId);
-                freedPageSpace.put(chunkId, chunk);
+                freed.put(chunkId, chunk);
             }
-            chunk.maxLenLive -= DataUtils.getPageMaxLength(pos);
-            chunk.pageCountLive -= 1;
+            chunk.maxLenLive -= maxLen;
+            chunk.pageCountLive -= pageCount;
         }
     }
 
-    Compressor getCompressorFast() {
-        if (compressorFast == null) {
-            compressorFast = new CompressLZF();
+    /**
+     * Get the compressor for the given algorithm. The compressors are shared:
+     * expanding data may be done concurrently, but compressing only while
+     * holding the store lock.
+     *
+     * @param algorithm the compression algorithm
+     * @return the compressor
+     * @throws IllegalStateException if the algorithm is not supported
+     */
+    Compressor getCompressor(int algorithm) {
+        Compressor c = algorithm >= 0 && algorithm < compressors.length ?
+                compressors[algorithm] : null;
+        if (c == null) {
+            c = createCompressor(algorithm);
+            compressors[algorithm] = c;
         }
-        return compressorFast;
+        return c;
+    }
+
+    /**
+     * Get the compressor for new pages of the given map. The compressor may
+     * only be used while holding the store lock.
+     *
+     * @param map the map
+     * @return the compressor, or null if compression is disabled
+     */
+    Compressor getCompressor(MVMap<?, ?> map) {
+        int algorithm = getCompressionAlgorithm(map);
+        return algorithm == Compressor.NO ? null : getCompressor(algorithm);
+    }
+
+    /**
+     * Get the compression algorithm for new pages of the given map.
+     *
+     * @param map the map
+     * @return the compression algorithm (Compressor.NO if disabled)
+     */
+    int getCompressionAlgorithm(MVMap<?, ?> map) {
+        int algorithm = map.getCompressionAlgorithm();
+        return algorithm < 0 ? compressionAlgorithm : algorithm;
+    }
+
+    /**
+     * Check whether pages compressed with the given algorithm use the page
+     * type PAGE_COMPRESSED_CODEC, which older versions can not read.
+     *
+     * @param algorithm the compression algorithm
+     * @return true if the algorithm is stored in the page
+     */
+    private static boolean isCodec(int algorithm) {
+        return algorithm != Compressor.NO && algorithm != Compressor.LZF &&
+                algorithm != Compressor.DEFLATE;
     }
 
-    Compressor getCompressorHigh() {
-        if (compressorHigh == null) {
-            compressorHigh = new CompressDeflate();
+    /**
+     * Upgrade the store to the current file format, if it uses an older
+     * format. Older versions can neither read nor write the store afterwards.
+     * This needs to be called before data is written that older versions
+     * can not read, such as pages compressed with LZ4. Nothing is done for
+     * in-memory and read-only stores.
+     */
+    public void upgradeFormat() {
+        storeLock.lock();
+        try {
+            checkOpen();
+            FileStore f = fileStore;
+            if (f == null || f.isReadOnly() ||
+                    DataUtils.readHexInt(storeHeader, "format", 1) >= FORMAT_WRITE) {
+                return;
+            }
+            storeHeader.put("format", FORMAT_WRITE);
+            storeHeader.put("formatRead", FORMAT_READ);
+            writeStoreHeader();
+            // the header needs to be on disk before the first chunk that
+            // uses the new format
+            sync();
+        } finally {
+            storeLock.unlock();
         }
-        return compressorHigh;
     }
 
-    int getCompressionLevel() {
-        return compressionLevel;
+    /**
+     * Create a new compressor, to be used by a thread that does not hold the
+     * store lock.
+     *
+     * @param algorithm the compression algorithm
+     * @return the compressor
+     * @throws IllegalStateException if the algorithm is not supported
+     */
+    static Compressor createCompressor(int algorithm) {
+        switch (algorithm) {
+        case Compressor.LZF:
+            return new CompressLZF();
+        case Compressor.DEFLATE:
+            return new CompressDeflate();
+        case Compressor.LZ4:
+            return new CompressLZ4();
+        default:
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_UNSUPPORTED_FORMAT,
+                    "Unsupported compression algorithm {0}", algorithm);
+        }
     }
 
     public int getPageSplitSize() {
@@ -2349,9 +3128,9 @@ void beforeWrite(MVMap<?, ?> map) {
                 // some back pressure need to be applied
                 // to slow things down and avoid OOME
                 if (3 * unsavedMemory > 4 * autoCommitMemory) {
-                    commit();
+                    commit(false);
                 } else {
-                    tryCommit();
+                    tryCommit(false);
                 }
             }
         }
@@ -2415,6 +3194,9 @@ public void rollbackTo(long version) {
 
                 chunks.clear();
                 if (fileStore != null) {
+                    if (fileWriter != null) {
+                        fileWriter.flush();
+                    }
                     fileStore.clear();
                 }
                 maps.clear();
@@ -2422,11 +3204,15 @@ public void rollbackTo(long version) {
                 synchronized (freedPageSpace) {
                     freedPageSpace.clear();
                 }
+                liveCountersExact = true;
                 versions.clear();
                 currentVersion = version;
                 setWriteVersion(version);
                 metaChanged = false;
                 lastStoredVersion = INITIAL_VERSION;
+                if (redoLog != null) {
+                    redoLog.reset(0);
+                }
                 return;
             }
             DataUtils.checkArgument(
@@ -2435,6 +3221,10 @@ public void rollbackTo(long version) {
             for (MVMap<?, ?> m : maps.values()) {
                 m.rollbackTo(version);
             }
+            // the pages freed in the reverted versions are in use again
+            synchronized (freedPageSpace) {
+                freedPageSpace.tailMap(version, true).clear();
+            }
 
             TxCounter txCounter;
             while ((txCounter = versions.peekLast()) != null && txCounter.version >= version) {
@@ -2462,6 +3252,9 @@ public void rollbackTo(long version) {
                 // (in case we remove many chunks)
                 Collections.sort(remove, Collections.reverseOrder());
                 loadFromFile = true;
+                if (fileWriter != null) {
+                    fileWriter.flush();
+                }
                 for (int id : remove) {
                     Chunk c = chunks.remove(id);
                     long start = c.block * BLOCK_SIZE;
@@ -2475,16 +3268,23 @@ public void rollbackTo(long version) {
                     buff.limit(length);
                     // buff.clear() does not set the data
                     Arrays.fill(buff.getBuffer().array(), (byte) 0);
-                    write(start, buff.getBuffer());
-                    releaseWriteBuffer(buff);
+                    writeChunk(start, buff, -1);
                     // only really needed if we remove many chunks, when writes are
                     // re-ordered - but we do it always, because rollback is not
                     // performance critical
                     sync();
                 }
+                if (offHeapCache != null) {
+                    // the ids and versions of the removed chunks are re-used
+                    offHeapCache.clear();
+                }
                 lastChunk = keep;
                 writeStoreHeader();
+                if (fileWriter != null) {
+                    fileWriter.flush();
+                }
                 readStoreHeader();
+                liveCountersExact = hasExactLiveCounters();
             }
             for (MVMap<?, ?> m : new ArrayList<>(maps.values())) {
                 int id = m.getId();
@@ -2503,6 +3303,13 @@ public void rollbackTo(long version) {
             if (lastStoredVersion == INITIAL_VERSION) {
                 lastStoredVersion = currentVersion - 1;
             }
+            if (redoLog != null) {
+                if (loadFromFile) {
+                    redoLog.reset(lastChunk == null ? 0 : lastChunk.version);
+                } else {
+                    redoLog.rollback(version);
+                }
+            }
         } finally {
             storeLock.unlock();
         }
@@ -2573,13 +3380,43 @@ public void renameMap(MVMap<?, ?> map, String newName) {
             DataUtils.checkArgument(
                     existingIdHexStr == null || existingIdHexStr.equals(idHexStr),
                     "A map named {0} already exists", newName);
-            // at first create a new name as an "alias"
-            meta.put("name." + newName, idHexStr);
-            // switch roles of a new and old names - old one is an alias now
-            meta.put(MVMap.getMapKey(id), map.asString(newName));
-            // get rid of the old name completely
-            meta.remove("name." + oldName);
-            markMetaChanged();
+            if (redoLog == null) {
+                renameMap(id, oldName, newName, map.asString(newName));
+                markMetaChanged();
+            } else {
+                // the changes of the meta map are logged, so that renaming
+                // doesn't need to store a chunk
+                synchronized (redoLog) {
+                    renameMap(id, oldName, newName, map.asString(newName));
+                }
+            }
+        }
+    }
+
+    private void renameMap(int id, String oldName, String newName, String config) {
+        // at first create a new name as an "alias"
+        putMeta("name." + newName, Integer.toHexString(id));
+        // switch roles of a new and old names - old one is an alias now
+        putMeta(MVMap.getMapKey(id), config);
+        // get rid of the old name completely
+        putMeta("name." + oldName, null);
+    }
+
+    /**
+     * Change an entry of the meta map, and log the change if a redo log is
+     * used. If yes, the lock of the log must be held.
+     *
+     * @param key the key
+     * @param value the new value, or null to remove the entry
+     */
+    private void putMeta(String key, String value) {
+        if (value == null) {
+            meta.remove(key);
+        } else {
+            meta.put(key, value);
+        }
+        if (redoLog != null) {
+            redoLog.log(meta, key, value);
         }
     }
 
@@ -2613,6 +3450,9 @@ public void removeMap(MVMap<?, ?> map, boolean delayed) {
     }
 
     private void removeMap(String name, int id, boolean delayed) {
+        if (redoLog != null) {
+            redoLog.removePending(id);
+        }
         if (meta.remove(MVMap.getMapKey(id)) != null) {
             markMetaChanged();
         }
@@ -2620,10 +3460,16 @@ private void removeMap(String name, int id, boolean delayed) {
             markMetaChanged();
         }
         if (!delayed) {
-            if (meta.remove(MVMap.getMapRootKey(id)) != null) {
+            String root = meta.remove(MVMap.getMapRootKey(id));
+            if (root != null) {
                 markMetaChanged();
             }
-            maps.remove(id);
+            MVMap<?, ?> map = maps.remove(id);
+            if (map != null) {
+                removeMapPages(id, map.getRoot().root, 0);
+            } else if (root != null) {
+                removeMapPages(id, null, DataUtils.parseHexLong(root));
+            }
         }
     }
 
@@ -2668,8 +3514,8 @@ void writeInBackground() {
             if (time <= lastCommitTime + autoCommitDelay) {
                 return;
             }
-            tryCommit();
-            if (autoCompactFillRate > 0) {
+            tryCommit(false);
+            if (autoCompactFillRate > 0 && compactor == null) {
                 // whether there were file read or write operations since
                 // the last time
                 boolean fileOps;
@@ -2689,7 +3535,13 @@ void writeInBackground() {
         }
     }
 
-    private void handleException(Throwable ex) {
+    /**
+     * Pass an exception that occurred in a background thread to the
+     * background exception handler, if there is one.
+     *
+     * @param ex the exception
+     */
+    void handleException(Throwable ex) {
         if (backgroundExceptionHandler != null) {
             try {
                 backgroundExceptionHandler.uncaughtException(null, ex);
@@ -2844,14 +3696,64 @@ public int getCacheSize() {
     }
 
     /**
-     * Get the cache.
+     * Get the cache, if it is a LIRS cache.
      *
-     * @return the cache
+     * @return the cache, or null if there is no cache or it is not a LIRS
+     *         cache
+     * @deprecated use {@link #getPageCache()}, which also returns other
+     *             types of caches
      */
+    @Deprecated
     public CacheLongKeyLIRS<Page> getCache() {
+        return cache instanceof CacheLongKeyLIRS ?
+                (CacheLongKeyLIRS<Page>) cache : null;
+    }
+
+    /**
+     * Get the page cache.
+     *
+     * @return the cache, or null if there is no cache
+     */
+    public CacheLongKey<Page> getPageCache() {
         return cache;
     }
 
+    /**
+     * Get the amount of off-heap memory used for caching serialized pages,
+     * in MB.
+     *
+     * @return the amount of memory used, or 0 if the off-heap cache is
+     *         disabled
+     */
+    public int getOffHeapCacheSizeUsed() {
+        if (offHeapCache == null) {
+            return 0;
+        }
+        return (int) (offHeapCache.getUsedMemory() >> 20);
+    }
+
+    /**
+     * Get the maximum size of the off-heap cache, in MB.
+     *
+     * @return the cache size, or 0 if the off-heap cache is disabled
+     */
+    public int getOffHeapCacheSize() {
+        if (offHeapCache == null) {
+            return 0;
+        }
+        return (int) (offHeapCache.getMaxMemory() >> 20);
+    }
+
+    /**
+     * Get the off-heap cache, which contains serialized pages that were read
+     * from the file. It is used if a page is not in the page cache.
+     *
+     * @return the cache, or null if disabled
+     */
+    public CacheLongKeyOffHeap getOffHeapCache() {
+        return offHeapCache;
+    }
+
     /**
      * Whether the store is read-only.
      *
@@ -2861,6 +3763,75 @@ public boolean isReadOnly() {
         return fileStore != null && fileStore.isReadOnly();
     }
 
+    /**
+     * Get the number of pages that were read ahead by sequential cursors.
+     *
+     * @return the number of pages
+     */
+    public long getReadAheadCount() {
+        return readAhead == null ? 0 : readAhead.getReadCount();
+    }
+
+    /**
+     * Get the number of pages that were read ahead and then requested, that
+     * is, the number of page reads that were avoided.
+     *
+     * @return the number of pages
+     */
+    public long getReadAheadHitCount() {
+        return readAhead == null ? 0 : readAhead.getHitCount();
+    }
+
+    /**
+     * Get the ratio of the pages that were read ahead and then requested, to
+     * all pages that were read ahead.
+     *
+     * @return the hit ratio, or 0 if no pages were read ahead
+     */
+    public double getReadAheadHitRatio() {
+        long readCount = getReadAheadCount();
+        return readCount == 0 ? 0 : (double) getReadAheadHitCount() / readCount;
+    }
+
+    /**
+     * Get the number of pages moved by the background compaction.
+     *
+     * @return the number of pages
+     */
+    public long getBackgroundCompactionPageCount() {
+        return compactor == null ? 0 : compactor.getPageCount();
+    }
+
+    /**
+     * Get the number of bytes moved by the background compaction. The number
+     * is estimated from the page lengths.
+     *
+     * @return the number of bytes
+     */
+    public long getBackgroundCompactionByteCount() {
+        return compactor == null ? 0 : compactor.getByteCount();
+    }
+
+    /**
+     * Get the average number of bytes moved per second by the background
+     * compaction, while it was active.
+     *
+     * @return the bytes per second
+     */
+    public long getBackgroundCompactionRate() {
+        return compactor == null ? 0 : compactor.getRate();
+    }
+
+    /**
+     * Get the progress of the current background compaction pass.
+     *
+     * @return the percentage of the pages processed, or 100 if no pass is
+     *         running
+     */
+    public int getBackgroundCompactionProgress() {
+        return compactor == null ? 100 : compactor.getProgress();
+    }
+
     public double getUpdateFailureRatio() {
         long updateCounter = this.updateCounter;
         long updateAttemptCounter = this.updateAttemptCounter;
@@ -3061,6 +4032,23 @@ public Builder autoCompactFillRate(int percent) {
             return set("autoCompactFillRate", percent);
         }
 
+        /**
+         * Compact the store in a background thread, with the given maximum
+         * rate. Chunks with a fill rate below the auto-compact fill rate are
+         * compacted by moving their live pages, a few at a time, without
+         * blocking commits: moving pages is paused while other threads use
+         * the store lock, or if there are many unsaved changes. The moved
+         * pages are stored with the next commit. The default is 0, meaning
+         * compaction is done by the background writer thread, which holds
+         * the store lock while moving the pages.
+         *
+         * @param mbPerSecond the maximum number of MB to move per second
+         * @return this
+         */
+        public Builder backgroundCompactionRate(int mbPerSecond) {
+            return set("backgroundCompactionRate", mbPerSecond);
+        }
+
         /**
          * Use the following file name. If the file does not exist, it is
          * automatically created. The parent directory already must exist.
@@ -3113,6 +4101,22 @@ public Builder cacheSize(int mb) {
             return set("cacheSize", mb);
         }
 
+        /**
+         * Set the size of the off-heap cache, in MB. The default is 0
+         * (disabled). This second level cache keeps the serialized (and
+         * possibly compressed) pages in direct memory, outside of the heap.
+         * Pages that are not in the page cache are looked up there before
+         * they are read from the file. This allows to cache a large amount of
+         * data without increasing garbage collection pauses. The oldest
+         * entries are evicted first.
+         *
+         * @param mb the off-heap cache size in megabytes
+         * @return this
+         */
+        public Builder offHeapCacheSize(int mb) {
+            return set("offHeapCacheSize", mb);
+        }
+
         /**
          * Set the read cache concurrency. The default is 16, meaning 16
          * segments are used.
@@ -3124,6 +4128,96 @@ public Builder cacheConcurrency(int concurrency) {
             return set("cacheConcurrency", concurrency);
         }
 
+        /**
+         * Set the replacement policy of the read cache. The default is "LIRS",
+         * where reading from the cache is synchronized per segment. With
+         * "TinyLFU", reading does not acquire a lock, and new pages are only
+         * kept if they are used more often than the pages they would replace,
+         * so that large scans don't evict frequently used pages. For this
+         * cache, the cache concurrency is the number of read buffers.
+         *
+         * @param type the cache type ("LIRS" or "TinyLFU")
+         * @return this
+         */
+        public Builder cacheType(String type) {
+            return set("cacheType", type);
+        }
+
+        /**
+         * Set the number of threads that serialize and compress the changed
+         * pages when storing. The default is 1, meaning the pages are
+         * serialized by the storing thread only. With a higher number, the
+         * changed pages of different maps, and independent subtrees of large
+         * maps, are serialized concurrently. The file format is not affected.
+         *
+         * @param concurrency the number of threads, including the storing
+         *            thread
+         * @return this
+         */
+        public Builder writeConcurrency(int concurrency) {
+            return set("writeConcurrency", concurrency);
+        }
+
+        /**
+         * Write chunks and sync the file in a separate thread. The next
+         * version can then be serialized while the previous chunk is still
+         * being written, so that writers are not throttled by the disk
+         * latency. The amount of data waiting to be written is limited by the
+         * auto-commit buffer size; if more data is pending, committing blocks.
+         * <p>
+         * Stored chunks are durable only after calling sync().
+         *
+         * @return this
+         */
+        public Builder pipelinedWrite() {
+            return set("pipelinedWrite", 1);
+        }
+
+        /**
+         * Use a redo log. On commit, the changes are appended to a log file
+         * (the file name with the suffix ".redo"), and the log is synced,
+         * instead of storing a new chunk; so that committing small changes
+         * is cheap. Chunks are stored in the background (after the
+         * auto-commit delay), when creating or removing maps, or if the log
+         * is larger than the auto-commit buffer size; afterwards the log is
+         * truncated. When opening the store, the changes of the log are
+         * applied to the maps when they are opened.
+         * <p>
+         * If the log file exists, it is used even if this option is not set,
+         * so that committed changes are not lost. The redo log can not be
+         * used for encrypted stores.
+         *
+         * @return this
+         */
+        public Builder redoLog() {
+            return set("redoLog", 1);
+        }
+
+        /**
+         * Read from the file using memory mapped segments, instead of reading
+         * into a new buffer for each page that is not cached. This is ignored
+         * if a file store is provided, and has no effect for encrypted files.
+         *
+         * @return this
+         */
+        public Builder memoryMappedRead() {
+            return set("memoryMappedRead", 1);
+        }
+
+        /**
+         * Read pages ahead when a map is iterated sequentially. When a cursor
+         * moves to the next leaf page, the given number of following sibling
+         * leaves are read into the cache in the background. The pages are
+         * cached such that they are evicted first if they are not used. This
+         * is ignored if the cache is disabled.
+         *
+         * @param pages the number of pages to read ahead (0 to disable)
+         * @return this
+         */
+        public Builder readAhead(int pages) {
+            return set("readAhead", pages);
+        }
+
         /**
          * Compress data before writing using the LZF algorithm. This will save
          * about 50% of the disk space, but will slow down read and write
@@ -3154,6 +4248,25 @@ public Builder compressHigh() {
             return set("compress", 2);
         }
 
+        /**
+         * Compress data before writing using the given algorithm, for example
+         * Compressor.LZ4, which compresses about as well as LZF, but is
+         * faster when reading. Maps may use a different algorithm, see
+         * MVMap.Builder.compress.
+         * <p>
+         * A store that uses LZ4 is upgraded to a file format that older
+         * versions can not open.
+         *
+         * @param algorithm the algorithm (see the constants in Compressor)
+         * @return this
+         */
+        public Builder compress(int algorithm) {
+            if (algorithm != Compressor.NO) {
+                createCompressor(algorithm);
+            }
+            return set("compress", algorithm);
+        }
+
         /**
          * Set the amount of memory a page should contain at most, in bytes,
          * before it is split. The default is 16 KB for persistent stores and 4
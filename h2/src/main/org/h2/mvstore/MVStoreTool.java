@@ -222,8 +222,14 @@ public static void dump(String fileName, Writer writer, boolean details) {
                     if (mapId == 0 && details) {
                         ByteBuffer data;
                         if (compressed) {
-                            boolean fast = (type & DataUtils.PAGE_COMPRESSED_HIGH) != DataUtils.PAGE_COMPRESSED_HIGH;
-                            Compressor compressor = getCompressor(fast);
+                            Compressor compressor;
+                            if ((type & DataUtils.PAGE_COMPRESSED_CODEC) == DataUtils.PAGE_COMPRESSED_CODEC) {
+                                compressor = MVStore.createCompressor(chunk.get());
+                            } else {
+                                boolean fast = (type & DataUtils.PAGE_COMPRESSED_HIGH) !=
+                                        DataUtils.PAGE_COMPRESSED_HIGH;
+                                compressor = getCompressor(fast);
+                            }
                             int lenAdd = DataUtils.readVarInt(chunk);
                             int compLen = pageSize + start - chunk.position();
                             byte[] comp = Utils.newBytes(compLen);
@@ -506,6 +512,11 @@ public static void compact(String sourceFileName, String targetFileName, boolean
     public static void compact(MVStore source, MVStore target) {
         MVMap<String, String> sourceMeta = source.getMetaMap();
         MVMap<String, String> targetMeta = target.getMetaMap();
+        // the pages are copied as they are, and may use a format that older
+        // versions can not read
+        if (DataUtils.readHexInt(source.getStoreHeader(), "format", 1) > 1) {
+            target.upgradeFormat();
+        }
         for (Entry<String, String> m : sourceMeta.entrySet()) {
             String key = m.getKey();
             if (key.startsWith("chunk.")) {
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import org.h2.store.fs.FilePath;
+import org.h2.store.fs.FilePathDisk;
+import org.h2.store.fs.FilePathNio;
+
+/**
+ * A file store that reads using memory mapped segments of the file. Writes
+ * go to the file as usual.
+ * <p>
+ * The file is mapped in segments of a fixed size. As chunks are mostly
+ * appended, only the last segment usually needs to be re-mapped when the file
+ * grows. Pages are read from the mapped segment without copying them. Reads
+ * that span two segments, and all reads if the file is encrypted or not on
+ * the local disk, use the regular read path.
+ */
+public class MappedFileStore extends FileStore {
+
+    /**
+     * The default size of a segment (256 MB).
+     */
+    private static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    private final int segmentShift;
+
+    /**
+     * The read-only channel used for mapping, or null if the file can not be
+     * mapped.
+     */
+    private FileChannel mappedFile;
+
+    /**
+     * The mapped segments. The array is replaced (not modified) when a
+     * segment is mapped or released.
+     */
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * The size the file could not be truncated to because a region was still
+     * mapped, or -1. The file is truncated again on the next truncate, or
+     * when closing.
+     */
+    private long pendingTruncate = -1;
+
+    public MappedFileStore() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a file store that uses segments of the given size.
+     *
+     * @param segmentSize the segment size in bytes, a power of 2 and at
+     *            least the block size
+     */
+    public MappedFileStore(int segmentSize) {
+        DataUtils.checkArgument(
+                segmentSize >= MVStore.BLOCK_SIZE && Integer.bitCount(segmentSize) == 1,
+                "Invalid segment size {0}", segmentSize);
+        segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+    }
+
+    @Override
+    public void open(String fileName, boolean readOnly, char[] encryptionKey) {
+        if (getFile() != null) {
+            return;
+        }
+        super.open(fileName, readOnly, encryptionKey);
+        if (encryptionKey != null) {
+            return;
+        }
+        FilePath p = FilePath.get(getFileName());
+        if (p instanceof FilePathNio) {
+            p = ((FilePathNio) p).unwrap();
+        }
+        if (p instanceof FilePathDisk) {
+            try {
+                mappedFile = new RandomAccessFile(p.toString(), "r").getChannel();
+            } catch (IOException e) {
+                super.close();
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_READING_FAILED,
+                        "Could not open file {0}", fileName, e);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer readFully(long pos, int len) {
+        int segmentSize = 1 << segmentShift;
+        int offset = (int) (pos & (segmentSize - 1));
+        if (mappedFile == null || pos < 0 || offset + len > segmentSize) {
+            return super.readFully(pos, len);
+        }
+        ByteBuffer segment = getSegment((int) (pos >>> segmentShift), offset + len);
+        if (segment == null) {
+            // beyond the end of the file
+            return super.readFully(pos, len);
+        }
+        ByteBuffer read = segment.duplicate();
+        read.limit(offset + len);
+        read.position(offset);
+        readCount.incrementAndGet();
+        readBytes.addAndGet(len);
+        return read.slice();
+    }
+
+    private ByteBuffer getSegment(int index, int minLength) {
+        MappedByteBuffer[] s = segments;
+        if (index < s.length && s[index] != null && s[index].capacity() >= minLength) {
+            return s[index];
+        }
+        synchronized (this) {
+            s = segments;
+            if (index < s.length && s[index] != null && s[index].capacity() >= minLength) {
+                return s[index];
+            }
+            long start = (long) index << segmentShift;
+            MappedByteBuffer segment;
+            try {
+                // the size of the file, not the (cached) size of the store,
+                // as the mapped region must not extend beyond the end of file
+                long length = Math.min(1 << segmentShift, mappedFile.size() - start);
+                if (length < minLength) {
+                    return null;
+                }
+                segment = mappedFile.map(MapMode.READ_ONLY, start, length);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_READING_FAILED,
+                        "Could not map file {0} at {1}", getFileName(), start, e);
+            }
+            s = Arrays.copyOf(s, Math.max(s.length, index + 1));
+            s[index] = segment;
+            segments = s;
+            return segment;
+        }
+    }
+
+    @Override
+    public void truncate(long size) {
+        if (mappedFile == null) {
+            super.truncate(size);
+            return;
+        }
+        synchronized (this) {
+            // release the segments that extend beyond the new end of the
+            // file; they are un-mapped when garbage collected
+            MappedByteBuffer[] s = segments;
+            int keep = (int) Math.min(s.length, size >>> segmentShift);
+            segments = Arrays.copyOf(s, keep);
+            try {
+                super.truncate(size);
+                pendingTruncate = -1;
+            } catch (IllegalStateException e) {
+                // on some platforms, a file can not be truncated while a
+                // region is still mapped; try again when closing
+                pendingTruncate = size;
+            }
+        }
+    }
+
+    @Override
+    public void writeFully(long pos, ByteBuffer src) {
+        long end = pos + src.remaining();
+        synchronized (this) {
+            if (pendingTruncate >= 0) {
+                // don't cut off the data written after the failed truncate
+                pendingTruncate = Math.max(pendingTruncate, end);
+            }
+        }
+        super.writeFully(pos, src);
+    }
+
+    @Override
+    public void close() {
+        segments = new MappedByteBuffer[0];
+        try {
+            if (mappedFile != null) {
+                mappedFile.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        } finally {
+            mappedFile = null;
+        }
+        try {
+            if (pendingTruncate >= 0 && getFile() != null) {
+                // the segments are no longer mapped by this store
+                super.truncate(pendingTruncate);
+            }
+        } finally {
+            pendingTruncate = -1;
+            super.close();
+        }
+    }
+
+}
@@ -7,6 +7,7 @@
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
 import org.h2.compress.Compressor;
 import org.h2.mvstore.type.DataType;
 import org.h2.util.Utils;
@@ -67,6 +68,11 @@ public abstract class Page implements Cloneable
      */
     private volatile boolean removedInMemory;
 
+    /**
+     * Whether the page was read ahead, and was not requested since.
+     */
+    private volatile boolean readAhead;
+
     /**
      * The estimated number of bytes used per child entry.
      */
@@ -196,16 +202,16 @@ static Object get(Page p, Object key) {
     }
 
     /**
-     * Read a page.
+     * Read the serialized form of a page from the file. The buffer may
+     * contain more bytes than the page.
      *
      * @param fileStore the file store
      * @param pos the position
-     * @param map the map
      * @param filePos the position in the file
      * @param maxPos the maximum position (the end of the chunk)
-     * @return the page
+     * @return the buffer
      */
-    static Page read(FileStore fileStore, long pos, MVMap<?, ?> map,
+    static ByteBuffer readBuffer(FileStore fileStore, long pos,
             long filePos, long maxPos) {
         ByteBuffer buff;
         int maxLength = DataUtils.getPageMaxLength(pos);
@@ -222,13 +228,24 @@ static Page read(FileStore fileStore, long pos, MVMap<?, ?> map,
                     "Illegal page length {0} reading at {1}; max pos {2} ",
                     length, filePos, maxPos);
         }
-        buff = fileStore.readFully(filePos, length);
+        return fileStore.readFully(filePos, length);
+    }
+
+    /**
+     * Read a page from a buffer that contains the serialized page.
+     *
+     * @param buff the buffer
+     * @param pos the position
+     * @param map the map
+     * @return the page
+     */
+    static Page read(ByteBuffer buff, long pos, MVMap<?, ?> map) {
         boolean leaf = (DataUtils.getPageType(pos) & 1) == PAGE_TYPE_LEAF;
         Page p = leaf ? new Leaf(map) : new NonLeaf(map);
         p.pos = pos;
         int chunkId = DataUtils.getPageChunkId(pos);
         int offset = DataUtils.getPageOffset(pos);
-        p.read(buff, chunkId, offset, maxLength);
+        p.read(buff, chunkId, offset, buff.remaining());
         return p;
     }
 
@@ -652,13 +669,17 @@ private void read(ByteBuffer buff, int chunkId, int offset, int maxLength) {
         }
         boolean compressed = (type & DataUtils.PAGE_COMPRESSED) != 0;
         if (compressed) {
-            Compressor compressor;
-            if ((type & DataUtils.PAGE_COMPRESSED_HIGH) ==
+            int algorithm;
+            if ((type & DataUtils.PAGE_COMPRESSED_CODEC) ==
+                    DataUtils.PAGE_COMPRESSED_CODEC) {
+                algorithm = buff.get();
+            } else if ((type & DataUtils.PAGE_COMPRESSED_HIGH) ==
                     DataUtils.PAGE_COMPRESSED_HIGH) {
-                compressor = map.getStore().getCompressorHigh();
+                algorithm = Compressor.DEFLATE;
             } else {
-                compressor = map.getStore().getCompressorFast();
+                algorithm = Compressor.LZF;
             }
+            Compressor compressor = map.getStore().getCompressor(algorithm);
             int lenAdd = DataUtils.readVarInt(buff);
             int compLen = pageLength + start - buff.position();
             byte[] comp = Utils.newBytes(compLen);
@@ -689,6 +710,24 @@ public final boolean isSaved() {
      * @return the position of the buffer just after the type
      */
     protected final int write(Chunk chunk, WriteBuffer buff) {
+        int start = buff.position();
+        int typePos = start + serialize(buff, map.getStore().getCompressor(map));
+        assignPosition(chunk, buff, start, buff.position() - start);
+        return typePos + 1;
+    }
+
+    /**
+     * Serialize the page into the buffer, without assigning a position. The
+     * page length and check value are left empty, so the serialized form does
+     * not depend on where in the chunk the page is placed later on. This
+     * method does not modify the page, and may be called concurrently for
+     * different pages.
+     *
+     * @param buff the target buffer
+     * @param compressor the compressor to use, or null to not compress
+     * @return the offset of the page type, relative to the start of the page
+     */
+    final int serialize(WriteBuffer buff, Compressor compressor) {
         int start = buff.position();
         int len = getKeyCount();
         int type = isLeaf() ? PAGE_TYPE_LEAF : DataUtils.PAGE_TYPE_NODE;
@@ -700,37 +739,54 @@ protected final int write(Chunk chunk, WriteBuffer buff) {
         buff.put((byte) type);
         writeChildren(buff, true);
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, getKeyCount(), true);
+        map.getKeyType().write(buff, keys, len, true);
         writeValues(buff);
-        MVStore store = map.getStore();
         int expLen = buff.position() - compressStart;
-        if (expLen > 16) {
-            int compressionLevel = store.getCompressionLevel();
-            if (compressionLevel > 0) {
-                Compressor compressor;
-                int compressType;
-                if (compressionLevel == 1) {
-                    compressor = map.getStore().getCompressorFast();
-                    compressType = DataUtils.PAGE_COMPRESSED;
-                } else {
-                    compressor = map.getStore().getCompressorHigh();
-                    compressType = DataUtils.PAGE_COMPRESSED_HIGH;
-                }
-                byte[] exp = new byte[expLen];
-                buff.position(compressStart).get(exp);
-                byte[] comp = new byte[expLen * 2];
-                int compLen = compressor.compress(exp, expLen, comp, 0);
-                int plus = DataUtils.getVarIntLen(compLen - expLen);
-                if (compLen + plus < expLen) {
-                    buff.position(typePos).
-                        put((byte) (type + compressType));
-                    buff.position(compressStart).
-                        putVarInt(expLen - compLen).
-                        put(comp, 0, compLen);
+        if (expLen > 16 && compressor != null) {
+            int algorithm = compressor.getAlgorithm();
+            int compressType;
+            if (algorithm == Compressor.LZF) {
+                compressType = DataUtils.PAGE_COMPRESSED;
+            } else if (algorithm == Compressor.DEFLATE) {
+                compressType = DataUtils.PAGE_COMPRESSED_HIGH;
+            } else {
+                // the algorithm is stored in the page
+                compressType = DataUtils.PAGE_COMPRESSED_CODEC;
+            }
+            byte[] exp = new byte[expLen];
+            buff.position(compressStart).get(exp);
+            byte[] comp = new byte[expLen * 2];
+            int compLen = compressor.compress(exp, expLen, comp, 0);
+            int plus = DataUtils.getVarIntLen(compLen - expLen);
+            if (compressType == DataUtils.PAGE_COMPRESSED_CODEC) {
+                plus++;
+            }
+            if (compLen + plus < expLen) {
+                buff.position(typePos).
+                    put((byte) (type + compressType));
+                buff.position(compressStart);
+                if (compressType == DataUtils.PAGE_COMPRESSED_CODEC) {
+                    buff.put((byte) algorithm);
                 }
+                buff.putVarInt(expLen - compLen).
+                    put(comp, 0, compLen);
             }
         }
-        int pageLength = buff.position() - start;
+        return typePos - start;
+    }
+
+    /**
+     * Assign the position of a page that was serialized into the chunk
+     * buffer, patch the page length and check value, and update the chunk
+     * statistics.
+     *
+     * @param chunk the chunk
+     * @param buff the chunk buffer
+     * @param start the start of the page within the chunk
+     * @param pageLength the length of the serialized page
+     */
+    final void assignPosition(Chunk chunk, WriteBuffer buff, int start, int pageLength) {
+        int type = isLeaf() ? PAGE_TYPE_LEAF : DataUtils.PAGE_TYPE_NODE;
         int chunkId = chunk.id;
         int check = DataUtils.getCheckValue(chunkId)
                 ^ DataUtils.getCheckValue(start)
@@ -742,6 +798,7 @@ protected final int write(Chunk chunk, WriteBuffer buff) {
                     DataUtils.ERROR_INTERNAL, "Page already stored");
         }
         pos = DataUtils.getPagePos(chunkId, start, pageLength, type);
+        MVStore store = map.getStore();
         store.cachePage(this);
         if (type == DataUtils.PAGE_TYPE_NODE) {
             // cache again - this will make sure nodes stays in the cache
@@ -759,7 +816,27 @@ protected final int write(Chunk chunk, WriteBuffer buff) {
             // when the next chunk is stored
             map.removePage(pos, memory);
         }
-        return typePos + 1;
+    }
+
+    /**
+     * Mark this page as read ahead, that is, it was read before it was
+     * requested.
+     */
+    void markReadAhead() {
+        readAhead = true;
+    }
+
+    /**
+     * Called when the page is requested. Clears the read ahead flag.
+     *
+     * @return whether the page was read ahead and is requested the first time
+     */
+    boolean clearReadAhead() {
+        if (!readAhead) {
+            return false;
+        }
+        readAhead = false;
+        return true;
     }
 
     protected abstract void writeValues(WriteBuffer buff);
@@ -775,6 +852,24 @@ protected final int write(Chunk chunk, WriteBuffer buff) {
      */
     abstract void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff);
 
+    /**
+     * Collect this page and all children that are changed, in the order
+     * they are written by writeUnsavedRecursive.
+     *
+     * @param target the list to add the pages to
+     */
+    abstract void collectUnsavedRecursive(List<Page> target);
+
+    /**
+     * Replace the references to in-memory children with their positions,
+     * and patch them into the already written page. All children must have
+     * been stored before.
+     *
+     * @param buff the target buffer
+     * @param patch the position of the children within the buffer
+     */
+    abstract void writeChildPositions(WriteBuffer buff, int patch);
+
     /**
      * Unlink the children recursively after all data is written.
      */
@@ -838,6 +933,14 @@ public final void removePage() {
 
     public abstract void removeAllRecursive();
 
+    /**
+     * Remove the child pages starting with the given index, and all their
+     * descendants. This page itself is not changed.
+     *
+     * @param fromIndex the index of the first child to remove
+     */
+    abstract void removeChildrenRecursive(int fromIndex);
+
     private Object[] createKeyStorage(int size)
     {
         return new Object[size];
@@ -1063,8 +1166,14 @@ public void remove(int index) {
 
         @Override
         public void removeAllRecursive() {
+            removeChildrenRecursive(0);
+            removePage();
+        }
+
+        @Override
+        void removeChildrenRecursive(int fromIndex) {
             if (isPersistent()) {
-                for (int i = 0, size = map.getChildPageCount(this); i < size; i++) {
+                for (int i = fromIndex, size = map.getChildPageCount(this); i < size; i++) {
                     PageReference ref = children[i];
                     if (ref.page != null) {
                         ref.page.removeAllRecursive();
@@ -1080,7 +1189,6 @@ public void removeAllRecursive() {
                     }
                 }
             }
-            removePage();
         }
 
         @Override
@@ -1127,16 +1235,41 @@ void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff) {
                     Page p = children[i].page;
                     if (p != null) {
                         p.writeUnsavedRecursive(chunk, buff);
-                        children[i] = new PageReference(p);
                     }
                 }
-                int old = buff.position();
-                buff.position(patch);
-                writeChildren(buff, false);
-                buff.position(old);
+                writeChildPositions(buff, patch);
             }
         }
 
+        @Override
+        void collectUnsavedRecursive(List<Page> target) {
+            if (!isSaved()) {
+                target.add(this);
+                int len = getRawChildPageCount();
+                for (int i = 0; i < len; i++) {
+                    Page p = children[i].page;
+                    if (p != null) {
+                        p.collectUnsavedRecursive(target);
+                    }
+                }
+            }
+        }
+
+        @Override
+        void writeChildPositions(WriteBuffer buff, int patch) {
+            int len = getRawChildPageCount();
+            for (int i = 0; i < len; i++) {
+                Page p = children[i].page;
+                if (p != null) {
+                    children[i] = new PageReference(p);
+                }
+            }
+            int old = buff.position();
+            buff.position(patch);
+            writeChildren(buff, false);
+            buff.position(old);
+        }
+
         @Override
         void writeEnd() {
             int len = getRawChildPageCount();
@@ -1322,6 +1455,11 @@ public void removeAllRecursive() {
             removePage();
         }
 
+        @Override
+        void removeChildrenRecursive(int fromIndex) {
+            throw new UnsupportedOperationException();
+        }
+
         @Override
         protected void readPayLoad(ByteBuffer buff) {
             int keyCount = getKeyCount();
@@ -1344,6 +1482,16 @@ void writeUnsavedRecursive(Chunk chunk, WriteBuffer buff) {
             }
         }
 
+        @Override
+        void collectUnsavedRecursive(List<Page> target) {
+            if (!isSaved()) {
+                target.add(this);
+            }
+        }
+
+        @Override
+        void writeChildPositions(WriteBuffer buff, int patch) {}
+
         @Override
         void writeEnd() {}
 
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.h2.mvstore.cache.CacheLongKey;
+
+/**
+ * Reads pages into the cache before they are requested, using a small pool
+ * of threads.
+ * <p>
+ * Cursors that iterate over the leaves of a map request the next sibling
+ * leaves (whose positions are known from the parent page). The pages are added
+ * to the cache as the oldest cold entries, so that pages that are read ahead
+ * but never used are evicted first. If the pool is busy, requests are
+ * dropped; the pages are then read when they are needed.
+ */
+final class PageReadAhead {
+
+    /**
+     * The number of threads.
+     */
+    private static final int THREAD_COUNT = 2;
+
+    /**
+     * The maximum number of requests waiting to be processed.
+     */
+    private static final int MAX_PENDING = 16;
+
+    private final MVStore store;
+
+    private final CacheLongKey<Page> cache;
+
+    private final int pageCount;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The number of pages read ahead and added to the cache.
+     */
+    private final AtomicLong readCount = new AtomicLong();
+
+    /**
+     * The number of pages read ahead that were requested afterwards.
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Create a new instance.
+     *
+     * @param store the store
+     * @param cache the page cache
+     * @param pageCount the number of sibling pages to read ahead
+     */
+    PageReadAhead(MVStore store, CacheLongKey<Page> cache, int pageCount) {
+        this.store = store;
+        this.cache = cache;
+        this.pageCount = pageCount;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final String name = "MVStore read ahead " + store.getFileStore().getFileName();
+        executor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + " #" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Get the number of sibling pages that are read ahead.
+     *
+     * @return the number of pages
+     */
+    int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Read the child pages of the given page, starting at the given index,
+     * unless they are already loaded or cached.
+     *
+     * @param parent the parent page
+     * @param from the index of the first child page
+     */
+    void readAhead(Page parent, int from) {
+        MVMap<?, ?> map = parent.map;
+        int to = Math.min(from + pageCount, map.getChildPageCount(parent));
+        long[] positions = new long[Math.max(0, to - from)];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (parent.getChildPageIfLoaded(i) == null) {
+                long pos = parent.getChildPagePos(i);
+                if (DataUtils.isPageSaved(pos) && !cache.containsKey(pos)) {
+                    positions[count++] = pos;
+                }
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        try {
+            executor.execute(new Reader(map, positions, count));
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Called when a page that was read ahead is requested.
+     */
+    void hit() {
+        hitCount.incrementAndGet();
+    }
+
+    /**
+     * Get the number of pages that were read ahead.
+     *
+     * @return the number of pages
+     */
+    long getReadCount() {
+        return readCount.get();
+    }
+
+    /**
+     * Get the number of pages read ahead that were requested afterwards.
+     *
+     * @return the number of pages
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Stop the pool threads. Reads that are in progress are not interrupted,
+     * as interrupting a thread that reads from a file channel closes the
+     * channel.
+     */
+    void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Reads a list of pages into the cache.
+     */
+    private final class Reader implements Runnable {
+
+        private final MVMap<?, ?> map;
+        private final long[] positions;
+        private final int count;
+
+        Reader(MVMap<?, ?> map, long[] positions, int count) {
+            this.map = map;
+            this.positions = positions;
+            this.count = count;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < count; i++) {
+                long pos = positions[i];
+                if (store.isClosed()) {
+                    return;
+                }
+                if (cache.containsKey(pos)) {
+                    continue;
+                }
+                Page p;
+                try {
+                    p = store.readPageFromFile(map, pos);
+                } catch (IllegalStateException e) {
+                    // for example, the chunk was removed in the meantime;
+                    // the page is read (and any problem reported) when
+                    // it is requested
+                    return;
+                }
+                p.markReadAhead();
+                if (cache.putCold(pos, p, p.getMemory())) {
+                    readCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.h2.compress.Compressor;
+
+/**
+ * Serializes (and compresses) the changed pages of a chunk using multiple
+ * threads.
+ * <p>
+ * The unsaved pages are collected in the same order as they are written by
+ * Page.writeUnsavedRecursive, and split into ranges of consecutive pages.
+ * Each range is serialized into its own buffer, by a pool thread or by the
+ * storing thread itself. The serialized form of a page does not depend on its
+ * position within the chunk, so the ranges are afterwards copied into the
+ * chunk buffer in order, and only then the positions are assigned and the
+ * child positions of the inner nodes are patched. The resulting chunk is
+ * identical to the one written by a single thread.
+ */
+final class ParallelPageWriter {
+
+    /**
+     * The minimum number of pages per range. Smaller ranges are not worth
+     * the overhead of handing them to another thread.
+     */
+    private static final int MIN_PAGES_PER_RANGE = 16;
+
+    /**
+     * The number of ranges per thread, so that threads that are done early
+     * can help with the remaining work.
+     */
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final MVStore store;
+
+    private final int threadCount;
+
+    private final ExecutorService executor;
+
+    /**
+     * The per-thread compressors, indexed by algorithm (the compressors are
+     * not thread safe). They are created when needed.
+     */
+    private final ThreadLocal<Compressor[]> compressors = new ThreadLocal<Compressor[]>() {
+        @Override
+        protected Compressor[] initialValue() {
+            return new Compressor[Compressor.LZ4 + 1];
+        }
+    };
+
+    /**
+     * The buffers of the ranges, re-used for the next chunk. Only accessed by
+     * the storing thread.
+     */
+    private final ArrayList<WriteBuffer> buffers = new ArrayList<>();
+
+    /**
+     * Create a new writer.
+     *
+     * @param store the store
+     * @param threadCount the number of threads, including the storing thread
+     */
+    ParallelPageWriter(MVStore store, int threadCount) {
+        this.store = store;
+        this.threadCount = threadCount;
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final String name = "MVStore page writer " +
+                (store.getFileStore() == null ? "" : store.getFileStore().getFileName());
+        executor = Executors.newFixedThreadPool(threadCount - 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " #" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Store the given pages and all changed children, and update the
+     * positions and the children. This is the multi-threaded equivalent of
+     * calling writeUnsavedRecursive for each page.
+     *
+     * @param roots the root pages
+     * @param chunk the chunk
+     * @param buff the chunk buffer
+     */
+    void writeUnsaved(List<Page> roots, Chunk chunk, WriteBuffer buff) {
+        ArrayList<Page> pages = new ArrayList<>();
+        for (Page p : roots) {
+            p.collectUnsavedRecursive(pages);
+        }
+        int pageCount = pages.size();
+        int rangeCount = Math.min(threadCount * RANGES_PER_THREAD,
+                pageCount / MIN_PAGES_PER_RANGE);
+        if (rangeCount <= 1) {
+            for (Page p : roots) {
+                p.writeUnsavedRecursive(chunk, buff);
+            }
+            return;
+        }
+        int[] starts = new int[pageCount];
+        int[] lengths = new int[pageCount];
+        int[] typeOffsets = new int[pageCount];
+        ArrayList<Future<WriteBuffer>> futures = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount; i++) {
+            if (i >= buffers.size()) {
+                buffers.add(new WriteBuffer());
+            }
+            if (i > 0) {
+                RangeSerializer task = new RangeSerializer(pages,
+                        getRangeStart(pageCount, rangeCount, i),
+                        getRangeStart(pageCount, rangeCount, i + 1),
+                        starts, lengths, typeOffsets, buffers.get(i));
+                futures.add(executor.submit(task));
+            }
+        }
+        ArrayList<Page> nodes = new ArrayList<>();
+        int[] patches = new int[pageCount];
+        for (int i = 0; i < rangeCount; i++) {
+            int from = getRangeStart(pageCount, rangeCount, i);
+            int to = getRangeStart(pageCount, rangeCount, i + 1);
+            WriteBuffer rangeBuff = buffers.get(i);
+            if (i == 0) {
+                // the storing thread serializes the first range itself
+                serialize(pages, from, to, starts, lengths, typeOffsets,
+                        rangeBuff, compressors.get());
+            } else {
+                await(futures.get(i - 1));
+            }
+            ByteBuffer src = rangeBuff.getBuffer();
+            for (int j = from; j < to; j++) {
+                Page p = pages.get(j);
+                int start = buff.position();
+                src.limit(starts[j] + lengths[j]).position(starts[j]);
+                buff.put(src);
+                p.assignPosition(chunk, buff, start, lengths[j]);
+                if (!p.isLeaf()) {
+                    patches[nodes.size()] = start + typeOffsets[j] + 1;
+                    nodes.add(p);
+                }
+            }
+            // release large buffers
+            src.clear();
+            rangeBuff.clear();
+        }
+        // now that all pages have a position, patch the inner nodes
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.get(i).writeChildPositions(buff, patches[i]);
+        }
+    }
+
+    private static int getRangeStart(int pageCount, int rangeCount, int range) {
+        return (int) ((long) pageCount * range / rangeCount);
+    }
+
+    /**
+     * Serialize a range of pages into the buffer.
+     *
+     * @param pages the pages
+     * @param from the index of the first page
+     * @param to the index after the last page
+     * @param starts receives the start of each page within the buffer
+     * @param lengths receives the length of each page
+     * @param typeOffsets receives the offset of the type of each page
+     * @param buff the target buffer
+     * @param compressors the compressors of the current thread
+     */
+    private void serialize(List<Page> pages, int from, int to, int[] starts,
+            int[] lengths, int[] typeOffsets, WriteBuffer buff,
+            Compressor[] compressors) {
+        for (int i = from; i < to; i++) {
+            int start = buff.position();
+            Page p = pages.get(i);
+            typeOffsets[i] = p.serialize(buff, getCompressor(compressors, p.map));
+            starts[i] = start;
+            lengths[i] = buff.position() - start;
+        }
+    }
+
+    private Compressor getCompressor(Compressor[] compressors, MVMap<?, ?> map) {
+        int algorithm = store.getCompressionAlgorithm(map);
+        if (algorithm == Compressor.NO) {
+            return null;
+        }
+        Compressor c = algorithm < compressors.length ? compressors[algorithm] : null;
+        if (c == null) {
+            c = MVStore.createCompressor(algorithm);
+            compressors[algorithm] = c;
+        }
+        return c;
+    }
+
+    /**
+     * Stop the pool threads.
+     */
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private static WriteBuffer await(Future<WriteBuffer> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_INTERNAL, "Interrupted while writing pages", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_INTERNAL, cause.toString(), cause);
+        }
+    }
+
+    /**
+     * Serializes a range of pages into a buffer, using a pool thread.
+     */
+    private final class RangeSerializer implements Callable<WriteBuffer> {
+
+        private final List<Page> pages;
+        private final int from, to;
+        private final int[] starts, lengths, typeOffsets;
+        private final WriteBuffer buff;
+
+        RangeSerializer(List<Page> pages, int from, int to, int[] starts,
+                int[] lengths, int[] typeOffsets, WriteBuffer buff) {
+            this.pages = pages;
+            this.from = from;
+            this.to = to;
+            this.starts = starts;
+            this.lengths = lengths;
+            this.typeOffsets = typeOffsets;
+            this.buff = buff;
+        }
+
+        @Override
+        public WriteBuffer call() {
+            serialize(pages, from, to, starts, lengths, typeOffsets, buff,
+                    compressors.get());
+            return buff;
+        }
+    }
+
+}
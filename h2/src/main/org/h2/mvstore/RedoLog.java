@@ -0,0 +1,590 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.h2.store.fs.FilePath;
+
+/**
+ * An append-only log of the changes of the maps of a store. On commit, the
+ * changes since the last commit are appended to the log, and the log is
+ * synced, instead of storing a new chunk. Chunks are stored at checkpoints,
+ * after which the log is truncated.
+ * <p>
+ * When the store is opened, the changes of the log that are not yet stored
+ * in the last chunk are read, and applied to each map when it is opened
+ * (the data types of the keys and values are only known then). Changes of
+ * maps that were not opened yet are written to the log again at the next
+ * checkpoint.
+ * <p>
+ * Changes are appended to the current batch while holding the monitor of
+ * this object, right after they were applied to the map, so that the
+ * changes of each map are logged in the order they were applied. When
+ * committing, the current batch is removed while holding the monitor, and
+ * the write version of the maps is incremented at the same time; so that
+ * each batch contains exactly the changes of one version.
+ * <p>
+ * The file format is:
+ * <pre>
+ * header: magic (int), creation time of the store (long, informational)
+ * batch: length of the changes (int), version (long), checksum (int), changes
+ * change: type (byte), map id (varInt), length of the data (int), data
+ * </pre>
+ * The checksum is the Fletcher32 checksum of the batch, with the checksum
+ * itself set to 0. A batch with an invalid length or checksum (a write that
+ * was interrupted) ends the log.
+ * <p>
+ * Changes of maps that were not opened yet are older than the next chunk,
+ * so they are appended to the log again with the version of the chunk
+ * before the chunk is written. At the checkpoint, they are written to a new
+ * log file, which then replaces the log. So the changes are in the log with
+ * a version that is read in any case, if the process is killed meanwhile.
+ */
+final class RedoLog {
+
+    /**
+     * A change that adds or replaces an entry. The data is the key and the
+     * value.
+     */
+    static final byte PUT = 1;
+
+    /**
+     * A change that removes an entry. The data is the key.
+     */
+    static final byte REMOVE = 2;
+
+    /**
+     * A change that removes all entries. There is no data.
+     */
+    static final byte CLEAR = 3;
+
+    /**
+     * A change that removes all entries with a key larger or equal to the
+     * given key. The data is the key.
+     */
+    static final byte REMOVE_TAIL = 4;
+
+    private static final int MAGIC = 0x48325244;
+
+    private static final int HEADER_LENGTH = 12;
+
+    private static final int BATCH_HEADER_LENGTH = 16;
+
+    /**
+     * The suffix of the new log file that is written at a checkpoint.
+     */
+    private static final String TEMP_SUFFIX = ".new";
+
+    private final String fileName;
+
+    private FileChannel file;
+
+    private final long created;
+
+    private final long maxSize;
+
+    /**
+     * The first version of the changes that were read when opening the
+     * store.
+     */
+    private final long openVersion;
+
+    /**
+     * The changes that were read when opening the store, and were not
+     * applied yet, by map id.
+     */
+    private final ConcurrentHashMap<Integer, ArrayList<ByteBuffer>> pending =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The position of each batch written since the store was opened, by
+     * version.
+     */
+    private final TreeMap<Long, Long> batchPositions = new TreeMap<>();
+
+    /**
+     * The changes that are not committed yet. Guarded by the monitor.
+     */
+    private WriteBuffer changes = newBatch();
+
+    /**
+     * A buffer that was written and can be re-used.
+     */
+    private WriteBuffer spare;
+
+    private long size;
+
+    /**
+     * Open the log, and read the changes of the given version and newer.
+     *
+     * @param fileName the file name
+     * @param readOnly whether the store is read-only
+     * @param created the creation time of the store
+     * @param firstVersion the first version that is not stored in a chunk
+     * @param maxSize the size after which the store should write a chunk
+     *            on commit
+     */
+    RedoLog(String fileName, boolean readOnly, long created, long firstVersion,
+            long maxSize) {
+        this.fileName = fileName;
+        this.created = created;
+        this.openVersion = firstVersion;
+        this.maxSize = maxSize;
+        file = open(fileName, readOnly);
+        try {
+            size = read(firstVersion);
+            if (!readOnly) {
+                // a new log of an interrupted checkpoint
+                FilePath.get(fileName + TEMP_SUFFIX).delete();
+                if (size == 0) {
+                    writeHeader();
+                } else {
+                    // remove an incomplete batch at the end
+                    truncate(size);
+                }
+            }
+        } catch (IllegalStateException e) {
+            close(false);
+            throw e;
+        }
+    }
+
+    private static FileChannel open(String fileName, boolean readOnly) {
+        try {
+            return FilePath.get(fileName).open(readOnly ? "r" : "rw");
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_READING_FAILED,
+                    "Could not open file {0}", fileName, e);
+        }
+    }
+
+    private static WriteBuffer newBatch() {
+        WriteBuffer buff = new WriteBuffer(16 * 1024);
+        return buff.putInt(0).putLong(0).putInt(0);
+    }
+
+    /**
+     * Read the log, and collect the changes of the given version and newer.
+     *
+     * @param firstVersion the first version to collect
+     * @return the length of the valid part of the log, or 0 if the log is
+     *         empty or invalid
+     */
+    private long read(long firstVersion) {
+        long fileSize;
+        try {
+            fileSize = file.size();
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_READING_FAILED,
+                    "Could not read file {0}", fileName, e);
+        }
+        if (fileSize < HEADER_LENGTH) {
+            return 0;
+        }
+        if (fileSize > Integer.MAX_VALUE) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT,
+                    "File {0} is too large", fileName);
+        }
+        ByteBuffer buff = ByteBuffer.allocate((int) fileSize);
+        DataUtils.readFully(file, 0, buff);
+        if (buff.getInt(0) != MAGIC) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT,
+                    "File {0} is not a redo log", fileName);
+        }
+        byte[] bytes = buff.array();
+        int pos = HEADER_LENGTH;
+        while (pos + BATCH_HEADER_LENGTH <= fileSize) {
+            int length = buff.getInt(pos);
+            if (length <= 0 || length > fileSize - pos - BATCH_HEADER_LENGTH) {
+                break;
+            }
+            long version = buff.getLong(pos + 4);
+            int checksum = buff.getInt(pos + 12);
+            int end = pos + BATCH_HEADER_LENGTH + length;
+            buff.putInt(pos + 12, 0);
+            if (DataUtils.getFletcher32(bytes, pos, end - pos) != checksum) {
+                break;
+            }
+            if (version >= firstVersion) {
+                addPending(buff, pos + BATCH_HEADER_LENGTH, end);
+            }
+            pos = end;
+        }
+        return pos;
+    }
+
+    private void addPending(ByteBuffer buff, int start, int end) {
+        ByteBuffer batch = buff.duplicate();
+        batch.limit(end).position(start);
+        while (batch.hasRemaining()) {
+            int changeStart = batch.position();
+            batch.get();
+            int mapId = DataUtils.readVarInt(batch);
+            int length = batch.getInt();
+            int changeEnd = batch.position() + length;
+            ByteBuffer change = buff.duplicate();
+            change.limit(changeEnd).position(changeStart);
+            ArrayList<ByteBuffer> list = pending.get(mapId);
+            if (list == null) {
+                list = new ArrayList<>();
+                pending.put(mapId, list);
+            }
+            list.add(change.slice());
+            batch.position(changeEnd);
+        }
+    }
+
+    /**
+     * Log the change of an entry. Must be called while holding the monitor,
+     * right after the change was applied.
+     *
+     * @param map the map
+     * @param key the key
+     * @param value the new value, or null if the entry was removed
+     */
+    void log(MVMap<?, ?> map, Object key, Object value) {
+        log(value == null ? REMOVE : PUT, map, key, value);
+    }
+
+    /**
+     * Log that all entries with a key larger or equal to the given key were
+     * removed. Must be called while holding the monitor, right after the
+     * change was applied.
+     *
+     * @param map the map
+     * @param from the smallest removed key
+     */
+    void logRemoveTail(MVMap<?, ?> map, Object from) {
+        log(REMOVE_TAIL, map, from, null);
+    }
+
+    private void log(byte type, MVMap<?, ?> map, Object key, Object value) {
+        WriteBuffer buff = changes;
+        buff.put(type).putVarInt(map.getId());
+        int start = buff.position();
+        buff.putInt(0);
+        map.getKeyType().write(buff, key);
+        if (value != null) {
+            map.getValueType().write(buff, value);
+        }
+        buff.putInt(start, buff.position() - start - 4);
+    }
+
+    /**
+     * Log that all entries of a map were removed. Must be called while
+     * holding the monitor, right after the change was applied.
+     *
+     * @param map the map
+     */
+    void logClear(MVMap<?, ?> map) {
+        changes.put(CLEAR).putVarInt(map.getId()).putInt(0);
+    }
+
+    /**
+     * Check whether there are changes that are not committed yet. Must be
+     * called while holding the monitor.
+     *
+     * @return true if yes
+     */
+    boolean hasChanges() {
+        return changes.position() > BATCH_HEADER_LENGTH;
+    }
+
+    /**
+     * Remove the changes that are not committed yet, and start a new batch.
+     * Must be called while holding the monitor.
+     *
+     * @return the removed changes
+     */
+    WriteBuffer removeChanges() {
+        WriteBuffer batch = changes;
+        WriteBuffer buff = spare;
+        spare = null;
+        if (buff == null) {
+            buff = newBatch();
+        }
+        changes = buff;
+        return batch;
+    }
+
+    /**
+     * Append a batch to the log, and sync the file.
+     *
+     * @param batch the changes
+     * @param version the version of the changes
+     */
+    void write(WriteBuffer batch, long version) {
+        long pos = size;
+        append(batch, version);
+        sync();
+        batchPositions.put(version, pos);
+    }
+
+    private void append(WriteBuffer batch, long version) {
+        ByteBuffer buff = batch.getBuffer();
+        int length = buff.position() - BATCH_HEADER_LENGTH;
+        buff.putInt(0, length);
+        buff.putLong(4, version);
+        buff.putInt(12, 0);
+        buff.putInt(12, DataUtils.getFletcher32(buff.array(), 0,
+                length + BATCH_HEADER_LENGTH));
+        buff.flip();
+        int len = buff.remaining();
+        DataUtils.writeFully(file, size, buff);
+        size += len;
+        batch.clear();
+        spare = batch.putInt(0).putLong(0).putInt(0);
+    }
+
+    /**
+     * Append the changes that were read when opening the store, and not
+     * applied yet, with the version of the chunk that is about to be
+     * written, and sync the file. Otherwise they would be ignored when
+     * opening the store after the chunk was written. Applying them twice
+     * has the same effect as applying them once.
+     *
+     * @param version the version of the chunk
+     */
+    void prepareCheckpoint(long version) {
+        if (!pending.isEmpty()) {
+            append(getPendingBatch(), version);
+            sync();
+        }
+    }
+
+    /**
+     * Truncate the log after the changes were stored in a chunk, and the
+     * chunk was synced. The changes that were read when opening the store,
+     * and not applied yet, are written again. The method prepareCheckpoint
+     * must be called before the chunk is written.
+     *
+     * @param version the version of the chunk
+     */
+    void checkpoint(long version) {
+        batchPositions.clear();
+        if (pending.isEmpty()) {
+            // all changes are stored in the chunk
+            truncate(HEADER_LENGTH);
+            sync();
+            return;
+        }
+        // the log is only replaced after the new log was synced
+        String tempName = fileName + TEMP_SUFFIX;
+        FileChannel old = file;
+        long oldSize = size;
+        boolean success = false;
+        file = open(tempName, false);
+        try {
+            writeHeader();
+            append(getPendingBatch(), version);
+            sync();
+            success = true;
+        } finally {
+            FileChannel temp = file;
+            file = old;
+            if (!success) {
+                size = oldSize;
+            }
+            close(temp, tempName);
+        }
+        close(old, fileName);
+        FilePath.get(tempName).moveTo(FilePath.get(fileName), true);
+        file = open(fileName, false);
+    }
+
+    private WriteBuffer getPendingBatch() {
+        WriteBuffer batch = newBatch();
+        for (ArrayList<ByteBuffer> list : pending.values()) {
+            for (ByteBuffer change : list) {
+                batch.put(change.duplicate());
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Remove the changes of the given version and newer: the changes that
+     * are not committed yet, and the batches of these versions.
+     *
+     * @param version the first version to remove
+     */
+    void rollback(long version) {
+        synchronized (this) {
+            removeChanges();
+        }
+        Map.Entry<Long, Long> first = batchPositions.ceilingEntry(version);
+        if (first != null) {
+            truncate(first.getValue());
+            batchPositions.tailMap(version, true).clear();
+            sync();
+        }
+    }
+
+    /**
+     * Remove all changes, after the store was reverted to a chunk.
+     *
+     * @param version the version of the chunk
+     */
+    void reset(long version) {
+        synchronized (this) {
+            removeChanges();
+        }
+        if (version < openVersion) {
+            // the changes read when opening are newer than the chunk
+            pending.clear();
+        }
+        prepareCheckpoint(version);
+        checkpoint(version);
+    }
+
+    /**
+     * Apply the changes that were read when opening the store to a map that
+     * is opened.
+     *
+     * @param map the map
+     * @return whether there were any changes
+     */
+    boolean replay(MVMap<Object, Object> map) {
+        ArrayList<ByteBuffer> list = pending.get(map.getId());
+        if (list == null) {
+            return false;
+        }
+        for (ByteBuffer change : list) {
+            ByteBuffer buff = change.duplicate();
+            byte type = buff.get();
+            DataUtils.readVarInt(buff);
+            buff.getInt();
+            switch (type) {
+            case PUT: {
+                Object key = map.getKeyType().read(buff);
+                map.put(key, map.getValueType().read(buff));
+                break;
+            }
+            case REMOVE:
+                map.remove(map.getKeyType().read(buff));
+                break;
+            case CLEAR:
+                map.clear();
+                break;
+            case REMOVE_TAIL:
+                map.removeTail(map.getKeyType().read(buff));
+                break;
+            default:
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_FILE_CORRUPT,
+                        "File {0} contains an unknown change type {1}",
+                        fileName, type);
+            }
+        }
+        // only remove them now, in case a chunk was stored meanwhile
+        pending.remove(map.getId());
+        return true;
+    }
+
+    /**
+     * Check whether there are changes for the given map that were read when
+     * opening the store, and were not applied yet.
+     *
+     * @param mapId the map id
+     * @return true if yes
+     */
+    boolean hasPending(int mapId) {
+        return pending.containsKey(mapId);
+    }
+
+    /**
+     * Forget the changes of a map that was removed.
+     *
+     * @param mapId the map id
+     */
+    void removePending(int mapId) {
+        pending.remove(mapId);
+    }
+
+    /**
+     * Check whether the log is so large that the next commit should store a
+     * chunk.
+     *
+     * @return true if yes
+     */
+    boolean isFull() {
+        return size > maxSize;
+    }
+
+    /**
+     * Close the file.
+     *
+     * @param delete whether to delete the file if it contains no changes
+     */
+    void close(boolean delete) {
+        close(file, fileName);
+        if (delete && size <= HEADER_LENGTH && pending.isEmpty()) {
+            try {
+                FilePath.get(fileName).delete();
+            } catch (Exception e) {
+                // the empty log is deleted next time
+            }
+        }
+    }
+
+    private static void close(FileChannel f, String name) {
+        try {
+            f.close();
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Closing failed for file {0}", name, e);
+        }
+    }
+
+    private void writeHeader() {
+        ByteBuffer buff = ByteBuffer.allocate(HEADER_LENGTH);
+        buff.putInt(MAGIC).putLong(created);
+        buff.flip();
+        truncate(0);
+        DataUtils.writeFully(file, 0, buff);
+        size = HEADER_LENGTH;
+        sync();
+    }
+
+    private void truncate(long newSize) {
+        try {
+            file.truncate(newSize);
+            size = newSize;
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Could not truncate file {0} to size {1}",
+                    fileName, newSize, e);
+        }
+    }
+
+    private void sync() {
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Could not sync file {0}", fileName, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.cache;
+
+/**
+ * A cache that uses keys of type long, where each entry is assigned a memory
+ * size. Implementations are multi-threading safe.
+ *
+ * @param <V> the value type
+ */
+public interface CacheLongKey<V> {
+
+    /**
+     * Get the value for the given key if the entry is cached. This method
+     * records the access, so that commonly used entries stay in the cache.
+     *
+     * @param key the key
+     * @return the value, or null if there is no resident entry
+     */
+    V get(long key);
+
+    /**
+     * Add an entry to the cache, or replace the value of an existing entry.
+     *
+     * @param key the key
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return the old value, or null if there was no resident entry
+     */
+    V put(long key, V value, int memory);
+
+    /**
+     * Add an entry that was read speculatively, if there is no entry for this
+     * key yet. Such an entry is the first to be evicted, unless it is
+     * accessed before, so that it doesn't replace entries that are known to
+     * be used.
+     *
+     * @param key the key
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return true if the entry was added
+     */
+    boolean putCold(long key, V value, int memory);
+
+    /**
+     * Remove an entry.
+     *
+     * @param key the key
+     * @return the old value, or null if there was no resident entry
+     */
+    V remove(long key);
+
+    /**
+     * Check whether there is a resident entry for the given key. This method
+     * does not record an access.
+     *
+     * @param key the key
+     * @return true if there is a resident entry
+     */
+    boolean containsKey(long key);
+
+    /**
+     * Remove all entries, and reset the statistics.
+     */
+    void clear();
+
+    /**
+     * Get the maximum memory of an entry that can be cached.
+     *
+     * @return the maximum memory of an entry
+     */
+    long getMaxItemSize();
+
+    /**
+     * Get the currently used memory.
+     *
+     * @return the used memory
+     */
+    long getUsedMemory();
+
+    /**
+     * Get the maximum memory to use.
+     *
+     * @return the maximum memory
+     */
+    long getMaxMemory();
+
+    /**
+     * Set the maximum memory this cache should use.
+     *
+     * @param maxMemory the maximum size (1 or larger)
+     */
+    void setMaxMemory(long maxMemory);
+
+    /**
+     * Get the number of cache hits.
+     *
+     * @return the cache hits
+     */
+    long getHits();
+
+    /**
+     * Get the number of cache misses.
+     *
+     * @return the cache misses
+     */
+    long getMisses();
+
+    /**
+     * Get the number of resident entries.
+     *
+     * @return the number of entries
+     */
+    int size();
+
+}
@@ -42,7 +42,7 @@
  * @author Thomas Mueller
  * @param <V> the value type
  */
-public class CacheLongKeyLIRS<V> {
+public class CacheLongKeyLIRS<V> implements CacheLongKey<V> {
 
     /**
      * The maximum memory this cache should use.
@@ -160,6 +160,28 @@ public V put(long key, V value, int memory) {
         }
     }
 
+    /**
+     * Add an entry to the cache as the oldest cold entry, if there is no entry
+     * for this key yet (resident or non-resident). Such an entry is the first
+     * to be evicted, unless it is accessed before. This is used to add entries
+     * that were read speculatively, so that they don't replace entries that
+     * are known to be used.
+     *
+     * @param key the key (may not be null)
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return true if the entry was added
+     */
+    public boolean putCold(long key, V value, int memory) {
+        int hash = getHash(key);
+        int segmentIndex = getSegmentIndex(hash);
+        Segment<V> s = segments[segmentIndex];
+        synchronized (s) {
+            s = resizeIfNeeded(s, segmentIndex);
+            return s.putCold(key, hash, value, memory);
+        }
+    }
+
     private Segment<V> resizeIfNeeded(Segment<V> s, int segmentIndex) {
         int newLen = s.getNewMapLen();
         if (newLen == 0) {
@@ -772,11 +794,13 @@ private synchronized void access(long key, int hash) {
                     // (this entry is cold, that means there is at least one
                     // more entry in the stack, which must be hot)
                     convertOldestHotToCold();
-                } else {
+                } else if (stackSize > 0) {
                     // cold entries that are not on the stack
                     // move to the front of the queue
                     addToQueue(queue, e);
                 }
+                // (if there are no hot entries, which is possible if entries
+                // were added using putCold, the entry becomes hot)
                 // in any case, the cold entry is moved to the top of the stack
                 addToStack(e);
             }
@@ -841,6 +865,47 @@ synchronized V put(long key, int hash, V value, int memory) {
             return old;
         }
 
+        /**
+         * Add an entry as the oldest cold entry, if there is no entry for this
+         * key yet.
+         *
+         * @param key the key (may not be null)
+         * @param hash the hash
+         * @param value the value (may not be null)
+         * @param memory the memory used for the given entry
+         * @return true if the entry was added
+         */
+        synchronized boolean putCold(long key, int hash, V value, int memory) {
+            if (value == null) {
+                throw DataUtils.newIllegalArgumentException(
+                        "The value may not be null");
+            }
+            if (memory > maxMemory || find(key, hash) != null) {
+                return false;
+            }
+            // make room first, so that the new entry is not evicted right away
+            usedMemory += memory;
+            if (usedMemory > maxMemory) {
+                evict();
+            }
+            Entry<V> e = new Entry<>();
+            e.key = key;
+            e.value = value;
+            e.memory = memory;
+            int index = hash & mask;
+            e.mapNext = entries[index];
+            entries[index] = e;
+            mapSize++;
+            // the end of the queue holds the oldest cold entries;
+            // the entry is not on the stack
+            e.queueNext = queue;
+            e.queuePrev = queue.queuePrev;
+            e.queuePrev.queueNext = e;
+            queue.queuePrev = e;
+            queueSize++;
+            return true;
+        }
+
         /**
          * Remove an entry. Both resident and non-resident entries can be
          * removed.
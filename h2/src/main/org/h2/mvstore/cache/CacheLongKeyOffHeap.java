@@ -0,0 +1,500 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.cache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.h2.mvstore.DataUtils;
+
+/**
+ * A cache for byte arrays that uses keys of type long, and keeps the data
+ * outside of the heap (in direct byte buffers). It is meant as a second level
+ * cache for serialized data, so that a large amount of memory can be used
+ * without increasing garbage collection pauses.
+ * <p>
+ * Each entry has a stamp, which needs to match when reading. This allows to
+ * detect outdated entries, for example if the same key is re-used for other
+ * data.
+ * <p>
+ * The cache is split into a number of segments. Each segment allocates memory
+ * in blocks, and uses the blocks as a ring buffer: new entries are appended to
+ * the current block, and if it is full, the oldest block is re-used and all
+ * entries in it are removed. That means the oldest entries are evicted first
+ * (FIFO), independent of how often they are read. On the heap, only the index
+ * is kept (an open addressing hash table, and the list of keys per block;
+ * about 40 bytes per entry).
+ * <p>
+ * This implementation is multi-threading safe. Access is synchronized per
+ * segment. The data is copied to the heap when reading, so that reading needs
+ * not to be synchronized with writes that re-use the block.
+ */
+public class CacheLongKeyOffHeap {
+
+    /**
+     * The maximum size of a block.
+     */
+    private static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The minimum number of blocks per segment, so that only a part of the
+     * segment is evicted when a block is re-used.
+     */
+    private static final int MIN_BLOCK_COUNT = 4;
+
+    /**
+     * The number of bytes used per entry, in addition to the data (stamp and
+     * length).
+     */
+    private static final int ENTRY_OVERHEAD = 12;
+
+    private final long maxMemory;
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+    private final int segmentMask;
+
+    /**
+     * Create a new cache with the given memory size.
+     *
+     * @param maxMemory the maximum memory to use, in bytes
+     * @param segmentCount the number of segments (a power of 2)
+     */
+    public CacheLongKeyOffHeap(long maxMemory, int segmentCount) {
+        DataUtils.checkArgument(
+                maxMemory > 0,
+                "Max memory must be larger than 0, is {0}", maxMemory);
+        DataUtils.checkArgument(
+                Integer.bitCount(segmentCount) == 1,
+                "The segment count must be a power of 2, is {0}", segmentCount);
+        this.maxMemory = maxMemory;
+        this.segmentMask = segmentCount - 1;
+        // use the high bits for the segment
+        this.segmentShift = 32 - Integer.bitCount(segmentMask);
+        long segmentMemory = Math.max(1, maxMemory / segmentCount);
+        int blockSize = (int) Math.min(MAX_BLOCK_SIZE,
+                Math.max(1, segmentMemory / MIN_BLOCK_COUNT));
+        int blockCount = (int) Math.max(1, segmentMemory / blockSize);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(blockSize, blockCount);
+        }
+    }
+
+    /**
+     * Add an entry to the cache. The remaining bytes of the buffer are
+     * copied; the position of the buffer is not changed. If there is an entry
+     * for this key already, it is replaced. Entries that are larger than a
+     * block are not added (but an existing entry is still removed).
+     *
+     * @param key the key (may not be 0)
+     * @param stamp the stamp
+     * @param data the data
+     * @return whether the entry was added
+     */
+    public boolean put(long key, long stamp, ByteBuffer data) {
+        int hash = CacheLongKeyLIRS.getHash(key);
+        return getSegment(hash).put(key, stamp, data);
+    }
+
+    /**
+     * Get a copy of the data for the given key. If the stamp does not match,
+     * the entry is removed.
+     *
+     * @param key the key (may not be 0)
+     * @param stamp the expected stamp
+     * @return a heap buffer with the data, or null if not found
+     */
+    public ByteBuffer get(long key, long stamp) {
+        int hash = CacheLongKeyLIRS.getHash(key);
+        return getSegment(hash).get(key, stamp);
+    }
+
+    /**
+     * Check whether there is an entry for the given key.
+     *
+     * @param key the key (may not be 0)
+     * @return true if there is an entry
+     */
+    public boolean containsKey(long key) {
+        int hash = CacheLongKeyLIRS.getHash(key);
+        return getSegment(hash).containsKey(key);
+    }
+
+    /**
+     * Remove an entry.
+     *
+     * @param key the key (may not be 0)
+     */
+    public void remove(long key) {
+        int hash = CacheLongKeyLIRS.getHash(key);
+        getSegment(hash).remove(key);
+    }
+
+    /**
+     * Remove all entries, and release the memory.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    private Segment getSegment(int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    /**
+     * Get the maximum memory to use.
+     *
+     * @return the maximum memory
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Get the memory used by the entries, including the per-entry overhead.
+     *
+     * @return the used memory
+     */
+    public long getUsedMemory() {
+        long x = 0;
+        for (Segment s : segments) {
+            x += s.usedMemory;
+        }
+        return x;
+    }
+
+    /**
+     * Get the memory that is allocated (the size of the allocated blocks).
+     *
+     * @return the allocated memory
+     */
+    public long getAllocatedMemory() {
+        long x = 0;
+        for (Segment s : segments) {
+            x += s.getAllocatedMemory();
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of cache hits.
+     *
+     * @return the cache hits
+     */
+    public long getHits() {
+        long x = 0;
+        for (Segment s : segments) {
+            x += s.hits;
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of cache misses.
+     *
+     * @return the cache misses
+     */
+    public long getMisses() {
+        long x = 0;
+        for (Segment s : segments) {
+            x += s.misses;
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        int x = 0;
+        for (Segment s : segments) {
+            x += s.size;
+        }
+        return x;
+    }
+
+    /**
+     * A cache segment.
+     */
+    private static final class Segment {
+
+        /**
+         * The size of a block.
+         */
+        private final int blockSize;
+
+        /**
+         * The blocks, allocated when needed.
+         */
+        private final ByteBuffer[] blocks;
+
+        /**
+         * The keys of the entries that were written to a block (including
+         * keys that were removed or replaced since).
+         */
+        private final long[][] blockKeys;
+
+        private final int[] blockKeyCount;
+
+        /**
+         * The block that is currently written to, or -1.
+         */
+        private int writeBlock = -1;
+
+        /**
+         * The position within the current block.
+         */
+        private int writePos;
+
+        /**
+         * The hash table keys (0 for empty slots).
+         */
+        private long[] keys;
+
+        /**
+         * The hash table values: the block index (high 32 bits) and the
+         * offset within the block.
+         */
+        private long[] values;
+
+        private int mask;
+
+        /**
+         * The number of entries.
+         */
+        int size;
+
+        /**
+         * The memory used by the entries.
+         */
+        long usedMemory;
+
+        /**
+         * The number of cache hits.
+         */
+        long hits;
+
+        /**
+         * The number of cache misses.
+         */
+        long misses;
+
+        Segment(int blockSize, int blockCount) {
+            this.blockSize = blockSize;
+            blocks = new ByteBuffer[blockCount];
+            blockKeys = new long[blockCount][];
+            blockKeyCount = new int[blockCount];
+            initIndex(16);
+        }
+
+        private void initIndex(int len) {
+            keys = new long[len];
+            values = new long[len];
+            mask = len - 1;
+        }
+
+        synchronized boolean put(long key, long stamp, ByteBuffer data) {
+            remove(key);
+            int len = data.remaining();
+            int entryLength = ENTRY_OVERHEAD + len;
+            if (entryLength > blockSize) {
+                return false;
+            }
+            if (writeBlock < 0 || writePos + entryLength > blockSize) {
+                nextBlock();
+            }
+            ByteBuffer block = blocks[writeBlock];
+            int offset = writePos;
+            block.putLong(offset, stamp);
+            block.putInt(offset + 8, len);
+            ByteBuffer target = block.duplicate();
+            target.position(offset + ENTRY_OVERHEAD);
+            target.put(data.duplicate());
+            writePos += entryLength;
+            addKey(writeBlock, key);
+            insert(key, ((long) writeBlock << 32) | offset);
+            usedMemory += entryLength;
+            return true;
+        }
+
+        synchronized ByteBuffer get(long key, long stamp) {
+            checkKey(key);
+            int index = find(key);
+            if (index < 0) {
+                misses++;
+                return null;
+            }
+            long value = values[index];
+            ByteBuffer block = blocks[(int) (value >>> 32)];
+            int offset = (int) value;
+            if (block.getLong(offset) != stamp) {
+                // outdated
+                delete(index);
+                misses++;
+                return null;
+            }
+            int len = block.getInt(offset + 8);
+            ByteBuffer source = block.duplicate();
+            source.limit(offset + ENTRY_OVERHEAD + len);
+            source.position(offset + ENTRY_OVERHEAD);
+            ByteBuffer buff = ByteBuffer.allocate(len);
+            buff.put(source);
+            buff.flip();
+            hits++;
+            return buff;
+        }
+
+        synchronized boolean containsKey(long key) {
+            checkKey(key);
+            return find(key) >= 0;
+        }
+
+        synchronized void remove(long key) {
+            checkKey(key);
+            int index = find(key);
+            if (index >= 0) {
+                delete(index);
+            }
+        }
+
+        synchronized void clear() {
+            Arrays.fill(blocks, null);
+            Arrays.fill(blockKeys, null);
+            Arrays.fill(blockKeyCount, 0);
+            writeBlock = -1;
+            writePos = 0;
+            initIndex(16);
+            size = 0;
+            usedMemory = 0;
+        }
+
+        synchronized long getAllocatedMemory() {
+            long x = 0;
+            for (ByteBuffer b : blocks) {
+                if (b != null) {
+                    x += b.capacity();
+                }
+            }
+            return x;
+        }
+
+        /**
+         * Switch to the next block. If it was used before, all entries that
+         * are still stored in it are removed.
+         */
+        private void nextBlock() {
+            writeBlock = (writeBlock + 1) % blocks.length;
+            writePos = 0;
+            if (blocks[writeBlock] == null) {
+                blocks[writeBlock] = ByteBuffer.allocateDirect(blockSize);
+                return;
+            }
+            long[] k = blockKeys[writeBlock];
+            for (int i = 0, count = blockKeyCount[writeBlock]; i < count; i++) {
+                int index = find(k[i]);
+                if (index >= 0 && (int) (values[index] >>> 32) == writeBlock) {
+                    delete(index);
+                }
+            }
+            blockKeyCount[writeBlock] = 0;
+        }
+
+        private void addKey(int block, long key) {
+            long[] k = blockKeys[block];
+            int count = blockKeyCount[block];
+            if (k == null) {
+                k = blockKeys[block] = new long[64];
+            } else if (count == k.length) {
+                k = blockKeys[block] = Arrays.copyOf(k, count * 2);
+            }
+            k[count] = key;
+            blockKeyCount[block] = count + 1;
+        }
+
+        private int find(long key) {
+            int index = CacheLongKeyLIRS.getHash(key) & mask;
+            while (true) {
+                long k = keys[index];
+                if (k == key) {
+                    return index;
+                } else if (k == 0) {
+                    return -1;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private void insert(long key, long value) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                // more than 75% usage
+                long[] oldKeys = keys, oldValues = values;
+                initIndex(keys.length * 2);
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != 0) {
+                        insertSlot(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+            insertSlot(key, value);
+            size++;
+        }
+
+        private void insertSlot(long key, long value) {
+            int index = CacheLongKeyLIRS.getHash(key) & mask;
+            while (keys[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = value;
+        }
+
+        /**
+         * Remove the entry at the given slot, and move the following entries
+         * of the same probe sequence back, so that no tombstones are needed.
+         *
+         * @param index the slot
+         */
+        private void delete(int index) {
+            long value = values[index];
+            int len = blocks[(int) (value >>> 32)].getInt((int) value + 8);
+            usedMemory -= ENTRY_OVERHEAD + len;
+            size--;
+            int free = index;
+            int i = index;
+            while (true) {
+                i = (i + 1) & mask;
+                long k = keys[i];
+                if (k == 0) {
+                    break;
+                }
+                int home = CacheLongKeyLIRS.getHash(k) & mask;
+                // move the entry if its home slot is not between the free
+                // slot (exclusive) and its current slot (inclusive)
+                if (free <= i ? (home <= free || home > i) : (home <= free && home > i)) {
+                    keys[free] = k;
+                    values[free] = values[i];
+                    free = i;
+                }
+            }
+            keys[free] = 0;
+            values[free] = 0;
+        }
+
+        private static void checkKey(long key) {
+            if (key == 0) {
+                throw DataUtils.newIllegalArgumentException(
+                        "The key may not be 0");
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,751 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import org.h2.mvstore.DataUtils;
+
+/**
+ * A cache map with a long key, where reading does not need to acquire a lock.
+ * <p>
+ * The entries are kept in a concurrent hash map. Reads do not change the
+ * eviction order directly; instead, the accessed entry is recorded in one of a
+ * number of small read buffers (selected by the current thread). A buffer
+ * that is full is drained by the reading thread if the eviction lock is free,
+ * otherwise accesses are dropped until it is drained. Write operations acquire
+ * the eviction lock and drain all buffers first. That means the eviction order
+ * is only approximately the access order, which is fine for a cache.
+ * <p>
+ * This class implements the W-TinyLFU replacement policy, as described in
+ * "TinyLFU: A Highly Efficient Cache Admission Policy" by Gil Einziger, Roy
+ * Friedman, and Ben Manes: new entries are added to a small LRU window (1% of
+ * the memory). Entries that are evicted from the window are only admitted to
+ * the main area if they were accessed more often than the entry that would be
+ * evicted instead. The access frequency is estimated using a count-min sketch
+ * with 4-bit counters, which are halved periodically. The main area is a
+ * segmented LRU: entries are moved from the probation to the protected segment
+ * (80% of the main area) when they are accessed again. This protects the cache
+ * against large scans, which only pass through the window.
+ * <p>
+ * Each entry is assigned a distinct memory size, and the cache will try to use
+ * at most the specified amount of memory.
+ *
+ * @param <V> the value type
+ */
+public class CacheLongKeyTinyLFU<V> implements CacheLongKey<V> {
+
+    /**
+     * The percentage of the memory used for the window.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * The percentage of the main area used for the protected segment.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * The maximum memory of an entry, as a fraction of the maximum memory.
+     */
+    private static final int MAX_ITEM_FRACTION = 16;
+
+    /**
+     * The number of accesses a read buffer can hold.
+     */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    /**
+     * The entry is not in any queue (it was removed or evicted).
+     */
+    private static final int QUEUE_NONE = 0;
+
+    /**
+     * The entry is in the window.
+     */
+    private static final int QUEUE_WINDOW = 1;
+
+    /**
+     * The entry is in the probation segment of the main area.
+     */
+    private static final int QUEUE_PROBATION = 2;
+
+    /**
+     * The entry is in the protected segment of the main area.
+     */
+    private static final int QUEUE_PROTECTED = 3;
+
+    private final ConcurrentHashMap<Long, Node<V>> map;
+
+    private final ReadBuffer[] readBuffers;
+
+    private final int readBufferMask;
+
+    /**
+     * The lock that protects the queues, the memory counters, and the
+     * frequency sketch.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * The queue heads. The eldest entry is the next entry of the head.
+     */
+    private final Node<V> window, probation, protectedSegment;
+
+    private volatile long maxMemory;
+
+    private volatile long usedMemory;
+
+    private long windowMemory;
+
+    private long protectedMemory;
+
+    private FrequencySketch sketch;
+
+    /**
+     * Create a new cache with the given memory size.
+     *
+     * @param maxMemory the maximum memory to use (1 or larger)
+     * @param readBufferCount the number of read buffers (a power of 2)
+     */
+    public CacheLongKeyTinyLFU(long maxMemory, int readBufferCount) {
+        DataUtils.checkArgument(
+                Integer.bitCount(readBufferCount) == 1,
+                "The read buffer count must be a power of 2, is {0}",
+                readBufferCount);
+        setMaxMemory(maxMemory);
+        map = new ConcurrentHashMap<>(16, 0.75f, readBufferCount);
+        readBufferMask = readBufferCount - 1;
+        readBuffers = new ReadBuffer[readBufferCount];
+        for (int i = 0; i < readBufferCount; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+        window = new Node<>(0, null, 0);
+        probation = new Node<>(0, null, 0);
+        protectedSegment = new Node<>(0, null, 0);
+        clear();
+    }
+
+    @Override
+    public V get(long key) {
+        Node<V> n = map.get(key);
+        ReadBuffer buffer = getReadBuffer();
+        if (n == null) {
+            buffer.misses.incrementAndGet();
+            return null;
+        }
+        V value = n.value;
+        buffer.hits.incrementAndGet();
+        recordAccess(buffer, n);
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public V put(long key, V value, int memory) {
+        if (value == null) {
+            throw DataUtils.newIllegalArgumentException(
+                    "The value may not be null");
+        }
+        if (memory > getMaxItemSize()) {
+            // the new value is not cached, but the old value is outdated
+            return remove(key);
+        }
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Node<V> n = map.get(key);
+            V old = null;
+            if (n == null) {
+                n = new Node<>(key, value, memory);
+                map.put(key, n);
+                addToWindow(n);
+            } else {
+                old = n.value;
+                n.value = value;
+                changeMemory(n, memory);
+                onAccess(n);
+            }
+            sketch.increment(key);
+            ensureSketchCapacity();
+            evict();
+            return old;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Add an entry that was read speculatively, if there is no entry for this
+     * key yet. The entry is added to the window without counting it as an
+     * access, so that it is not admitted to the main area unless it is read
+     * before it leaves the window.
+     *
+     * @param key the key
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return true if the entry was added
+     */
+    @Override
+    public boolean putCold(long key, V value, int memory) {
+        if (value == null) {
+            throw DataUtils.newIllegalArgumentException(
+                    "The value may not be null");
+        }
+        if (memory > getMaxItemSize()) {
+            return false;
+        }
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            if (map.containsKey(key)) {
+                return false;
+            }
+            Node<V> n = new Node<>(key, value, memory);
+            map.put(key, n);
+            addToWindow(n);
+            ensureSketchCapacity();
+            evict();
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public V remove(long key) {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Node<V> n = map.remove(key);
+            if (n == null) {
+                return null;
+            }
+            unlink(n);
+            usedMemory -= n.memory;
+            return n.value;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (ReadBuffer buffer : readBuffers) {
+                buffer.clear();
+            }
+            map.clear();
+            window.next = window.prev = window;
+            probation.next = probation.prev = probation;
+            protectedSegment.next = protectedSegment.prev = protectedSegment;
+            usedMemory = windowMemory = protectedMemory = 0;
+            sketch = new FrequencySketch();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public long getMaxItemSize() {
+        return Math.max(1, maxMemory / MAX_ITEM_FRACTION);
+    }
+
+    @Override
+    public long getUsedMemory() {
+        return usedMemory;
+    }
+
+    @Override
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Set the maximum memory this cache should use. If the cache uses more
+     * memory, entries are evicted immediately.
+     *
+     * @param maxMemory the maximum size (1 or larger)
+     */
+    @Override
+    public void setMaxMemory(long maxMemory) {
+        DataUtils.checkArgument(
+                maxMemory > 0,
+                "Max memory must be larger than 0, is {0}", maxMemory);
+        evictionLock.lock();
+        try {
+            this.maxMemory = maxMemory;
+            if (sketch != null) {
+                drainReadBuffers();
+                evict();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public long getHits() {
+        long x = 0;
+        for (ReadBuffer buffer : readBuffers) {
+            x += buffer.hits.get();
+        }
+        return x;
+    }
+
+    @Override
+    public long getMisses() {
+        long x = 0;
+        for (ReadBuffer buffer : readBuffers) {
+            x += buffer.misses.get();
+        }
+        return x;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Get the estimated access frequency of the given key. This method is
+     * used for testing.
+     *
+     * @param key the key
+     * @return the estimated frequency (0 to 15)
+     */
+    int getFrequency(long key) {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            return sketch.frequency(key);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private ReadBuffer getReadBuffer() {
+        long id = Thread.currentThread().getId();
+        return readBuffers[CacheLongKeyLIRS.getHash(id) & readBufferMask];
+    }
+
+    private void recordAccess(ReadBuffer buffer, Node<V> n) {
+        AtomicInteger count = buffer.count;
+        if (count.get() < READ_BUFFER_SIZE) {
+            int i = count.getAndIncrement();
+            if (i < READ_BUFFER_SIZE) {
+                buffer.slots.lazySet(i, n);
+                if (i < READ_BUFFER_SIZE - 1) {
+                    return;
+                }
+            }
+        }
+        // the buffer is full: drain it, unless another thread is doing that
+        if (evictionLock.tryLock()) {
+            try {
+                drainReadBuffer(buffer);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Apply the recorded accesses. Must be called while holding the eviction
+     * lock.
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            drainReadBuffer(buffer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drainReadBuffer(ReadBuffer buffer) {
+        int count = Math.min(buffer.count.get(), READ_BUFFER_SIZE);
+        if (count == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            Node<V> n = (Node<V>) buffer.slots.getAndSet(i, null);
+            if (n != null) {
+                sketch.increment(n.key);
+                onAccess(n);
+            }
+        }
+        buffer.count.set(0);
+    }
+
+    private void ensureSketchCapacity() {
+        if (sketch.ensureCapacity(map.size())) {
+            // the counts are lost; entries in the main area were used at
+            // least once
+            for (Node<V> n = probation.next; n != probation; n = n.next) {
+                sketch.increment(n.key);
+            }
+            for (Node<V> n = protectedSegment.next; n != protectedSegment; n = n.next) {
+                sketch.increment(n.key);
+            }
+        }
+    }
+
+    private void onAccess(Node<V> n) {
+        switch (n.queue) {
+        case QUEUE_WINDOW:
+            moveToTail(window, n);
+            break;
+        case QUEUE_PROBATION:
+            unlink(n);
+            n.queue = QUEUE_PROTECTED;
+            protectedMemory += n.memory;
+            addToTail(protectedSegment, n);
+            demoteProtected();
+            break;
+        case QUEUE_PROTECTED:
+            moveToTail(protectedSegment, n);
+            break;
+        default:
+            // the entry was removed in the meantime
+        }
+    }
+
+    private void addToWindow(Node<V> n) {
+        n.queue = QUEUE_WINDOW;
+        windowMemory += n.memory;
+        usedMemory += n.memory;
+        addToTail(window, n);
+    }
+
+    private void changeMemory(Node<V> n, int memory) {
+        int diff = memory - n.memory;
+        n.memory = memory;
+        usedMemory += diff;
+        if (n.queue == QUEUE_WINDOW) {
+            windowMemory += diff;
+        } else if (n.queue == QUEUE_PROTECTED) {
+            protectedMemory += diff;
+        }
+    }
+
+    private long getMaxWindowMemory() {
+        return Math.max(1, maxMemory * WINDOW_PERCENT / 100);
+    }
+
+    /**
+     * Move the eldest entries of the protected segment to the probation
+     * segment, until the protected segment is small enough.
+     */
+    private void demoteProtected() {
+        long mainMemory = maxMemory - getMaxWindowMemory();
+        long maxProtected = mainMemory * PROTECTED_PERCENT / 100;
+        while (protectedMemory > maxProtected &&
+                protectedSegment.next != protectedSegment) {
+            Node<V> n = protectedSegment.next;
+            unlink(n);
+            n.queue = QUEUE_PROBATION;
+            addToTail(probation, n);
+        }
+    }
+
+    /**
+     * Evict entries until the window and the whole cache are small enough.
+     * Entries that leave the window need to pass the admission filter.
+     */
+    private void evict() {
+        long maxWindow = getMaxWindowMemory();
+        while (windowMemory > maxWindow) {
+            Node<V> candidate = window.next;
+            unlink(candidate);
+            admit(candidate);
+        }
+        demoteProtected();
+        while (usedMemory > maxMemory) {
+            Node<V> victim = getVictim();
+            if (victim == null) {
+                break;
+            }
+            evict(victim);
+        }
+    }
+
+    /**
+     * Add an entry that left the window to the main area, if it is used more
+     * often than the entries it would replace. Otherwise, evict it.
+     *
+     * @param candidate the candidate (not in any queue)
+     */
+    private void admit(Node<V> candidate) {
+        int candidateFrequency = sketch.frequency(candidate.key);
+        while (usedMemory > maxMemory) {
+            Node<V> victim = getVictim();
+            if (victim == null) {
+                break;
+            }
+            if (candidateFrequency > sketch.frequency(victim.key)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+                return;
+            }
+        }
+        candidate.queue = QUEUE_PROBATION;
+        addToTail(probation, candidate);
+    }
+
+    private Node<V> getVictim() {
+        if (probation.next != probation) {
+            return probation.next;
+        } else if (protectedSegment.next != protectedSegment) {
+            return protectedSegment.next;
+        }
+        return null;
+    }
+
+    private void evict(Node<V> n) {
+        unlink(n);
+        map.remove(n.key, n);
+        usedMemory -= n.memory;
+    }
+
+    private static <V> void addToTail(Node<V> head, Node<V> n) {
+        n.prev = head.prev;
+        n.next = head;
+        n.prev.next = n;
+        head.prev = n;
+    }
+
+    private static <V> void moveToTail(Node<V> head, Node<V> n) {
+        if (head.prev != n) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            addToTail(head, n);
+        }
+    }
+
+    /**
+     * Remove the entry from its queue, if it is in one.
+     *
+     * @param n the entry
+     */
+    private void unlink(Node<V> n) {
+        if (n.queue == QUEUE_NONE) {
+            return;
+        }
+        if (n.queue == QUEUE_WINDOW) {
+            windowMemory -= n.memory;
+        } else if (n.queue == QUEUE_PROTECTED) {
+            protectedMemory -= n.memory;
+        }
+        n.queue = QUEUE_NONE;
+        if (n.next != null) {
+            n.prev.next = n.next;
+            n.next.prev = n.prev;
+            n.prev = n.next = null;
+        }
+    }
+
+    /**
+     * A cache entry. The value may be read without locking; all other fields
+     * are protected by the eviction lock.
+     *
+     * @param <V> the value type
+     */
+    static class Node<V> {
+
+        /**
+         * The key.
+         */
+        final long key;
+
+        /**
+         * The value.
+         */
+        volatile V value;
+
+        /**
+         * The estimated memory used.
+         */
+        int memory;
+
+        /**
+         * The queue this entry is in.
+         */
+        int queue;
+
+        /**
+         * The previous entry in the queue.
+         */
+        Node<V> prev;
+
+        /**
+         * The next entry in the queue.
+         */
+        Node<V> next;
+
+        Node(long key, V value, int memory) {
+            this.key = key;
+            this.value = value;
+            this.memory = memory;
+        }
+
+    }
+
+    /**
+     * A lossy buffer of recorded accesses, and the statistics of the threads
+     * that use it.
+     */
+    static class ReadBuffer {
+
+        /**
+         * The recorded accesses.
+         */
+        final AtomicReferenceArray<Object> slots =
+                new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+
+        /**
+         * The number of recorded accesses (may be larger than the buffer
+         * size if accesses were dropped).
+         */
+        final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * The number of cache hits.
+         */
+        final AtomicLong hits = new AtomicLong();
+
+        /**
+         * The number of cache misses.
+         */
+        final AtomicLong misses = new AtomicLong();
+
+        /**
+         * Remove the recorded accesses, and reset the statistics.
+         */
+        void clear() {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                slots.set(i, null);
+            }
+            count.set(0);
+            hits.set(0);
+            misses.set(0);
+        }
+
+    }
+
+    /**
+     * A count-min sketch that estimates the access frequency of keys, using
+     * four 4-bit counters per key. When the number of increments reaches ten
+     * times the table size, all counters are halved, so that the frequency of
+     * entries that were popular in the past decays.
+     */
+    static class FrequencySketch {
+
+        private static final long[] SEED = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+                0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private static final int MIN_TABLE_SIZE = 64;
+
+        private static final int MAX_TABLE_SIZE = 1 << 26;
+
+        private long[] table;
+        private int tableMask;
+        private int sampleSize;
+        private int increments;
+
+        FrequencySketch() {
+            init(MIN_TABLE_SIZE);
+        }
+
+        private void init(int size) {
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = 10 * size;
+            increments = 0;
+        }
+
+        /**
+         * Grow the table if there are more entries than counters per row.
+         * The counts are lost in this case.
+         *
+         * @param size the number of entries in the cache
+         * @return true if the table was resized
+         */
+        boolean ensureCapacity(int size) {
+            if (size > table.length && table.length < MAX_TABLE_SIZE) {
+                init(Math.min(MAX_TABLE_SIZE,
+                        Integer.highestOneBit(size - 1) << 1));
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Get the estimated frequency of the key.
+         *
+         * @param key the key
+         * @return the frequency (0 to 15)
+         */
+        int frequency(long key) {
+            int hash = CacheLongKeyLIRS.getHash(key);
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 15);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        /**
+         * Increment the frequency of the key, if it is not at the maximum.
+         *
+         * @param key the key
+         */
+        void increment(long key) {
+            int hash = CacheLongKeyLIRS.getHash(key);
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int shift = (start + i) << 2;
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++increments >= sampleSize) {
+                reset();
+            }
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEED[i]) * SEED[i];
+            h += h >>> 32;
+            return (int) h & tableMask;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            increments /= 2;
+        }
+
+    }
+
+}
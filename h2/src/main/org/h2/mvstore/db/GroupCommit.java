@@ -0,0 +1,171 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import java.util.concurrent.TimeUnit;
+import org.h2.message.DbException;
+import org.h2.mvstore.MVStore;
+
+/**
+ * Makes commits durable, by storing and syncing the store before a commit
+ * returns. Commits of concurrent sessions are grouped: one of the committing
+ * threads (the leader) stores and syncs the changes of all sessions, while
+ * the other threads wait. Sessions that commit while the leader is writing
+ * are grouped into the next write.
+ * <p>
+ * Optionally, the leader waits a short time (the window) before writing, so
+ * that more sessions can join the group, unless the maximum number of
+ * sessions per group is reached.
+ */
+final class GroupCommit {
+
+    private final MVStore store;
+
+    private final long windowNanos;
+
+    private final int maxBatchSize;
+
+    /**
+     * All changes of versions below this version are stored and synced.
+     */
+    private long syncedVersion;
+
+    /**
+     * Whether a thread is currently storing and syncing.
+     */
+    private boolean writing;
+
+    /**
+     * The number of threads that wait for the next write (excluding the
+     * leader).
+     */
+    private int waiting;
+
+    /**
+     * The number of commits.
+     */
+    private long commitCount;
+
+    /**
+     * The number of writes (groups of commits).
+     */
+    private long writeCount;
+
+    /**
+     * Create a new group commit coordinator.
+     *
+     * @param store the store
+     * @param windowMicros the time the leader waits for other sessions to
+     *            join the group, in microseconds (0 to write immediately)
+     * @param maxBatchSize the number of sessions after which the leader
+     *            stops waiting for more sessions
+     */
+    GroupCommit(MVStore store, int windowMicros, int maxBatchSize) {
+        this.store = store;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Wait until all changes made so far are stored and synced. Either
+     * another thread does this for the current thread, or the current thread
+     * does it for all waiting threads.
+     */
+    void commit() {
+        long version = store.getCurrentVersion();
+        synchronized (this) {
+            commitCount++;
+        }
+        while (true) {
+            synchronized (this) {
+                if (syncedVersion > version) {
+                    return;
+                }
+                if (writing) {
+                    waitForWrite();
+                    continue;
+                }
+                writing = true;
+                awaitGroup();
+            }
+            boolean success = false;
+            long newVersion = 0;
+            try {
+                // all versions below the returned version are stored
+                newVersion = store.commit();
+                store.sync();
+                success = true;
+            } finally {
+                synchronized (this) {
+                    writing = false;
+                    if (success) {
+                        syncedVersion = Math.max(syncedVersion, newVersion);
+                        writeCount++;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void waitForWrite() {
+        waiting++;
+        if (waiting + 1 >= maxBatchSize) {
+            // the group is complete: wake up the leader
+            notifyAll();
+        }
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            throw DbException.convert(e);
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Wait (as the leader) until the window has passed, or enough sessions
+     * have joined the group.
+     */
+    private void awaitGroup() {
+        if (windowNanos == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        while (waiting + 1 < maxBatchSize) {
+            long remaining = windowNanos - (System.nanoTime() - start);
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                wait(TimeUnit.NANOSECONDS.toMillis(remaining),
+                        (int) (remaining % 1_000_000));
+            } catch (InterruptedException e) {
+                // write now
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get the number of commits.
+     *
+     * @return the number of commits
+     */
+    synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Get the number of times the store was stored and synced.
+     *
+     * @return the number of writes
+     */
+    synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import java.util.Arrays;
+
+import org.h2.engine.Database;
+import org.h2.message.DbException;
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVMap.Builder;
+import org.h2.result.ResultExternal;
+import org.h2.value.CompareMode;
+import org.h2.value.Value;
+import org.h2.value.ValueArray;
+import org.h2.value.ValueLong;
+
+/**
+ * Temporary result for the groups of a query that don't fit in memory.
+ *
+ * <p>
+ * The first values of each row are the group key, and the remaining values
+ * are the partial states of the aggregates of the group. The same group may
+ * be added multiple times. Rows are read ordered by the group key, so that
+ * the rows of a group are read one after the other.
+ * </p>
+ */
+public class MVGroupTempResult extends MVTempResult {
+
+    /**
+     * The number of leading values of each row that form the group key.
+     */
+    private final int keyLength;
+
+    /**
+     * The type of the keys.
+     */
+    private final ValueDataType keyType;
+
+    /**
+     * Map with the group key and a counter as keys, and the states as values.
+     * The counter makes keys unique.
+     */
+    private final MVMap<ValueArray, ValueArray> map;
+
+    /**
+     * Counter for the identities of rows.
+     */
+    private long counter;
+
+    /**
+     * Cursor for the {@link #next()} method.
+     */
+    private Cursor<ValueArray, ValueArray> cursor;
+
+    /**
+     * Creates a new temporary result.
+     *
+     * @param database
+     *                      database
+     * @param keyLength
+     *                      the number of leading values of each row that form
+     *                      the group key
+     */
+    public MVGroupTempResult(Database database, int keyLength) {
+        super(database);
+        this.keyLength = keyLength;
+        // values are only grouped together if they are equal, not if a
+        // collation compares them as equal
+        keyType = new ValueDataType(CompareMode.getInstance(null, 0), database, new int[keyLength + 1]);
+        ValueDataType valueType = new ValueDataType(database.getCompareMode(), database, null);
+        Builder<ValueArray, ValueArray> builder = new MVMap.Builder<ValueArray, ValueArray>().keyType(keyType)
+                .valueType(valueType);
+        map = store.openMap("tmp", builder);
+    }
+
+    @Override
+    public int addRow(Value[] values) {
+        Value[] key = Arrays.copyOf(values, keyLength + 1);
+        key[keyLength] = ValueLong.get(counter++);
+        map.put(ValueArray.get(key), ValueArray.get(Arrays.copyOfRange(values, keyLength, values.length)));
+        return ++rowCount;
+    }
+
+    /**
+     * Check whether two rows belong to the same group.
+     *
+     * @param a the first row
+     * @param b the second row
+     * @return true if the group keys are the same
+     */
+    public boolean isSameGroup(Value[] a, Value[] b) {
+        for (int i = 0; i < keyLength; i++) {
+            if (keyType.compare(a[i], b[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Value[] values) {
+        throw DbException.getUnsupportedException("contains()");
+    }
+
+    @Override
+    public ResultExternal createShallowCopy() {
+        return null;
+    }
+
+    @Override
+    public Value[] next() {
+        if (cursor == null) {
+            cursor = map.cursor(null);
+        }
+        if (!cursor.hasNext()) {
+            return null;
+        }
+        Value[] key = cursor.next().getList();
+        Value[] states = cursor.getValue().getList();
+        Value[] row = Arrays.copyOf(key, keyLength + states.length);
+        System.arraycopy(states, 0, row, keyLength, states.length);
+        return row;
+    }
+
+    @Override
+    public int removeRow(Value[] values) {
+        throw DbException.getUnsupportedException("removeRow()");
+    }
+
+    @Override
+    public void reset() {
+        cursor = null;
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.h2.engine.Database;
+import org.h2.message.DbException;
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVMap.Builder;
+import org.h2.result.ResultExternal;
+import org.h2.value.Value;
+import org.h2.value.ValueArray;
+import org.h2.value.ValueLong;
+
+/**
+ * Temporary result for the rows of a hash join that don't fit in memory.
+ *
+ * <p>
+ * The first values of each row are the join key. Rows are stored ordered by
+ * the join key, so that all rows with the same key can be read with one
+ * lookup.
+ * </p>
+ */
+public class MVHashJoinTempResult extends MVTempResult {
+
+    /**
+     * The number of leading values of each row that form the join key.
+     */
+    private final int keyLength;
+
+    /**
+     * The type of the keys.
+     */
+    private final ValueDataType keyType;
+
+    /**
+     * Map with the join key and a counter as keys, and rows as values. The
+     * counter makes keys unique.
+     */
+    private final MVMap<ValueArray, ValueArray> map;
+
+    /**
+     * Counter for the identities of rows.
+     */
+    private long counter;
+
+    /**
+     * Cursor for the {@link #next()} method.
+     */
+    private Cursor<ValueArray, ValueArray> cursor;
+
+    /**
+     * Creates a new temporary result.
+     *
+     * @param database
+     *                      database
+     * @param keyLength
+     *                      the number of leading values of each row that form
+     *                      the join key
+     */
+    public MVHashJoinTempResult(Database database, int keyLength) {
+        super(database);
+        this.keyLength = keyLength;
+        keyType = new ValueDataType(database.getCompareMode(), database, new int[keyLength + 1]);
+        ValueDataType valueType = new ValueDataType(database.getCompareMode(), database, null);
+        Builder<ValueArray, ValueArray> builder = new MVMap.Builder<ValueArray, ValueArray>().keyType(keyType)
+                .valueType(valueType);
+        map = store.openMap("tmp", builder);
+    }
+
+    @Override
+    public int addRow(Value[] values) {
+        Value[] key = Arrays.copyOf(values, keyLength + 1);
+        key[keyLength] = ValueLong.get(counter++);
+        map.put(ValueArray.get(key), ValueArray.get(values));
+        return ++rowCount;
+    }
+
+    /**
+     * Get all rows with the given join key.
+     *
+     * @param key the join key
+     * @return the rows
+     */
+    public ArrayList<Value[]> get(Value[] key) {
+        ArrayList<Value[]> list = new ArrayList<>();
+        Value[] from = Arrays.copyOf(key, keyLength + 1);
+        from[keyLength] = ValueLong.MIN;
+        Cursor<ValueArray, ValueArray> c = map.cursor(ValueArray.get(from));
+        while (c.hasNext()) {
+            Value[] k = c.next().getList();
+            for (int i = 0; i < keyLength; i++) {
+                if (keyType.compare(k[i], key[i]) != 0) {
+                    return list;
+                }
+            }
+            list.add(c.getValue().getList());
+        }
+        return list;
+    }
+
+    @Override
+    public boolean contains(Value[] values) {
+        throw DbException.getUnsupportedException("contains()");
+    }
+
+    @Override
+    public ResultExternal createShallowCopy() {
+        return null;
+    }
+
+    @Override
+    public Value[] next() {
+        if (cursor == null) {
+            cursor = map.cursor(null);
+        }
+        if (!cursor.hasNext()) {
+            return null;
+        }
+        cursor.next();
+        return cursor.getValue().getList();
+    }
+
+    @Override
+    public int removeRow(Value[] values) {
+        throw DbException.getUnsupportedException("removeRow()");
+    }
+
+    @Override
+    public void reset() {
+        cursor = null;
+    }
+
+}
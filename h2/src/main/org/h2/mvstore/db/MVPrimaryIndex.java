@@ -231,6 +231,26 @@ public Cursor find(Session session, SearchRow first, SearchRow last) {
         return new MVStoreCursor(session, map.entryIterator(min, max));
     }
 
+    /**
+     * Search for a set of rows that is split into parts of about the same
+     * size, so that the parts can be read concurrently. All parts are read
+     * from the same snapshot, which is the data that a cursor returned by
+     * {@link #find(Session, SearchRow, SearchRow)} would read.
+     *
+     * @param session the session
+     * @param first the first row, or null
+     * @param last the last row, or null
+     * @param parts the number of parts
+     * @return the iterators over the entries of each part, in key order
+     */
+    public List<Iterator<Entry<Value, Value>>> findParts(Session session,
+            SearchRow first, SearchRow last, int parts) {
+        ValueLong min = extractPKFromRow(first, ValueLong.MIN);
+        ValueLong max = extractPKFromRow(last, ValueLong.MAX);
+        TransactionMap<Value, Value> map = getMap(session);
+        return map.entryIterators(min, max, parts);
+    }
+
     private ValueLong extractPKFromRow(SearchRow row, ValueLong defaultValue) {
         ValueLong result;
         if (row == null) {
@@ -368,6 +388,15 @@ public String getMapName() {
         return mapName;
     }
 
+    /**
+     * Get the id of the map that stores the data.
+     *
+     * @return the map id
+     */
+    int getMapId() {
+        return dataMap.map.getId();
+    }
+
     @Override
     public void checkRename() {
         // ok
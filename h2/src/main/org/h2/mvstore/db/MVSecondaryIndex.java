@@ -63,7 +63,8 @@ public MVSecondaryIndex(Database db, MVTable table, int id, String indexName,
         }
         sortTypes[keyColumns - 1] = SortOrder.ASCENDING;
         ValueDataType keyType = new ValueDataType(
-                db.getCompareMode(), db, sortTypes);
+                db.getCompareMode(), db, sortTypes,
+                db.getSettings().compressIndexKeys);
         ValueDataType valueType = new ValueDataType(null, null, null);
         Transaction t = mvTable.getTransactionBegin();
         dataMap = t.openMap(mapName, keyType, valueType);
@@ -167,7 +168,8 @@ private MVMap<ValueArray, Value> openMap(String mapName) {
         }
         sortTypes[keyColumns - 1] = SortOrder.ASCENDING;
         ValueDataType keyType = new ValueDataType(
-                database.getCompareMode(), database, sortTypes);
+                database.getCompareMode(), database, sortTypes,
+                database.getSettings().compressIndexKeys);
         ValueDataType valueType = new ValueDataType(null, null, null);
         MVMap.Builder<ValueArray, Value> builder =
                 new MVMap.Builder<ValueArray, Value>().keyType(keyType).valueType(valueType);
@@ -485,6 +487,15 @@ private TransactionMap<Value, Value> getMap(Session session) {
         return dataMap.getInstance(t);
     }
 
+    /**
+     * Get the id of the map that stores the data.
+     *
+     * @return the map id
+     */
+    int getMapId() {
+        return dataMap.map.getId();
+    }
+
     /**
      * A cursor.
      */
@@ -331,6 +331,15 @@ TransactionMap<SpatialKey, Value> getMap(Session session) {
         return dataMap.getInstance(t);
     }
 
+    /**
+     * Get the id of the map that stores the data.
+     *
+     * @return the map id
+     */
+    int getMapId() {
+        return dataMap.map.getId();
+    }
+
     /**
      * A cursor.
      */
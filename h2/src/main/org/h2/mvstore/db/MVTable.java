@@ -31,6 +31,7 @@
 import org.h2.message.Trace;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.db.MVTableEngine.Store;
+import org.h2.mvstore.tx.LockWaitHistogram;
 import org.h2.mvstore.tx.Transaction;
 import org.h2.mvstore.tx.TransactionStore;
 import org.h2.result.Row;
@@ -118,6 +119,12 @@ public String getEventText() {
      * prevent starvation, since Java's synchronized locking is biased.
      */
     private final ArrayDeque<Session> waitingSessions = new ArrayDeque<>();
+
+    /**
+     * The number of entries in waitingSessions, readable without
+     * synchronization.
+     */
+    private volatile int waitingSessionCount;
     private final Trace traceLock;
     private final AtomicInteger changesUntilAnalyze;
     private int nextAnalyze;
@@ -160,6 +167,33 @@ public String getMapName() {
         return primaryIndex.getMapName();
     }
 
+    /**
+     * Get the histogram of the time transactions waited for rows (and index
+     * entries) of this table that were changed by other open transactions.
+     *
+     * @return the number of waits per bucket, see {@link LockWaitHistogram}
+     */
+    public long[] getLockWaitCounts() {
+        long[] counts = new long[LockWaitHistogram.BUCKET_COUNT];
+        for (Index index : indexes) {
+            int mapId;
+            if (index instanceof MVPrimaryIndex) {
+                mapId = ((MVPrimaryIndex) index).getMapId();
+            } else if (index instanceof MVSecondaryIndex) {
+                mapId = ((MVSecondaryIndex) index).getMapId();
+            } else if (index instanceof MVSpatialIndex) {
+                mapId = ((MVSpatialIndex) index).getMapId();
+            } else {
+                continue;
+            }
+            LockWaitHistogram histogram = transactionStore.getLockWaitHistogram(mapId);
+            if (histogram != null) {
+                histogram.addTo(counts);
+            }
+        }
+        return counts;
+    }
+
     @Override
     public boolean lock(Session session, boolean exclusive,
             boolean forceLockEvenInMvcc) {
@@ -186,6 +220,9 @@ public boolean lock(Session session, boolean exclusive,
         if (!exclusive && lockSharedSessions.containsKey(session)) {
             return true;
         }
+        if (!exclusive && tryLockShared(session)) {
+            return false;
+        }
         synchronized (getLockSyncObject()) {
             if (!exclusive && lockSharedSessions.containsKey(session)) {
                 return true;
@@ -195,6 +232,7 @@ public boolean lock(Session session, boolean exclusive,
                 WAITING_FOR_LOCK.set(getName());
             }
             waitingSessions.addLast(session);
+            waitingSessionCount = waitingSessions.size();
             try {
                 doLock1(session, lockMode, exclusive);
             } finally {
@@ -203,11 +241,57 @@ public boolean lock(Session session, boolean exclusive,
                     WAITING_FOR_LOCK.remove();
                 }
                 waitingSessions.remove(session);
+                waitingSessionCount = waitingSessions.size();
             }
         }
         return false;
     }
 
+    /**
+     * Try to get a shared lock without synchronization. This is only possible
+     * if no session has an exclusive lock, and no session waits for a lock
+     * (to keep the FIFO order of the waiting sessions).
+     * <p>
+     * A session that gets an exclusive lock first adds itself to the waiting
+     * sessions and then checks that there are no shared locks, while this
+     * method first adds the shared lock and then checks that no session
+     * waits. So at least one of them sees the other, and backs off.
+     *
+     * @param session the session
+     * @return true if the lock was granted
+     */
+    private boolean tryLockShared(Session session) {
+        if (lockExclusiveSession != null || waitingSessionCount != 0) {
+            return false;
+        }
+        lockSharedSessions.put(session, session);
+        if (lockExclusiveSession != null || waitingSessionCount != 0) {
+            lockSharedSessions.remove(session);
+            // a session that waits for an exclusive lock might have seen
+            // the shared lock
+            Object lockSyncObject = getLockSyncObject();
+            synchronized (lockSyncObject) {
+                lockSyncObject.notifyAll();
+            }
+            return false;
+        }
+        addSharedLock(session);
+        return true;
+    }
+
+    private void addSharedLock(Session session) {
+        traceLock(session, false, TraceLockEvent.TRACE_LOCK_OK, NO_EXTRA_INFO);
+        session.addLock(this);
+        if (SysProperties.THREAD_DEADLOCK_DETECTOR) {
+            ArrayList<String> list = SHARED_LOCKS.get();
+            if (list == null) {
+                list = new ArrayList<>();
+                SHARED_LOCKS.set(list);
+            }
+            list.add(getName());
+        }
+    }
+
     /**
      * The the object on which to synchronize and wait on. For the
      * multi-threaded mode, this is this object, but for non-multi-threaded, it
@@ -307,16 +391,7 @@ private boolean doLock2(Session session, int lockMode, boolean exclusive) {
                 }
             } else {
                 if (lockSharedSessions.putIfAbsent(session, session) == null) {
-                    traceLock(session, exclusive, TraceLockEvent.TRACE_LOCK_OK, NO_EXTRA_INFO);
-                    session.addLock(this);
-                    if (SysProperties.THREAD_DEADLOCK_DETECTOR) {
-                        ArrayList<String> list = SHARED_LOCKS.get();
-                        if (list == null) {
-                            list = new ArrayList<>();
-                            SHARED_LOCKS.set(list);
-                        }
-                        list.add(getName());
-                    }
+                    addSharedLock(session);
                 }
                 return true;
             }
@@ -445,7 +520,7 @@ public void unlock(Session s) {
                     }
                 }
             }
-            if (wasLocked && !waitingSessions.isEmpty()) {
+            if (wasLocked && waitingSessionCount != 0) {
                 Object lockSyncObject = getLockSyncObject();
                 synchronized (lockSyncObject) {
                     lockSyncObject.notifyAll();
@@ -690,7 +765,7 @@ public int compare(SearchRow r1, SearchRow r2) {
     @Override
     public void removeRow(Session session, Row row) {
         lastModificationId = database.getNextModificationDataId();
-        Transaction t = session.getTransaction();
+        Transaction t = session.getWritableTransaction();
         long savepoint = t.setSavepoint();
         try {
             for (int i = indexes.size() - 1; i >= 0; i--) {
@@ -723,7 +798,7 @@ public void truncate(Session session) {
     @Override
     public void addRow(Session session, Row row) {
         lastModificationId = database.getNextModificationDataId();
-        Transaction t = session.getTransaction();
+        Transaction t = session.getWritableTransaction();
         long savepoint = t.setSavepoint();
         try {
             for (Index index : indexes) {
@@ -744,7 +819,7 @@ public void addRow(Session session, Row row) {
     public void updateRow(Session session, Row oldRow, Row newRow) {
         newRow.setKey(oldRow.getKey());
         lastModificationId = database.getNextModificationDataId();
-        Transaction t = session.getTransaction();
+        Transaction t = session.getWritableTransaction();
         long savepoint = t.setSavepoint();
         try {
             for (Index index : indexes) {
@@ -763,6 +838,7 @@ public void updateRow(Session session, Row oldRow, Row newRow) {
 
     @Override
     public void lockRows(Session session, Iterable<Row> rowsForUpdate) {
+        session.getWritableTransaction();
         primaryIndex.lockRows(session, rowsForUpdate);
     }
 
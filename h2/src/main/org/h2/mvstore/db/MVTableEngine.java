@@ -134,6 +134,11 @@ public static class Store {
          */
         private TransactionStore transactionStore;
 
+        /**
+         * The group commit coordinator, or null if commits are not synced.
+         */
+        private GroupCommit groupCommit;
+
         private long statisticsStart;
 
         private int temporaryMapId;
@@ -160,9 +165,21 @@ void open(Database db, MVStore.Builder builder, boolean encrypted) {
                 if (!db.getSettings().reuseSpace) {
                     store.setReuseSpace(false);
                 }
+                if (db.getSettings().compressIndexKeys) {
+                    // older versions can not read compressed index keys
+                    store.upgradeFormat();
+                }
                 this.transactionStore = new TransactionStore(
                         store,
                         new ValueDataType(db.getCompareMode(), db, null), db.getLockTimeout());
+                if (db.getSettings().lazyCommit) {
+                    transactionStore.setLazyCommit(true);
+                }
+                if (db.getSettings().groupCommit && fs != null && !fs.isReadOnly()) {
+                    groupCommit = new GroupCommit(store,
+                            db.getSettings().groupCommitWindow,
+                            db.getSettings().groupCommitMaxBatch);
+                }
             } catch (IllegalStateException e) {
                 throw convertIllegalStateException(e);
             }
@@ -210,6 +227,39 @@ public TransactionStore getTransactionStore() {
             return transactionStore;
         }
 
+        /**
+         * Wait until the changes of all committed transactions are stored and
+         * synced, if group commit is enabled. Concurrent commits are grouped
+         * into one write and sync.
+         */
+        public void groupCommit() {
+            if (groupCommit != null) {
+                try {
+                    groupCommit.commit();
+                } catch (IllegalStateException e) {
+                    throw convertIllegalStateException(e);
+                }
+            }
+        }
+
+        /**
+         * Get the number of commits that waited for group commit.
+         *
+         * @return the number of commits, or 0 if group commit is disabled
+         */
+        public long getGroupCommitCount() {
+            return groupCommit == null ? 0 : groupCommit.getCommitCount();
+        }
+
+        /**
+         * Get the number of writes (and syncs) done for group commit.
+         *
+         * @return the number of writes, or 0 if group commit is disabled
+         */
+        public long getGroupCommitWriteCount() {
+            return groupCommit == null ? 0 : groupCommit.getWriteCount();
+        }
+
         public MVTable getTable(String tableName) {
             return tableMap.get(tableName);
         }
@@ -11,7 +11,9 @@
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import org.h2.api.ErrorCode;
 import org.h2.message.DbException;
 import org.h2.mvstore.DataUtils;
@@ -70,17 +72,46 @@ public class ValueDataType implements DataType {
     private static final int BYTES_0_31 = 100;
     private static final int SPATIAL_KEY_2D = 132;
     private static final int CUSTOM_DATA_TYPE = 133;
+    private static final int COMPRESSED_KEYS = 134;
+    private static final int DICTIONARY_REF = 135;
 
     final DataHandler handler;
     final CompareMode compareMode;
     final int[] sortTypes;
     SpatialDataType spatialType;
 
+    /**
+     * Whether the keys of a page are stored in compressed form (only when
+     * writing; compressed keys can always be read).
+     */
+    private final boolean compressKeys;
+
     public ValueDataType(CompareMode compareMode, DataHandler handler,
             int[] sortTypes) {
+        this(compareMode, handler, sortTypes, false);
+    }
+
+    /**
+     * Create a new data type.
+     * <p>
+     * If the keys are compressed, the array keys of a page are stored as a
+     * list where each key only contains the columns after the leading
+     * columns it shares with the previous key, and where repeated column
+     * values are replaced with a reference to the first occurrence within the
+     * page. When reading, the shared values are not copied, so that the page
+     * also needs less memory.
+     *
+     * @param compareMode the compare mode
+     * @param handler the data handler
+     * @param sortTypes the sort types
+     * @param compressKeys whether to compress the keys of a page
+     */
+    public ValueDataType(CompareMode compareMode, DataHandler handler,
+            int[] sortTypes, boolean compressKeys) {
         this.compareMode = compareMode;
         this.handler = handler;
         this.sortTypes = sortTypes;
+        this.compressKeys = compressKeys;
     }
 
     private SpatialDataType getSpatialDataType() {
@@ -157,6 +188,12 @@ private static int getMemory(Value v) {
 
     @Override
     public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        if (key && len > 0 &&
+                (buff.get(buff.position()) & 255) == COMPRESSED_KEYS) {
+            buff.get();
+            readCompressedKeys(buff, obj, len);
+            return;
+        }
         for (int i = 0; i < len; i++) {
             obj[i] = read(buff);
         }
@@ -164,11 +201,129 @@ public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
 
     @Override
     public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        if (key && compressKeys && len > 1 && isArrayList(obj, len)) {
+            buff.put((byte) COMPRESSED_KEYS);
+            writeCompressedKeys(buff, obj, len);
+            return;
+        }
         for (int i = 0; i < len; i++) {
             write(buff, obj[i]);
         }
     }
 
+    private static boolean isArrayList(Object[] obj, int len) {
+        for (int i = 0; i < len; i++) {
+            if (!(obj[i] instanceof ValueArray)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write a list of array keys. For each key, the number of columns and the
+     * number of leading columns that are the same as in the previous key is
+     * written, followed by the remaining columns. A column value that was
+     * already written for this list is replaced with a reference (the index
+     * of the value within the list of written values), if that is shorter.
+     *
+     * @param buff the target buffer
+     * @param obj the keys
+     * @param len the number of keys
+     */
+    private void writeCompressedKeys(WriteBuffer buff, Object[] obj, int len) {
+        // value -> index (high 32 bits) and length (low 32 bits)
+        HashMap<Value, Long> dictionary = new HashMap<>();
+        ArrayList<Value> written = new ArrayList<>();
+        Value[] last = null;
+        for (int i = 0; i < len; i++) {
+            Value[] list = ((ValueArray) obj[i]).getList();
+            int shared = 0;
+            if (last != null) {
+                int max = Math.min(last.length, list.length);
+                while (shared < max && isSame(last[shared], list[shared])) {
+                    shared++;
+                }
+            }
+            buff.putVarInt(list.length).putVarInt(shared);
+            for (int j = shared; j < list.length; j++) {
+                Value v = list[j];
+                boolean reference = isReferenceable(v);
+                if (reference) {
+                    Long x = dictionary.get(v);
+                    if (x != null) {
+                        int index = (int) (x >>> 32);
+                        if (isSame(written.get(index), v) &&
+                                1 + DataUtils.getVarIntLen(index) < (int) (long) x) {
+                            buff.put((byte) DICTIONARY_REF).putVarInt(index);
+                            continue;
+                        }
+                    }
+                }
+                int start = buff.position();
+                writeValue(buff, v);
+                if (reference && !dictionary.containsKey(v)) {
+                    dictionary.put(v, ((long) written.size() << 32) |
+                            (buff.position() - start));
+                }
+                written.add(v);
+            }
+            last = list;
+        }
+    }
+
+    private void readCompressedKeys(ByteBuffer buff, Object[] obj, int len) {
+        ArrayList<Value> dictionary = new ArrayList<>();
+        Value[] last = null;
+        for (int i = 0; i < len; i++) {
+            Value[] list = new Value[readVarInt(buff)];
+            int shared = readVarInt(buff);
+            if (shared > 0) {
+                System.arraycopy(last, 0, list, 0, shared);
+            }
+            for (int j = shared; j < list.length; j++) {
+                if ((buff.get(buff.position()) & 255) == DICTIONARY_REF) {
+                    buff.get();
+                    list[j] = dictionary.get(readVarInt(buff));
+                } else {
+                    Value v = (Value) readValue(buff);
+                    dictionary.add(v);
+                    list[j] = v;
+                }
+            }
+            obj[i] = ValueArray.get(list);
+            last = list;
+        }
+    }
+
+    private static boolean isSame(Value a, Value b) {
+        return a == b || isReferenceable(a) &&
+                a.getType() == b.getType() && a.equals(b);
+    }
+
+    /**
+     * Check whether a value may be replaced with another value of the same
+     * type that is equal to it. This is not the case for large objects, where
+     * equal values can reference different data, and for types where equal
+     * values can have a different representation.
+     *
+     * @param v the value
+     * @return true if yes
+     */
+    private static boolean isReferenceable(Value v) {
+        switch (v.getType()) {
+        case Value.BLOB:
+        case Value.CLOB:
+        case Value.RESULT_SET:
+        case Value.ARRAY:
+        case Value.JAVA_OBJECT:
+        case Value.STRING_IGNORECASE:
+            return false;
+        default:
+            return true;
+        }
+    }
+
     @Override
     public Object read(ByteBuffer buff) {
         return readValue(buff);
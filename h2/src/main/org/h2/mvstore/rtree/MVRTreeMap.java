@@ -159,7 +159,9 @@ public V operate(SpatialKey key, V value, DecisionMaker<? super V> decisionMaker
                     store.registerUnsavedPage(p.getMemory());
                 }
             }
-            if(updateRoot(rootReference, p, attempt)) {
+            // the new state of the entry is logged, as the decision is only
+            // known within the page
+            if(updateRoot(rootReference, p, attempt, key, isLogged() ? get(p, key) : null)) {
                 return result;
             }
             decisionMaker.reset();
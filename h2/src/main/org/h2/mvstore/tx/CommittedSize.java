@@ -0,0 +1,71 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.tx;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The number of entries of a map as seen by a transaction without changes
+ * of its own. The changes of open transactions are counted per transaction,
+ * and added to this counter when the transaction is marked as committing.
+ * <p>
+ * The counter is initialized lazily by scanning the map. The lock is held
+ * while initializing the counter, and by committing transactions that
+ * changed the map, while adding their changes and marking the transaction as
+ * committing. So the scan either sees the transaction as committing, or the
+ * changes are added afterwards.
+ */
+final class CommittedSize {
+
+    /**
+     * The lock.
+     */
+    final ReentrantLock lock = new ReentrantLock();
+
+    private volatile long size;
+
+    /**
+     * The size epoch of the transaction store when the counter was
+     * initialized, or -1 if it is not initialized.
+     */
+    private volatile long epoch = -1;
+
+    /**
+     * Get the size.
+     *
+     * @param currentEpoch the current size epoch of the transaction store
+     * @return the size, or -1 if the counter needs to be initialized
+     */
+    long get(long currentEpoch) {
+        // read the epoch first, see set()
+        return epoch == currentEpoch ? size : -1;
+    }
+
+    /**
+     * Initialize the counter. Must be called while holding the lock.
+     *
+     * @param size the size
+     * @param epoch the size epoch of the transaction store before the size
+     *            was computed
+     */
+    void set(long size, long epoch) {
+        this.size = size;
+        this.epoch = epoch;
+    }
+
+    /**
+     * Add the changes of a committing transaction, if the counter is
+     * initialized. Must be called while holding the lock.
+     *
+     * @param change the change of the size
+     */
+    void add(long change) {
+        if (epoch >= 0) {
+            size += change;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.tx;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of the time transactions waited for entries of a map that
+ * were changed by other open transactions (row locks). Bucket 0 counts the
+ * waits shorter than one millisecond, bucket i (i &gt; 0) the waits shorter
+ * than 2^i milliseconds (and at least 2^(i-1) milliseconds), and the last
+ * bucket all longer waits.
+ */
+public final class LockWaitHistogram {
+
+    /**
+     * The number of buckets.
+     */
+    public static final int BUCKET_COUNT = 18;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Add a wait.
+     *
+     * @param nanos the time waited, in nanoseconds
+     */
+    void add(long nanos) {
+        counts.incrementAndGet(getBucket(TimeUnit.NANOSECONDS.toMillis(nanos)));
+    }
+
+    /**
+     * Add the counts of this histogram to the given array.
+     *
+     * @param target the array with one entry per bucket
+     */
+    public void addTo(long[] target) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            target[i] += counts.get(i);
+        }
+    }
+
+    /**
+     * Get the number of waits in the given bucket.
+     *
+     * @param bucket the bucket
+     * @return the number of waits
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * Get the bucket for a wait of the given time.
+     *
+     * @param millis the time in milliseconds
+     * @return the bucket
+     */
+    static int getBucket(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Get the upper limit of the wait time of a bucket.
+     *
+     * @param bucket the bucket
+     * @return the time in milliseconds (exclusive), or -1 for the last bucket
+     */
+    public static long getBucketLimitMillis(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? -1 : 1L << bucket;
+    }
+
+}
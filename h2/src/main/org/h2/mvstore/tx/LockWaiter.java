@@ -0,0 +1,148 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.tx;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.h2.mvstore.MVMap;
+
+/**
+ * A thread of a transaction that waits for another transaction (the owner)
+ * to end, because it wants to change an entry the owner has changed.
+ * <p>
+ * The waiters of a transaction are queued in FIFO order. When the owner
+ * ends, only the first waiter for each entry is woken up; the other waiters
+ * for the same entry are handed over to the transaction of the first waiter,
+ * which is going to change the entry next. This avoids that all waiters wake
+ * up and compete for the same entry.
+ */
+final class LockWaiter {
+
+    /**
+     * The waiting transaction.
+     */
+    final Transaction transaction;
+
+    /**
+     * The map of the entry.
+     */
+    final MVMap<?, VersionedValue> map;
+
+    /**
+     * The key of the entry.
+     */
+    final Object key;
+
+    private final Thread thread;
+
+    /**
+     * The transaction this waiter waits for. Changed while holding the
+     * monitor of the old owner.
+     */
+    volatile Transaction owner;
+
+    /**
+     * The waiters for the same entry that were handed over to the
+     * transaction of this waiter, when this waiter was woken up.
+     */
+    ArrayList<LockWaiter> followers;
+
+    /**
+     * Whether the waiter was cancelled (after a timeout) after it was handed
+     * over, but before it was queued by the new owner. Protected by the
+     * monitor of the owner.
+     */
+    boolean cancelled;
+
+    private volatile boolean signalled;
+
+    LockWaiter(Transaction transaction, MVMap<?, VersionedValue> map, Object key) {
+        this.transaction = transaction;
+        this.map = map;
+        this.key = key;
+        this.thread = Thread.currentThread();
+    }
+
+    /**
+     * Wait until the owner ends (or until this waiter is woken up by the
+     * transaction it was handed over to).
+     *
+     * @param toWaitFor the owner
+     * @param millis the maximum time to wait
+     * @return true if the owner ended, false on timeout or if the thread was
+     *         interrupted
+     */
+    boolean await(Transaction toWaitFor, int millis) {
+        if (!toWaitFor.addWaiter(this)) {
+            return true;
+        }
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (!signalled) {
+            long remaining = until - System.nanoTime();
+            if (remaining <= 0 || Thread.interrupted()) {
+                // if it was signalled concurrently, that counts
+                return !cancel();
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the given waiter waits for the same entry.
+     *
+     * @param other the other waiter
+     * @return true if yes
+     */
+    boolean isSameEntry(LockWaiter other) {
+        return map == other.map && key.equals(other.key);
+    }
+
+    /**
+     * Add a waiter for the same entry, which is handed over to the
+     * transaction of this waiter.
+     *
+     * @param follower the other waiter
+     */
+    void addFollower(LockWaiter follower) {
+        if (followers == null) {
+            followers = new ArrayList<>();
+        }
+        followers.add(follower);
+        follower.owner = transaction;
+    }
+
+    /**
+     * Wake up the waiting thread. Must be called while holding the monitor of
+     * the owner.
+     */
+    void signal() {
+        signalled = true;
+        LockSupport.unpark(thread);
+    }
+
+    boolean isSignalled() {
+        return signalled;
+    }
+
+    /**
+     * Stop waiting.
+     *
+     * @return false if the waiter was signalled already
+     */
+    private boolean cancel() {
+        while (true) {
+            Transaction t = owner;
+            synchronized (t) {
+                if (owner == t) {
+                    return t.removeWaiter(this);
+                }
+            }
+        }
+    }
+
+}
@@ -8,47 +8,80 @@
 import org.h2.mvstore.MVMap;
 
 /**
- * Class RollbackDecisionMaker process undo log record during transaction rollback.
+ * Class RollbackDecisionMaker restores the value of a map entry during
+ * transaction rollback, based on an undo log record. The value is only
+ * restored if it was changed by the part of the transaction that is rolled
+ * back, so that restoring can be repeated (for example if the rollback was
+ * interrupted) without overwriting changes of other transactions.
  *
  * @author <a href='mailto:andrei.tokar@gmail.com'>Andrei Tokar</a>
  */
-final class RollbackDecisionMaker extends MVMap.DecisionMaker<Object[]> {
+final class RollbackDecisionMaker extends MVMap.DecisionMaker<VersionedValue> {
     private final TransactionStore store;
+    private final Transaction transaction;
     private final long transactionId;
     private final long toLogId;
     private final TransactionStore.RollbackListener listener;
     private MVMap.Decision decision;
 
-    RollbackDecisionMaker(TransactionStore store, long transactionId, long toLogId,
+    RollbackDecisionMaker(TransactionStore store, Transaction transaction, long toLogId,
                             TransactionStore.RollbackListener listener) {
         this.store = store;
-        this.transactionId = transactionId;
+        this.transaction = transaction;
+        this.transactionId = transaction.getId();
         this.toLogId = toLogId;
         this.listener = listener;
     }
 
+    /**
+     * Restore the value of the map entry of the given undo log record, if
+     * needed.
+     *
+     * @param op the undo log record
+     */
+    void rollback(Object[] op) {
+        VersionedValue valueToRestore = (VersionedValue) op[2];
+        long operationId;
+        if (valueToRestore == null ||
+                (operationId = valueToRestore.getOperationId()) == 0 ||
+                TransactionStore.getTransactionId(operationId) == transactionId
+                        && TransactionStore.getLogId(operationId) < toLogId) {
+            int mapId = (Integer) op[0];
+            MVMap<Object, VersionedValue> map = store.openMap(mapId);
+            if (map != null && !map.isClosed()) {
+                Object key = op[1];
+                reset();
+                VersionedValue previousValue = map.operate(key, valueToRestore, this);
+                if (decision != MVMap.Decision.ABORT) {
+                    long change = (valueToRestore != null && valueToRestore.value != null ? 1 : 0) -
+                            (previousValue != null && previousValue.value != null ? 1 : 0);
+                    if (change != 0) {
+                        transaction.addSizeChange(mapId, change);
+                    }
+                    listener.onRollback(map, key, previousValue, valueToRestore);
+                }
+            }
+        }
+    }
+
     @Override
-    public MVMap.Decision decide(Object[] existingValue, Object[] providedValue) {
+    public MVMap.Decision decide(VersionedValue existingValue, VersionedValue providedValue) {
         assert decision == null;
+        long operationId;
         // normally existingValue will always be there except of db initialization
         // where some undo log entry was captured on disk but actual map entry was not
-        if (existingValue != null ) {
-            VersionedValue valueToRestore = (VersionedValue) existingValue[2];
-            long operationId;
-            if (valueToRestore == null ||
-                    (operationId = valueToRestore.getOperationId()) == 0 ||
-                    TransactionStore.getTransactionId(operationId) == transactionId
-                            && TransactionStore.getLogId(operationId) < toLogId) {
-                int mapId = (Integer) existingValue[0];
-                MVMap<Object, VersionedValue> map = store.openMap(mapId);
-                if (map != null && !map.isClosed()) {
-                    Object key = existingValue[1];
-                    VersionedValue previousValue = map.operate(key, valueToRestore, MVMap.DecisionMaker.DEFAULT);
-                    listener.onRollback(map, key, previousValue, valueToRestore);
-                }
-            }
+        if (existingValue == null ||
+                (operationId = existingValue.getOperationId()) == 0 ||
+                TransactionStore.getTransactionId(operationId) != transactionId ||
+                TransactionStore.getLogId(operationId) < toLogId) {
+            // the value was restored already, and may have been changed by
+            // another transaction since
+            decision = MVMap.Decision.ABORT;
+        } else if (providedValue == null) {
+            decision = MVMap.Decision.REMOVE;
+        } else {
+            decision = MVMap.Decision.PUT;
         }
-        decision = MVMap.Decision.REMOVE;
         return decision;
     }
 
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.tx;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An array of references, indexed by transaction id, that can be read and
+ * written concurrently. The array is allocated in pages when needed, so that
+ * the memory used depends on the highest index used, and not on the maximum
+ * size.
+ *
+ * @param <E> the element type
+ */
+final class SlotArray<E> {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<E>> pages;
+
+    /**
+     * Create a new array.
+     *
+     * @param maxIndex the highest index that can be used
+     */
+    SlotArray(int maxIndex) {
+        pages = new AtomicReferenceArray<>((maxIndex >>> PAGE_SHIFT) + 1);
+    }
+
+    /**
+     * Get the element at the given index.
+     *
+     * @param index the index
+     * @return the element, or null
+     */
+    E get(int index) {
+        AtomicReferenceArray<E> page = pages.get(index >>> PAGE_SHIFT);
+        return page == null ? null : page.get(index & PAGE_MASK);
+    }
+
+    /**
+     * Set the element at the given index.
+     *
+     * @param index the index
+     * @param value the element, or null
+     */
+    void set(int index, E value) {
+        int p = index >>> PAGE_SHIFT;
+        AtomicReferenceArray<E> page = pages.get(p);
+        if (page == null) {
+            if (value == null) {
+                return;
+            }
+            page = new AtomicReferenceArray<>(PAGE_SIZE);
+            if (!pages.compareAndSet(p, null, page)) {
+                page = pages.get(p);
+            }
+        }
+        page.set(index & PAGE_MASK, value);
+    }
+
+}
@@ -9,6 +9,9 @@
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.type.DataType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -118,6 +121,12 @@ public class Transaction {
      */
     boolean wasStored;
 
+    /**
+     * Indicates whether this transaction was committed lazily, and its
+     * changes are not applied yet (it is closed afterwards).
+     */
+    volatile boolean lazilyCommitted;
+
     /**
      * How long to wait for blocking transaction to commit or rollback.
      */
@@ -144,6 +153,38 @@ public class Transaction {
      */
     Object blockingKey;
 
+    /**
+     * The threads waiting for this transaction to end, in the order in which
+     * they started to wait (null if there never were any). Protected by the
+     * monitor of this transaction.
+     */
+    private ArrayDeque<LockWaiter> waiters;
+
+    /**
+     * Whether this transaction is counted as one that may have entries in its
+     * undo log.
+     */
+    private boolean hasUndoLog;
+
+    /**
+     * Whether the changes of the map sizes made by this transaction are
+     * unknown, because it was restored when opening the store.
+     */
+    boolean sizeChangesUnknown;
+
+    /**
+     * The ids of the maps whose size this transaction changed, sorted (the
+     * first sizeChangeCount entries are used), or null.
+     */
+    private int[] sizeChangeMapIds;
+
+    /**
+     * The number of entries this transaction added to (positive) or removed
+     * from (negative) each map, as seen by this transaction.
+     */
+    private long[] sizeChanges;
+
+    private int sizeChangeCount;
 
     Transaction(TransactionStore store, int transactionId, long sequenceNum, int status,
                 String name, long logId, int timeoutMillis, int ownerId,
@@ -162,6 +203,18 @@ public int getId() {
         return transactionId;
     }
 
+    /**
+     * Check whether this is a read-only transaction. A read-only transaction
+     * does not use a transaction id (its id is 0, which is never used by
+     * other transactions), it is not registered in the transaction store,
+     * and it only sees committed data.
+     *
+     * @return true if it is read-only
+     */
+    public boolean isReadOnly() {
+        return transactionId == 0;
+    }
+
     public long getSequenceNum() {
         return sequenceNum;
     }
@@ -230,6 +283,7 @@ public boolean hasChanges() {
 
     public void setName(String name) {
         checkNotClosed();
+        checkWritable();
         this.name = name;
         store.storeTransaction(this);
     }
@@ -282,6 +336,9 @@ long log(int mapId, Object key, VersionedValue oldValue) {
         }
         int currentStatus = getStatus(currentState);
         checkOpen(currentStatus);
+        if (!hasUndoLog) {
+            setHasUndoLog();
+        }
         long undoKey = store.addUndoLogRecord(transactionId, logId, new Object[]{ mapId, key, oldValue });
         return undoKey;
     }
@@ -344,35 +401,120 @@ public <K, V> TransactionMap<K, V> openMap(MVMap<K, VersionedValue> map) {
         return new TransactionMap<>(this, map);
     }
 
+    /**
+     * Add to the number of entries this transaction added to a map.
+     *
+     * @param mapId the map id
+     * @param change the number of added entries (negative if entries were
+     *            removed)
+     */
+    void addSizeChange(int mapId, long change) {
+        if (sizeChangeMapIds == null) {
+            sizeChangeMapIds = new int[4];
+            sizeChanges = new long[4];
+        }
+        int index = Arrays.binarySearch(sizeChangeMapIds, 0, sizeChangeCount, mapId);
+        if (index < 0) {
+            index = -index - 1;
+            if (sizeChangeCount == sizeChangeMapIds.length) {
+                sizeChangeMapIds = Arrays.copyOf(sizeChangeMapIds, sizeChangeCount * 2);
+                sizeChanges = Arrays.copyOf(sizeChanges, sizeChangeCount * 2);
+            }
+            System.arraycopy(sizeChangeMapIds, index, sizeChangeMapIds, index + 1, sizeChangeCount - index);
+            System.arraycopy(sizeChanges, index, sizeChanges, index + 1, sizeChangeCount - index);
+            sizeChangeMapIds[index] = mapId;
+            sizeChanges[index] = 0;
+            sizeChangeCount++;
+        }
+        sizeChanges[index] += change;
+    }
+
+    /**
+     * Get the number of entries this transaction added to a map.
+     *
+     * @param mapId the map id
+     * @return the number of added entries (negative if entries were removed)
+     */
+    long getSizeChange(int mapId) {
+        if (sizeChangeCount == 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(sizeChangeMapIds, 0, sizeChangeCount, mapId);
+        return index < 0 ? 0 : sizeChanges[index];
+    }
+
+    /**
+     * Forget the changes of the size of a map, because the map was cleared.
+     *
+     * @param mapId the map id
+     */
+    void resetSizeChange(int mapId) {
+        if (sizeChangeCount == 0) {
+            return;
+        }
+        int index = Arrays.binarySearch(sizeChangeMapIds, 0, sizeChangeCount, mapId);
+        if (index >= 0) {
+            sizeChanges[index] = 0;
+        }
+    }
+
+    int getSizeChangeCount() {
+        return sizeChangeCount;
+    }
+
+    int getSizeChangeMapId(int index) {
+        return sizeChangeMapIds[index];
+    }
+
+    long getSizeChangeAt(int index) {
+        return sizeChanges[index];
+    }
+
     /**
      * Prepare the transaction. Afterwards, the transaction can only be
      * committed or completely rolled back.
      */
     public void prepare() {
+        checkWritable();
         setStatus(STATUS_PREPARED);
         store.storeTransaction(this);
     }
 
     /**
-     * Commit the transaction. Afterwards, this transaction is closed.
+     * Commit the transaction. Afterwards, this transaction is closed. If the
+     * store uses lazy commits, the changes are applied to the maps and the
+     * transaction is closed in the background; however the changes are
+     * visible as committed as soon as this method returns.
      */
     public void commit() {
-        assert store.openTransactions.get().get(transactionId);
+        if (isReadOnly()) {
+            closeReadOnly();
+            return;
+        }
+        assert store.getTransaction(transactionId) == this;
         Throwable ex = null;
         boolean hasChanges = false;
+        boolean lazy = false;
         try {
             long state = setStatus(STATUS_COMMITTED);
             hasChanges = hasChanges(state);
             int previousStatus = getStatus(state);
             if (hasChanges) {
-                store.commit(this, previousStatus == STATUS_COMMITTED);
+                if (previousStatus != STATUS_COMMITTED && store.isLazyCommit()) {
+                    // the transaction is closed by the commit sweeper
+                    lazy = store.commitLazily(this);
+                } else {
+                    store.commit(this, previousStatus == STATUS_COMMITTED);
+                }
             }
         } catch (Throwable e) {
             ex = e;
             throw e;
         } finally {
             try {
-                store.endTransaction(this, hasChanges);
+                if (!lazy) {
+                    store.endTransaction(this, hasChanges);
+                }
             } catch (Throwable e) {
                 if (ex == null) {
                     throw e;
@@ -390,6 +532,10 @@ public void commit() {
      * @param savepointId the savepoint id
      */
     public void rollbackToSavepoint(long savepointId) {
+        if (isReadOnly()) {
+            // there is nothing to roll back
+            return;
+        }
         long lastState = setStatus(STATUS_ROLLING_BACK);
         long logId = getLogId(lastState);
         try {
@@ -412,6 +558,10 @@ public void rollbackToSavepoint(long savepointId) {
      * Roll the transaction back. Afterwards, this transaction is closed.
      */
     public void rollback() {
+        if (isReadOnly()) {
+            closeReadOnly();
+            return;
+        }
         try {
             long lastState = setStatus(STATUS_ROLLED_BACK);
             long logId = getLogId(lastState);
@@ -461,6 +611,34 @@ private void checkNotClosed() {
         }
     }
 
+    /**
+     * Count this transaction as one that may have entries in its undo log.
+     */
+    void setHasUndoLog() {
+        hasUndoLog = true;
+        store.addTransactionWithUndoLog();
+    }
+
+    boolean hasUndoLog() {
+        return hasUndoLog;
+    }
+
+    /**
+     * Check whether this transaction may change data.
+     */
+    void checkWritable() {
+        if (isReadOnly()) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_TRANSACTION_ILLEGAL_STATE,
+                    "Transaction is read-only");
+        }
+    }
+
+    private void closeReadOnly() {
+        markStatementEnd();
+        statusAndLogId.set(composeState(STATUS_CLOSED, 0, false));
+    }
+
     void closeIt() {
         long lastState = setStatus(STATUS_CLOSED);
         store.store.deregisterVersionUsage(txCounter);
@@ -469,8 +647,111 @@ void closeIt() {
         }
     }
 
-    private synchronized void notifyAllWaitingTransactions() {
-        notifyAll();
+    /**
+     * Notify the transactions that wait for this transaction to end. Only
+     * the first waiter for each entry is woken up; the later waiters for the
+     * same entry are handed over to the transaction of the first waiter.
+     */
+    synchronized void notifyAllWaitingTransactions() {
+        if (waiters == null || waiters.isEmpty()) {
+            return;
+        }
+        ArrayList<LockWaiter> first = new ArrayList<>();
+        for (LockWaiter w; (w = waiters.poll()) != null;) {
+            LockWaiter head = null;
+            for (LockWaiter f : first) {
+                if (f.isSameEntry(w)) {
+                    head = f;
+                    break;
+                }
+            }
+            if (head == null) {
+                first.add(w);
+            } else {
+                head.addFollower(w);
+                w.transaction.blockingTransaction = head.transaction;
+            }
+        }
+        for (LockWaiter w : first) {
+            w.signal();
+        }
+    }
+
+    /**
+     * Add a thread that waits for this transaction to end, unless this
+     * transaction has ended already.
+     *
+     * @param waiter the waiter
+     * @return true if the waiter was added
+     */
+    synchronized boolean addWaiter(LockWaiter waiter) {
+        if (getStatus() == STATUS_CLOSED || lazilyCommitted) {
+            return false;
+        }
+        enqueue(waiter);
+        return true;
+    }
+
+    private void enqueue(LockWaiter waiter) {
+        if (waiters == null) {
+            waiters = new ArrayDeque<>();
+        }
+        waiter.owner = this;
+        waiters.add(waiter);
+    }
+
+    /**
+     * Remove a waiter that stops waiting. Must be called while holding the
+     * monitor of this transaction.
+     *
+     * @param waiter the waiter
+     * @return false if the waiter was signalled already
+     */
+    boolean removeWaiter(LockWaiter waiter) {
+        if (waiter.isSignalled()) {
+            return false;
+        }
+        if (waiters == null || !waiters.remove(waiter)) {
+            // handed over, but not yet queued
+            waiter.cancelled = true;
+        }
+        return true;
+    }
+
+    /**
+     * Queue the waiters that were handed over to this transaction, because
+     * they wait for the entry this transaction is going to change.
+     *
+     * @param followers the waiters, or null
+     */
+    private synchronized void adoptWaiters(ArrayList<LockWaiter> followers) {
+        if (followers != null) {
+            for (LockWaiter w : followers) {
+                if (!w.cancelled) {
+                    enqueue(w);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wake up the waiters for the given entry, because this transaction gave
+     * up changing it.
+     *
+     * @param map the map
+     * @param key the key
+     */
+    synchronized void releaseWaiters(MVMap<?, VersionedValue> map, Object key) {
+        if (waiters == null) {
+            return;
+        }
+        for (Iterator<LockWaiter> it = waiters.iterator(); it.hasNext();) {
+            LockWaiter w = it.next();
+            if (w.map == map && key.equals(w.key)) {
+                it.remove();
+                w.signal();
+            }
+        }
     }
 
     public boolean waitFor(Transaction toWaitFor) {
@@ -494,7 +775,15 @@ public boolean waitFor(Transaction toWaitFor) {
 
         blockingTransaction = toWaitFor;
         try {
-            return toWaitFor.waitForThisToEnd(timeoutMillis);
+            if (timeoutMillis <= 0) {
+                return toWaitFor.getStatus() == STATUS_CLOSED || toWaitFor.lazilyCommitted;
+            }
+            LockWaiter waiter = new LockWaiter(this, blockingMap, blockingKey);
+            if (!waiter.await(toWaitFor, timeoutMillis)) {
+                return false;
+            }
+            adoptWaiters(waiter.followers);
+            return true;
         } finally {
             blockingMap = null;
             blockingKey = null;
@@ -513,23 +802,6 @@ private boolean isDeadlocked(Transaction toWaitFor) {
         return false;
     }
 
-    private synchronized boolean waitForThisToEnd(int millis) {
-        long until = System.currentTimeMillis() + millis;
-        int status;
-        while((status = getStatus()) != STATUS_CLOSED && status != STATUS_ROLLING_BACK) {
-            long dur = until - System.currentTimeMillis();
-            if(dur <= 0) {
-                return false;
-            }
-            try {
-                wait(dur);
-            } catch (InterruptedException ex) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     /**
      * Remove the map.
      *
@@ -12,8 +12,10 @@
 import org.h2.mvstore.type.DataType;
 
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -63,11 +65,46 @@ public long sizeAsLongMax() {
     }
 
     /**
-     * Get the size of the map as seen by this transaction.
+     * Get the size of the map as seen by this transaction. This is the number
+     * of committed entries, plus the entries this transaction added, minus
+     * the entries it removed; the time needed does not depend on the number
+     * of uncommitted changes.
      *
      * @return the size
      */
     public long sizeAsLong() {
+        if (transaction.sizeChangesUnknown) {
+            return sizeAsLong(transaction.transactionId);
+        }
+        TransactionStore store = transaction.store;
+        int mapId = map.getId();
+        CommittedSize committedSize = store.getCommittedSize(mapId);
+        long size = committedSize.get(store.sizeEpoch.get());
+        if (size < 0) {
+            committedSize.lock.lock();
+            try {
+                long epoch = store.sizeEpoch.get();
+                size = committedSize.get(epoch);
+                if (size < 0) {
+                    // the transaction id 0 is never used
+                    size = sizeAsLong(0);
+                    committedSize.set(size, epoch);
+                }
+            } finally {
+                committedSize.lock.unlock();
+            }
+        }
+        return size + transaction.getSizeChange(mapId);
+    }
+
+    /**
+     * Get the size of the map as seen by the given transaction, by scanning
+     * the map or the undo logs.
+     *
+     * @param transactionId the transaction id
+     * @return the size
+     */
+    private long sizeAsLong(int transactionId) {
         TransactionStore store = transaction.store;
 
         // The purpose of the following loop is to get a coherent picture
@@ -82,12 +119,12 @@ public long sizeAsLong() {
         do {
             committingTransactions = store.committingTransactions.get();
             mapRootReference = map.getRoot();
-            BitSet opentransactions = store.openTransactions.get();
-            undoLogRootReferences = new MVMap.RootReference[opentransactions.length()];
+            int highestTransactionId = store.getHighestTransactionId();
+            undoLogRootReferences = new MVMap.RootReference[highestTransactionId + 1];
             undoLogSize = 0;
-            for (int i = opentransactions.nextSetBit(0); i >= 0; i = opentransactions.nextSetBit(i+1)) {
-                MVMap<Long, Object[]> undoLog = store.undoLogs[i];
-                if (undoLog != null) {
+            for (int i = 1; i <= highestTransactionId; i++) {
+                MVMap<Long, Object[]> undoLog = store.undoLogs.get(i);
+                if (undoLog != null && store.getTransaction(i) != null) {
                     MVMap.RootReference rootReference = undoLog.getRoot();
                     undoLogRootReferences[i] = rootReference;
                     undoLogSize += rootReference.root.getTotalCount();
@@ -121,7 +158,7 @@ public long sizeAsLong() {
                 long operationId = currentValue.getOperationId();
                 if (operationId != 0) {  // skip committed entries
                     int txId = TransactionStore.getTransactionId(operationId);
-                    boolean isVisible = txId == transaction.transactionId ||
+                    boolean isVisible = txId == transactionId ||
                                             committingTransactions.get(txId);
                     Object v = isVisible ? currentValue.value : currentValue.getCommittedValue();
                     if (v == null) {
@@ -152,7 +189,7 @@ public long sizeAsLong() {
                                 long operationId = cursor.getKey();
                                 if (currentValue.getOperationId() == operationId) {
                                     int txId = TransactionStore.getTransactionId(operationId);
-                                    boolean isVisible = txId == transaction.transactionId ||
+                                    boolean isVisible = txId == transactionId ||
                                             committingTransactions.get(txId);
                                     Object v = isVisible ? currentValue.value : currentValue.getCommittedValue();
                                     if (v == null) {
@@ -238,7 +275,19 @@ public V lock(K key) {
     public V putCommitted(K key, V value) {
         DataUtils.checkArgument(value != null, "The value may not be null");
         VersionedValue newValue = VersionedValue.getInstance(value);
-        VersionedValue oldValue = map.put(key, newValue);
+        CommittedSize committedSize = transaction.store.getCommittedSize(map.getId());
+        VersionedValue oldValue;
+        committedSize.lock.lock();
+        try {
+            oldValue = map.put(key, newValue);
+            Object oldCommitted = oldValue == null ? null :
+                    oldValue.getOperationId() == 0 ? oldValue.value : oldValue.getCommittedValue();
+            if (oldCommitted == null) {
+                committedSize.add(1);
+            }
+        } finally {
+            committedSize.lock.unlock();
+        }
         @SuppressWarnings("unchecked")
         V result = (V) (oldValue == null ? null : oldValue.value);
         return result;
@@ -250,34 +299,59 @@ private V set(K key, V value) {
     }
 
     private V set(K key, TxDecisionMaker decisionMaker) {
+        transaction.checkWritable();
         TransactionStore store = transaction.store;
         Transaction blockingTransaction;
         long sequenceNumWhenStarted;
         VersionedValue result;
-        do {
-            sequenceNumWhenStarted = store.openTransactions.get().getVersion();
-            assert transaction.getBlockerId() == 0;
-            // although second parameter (value) is not really used,
-            // since TxDecisionMaker has it embedded,
-            // MVRTreeMap has weird traversal logic based on it,
-            // and any non-null value will do
-            result = map.put(key, VersionedValue.DUMMY, decisionMaker);
-
-            MVMap.Decision decision = decisionMaker.getDecision();
-            assert decision != null;
-            assert decision != MVMap.Decision.REPEAT;
-            blockingTransaction = decisionMaker.getBlockingTransaction();
-            if (decision != MVMap.Decision.ABORT || blockingTransaction == null) {
-                transaction.blockingMap = null;
-                transaction.blockingKey = null;
-                @SuppressWarnings("unchecked")
-                V res = result == null ? null : (V) result.value;
-                return res;
+        long waitStart = 0;
+        boolean success = false;
+        try {
+            do {
+                sequenceNumWhenStarted = store.lastSequenceNum.get();
+                assert transaction.getBlockerId() == 0;
+                // although second parameter (value) is not really used,
+                // since TxDecisionMaker has it embedded,
+                // MVRTreeMap has weird traversal logic based on it,
+                // and any non-null value will do
+                result = map.put(key, VersionedValue.DUMMY, decisionMaker);
+
+                MVMap.Decision decision = decisionMaker.getDecision();
+                assert decision != null;
+                assert decision != MVMap.Decision.REPEAT;
+                blockingTransaction = decisionMaker.getBlockingTransaction();
+                if (decision != MVMap.Decision.ABORT || blockingTransaction == null) {
+                    transaction.blockingMap = null;
+                    transaction.blockingKey = null;
+                    if (decision == MVMap.Decision.PUT) {
+                        long change = decisionMaker.getSizeChange();
+                        if (change != 0) {
+                            transaction.addSizeChange(map.getId(), change);
+                        }
+                    }
+                    success = true;
+                    @SuppressWarnings("unchecked")
+                    V res = result == null ? null : (V) result.value;
+                    return res;
+                }
+                decisionMaker.reset();
+                transaction.blockingMap = map;
+                transaction.blockingKey = key;
+                if (waitStart == 0) {
+                    waitStart = System.nanoTime();
+                }
+            } while (blockingTransaction.sequenceNum > sequenceNumWhenStarted ||
+                    transaction.waitFor(blockingTransaction));
+        } finally {
+            if (waitStart != 0) {
+                store.addLockWait(map.getId(), System.nanoTime() - waitStart);
+                if (!success) {
+                    // let the transactions that were handed over to this
+                    // one retry on their own
+                    transaction.releaseWaiters(map, key);
+                }
             }
-            decisionMaker.reset();
-            transaction.blockingMap = map;
-            transaction.blockingKey = key;
-        } while (blockingTransaction.sequenceNum > sequenceNumWhenStarted || transaction.waitFor(blockingTransaction));
+        }
 
         throw DataUtils.newIllegalStateException(DataUtils.ERROR_TRANSACTION_LOCKED,
                 "Map entry <{0}> with key <{1}> and value {2} is locked by tx {3} and can not be updated by tx {4}"
@@ -344,23 +418,13 @@ public boolean trySet(K key, V value) {
      */
     @SuppressWarnings("unchecked")
     public V get(K key) {
-        VersionedValue data = map.get(key);
-        if (data == null) {
-            // doesn't exist or deleted by a committed transaction
-            return null;
-        }
-        long id = data.getOperationId();
-        if (id == 0) {
-            // it is committed
-            return (V)data.value;
-        }
-        int tx = TransactionStore.getTransactionId(id);
-        if (tx == transaction.transactionId || transaction.store.committingTransactions.get().get(tx)) {
-            // added by this transaction or another transaction which is committed by now
-            return (V)data.value;
-        } else {
-            return (V) data.getCommittedValue();
-        }
+        // the map and the committing transactions are read together, as a
+        // lazily committed transaction may be applied and ended in between
+        Snapshot snapshot = getSnapshot();
+        VersionedValue data = getValue(map.get(snapshot.root, key),
+                snapshot.committingTransactions);
+        // doesn't exist or deleted by a committed transaction
+        return data == null ? null : (V) data.value;
     }
 
     /**
@@ -430,7 +494,15 @@ public boolean isClosed() {
      */
     public void clear() {
         // TODO truncate transactionally?
-        map.clear();
+        CommittedSize committedSize = transaction.store.getCommittedSize(map.getId());
+        committedSize.lock.lock();
+        try {
+            map.clear();
+            committedSize.set(0, transaction.store.sizeEpoch.get());
+        } finally {
+            committedSize.lock.unlock();
+        }
+        transaction.resetSizeChange(map.getId());
     }
 
     /**
@@ -549,7 +621,7 @@ public Iterator<K> keyIterator(K from) {
      * @return the iterator
      */
     public Iterator<K> keyIterator(K from, K to, boolean includeUncommitted) {
-        return new KeyIterator<>(this, from, to, includeUncommitted);
+        return new KeyIterator<>(this, getSnapshot(), from, to, includeUncommitted);
     }
 
     /**
@@ -560,7 +632,67 @@ public Iterator<K> keyIterator(K from, K to, boolean includeUncommitted) {
      * @return the iterator
      */
     public Iterator<Map.Entry<K, V>> entryIterator(final K from, final K to) {
-        return new EntryIterator<>(this, from, to);
+        return new EntryIterator<>(this, getSnapshot(), from, to, null);
+    }
+
+    /**
+     * Iterate over the entries of a key range that is split into parts of
+     * about the same size, so that the parts can be read concurrently. All
+     * iterators use the same snapshot of the map.
+     *
+     * @param from the first key to return
+     * @param to the last key to return
+     * @param parts the number of parts
+     * @return the iterators, one for each part, in the order of the keys
+     */
+    public List<Iterator<Map.Entry<K, V>>> entryIterators(K from, K to, int parts) {
+        Snapshot snapshot = getSnapshot();
+        Page root = snapshot.root;
+        long start = 0, end = root.getTotalCount();
+        if (from != null) {
+            long index = map.getKeyIndex(root, from);
+            start = index < 0 ? -index - 1 : index;
+        }
+        if (to != null) {
+            long index = map.getKeyIndex(root, to);
+            end = index < 0 ? -index - 1 : index + 1;
+        }
+        long count = Math.max(0, end - start);
+        parts = (int) Math.max(1, Math.min(parts, count));
+        List<Iterator<Map.Entry<K, V>>> list = new ArrayList<>(parts);
+        K lower = from;
+        for (int i = 1; i < parts; i++) {
+            K upper = map.getKey(root, start + count * i / parts);
+            list.add(new EntryIterator<K, V>(this, snapshot, lower, to, upper));
+            lower = upper;
+        }
+        list.add(new EntryIterator<K, V>(this, snapshot, lower, to, null));
+        return list;
+    }
+
+    /**
+     * Get a coherent state of the map and of the set of committing
+     * transactions.
+     *
+     * @return the snapshot
+     */
+    private Snapshot getSnapshot() {
+        TransactionStore store = transaction.store;
+        // The purpose of the following loop is to get a coherent picture
+        // of a state of two independent volatile / atomic variables,
+        // which they had at some recent moment in time.
+        // In order to get such a "snapshot", we wait for a moment of silence,
+        // when neither of the variables concurrently changes it's value.
+        BitSet committingTransactions;
+        MVMap.RootReference mapRootReference;
+        do {
+            committingTransactions = store.committingTransactions.get();
+            mapRootReference = map.getRoot();
+        } while (committingTransactions != store.committingTransactions.get());
+        // Now we have a snapshot, where mapRootReference points to state of the map
+        // and committingTransactions mask tells us which of seemingly uncommitted changes
+        // should be considered as committed.
+        return new Snapshot(mapRootReference.root, committingTransactions);
     }
 
     /**
@@ -623,10 +755,32 @@ public DataType getKeyType() {
     }
 
 
+    /**
+     * The state of the map at some point in time.
+     */
+    private static final class Snapshot {
+
+        /**
+         * The root page of the map.
+         */
+        final Page root;
+
+        /**
+         * The transactions that were being committed.
+         */
+        final BitSet committingTransactions;
+
+        Snapshot(Page root, BitSet committingTransactions) {
+            this.root = root;
+            this.committingTransactions = committingTransactions;
+        }
+    }
+
     private static final class KeyIterator<K> extends TMIterator<K,K> {
 
-        public KeyIterator(TransactionMap<K, ?> transactionMap, K from, K to, boolean includeUncommitted) {
-            super(transactionMap, from, to, includeUncommitted);
+        public KeyIterator(TransactionMap<K, ?> transactionMap, Snapshot snapshot, K from, K to,
+                boolean includeUncommitted) {
+            super(transactionMap, snapshot, from, to, null, includeUncommitted);
         }
 
         @Override
@@ -637,8 +791,8 @@ protected K registerCurrent(K key, VersionedValue data) {
 
     private static final class EntryIterator<K,V> extends TMIterator<K,Map.Entry<K,V>> {
 
-        public EntryIterator(TransactionMap<K, ?> transactionMap, K from, K to) {
-            super(transactionMap, from, to, false);
+        public EntryIterator(TransactionMap<K, ?> transactionMap, Snapshot snapshot, K from, K to, K end) {
+            super(transactionMap, snapshot, from, to, end, false);
         }
 
         @Override
@@ -653,38 +807,32 @@ protected Map.Entry<K, V> registerCurrent(K key, VersionedValue data) {
         private final BitSet committingTransactions;
         private final Cursor<K,VersionedValue> cursor;
         private final boolean includeAllUncommitted;
+        /**
+         * The key before which the iteration stops, or null.
+         */
+        private final K end;
+        private boolean endReached;
         private X current;
 
-        protected TMIterator(TransactionMap<K,?> transactionMap, K from, K to, boolean includeAllUncommitted) {
+        protected TMIterator(TransactionMap<K,?> transactionMap, Snapshot snapshot, K from, K to, K end,
+                boolean includeAllUncommitted) {
             this.transactionMap = transactionMap;
-            TransactionStore store = transactionMap.transaction.store;
-            MVMap<K, VersionedValue> map = transactionMap.map;
-            // The purpose of the following loop is to get a coherent picture
-            // of a state of two independent volatile / atomic variables,
-            // which they had at some recent moment in time.
-            // In order to get such a "snapshot", we wait for a moment of silence,
-            // when neither of the variables concurrently changes it's value.
-            BitSet committingTransactions;
-            MVMap.RootReference mapRootReference;
-            do {
-                committingTransactions = store.committingTransactions.get();
-                mapRootReference = map.getRoot();
-            } while (committingTransactions != store.committingTransactions.get());
-            // Now we have a snapshot, where mapRootReference points to state of the map
-            // and committingTransactions mask tells us which of seemingly uncommitted changes
-            // should be considered as committed.
-            // Subsequent map traversal uses this snapshot info only.
-            this.cursor = new Cursor<>(mapRootReference.root, from, to);
-            this.committingTransactions = committingTransactions;
-
+            // Subsequent map traversal uses the snapshot info only.
+            this.cursor = new Cursor<>(snapshot.root, from, to);
+            this.committingTransactions = snapshot.committingTransactions;
+            this.end = end;
             this.includeAllUncommitted = includeAllUncommitted;
         }
 
         protected abstract X registerCurrent(K key, VersionedValue data);
 
         private void fetchNext() {
-            while (cursor.hasNext()) {
+            while (!endReached && cursor.hasNext()) {
                 K key = cursor.next();
+                if (end != null && transactionMap.map.getKeyType().compare(key, end) >= 0) {
+                    endReached = true;
+                    break;
+                }
                 VersionedValue data = cursor.getValue();
                 if (!includeAllUncommitted) {
                     data = transactionMap.getValue(data, committingTransactions);
@@ -10,12 +10,17 @@
 import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.Page;
 import org.h2.mvstore.WriteBuffer;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.ObjectDataType;
@@ -51,18 +56,33 @@ public class TransactionStore {
      * <p>
      * Key: opId, value: [ mapId, key, oldValue ].
      */
-    @SuppressWarnings("unchecked")
-    final MVMap<Long,Object[]> undoLogs[] = new MVMap[MAX_OPEN_TRANSACTIONS];
+    final SlotArray<MVMap<Long,Object[]>> undoLogs = new SlotArray<>(MAX_OPEN_TRANSACTIONS);
     private final MVMap.Builder<Long,Object[]> undoLogBuilder;
 
     private final DataType dataType;
 
     /**
-     * This BitSet is used as vacancy indicator for transaction slots in transactions[].
-     * It provides easy way to find first unoccupied slot, and also allows for copy-on-write
-     * non-blocking updates.
+     * The unused transaction ids that are lower than highestTransactionId.
+     * The lowest one is re-used first, so that the transaction ids (and the
+     * bit set of committing transactions) stay small.
      */
-    final AtomicReference<VersionedBitSet> openTransactions = new AtomicReference<>(new VersionedBitSet());
+    private final ConcurrentSkipListSet<Integer> freeTransactionIds = new ConcurrentSkipListSet<>();
+
+    /**
+     * The highest transaction id that was used so far.
+     */
+    private final AtomicInteger highestTransactionId = new AtomicInteger();
+
+    /**
+     * The sequence number of the transaction that was started last.
+     */
+    final AtomicLong lastSequenceNum = new AtomicLong();
+
+    /**
+     * The number of open transactions that may have entries in their undo
+     * log.
+     */
+    private final AtomicInteger transactionsWithUndoLog = new AtomicInteger();
 
     /**
      * This is intended to be the source of ultimate truth about transaction being committed.
@@ -75,6 +95,45 @@ public class TransactionStore {
 
     private boolean init;
 
+    /**
+     * Whether a commit only marks the transaction as committed, and the
+     * changes are applied to the maps later on by the commit sweeper.
+     */
+    private volatile boolean lazyCommit;
+
+    /**
+     * The transactions that are committed, but whose changes were not applied
+     * to the maps yet. These transactions still occupy their slots.
+     */
+    private final ConcurrentLinkedQueue<Transaction> lazilyCommitted = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of entries in lazilyCommitted.
+     */
+    private final AtomicInteger lazilyCommittedCount = new AtomicInteger();
+
+    /**
+     * The thread that applies the changes of lazily committed transactions.
+     */
+    private CommitSweeper commitSweeper;
+
+    /**
+     * The lock wait histograms, by map id.
+     */
+    private final ConcurrentHashMap<Integer, LockWaitHistogram> lockWaits = new ConcurrentHashMap<>();
+
+    /**
+     * The number of committed entries, by map id.
+     */
+    private final ConcurrentHashMap<Integer, CommittedSize> committedSizes = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented when a transaction whose size changes are unknown (because
+     * it was restored when opening the store) commits, so that the committed
+     * sizes are computed again.
+     */
+    final AtomicLong sizeEpoch = new AtomicLong();
+
     /**
      * Soft limit on the number of concurrently opened transactions.
      * Not really needed but used by some test.
@@ -82,22 +141,26 @@ public class TransactionStore {
     private int maxTransactionId = MAX_OPEN_TRANSACTIONS;
 
     /**
-     * Array holding all open transaction objects.
-     * Position in array is "transaction id".
-     * VolatileReferenceArray would do the job here, but there is no such thing in Java yet
+     * The open transactions, by transaction id.
      */
-    private final AtomicReferenceArray<Transaction> transactions =
-                                                        new AtomicReferenceArray<>(MAX_OPEN_TRANSACTIONS + 1);
+    private final SlotArray<Transaction> transactions = new SlotArray<>(MAX_OPEN_TRANSACTIONS);
 
     private static final String UNDO_LOG_NAME_PREFIX = "undoLog";
     private static final char UNDO_LOG_COMMITTED = '-'; // must come before open in lexicographical order
     private static final char UNDO_LOG_OPEN = '.';
 
     /**
-     * Hard limit on the number of concurrently opened transactions
+     * Hard limit on the number of concurrently opened transactions: the
+     * highest transaction id that fits in an operation id.
+     */
+    private static final int MAX_OPEN_TRANSACTIONS = (1 << (64 - Transaction.LOG_ID_BITS)) - 1;
+
+    /**
+     * The maximum number of lazily committed transactions whose changes were
+     * not applied yet. If there are more, committing transactions help the
+     * commit sweeper.
      */
-    // TODO: introduce constructor parameter instead of a static field, driven by URL parameter
-    private static final int MAX_OPEN_TRANSACTIONS = 65535;
+    private static final int MAX_LAZILY_COMMITTED = 1024;
 
 
     public static String getUndoLogName(boolean committed, int transactionId) {
@@ -147,8 +210,7 @@ public void init() {
                     boolean committed = mapName.charAt(UNDO_LOG_NAME_PREFIX.length()) == UNDO_LOG_COMMITTED;
                     if (store.hasData(mapName) || committed) {
                         int transactionId = Integer.parseInt(mapName.substring(UNDO_LOG_NAME_PREFIX.length() + 1));
-                        VersionedBitSet openTxBitSet = openTransactions.get();
-                        if (!openTxBitSet.get(transactionId)) {
+                        if (transactions.get(transactionId) == null) {
                             Object[] data = preparedTransactions.get(transactionId);
                             int status;
                             String name;
@@ -163,13 +225,17 @@ public void init() {
                                 status = Transaction.STATUS_COMMITTED;
                             }
                             MVMap<Long, Object[]> undoLog = store.openMap(mapName, undoLogBuilder);
-                            undoLogs[transactionId] = undoLog;
                             Long lastUndoKey = undoLog.lastKey();
-                            assert committed || lastUndoKey != null;
+                            if (!committed && lastUndoKey == null) {
+                                // the changes were removed by the redo log
+                                continue;
+                            }
+                            undoLogs.set(transactionId, undoLog);
                             assert committed || getTransactionId(lastUndoKey) == transactionId;
                             long logId = lastUndoKey == null ? 0 : getLogId(lastUndoKey) + 1;
-                            registerTransaction(transactionId, status, name, logId, timeoutMillis, 0,
-                                    RollbackListener.NONE);
+                            Transaction t = registerTransaction(transactionId, status, name, logId,
+                                    timeoutMillis, 0, RollbackListener.NONE);
+                            t.sizeChangesUnknown = true;
                         }
                     }
                 }
@@ -206,6 +272,72 @@ public void setMaxTransactionId(int max) {
         this.maxTransactionId = max;
     }
 
+    /**
+     * Set whether commits are lazy. A lazy commit only marks the transaction
+     * as committed (persistently, by renaming its undo log), which takes
+     * constant time. The changes are applied to the maps by a background
+     * thread afterwards. Until then, other transactions resolve the entries
+     * using the set of committing transactions. The transaction id is only
+     * re-used after the changes were applied.
+     *
+     * @param lazyCommit whether commits are lazy
+     */
+    public synchronized void setLazyCommit(boolean lazyCommit) {
+        if (lazyCommit && commitSweeper == null) {
+            commitSweeper = new CommitSweeper(this);
+            commitSweeper.start();
+        }
+        this.lazyCommit = lazyCommit;
+    }
+
+    /**
+     * Whether commits are lazy.
+     *
+     * @return true if commits are lazy
+     */
+    public boolean isLazyCommit() {
+        return lazyCommit;
+    }
+
+    /**
+     * Get the number of lazily committed transactions whose changes were not
+     * applied to the maps yet.
+     *
+     * @return the number of transactions
+     */
+    public int getLazilyCommittedCount() {
+        return lazilyCommittedCount.get();
+    }
+
+    /**
+     * Get the histogram of the time transactions waited for entries of the
+     * given map that were changed by other open transactions.
+     *
+     * @param mapId the map id
+     * @return the histogram, or null if there were no waits
+     */
+    public LockWaitHistogram getLockWaitHistogram(int mapId) {
+        return lockWaits.get(mapId);
+    }
+
+    /**
+     * Add a wait for an entry of the given map to the histogram.
+     *
+     * @param mapId the map id
+     * @param nanos the time waited, in nanoseconds
+     */
+    void addLockWait(int mapId, long nanos) {
+        LockWaitHistogram histogram = lockWaits.get(mapId);
+        if (histogram == null) {
+            LockWaitHistogram newHistogram = new LockWaitHistogram();
+            histogram = lockWaits.putIfAbsent(mapId, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.add(nanos);
+    }
+
     /**
      * Check whether a given map exists.
      *
@@ -264,11 +396,9 @@ public List<Transaction> getOpenTransactions() {
             init();
         }
         ArrayList<Transaction> list = new ArrayList<>();
-        int transactionId = 0;
-        BitSet bitSet = openTransactions.get();
-        while((transactionId = bitSet.nextSetBit(transactionId + 1)) > 0) {
+        for (int transactionId = 1, max = getHighestTransactionId(); transactionId <= max; transactionId++) {
             Transaction transaction = getTransaction(transactionId);
-            if(transaction != null) {
+            if(transaction != null && !transaction.lazilyCommitted) {
                 if(transaction.getStatus() != Transaction.STATUS_CLOSED) {
                     list.add(transaction);
                 }
@@ -281,6 +411,13 @@ public List<Transaction> getOpenTransactions() {
      * Close the transaction store.
      */
     public synchronized void close() {
+        if (commitSweeper != null) {
+            commitSweeper.close();
+            commitSweeper = null;
+        }
+        while (applyLazyCommit()) {
+            // apply the remaining lazy commits
+        }
         store.commit();
     }
 
@@ -310,46 +447,103 @@ public Transaction begin(RollbackListener listener, int timeoutMillis, int owner
         return transaction;
     }
 
+    /**
+     * Begin a new read-only transaction. A read-only transaction only sees
+     * committed data, and can not change data. It does not use a transaction
+     * id and is not registered, so that beginning and ending it is cheap, and
+     * the number of open read-only transactions is not limited.
+     *
+     * @return the transaction
+     */
+    public Transaction beginReadOnly() {
+        return new Transaction(this, 0, lastSequenceNum.get(),
+                Transaction.STATUS_OPEN, null, 0, timeoutMillis, 0, RollbackListener.NONE);
+    }
+
     private Transaction registerTransaction(int txId, int status, String name, long logId,
                                             int timeoutMillis, int ownerId, RollbackListener listener) {
-        int transactionId;
-        long sequenceNo;
-        boolean success;
-        do {
-            VersionedBitSet original = openTransactions.get();
-            if (txId == 0) {
-                transactionId = original.nextClearBit(1);
-            } else {
-                transactionId = txId;
-                assert !original.get(transactionId);
-            }
-            if (transactionId > maxTransactionId) {
-                throw DataUtils.newIllegalStateException(
-                        DataUtils.ERROR_TOO_MANY_OPEN_TRANSACTIONS,
-                        "There are {0} open transactions",
-                        transactionId - 1);
-            }
-            VersionedBitSet clone = original.clone();
-            clone.set(transactionId);
-            sequenceNo = clone.getVersion() + 1;
-            clone.setVersion(sequenceNo);
-            success = openTransactions.compareAndSet(original, clone);
-        } while(!success);
-
+        int transactionId = txId == 0 ? allocateTransactionId() : useTransactionId(txId);
+        long sequenceNo = lastSequenceNum.incrementAndGet();
         Transaction transaction = new Transaction(this, transactionId, sequenceNo, status, name, logId,
                 timeoutMillis, ownerId, listener);
 
         assert transactions.get(transactionId) == null;
         transactions.set(transactionId, transaction);
+        if (logId > 0) {
+            transaction.setHasUndoLog();
+        }
 
-        if (undoLogs[transactionId] == null) {
+        if (undoLogs.get(transactionId) == null) {
             String undoName = getUndoLogName(status == Transaction.STATUS_COMMITTED, transactionId);
             MVMap<Long, Object[]> undoLog = store.openMap(undoName, undoLogBuilder);
-            undoLogs[transactionId] = undoLog;
+            undoLogs.set(transactionId, undoLog);
         }
         return transaction;
     }
 
+    /**
+     * Get the lowest unused transaction id.
+     *
+     * @return the transaction id
+     */
+    private int allocateTransactionId() {
+        Integer free = freeTransactionIds.pollFirst();
+        if (free != null) {
+            return free;
+        }
+        while (true) {
+            int highest = highestTransactionId.get();
+            int transactionId = highest + 1;
+            if (transactionId > maxTransactionId) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_TOO_MANY_OPEN_TRANSACTIONS,
+                        "There are {0} open transactions",
+                        transactionId - 1);
+            }
+            if (highestTransactionId.compareAndSet(highest, transactionId)) {
+                return transactionId;
+            }
+        }
+    }
+
+    /**
+     * Mark the given transaction id as used. This is only called while
+     * initializing the store.
+     *
+     * @param transactionId the transaction id
+     * @return the transaction id
+     */
+    private int useTransactionId(int transactionId) {
+        int highest = highestTransactionId.get();
+        if (transactionId > highest) {
+            for (int i = highest + 1; i < transactionId; i++) {
+                freeTransactionIds.add(i);
+            }
+            highestTransactionId.set(transactionId);
+        } else {
+            freeTransactionIds.remove(transactionId);
+        }
+        return transactionId;
+    }
+
+    /**
+     * Get the highest transaction id that was used so far. All open
+     * transactions have an id that is not higher than this.
+     *
+     * @return the transaction id
+     */
+    int getHighestTransactionId() {
+        return highestTransactionId.get();
+    }
+
+    /**
+     * Add one to the number of open transactions that may have entries in
+     * their undo log.
+     */
+    void addTransactionWithUndoLog() {
+        transactionsWithUndoLog.incrementAndGet();
+    }
+
     /**
      * Store a transaction.
      *
@@ -372,7 +566,7 @@ void storeTransaction(Transaction t) {
      * @param undoLogRecord Object[mapId, key, previousValue]
      */
     long addUndoLogRecord(int transactionId, long logId, Object[] undoLogRecord) {
-        MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
+        MVMap<Long, Object[]> undoLog = undoLogs.get(transactionId);
         Long undoKey = getOperationId(transactionId, logId);
         if (logId == 0 && !undoLog.isEmpty()) {
             throw DataUtils.newIllegalStateException(
@@ -392,7 +586,7 @@ long addUndoLogRecord(int transactionId, long logId, Object[] undoLogRecord) {
      */
     public void removeUndoLogRecord(int transactionId, long logId) {
         Long undoKey = getOperationId(transactionId, logId);
-        Object[] old = undoLogs[transactionId].remove(undoKey);
+        Object[] old = undoLogs.get(transactionId).remove(undoKey);
         if (old == null) {
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_TRANSACTION_ILLEGAL_STATE,
@@ -409,6 +603,8 @@ public void removeUndoLogRecord(int transactionId, long logId) {
      * @param map the map
      */
     <K, V> void removeMap(TransactionMap<K, V> map) {
+        lockWaits.remove(map.map.getId());
+        committedSizes.remove(map.map.getId());
         store.removeMap(map.map, true);
     }
 
@@ -423,35 +619,167 @@ void commit(Transaction t, boolean recovery) {
             int transactionId = t.transactionId;
             // this is an atomic action that causes all changes
             // made by this transaction, to be considered as "committed"
-            flipCommittingTransactionsBit(transactionId, true);
-
-            CommitDecisionMaker commitDecisionMaker = new CommitDecisionMaker();
+            markCommitting(t);
             try {
-                MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
+                MVMap<Long, Object[]> undoLog = undoLogs.get(transactionId);
                 if(!recovery) {
                     store.renameMap(undoLog, getUndoLogName(true, transactionId));
                 }
+                applyCommit(transactionId);
+            } finally {
+                flipCommittingTransactionsBit(transactionId, false);
+            }
+        }
+    }
+
+    /**
+     * Commit a transaction lazily: mark the transaction as committed, and
+     * leave applying the changes to the commit sweeper. The transaction keeps
+     * its slot until then.
+     *
+     * @param t transaction to commit
+     * @return false if the store is closed, so that nothing was done
+     */
+    boolean commitLazily(Transaction t) {
+        if (store.isClosed()) {
+            return false;
+        }
+        int transactionId = t.transactionId;
+        markCommitting(t);
+        boolean success = false;
+        try {
+            // the undo log with the "committed" name is the persistent
+            // record of the commit, which is completed on recovery
+            store.renameMap(undoLogs.get(transactionId), getUndoLogName(true, transactionId));
+            success = true;
+        } finally {
+            if (!success) {
+                flipCommittingTransactionsBit(transactionId, false);
+            }
+        }
+        t.lazilyCommitted = true;
+        t.markStatementEnd();
+        // waiting transactions may now overwrite the entries
+        t.notifyAllWaitingTransactions();
+        lazilyCommitted.add(t);
+        if (lazilyCommittedCount.incrementAndGet() > MAX_LAZILY_COMMITTED) {
+            // the sweeper doesn't keep up
+            applyLazyCommit();
+        } else {
+            CommitSweeper sweeper = commitSweeper;
+            if (sweeper != null) {
+                sweeper.wakeUp();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the changes of the oldest lazily committed transaction to the
+     * maps, and close the transaction.
+     *
+     * @return false if there was no such transaction
+     */
+    boolean applyLazyCommit() {
+        Transaction t = lazilyCommitted.poll();
+        if (t == null) {
+            return false;
+        }
+        try {
+            if (!store.isClosed()) {
                 try {
-                    Cursor<Long, Object[]> cursor = undoLog.cursor(null);
-                    while (cursor.hasNext()) {
-                        Long undoKey = cursor.next();
-                        Object[] op = cursor.getValue();
-                        int mapId = (Integer) op[0];
-                        MVMap<Object, VersionedValue> map = openMap(mapId);
-                        if (map != null) { // might be null if map was removed later
-                            Object key = op[1];
-                            commitDecisionMaker.setUndoKey(undoKey);
-                            map.operate(key, null, commitDecisionMaker);
-                        }
-                    }
-                    undoLog.clear();
+                    applyCommit(t.transactionId);
                 } finally {
-                    store.renameMap(undoLog, getUndoLogName(false, transactionId));
+                    flipCommittingTransactionsBit(t.transactionId, false);
                 }
+            }
+        } finally {
+            try {
+                endTransaction(t, true);
             } finally {
-                flipCommittingTransactionsBit(transactionId, false);
+                lazilyCommittedCount.decrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply the changes of a committed transaction to the maps: replace the
+     * versioned values with the committed values, and clear the undo log.
+     * The undo log must already be stored under the "committed" name; it is
+     * renamed back afterwards.
+     *
+     * @param transactionId the transaction id
+     */
+    private void applyCommit(int transactionId) {
+        MVMap<Long, Object[]> undoLog = undoLogs.get(transactionId);
+        CommitDecisionMaker commitDecisionMaker = new CommitDecisionMaker();
+        try {
+            Cursor<Long, Object[]> cursor = undoLog.cursor(null);
+            while (cursor.hasNext()) {
+                Long undoKey = cursor.next();
+                Object[] op = cursor.getValue();
+                int mapId = (Integer) op[0];
+                MVMap<Object, VersionedValue> map = openMap(mapId);
+                if (map != null) { // might be null if map was removed later
+                    Object key = op[1];
+                    commitDecisionMaker.setUndoKey(undoKey);
+                    map.operate(key, null, commitDecisionMaker);
+                }
+            }
+            undoLog.clear();
+        } finally {
+            store.renameMap(undoLog, getUndoLogName(false, transactionId));
+        }
+    }
+
+    /**
+     * Get the counter of the committed entries of a map.
+     *
+     * @param mapId the map id
+     * @return the counter
+     */
+    CommittedSize getCommittedSize(int mapId) {
+        CommittedSize committedSize = committedSizes.get(mapId);
+        if (committedSize == null) {
+            CommittedSize newCommittedSize = new CommittedSize();
+            committedSize = committedSizes.putIfAbsent(mapId, newCommittedSize);
+            if (committedSize == null) {
+                committedSize = newCommittedSize;
+            }
+        }
+        return committedSize;
+    }
+
+    /**
+     * Mark the transaction as committing, so that its changes are considered
+     * committed, and add its changes of the map sizes to the committed sizes.
+     * The counters of the changed maps are locked (in the order of the map
+     * ids) meanwhile.
+     *
+     * @param t the transaction
+     */
+    private void markCommitting(Transaction t) {
+        int count = t.getSizeChangeCount();
+        CommittedSize[] locked = new CommittedSize[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                CommittedSize committedSize = getCommittedSize(t.getSizeChangeMapId(i));
+                committedSize.lock.lock();
+                locked[i] = committedSize;
+                committedSize.add(t.getSizeChangeAt(i));
+            }
+            flipCommittingTransactionsBit(t.transactionId, true);
+        } finally {
+            for (int i = count - 1; i >= 0; i--) {
+                if (locked[i] != null) {
+                    locked[i].lock.unlock();
+                }
             }
         }
+        if (t.sizeChangesUnknown) {
+            sizeEpoch.incrementAndGet();
+        }
     }
 
     private void flipCommittingTransactionsBit(int transactionId, boolean flag) {
@@ -527,16 +855,12 @@ MVMap<Object, VersionedValue> openMap(int mapId) {
     void endTransaction(Transaction t, boolean hasChanges) {
         t.closeIt();
         int txId = t.transactionId;
+        assert transactions.get(txId) == t;
         transactions.set(txId, null);
-
-        boolean success;
-        do {
-            VersionedBitSet original = openTransactions.get();
-            assert original.get(txId);
-            VersionedBitSet clone = original.clone();
-            clone.clear(txId);
-            success = openTransactions.compareAndSet(original, clone);
-        } while(!success);
+        freeTransactionIds.add(txId);
+        if (t.hasUndoLog()) {
+            transactionsWithUndoLog.decrementAndGet();
+        }
 
         if (hasChanges) {
             boolean wasStored = t.wasStored;
@@ -547,7 +871,7 @@ void endTransaction(Transaction t, boolean hasChanges) {
             if (wasStored || store.getAutoCommitDelay() == 0) {
                 store.tryCommit();
             } else {
-                if (isUndoEmpty()) {
+                if (transactionsWithUndoLog.get() == 0) {
                     // to avoid having to store the transaction log,
                     // if there is no open transaction,
                     // and if there have been many changes, store them now
@@ -562,17 +886,6 @@ void endTransaction(Transaction t, boolean hasChanges) {
         }
     }
 
-    private boolean isUndoEmpty() {
-        BitSet openTrans = openTransactions.get();
-        for (int i = openTrans.nextSetBit(0); i >= 0; i = openTrans.nextSetBit(i + 1)) {
-            MVMap<Long, Object[]> undoLog = undoLogs[i];
-            if (undoLog != null && !undoLog.isEmpty()) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     Transaction getTransaction(int transactionId) {
         return transactions.get(transactionId);
     }
@@ -585,16 +898,61 @@ Transaction getTransaction(int transactionId) {
      * @param toLogId the log id to roll back to
      */
     void rollbackTo(Transaction t, long maxLogId, long toLogId) {
+        if (maxLogId <= toLogId) {
+            return;
+        }
         int transactionId = t.getId();
-        MVMap<Long, Object[]> undoLog = undoLogs[transactionId];
-        RollbackDecisionMaker decisionMaker = new RollbackDecisionMaker(this, transactionId, toLogId, t.listener);
-        for (long logId = maxLogId - 1; logId >= toLogId; logId--) {
-            Long undoKey = getOperationId(transactionId, logId);
-            undoLog.operate(undoKey, null, decisionMaker);
-            decisionMaker.reset();
+        MVMap<Long, Object[]> undoLog = undoLogs.get(transactionId);
+        RollbackDecisionMaker decisionMaker = new RollbackDecisionMaker(this, t, toLogId, t.listener);
+        // only this transaction changes its undo log
+        rollback(undoLog.getRootPage(), getOperationId(transactionId, toLogId),
+                getOperationId(transactionId, maxLogId - 1), decisionMaker);
+        // the undo log records are removed all at once afterwards, instead
+        // of one by one; if the rollback is interrupted, it is repeated, and
+        // the values that were restored already are not changed again
+        if (toLogId == 0) {
+            undoLog.clear();
+        } else {
+            undoLog.removeTail(getOperationId(transactionId, toLogId));
         }
     }
 
+    /**
+     * Roll back the changes of the undo log records in the given key range,
+     * in descending order of the keys. The pages are traversed directly, so
+     * that the keys don't need to be searched one by one.
+     *
+     * @param p the page of the undo log
+     * @param from the smallest key
+     * @param to the largest key
+     * @param decisionMaker the decision maker
+     */
+    private static void rollback(Page p, long from, long to, RollbackDecisionMaker decisionMaker) {
+        if (p.isLeaf()) {
+            int start = p.binarySearch(from);
+            if (start < 0) {
+                start = -start - 1;
+            }
+            int end = p.binarySearch(to);
+            if (end < 0) {
+                end = -end - 2;
+            }
+            for (int i = end; i >= start; i--) {
+                decisionMaker.rollback((Object[]) p.getValue(i));
+            }
+        } else {
+            int start = getChildIndex(p, from);
+            for (int i = getChildIndex(p, to); i >= start; i--) {
+                rollback(p.getChildPage(i), from, to, decisionMaker);
+            }
+        }
+    }
+
+    private static int getChildIndex(Page p, long key) {
+        int index = p.binarySearch(key);
+        return index < 0 ? -index - 1 : index + 1;
+    }
+
     /**
      * Get the changes of the given transaction, starting from the latest log id
      * back to the given log id.
@@ -607,7 +965,7 @@ void rollbackTo(Transaction t, long maxLogId, long toLogId) {
     Iterator<Change> getChanges(final Transaction t, final long maxLogId,
             final long toLogId) {
 
-        final MVMap<Long, Object[]> undoLog = undoLogs[t.getId()];
+        final MVMap<Long, Object[]> undoLog = undoLogs.get(t.getId());
         return new Iterator<Change>() {
 
             private long logId = maxLogId - 1;
@@ -721,6 +1079,75 @@ void onRollback(MVMap<Object,VersionedValue> map, Object key,
                         VersionedValue existingValue, VersionedValue restoredValue);
     }
 
+    /**
+     * The thread that applies the changes of lazily committed transactions.
+     */
+    private static final class CommitSweeper extends Thread {
+
+        /**
+         * The maximum time to wait for a commit, in milliseconds.
+         */
+        private static final int SLEEP = 1000;
+
+        private final Object sync = new Object();
+        private final TransactionStore transactionStore;
+        private volatile boolean stop;
+
+        CommitSweeper(TransactionStore transactionStore) {
+            super("MVStore commit sweeper " + transactionStore.store.getFileStore());
+            this.transactionStore = transactionStore;
+            setDaemon(true);
+        }
+
+        /**
+         * Notify the thread that there is a new lazily committed transaction.
+         */
+        void wakeUp() {
+            synchronized (sync) {
+                sync.notify();
+            }
+        }
+
+        /**
+         * Stop the thread and wait until it has stopped. The thread is not
+         * interrupted, as this would close the file channel.
+         */
+        void close() {
+            stop = true;
+            wakeUp();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!stop && !transactionStore.store.isClosed()) {
+                boolean applied;
+                try {
+                    applied = transactionStore.applyLazyCommit();
+                } catch (RuntimeException e) {
+                    // the transaction is closed anyway; if the store is
+                    // broken, it is closed, and the loop ends
+                    applied = true;
+                }
+                if (!applied) {
+                    synchronized (sync) {
+                        if (!stop && transactionStore.lazilyCommitted.isEmpty()) {
+                            try {
+                                sync.wait(SLEEP);
+                            } catch (InterruptedException ignore) {
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+    }
+
     /**
      * A data type that contains an array of objects with the specified data
      * types.
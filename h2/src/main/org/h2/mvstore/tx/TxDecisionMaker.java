@@ -18,6 +18,17 @@ public abstract class TxDecisionMaker extends MVMap.DecisionMaker<VersionedValue
     final Object                 value;
     private final Transaction    transaction;
     long                         undoKey;
+    /**
+     * The committed value of the entry before this change, as it was logged:
+     * if the existing entry belongs to a committing transaction, this is the
+     * value of that transaction, and not its committed value.
+     */
+    Object                       committedValue;
+    /**
+     * Whether the entry existed before this change, as seen by the
+     * transaction.
+     */
+    private       boolean        existed;
     private       long           lastOperationId;
     private       Transaction    blockingTransaction;
     private       MVMap.Decision decision;
@@ -88,11 +99,23 @@ public final MVMap.Decision getDecision() {
         return decision;
     }
 
+    /**
+     * Get the number of entries this change added to the map, as seen by the
+     * transaction, after the new value was put.
+     *
+     * @return 1 if an entry was added, -1 if one was removed, otherwise 0
+     */
+    long getSizeChange() {
+        return (value != null ? 1 : 0) - (existed ? 1 : 0);
+    }
+
     final Transaction getBlockingTransaction() {
         return blockingTransaction;
     }
 
     final void logIt(VersionedValue value) {
+        committedValue = value == null ? null : value.getCommittedValue();
+        existed = value != null && value.value != null;
         undoKey = transaction.log(mapId, key, value);
     }
 
@@ -127,8 +150,7 @@ public static class PutDecisionMaker extends TxDecisionMaker
         @SuppressWarnings("unchecked")
         @Override
         public final VersionedValue selectValue(VersionedValue existingValue, VersionedValue providedValue) {
-            return VersionedValue.getInstance(undoKey, value,
-                                                existingValue == null ? null : existingValue.getCommittedValue());
+            return VersionedValue.getInstance(undoKey, value, committedValue);
         }
     }
 
@@ -183,11 +205,16 @@ public static final class LockDecisionMaker extends TxDecisionMaker
             super(mapId, key, null, transaction);
         }
 
+        @Override
+        long getSizeChange() {
+            return 0;
+        }
+
         @SuppressWarnings("unchecked")
         @Override
         public VersionedValue selectValue(VersionedValue existingValue, VersionedValue providedValue) {
             assert existingValue != null;   // otherwise, what's there to lock?
-            return VersionedValue.getInstance(undoKey, existingValue.value, existingValue.getCommittedValue());
+            return VersionedValue.getInstance(undoKey, existingValue.value, committedValue);
         }
     }
 }
@@ -9,6 +9,8 @@
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.PriorityQueue;
 
 import org.h2.engine.Database;
 import org.h2.engine.Session;
@@ -38,6 +40,12 @@ public class LocalResult implements ResultInterface, ResultTarget {
     private ArrayList<Value[]> rows;
     private SortOrder sort;
     private ValueHashMap<Value[]> distinctRows;
+    /**
+     * The rows with the lowest sort order, if the result is sorted and the
+     * offset and limit are known before rows are added. The row that sorts
+     * last is at the head.
+     */
+    private PriorityQueue<Value[]> topRows;
     private Value[] currentRow;
     private int offset;
     private int limit = -1;
@@ -320,6 +328,11 @@ public void addRow(Value[] values) {
             }
             return;
         }
+        if (sort != null && limit > 0) {
+            if (addTopRow(values)) {
+                return;
+            }
+        }
         rows.add(values);
         rowCount++;
         if (rows.size() > maxMemoryRows) {
@@ -330,6 +343,31 @@ public void addRow(Value[] values) {
         }
     }
 
+    /**
+     * Add a row to the rows with the lowest sort order, so that only offset +
+     * limit rows need to be kept.
+     *
+     * @param values the row
+     * @return false if the rows that need to be kept don't fit in memory
+     */
+    private boolean addTopRow(Value[] values) {
+        long max = (long) Math.max(offset, 0) + limit;
+        if (topRows == null) {
+            if (max > maxMemoryRows || !rows.isEmpty()) {
+                return false;
+            }
+            topRows = new PriorityQueue<>((int) Math.min(max, 1024), Collections.reverseOrder(sort));
+        }
+        if (topRows.size() < max) {
+            topRows.add(values);
+        } else if (sort.compare(values, topRows.peek()) < 0) {
+            topRows.poll();
+            topRows.add(values);
+        }
+        rowCount = topRows.size();
+        return true;
+    }
+
     private void addRowsToDisk() {
         rowCount = external.addRows(rows);
         rows.clear();
@@ -344,6 +382,10 @@ public int getVisibleColumnCount() {
      * This method is called after all rows have been added.
      */
     public void done() {
+        if (topRows != null) {
+            rows = new ArrayList<>(topRows);
+            topRows = null;
+        }
         if (distinct) {
             if (distinctRows != null) {
                 rows = distinctRows.values();
@@ -45,7 +45,9 @@
 import org.h2.jdbc.JdbcSQLException;
 import org.h2.message.DbException;
 import org.h2.mvstore.FileStore;
+import org.h2.mvstore.db.MVTable;
 import org.h2.mvstore.db.MVTableEngine.Store;
+import org.h2.mvstore.tx.LockWaitHistogram;
 import org.h2.result.Row;
 import org.h2.result.SearchRow;
 import org.h2.result.SortOrder;
@@ -113,7 +115,8 @@ public class MetaTable extends Table {
     private static final int TABLE_CONSTRAINTS = 30;
     private static final int KEY_COLUMN_USAGE = 31;
     private static final int REFERENTIAL_CONSTRAINTS = 32;
-    private static final int META_TABLE_TYPE_COUNT = REFERENTIAL_CONSTRAINTS + 1;
+    private static final int LOCK_WAITS = 33;
+    private static final int META_TABLE_TYPE_COUNT = LOCK_WAITS + 1;
 
     private final int type;
     private final int indexColumn;
@@ -610,6 +613,16 @@ public MetaTable(Schema schema, int id, int type) {
             );
             break;
         }
+        case LOCK_WAITS: {
+            setObjectName("LOCK_WAITS");
+            cols = createColumns(
+                    "TABLE_SCHEMA",
+                    "TABLE_NAME",
+                    "MAX_WAIT_MILLIS BIGINT",
+                    "WAIT_COUNT BIGINT"
+            );
+            break;
+        }
         default:
             throw DbException.throwInternalError("type="+type);
         }
@@ -1090,6 +1103,10 @@ public ArrayList<Row> generateRows(Session session, SearchRow first,
                             Integer.toString(mvStore.getStore().getCacheSize()));
                     add(rows, "info.CACHE_SIZE",
                             Integer.toString(mvStore.getStore().getCacheSizeUsed()));
+                    add(rows, "info.GROUP_COMMIT_COUNT",
+                            Long.toString(mvStore.getGroupCommitCount()));
+                    add(rows, "info.GROUP_COMMIT_WRITE_COUNT",
+                            Long.toString(mvStore.getGroupCommitWriteCount()));
                 }
             }
             break;
@@ -2109,6 +2126,31 @@ public ArrayList<Row> generateRows(Session session, SearchRow first,
             }
             break;
         }
+        case LOCK_WAITS: {
+            for (Table table : getAllTables(session)) {
+                if (!(table instanceof MVTable) || hideTable(table, session)) {
+                    continue;
+                }
+                long[] counts = ((MVTable) table).getLockWaitCounts();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        continue;
+                    }
+                    long maxMillis = LockWaitHistogram.getBucketLimitMillis(i);
+                    add(rows,
+                            // TABLE_SCHEMA
+                            table.getSchema().getName(),
+                            // TABLE_NAME
+                            table.getName(),
+                            // MAX_WAIT_MILLIS
+                            maxMillis < 0 ? null : Long.toString(maxMillis),
+                            // WAIT_COUNT
+                            Long.toString(counts[i])
+                    );
+                }
+            }
+            break;
+        }
         default:
             DbException.throwInternalError("type="+type);
         }
@@ -2306,6 +2348,7 @@ public long getMaxDataModificationId() {
         case IN_DOUBT:
         case SESSIONS:
         case LOCKS:
+        case LOCK_WAITS:
         case SESSION_STATE:
             return Long.MAX_VALUE;
         }
@@ -13,6 +13,8 @@
 import org.h2.engine.Session;
 import org.h2.expression.Expression;
 import org.h2.expression.ExpressionVisitor;
+import org.h2.index.Index;
+import org.h2.index.ViewIndex;
 import org.h2.message.Trace;
 import org.h2.table.TableFilter.TableFilterVisitor;
 
@@ -110,6 +112,7 @@ public double calculateCost(Session session, AllColumnsForPlan allColumnsSet) {
             t.debug("Plan       : calculate cost for plan {0}", Arrays.toString(allFilters));
         }
         double cost = 1;
+        double rows = 1;
         boolean invalidPlan = false;
         for (int i = 0; i < allFilters.length; i++) {
             TableFilter tableFilter = allFilters[i];
@@ -117,12 +120,29 @@ public double calculateCost(Session session, AllColumnsForPlan allColumnsSet) {
                 t.debug("Plan       :   for table filter {0}", tableFilter);
             }
             PlanItem item = tableFilter.getBestPlanItem(session, allFilters, i, allColumnsSet);
+            if (i > 0 && (item.getIndex().getIndexType().isScan() ||
+                    item.getIndex() instanceof ViewIndex)) {
+                // there is no index for the join conditions
+                PlanItem hashJoinItem = tableFilter.getHashJoinPlanItem(session,
+                        allFilters, i, rows, allColumnsSet);
+                if (hashJoinItem != null && hashJoinItem.cost < item.cost) {
+                    item = hashJoinItem;
+                }
+            }
+            if (i > 0) {
+                Index mergeJoinIndex = tableFilter.getMergeJoinIndex(session,
+                        item.getIndex(), this);
+                if (mergeJoinIndex != null) {
+                    item.setIndex(mergeJoinIndex);
+                }
+            }
             planItems.put(tableFilter, item);
             if (t.isDebugEnabled()) {
                 t.debug("Plan       :   best plan item cost {0} index {1}",
                         item.cost, item.getIndex().getPlanSQL());
             }
             cost += cost * item.cost;
+            rows *= tableFilter.getRowCountEstimate();
             setEvaluatable(tableFilter, true);
             Expression on = tableFilter.getJoinCondition();
             if (on != null) {
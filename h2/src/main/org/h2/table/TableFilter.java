@@ -7,11 +7,13 @@
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import org.h2.api.ErrorCode;
 import org.h2.command.Parser;
 import org.h2.command.dml.AllColumnsForPlan;
 import org.h2.command.dml.Select;
+import org.h2.engine.DbObject;
 import org.h2.engine.Right;
 import org.h2.engine.Session;
 import org.h2.engine.SysProperties;
@@ -19,10 +21,14 @@
 import org.h2.expression.ConditionAndOr;
 import org.h2.expression.Expression;
 import org.h2.expression.ExpressionColumn;
+import org.h2.expression.ExpressionVisitor;
+import org.h2.index.HashJoinIndex;
 import org.h2.index.Index;
 import org.h2.index.IndexCondition;
 import org.h2.index.IndexCursor;
 import org.h2.index.IndexLookupBatch;
+import org.h2.index.MergeJoinIndex;
+import org.h2.index.ParallelScanIndex;
 import org.h2.index.ViewIndex;
 import org.h2.message.DbException;
 import org.h2.result.Row;
@@ -207,20 +213,7 @@ public PlanItem getBestPlanItem(Session s, TableFilter[] filters, int filter,
             item1.cost = item1.getIndex().getCost(s, null, filters, filter,
                     sortOrder, allColumnsSet);
         }
-        int len = table.getColumns().length;
-        int[] masks = new int[len];
-        for (IndexCondition condition : indexConditions) {
-            if (condition.isEvaluatable()) {
-                if (condition.isAlwaysFalse()) {
-                    masks = null;
-                    break;
-                }
-                int id = condition.getColumn().getColumnId();
-                if (id >= 0) {
-                    masks[id] |= condition.getMask(indexConditions);
-                }
-            }
-        }
+        int[] masks = getEvaluatableMasks();
         PlanItem item = table.getBestPlanItem(s, masks, filters, filter, sortOrder, allColumnsSet);
         item.setMasks(masks);
         // The more index conditions, the earlier the table.
@@ -252,6 +245,189 @@ public PlanItem getBestPlanItem(Session s, TableFilter[] filters, int filter,
         return item;
     }
 
+    /**
+     * Get a merge join index for this table, if the rows are looked up by the
+     * first column of the given index, and the table that provides the values
+     * is read in the order of that column. Then the lookups are made in
+     * ascending order, and the index does not need to be searched each time.
+     *
+     * @param s the session
+     * @param index the index that would be used otherwise
+     * @param plan the plan, with the plan items of the previous table filters
+     * @return the merge join index, or null if a merge join can not be used
+     */
+    public Index getMergeJoinIndex(Session s, Index index, Plan plan) {
+        if (joinOuter || !s.getDatabase().getSettings().optimizeMergeJoin ||
+                s.isJoinBatchEnabled() || index instanceof MergeJoinIndex) {
+            return null;
+        }
+        Column column = MergeJoinIndex.getOrderColumn(index);
+        if (column == null) {
+            return null;
+        }
+        for (IndexCondition condition : indexConditions) {
+            if (condition.getColumn() != column ||
+                    condition.getCompareType() != Comparison.EQUAL ||
+                    !condition.isEvaluatable()) {
+                continue;
+            }
+            Expression expr = condition.getExpression();
+            if (expr instanceof ExpressionColumn) {
+                ExpressionColumn c = (ExpressionColumn) expr;
+                PlanItem item = plan.getItem(c.getTableFilter());
+                if (item == null || c.getColumn() !=
+                        MergeJoinIndex.getOrderColumn(item.getIndex())) {
+                    continue;
+                }
+                int[] masks = item.getMasks();
+                if (masks == null || (masks[c.getColumn().getColumnId()] &
+                        IndexCondition.EQUALITY) == 0) {
+                    // otherwise there is only one value
+                    return new MergeJoinIndex(index, column);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the plan item for a hash join of this table, if possible. A hash
+     * join reads all rows of the table once per query, and then looks up
+     * rows by the columns that are compared for equality. The cost of reading
+     * the rows is spread over all lookups, so a hash join is cheaper the more
+     * often the table is looked up.
+     *
+     * @param s the session
+     * @param filters all joined table filters
+     * @param filter the current table filter index
+     * @param lookups the estimated number of rows of the table filters before
+     *            this one, that is, how often this table filter is looked up
+     * @param allColumnsSet the set of all columns
+     * @return the plan item, or null if a hash join can not be used
+     */
+    public PlanItem getHashJoinPlanItem(Session s, TableFilter[] filters,
+            int filter, double lookups, AllColumnsForPlan allColumnsSet) {
+        if (join != null || nestedJoin != null || joinOuter ||
+                indexHints != null || indexConditions.isEmpty() ||
+                !s.getDatabase().getSettings().optimizeHashJoin ||
+                s.isJoinBatchEnabled()) {
+            // batched joins look up rows in batches already
+            return null;
+        }
+        if (table.isView() && ((TableView) table).isRecursive()) {
+            return null;
+        }
+        if (hasConstantCondition()) {
+            // the hash table contains all rows, so a table that is
+            // restricted on its own is better processed before the others
+            return null;
+        }
+        int[] masks = getEvaluatableMasks();
+        if (masks == null) {
+            return null;
+        }
+        ArrayList<IndexColumn> columns = Utils.newSmallArrayList();
+        for (Column column : table.getColumns()) {
+            if (!HashJoinIndex.canHash(s.getDatabase(), column)) {
+                continue;
+            }
+            for (IndexCondition condition : indexConditions) {
+                int type = condition.getCompareType();
+                if (condition.getColumn() == column && condition.isEvaluatable() &&
+                        (type == Comparison.EQUAL || type == Comparison.EQUAL_NULL_SAFE)) {
+                    IndexColumn c = new IndexColumn();
+                    c.column = column;
+                    columns.add(c);
+                    break;
+                }
+            }
+        }
+        if (columns.isEmpty()) {
+            return null;
+        }
+        Index source = table.getScanIndex(s, null, filters, filter, null, allColumnsSet);
+        HashJoinIndex index = new HashJoinIndex(table,
+                columns.toArray(new IndexColumn[0]), source);
+        PlanItem item = new PlanItem();
+        item.setIndex(index);
+        item.setMasks(masks);
+        // building the hash table costs about twice as much as a scan
+        item.cost = index.getCost(s, masks, filters, filter, null, allColumnsSet) +
+                2 * source.getCost(s, null, filters, filter, null, allColumnsSet) /
+                Math.max(1, lookups);
+        return item;
+    }
+
+    /**
+     * Get the estimated number of rows of this table filter for each row of
+     * the table filters before it. Only the equality conditions that can be
+     * evaluated are used, with the selectivity of their columns.
+     *
+     * @return the estimated number of rows, at least 1
+     */
+    public double getRowCountEstimate() {
+        long rowCount = table.getRowCountApproximation();
+        int totalSelectivity = 0;
+        for (Column column : table.getColumns()) {
+            for (IndexCondition condition : indexConditions) {
+                if (condition.getColumn() == column && condition.isEvaluatable() &&
+                        (condition.getMask(indexConditions) &
+                        IndexCondition.EQUALITY) == IndexCondition.EQUALITY) {
+                    totalSelectivity = 100 - ((100 - totalSelectivity) *
+                            (100 - column.getSelectivity()) / 100);
+                    break;
+                }
+            }
+        }
+        if (totalSelectivity == 0) {
+            return Math.max(1, rowCount);
+        }
+        long distinctRows = Math.max(1, rowCount * totalSelectivity / 100);
+        return Math.max(1, rowCount / distinctRows);
+    }
+
+    private boolean hasConstantCondition() {
+        for (IndexCondition condition : indexConditions) {
+            Expression e = condition.getExpression();
+            if (e != null) {
+                if (isConstant(e)) {
+                    return true;
+                }
+            } else if (condition.getExpressionList() != null) {
+                boolean constant = true;
+                for (Expression e2 : condition.getExpressionList()) {
+                    constant &= isConstant(e2);
+                }
+                if (constant) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isConstant(Expression e) {
+        HashSet<DbObject> dependencies = new HashSet<>();
+        e.isEverything(ExpressionVisitor.getDependenciesVisitor(dependencies));
+        return dependencies.isEmpty();
+    }
+
+    private int[] getEvaluatableMasks() {
+        int[] masks = new int[table.getColumns().length];
+        for (IndexCondition condition : indexConditions) {
+            if (condition.isEvaluatable()) {
+                if (condition.isAlwaysFalse()) {
+                    return null;
+                }
+                int id = condition.getColumn().getColumnId();
+                if (id >= 0) {
+                    masks[id] |= condition.getMask(indexConditions);
+                }
+            }
+        }
+        return masks;
+    }
+
     /**
      * Set what plan item (index, cost, masks) to use.
      *
@@ -343,6 +519,7 @@ public void prepare() {
     public void startQuery(Session s) {
         this.session = s;
         scanCount = 0;
+        clearJoinIndex();
         if (nestedJoin != null) {
             nestedJoin.startQuery(s);
         }
@@ -351,6 +528,30 @@ public void startQuery(Session s) {
         }
     }
 
+    private void clearJoinIndex() {
+        if (index instanceof HashJoinIndex) {
+            ((HashJoinIndex) index).clear();
+        } else if (index instanceof MergeJoinIndex) {
+            ((MergeJoinIndex) index).clear();
+        } else if (index instanceof ParallelScanIndex) {
+            ((ParallelScanIndex) index).clear();
+        }
+    }
+
+    /**
+     * End the query. This will release the rows read for hash and merge
+     * joins, and stop reading rows using other threads.
+     */
+    public void endQuery() {
+        clearJoinIndex();
+        if (nestedJoin != null) {
+            nestedJoin.endQuery();
+        }
+        if (join != null) {
+            join.endQuery();
+        }
+    }
+
     /**
      * Reset to the current position.
      */
@@ -400,7 +601,7 @@ public JoinBatch prepareJoinBatch(JoinBatch jb, TableFilter[] filters, int filte
         assert filters[filter] == this;
         joinBatch = null;
         joinFilterId = -1;
-        if (getTable().isView()) {
+        if (index instanceof ViewIndex) {
             session.pushSubQueryInfo(masks, filters, filter, select.getSortOrder());
             try {
                 ((ViewIndex) index).getQuery().prepareJoinBatch();
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.bench;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+/**
+ * Measures the number of puts per second into one large in-memory MVMap, for
+ * different numbers of threads, where each thread writes to its own key
+ * range. Also prints the update failure ratio of the map during the run (the
+ * ratio of failed root updates to attempted root updates, see
+ * MVStore.getUpdateFailureRatio).
+ */
+public class BenchConcurrentMapWrite implements Runnable {
+
+    private static final int SIZE = 1_000_000;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16 };
+
+    private final MVMap<Integer, Integer> map;
+    private final int from;
+    private final int range;
+    private final long stopAt;
+    private final AtomicLong puts;
+
+    private BenchConcurrentMapWrite(MVMap<Integer, Integer> map, int from,
+            int range, long stopAt, AtomicLong puts) {
+        this.map = map;
+        this.from = from;
+        this.range = range;
+        this.stopAt = stopAt;
+        this.puts = puts;
+    }
+
+    /**
+     * Run just this test.
+     *
+     * @param args the command line parameters: the test time per run in
+     *            seconds (optional)
+     */
+    public static void main(String... args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        System.out.println("threads, puts/sec, update failure ratio");
+        for (int threadCount : THREAD_COUNTS) {
+            test(threadCount, seconds);
+        }
+    }
+
+    private static void test(int threadCount, int seconds) throws Exception {
+        MVStore s = MVStore.open(null);
+        MVMap<Integer, Integer> map = s.openMap("data");
+        for (int i = 0; i < SIZE; i++) {
+            map.put(i, i);
+        }
+        MVMap.RootReference before = map.getRoot();
+        AtomicLong puts = new AtomicLong();
+        long start = System.nanoTime();
+        long stopAt = start + seconds * 1_000_000_000L;
+        int range = SIZE / threadCount;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(new BenchConcurrentMapWrite(map, i * range,
+                    range, stopAt, puts), "BenchConcurrentMapWrite-" + i);
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - start;
+        MVMap.RootReference after = map.getRoot();
+        long updates = after.updateCounter - before.updateCounter;
+        long attempts = after.updateAttemptCounter - before.updateAttemptCounter;
+        double failureRatio = attempts == 0 ? 0 : 1 - (double) updates / attempts;
+        System.out.println(threadCount + ", " +
+                puts.get() * 1_000_000_000L / nanos + ", " +
+                String.format("%.4f", failureRatio));
+        s.close();
+    }
+
+    @Override
+    public void run() {
+        Random random = new Random(from);
+        long count = 0;
+        while (System.nanoTime() < stopAt) {
+            for (int i = 0; i < 100; i++) {
+                map.put(from + random.nextInt(range), i);
+            }
+            count += 100;
+        }
+        puts.addAndGet(count);
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.bench;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import org.h2.store.fs.FileUtils;
+
+/**
+ * Measures the number of commits per second of many small concurrent
+ * transactions, for different numbers of threads (one connection per
+ * thread), with and without group commit. Similar to BenchB, each
+ * transaction updates an account and inserts a history row.
+ */
+public class BenchGroupCommit implements Runnable {
+
+    private static final String DIR = "data/benchGroupCommit";
+
+    private static final int ACCOUNTS = 10000;
+
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32, 64 };
+
+    private static final String[][] MODES = {
+            { "WRITE_DELAY=0 (no sync)", ";WRITE_DELAY=0" },
+            { "GROUP_COMMIT", ";GROUP_COMMIT=TRUE" },
+            { "GROUP_COMMIT, window 1 ms",
+                    ";GROUP_COMMIT=TRUE;GROUP_COMMIT_WINDOW=1000" },
+    };
+
+    private final String url;
+    private final long stopAt;
+    private final AtomicLong commits;
+    private final int seed;
+
+    private BenchGroupCommit(String url, long stopAt, AtomicLong commits,
+            int seed) {
+        this.url = url;
+        this.stopAt = stopAt;
+        this.commits = commits;
+        this.seed = seed;
+    }
+
+    /**
+     * Run just this test.
+     *
+     * @param args the command line parameters: the test time per run in
+     *            seconds (optional)
+     */
+    public static void main(String... args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        org.h2.Driver.load();
+        StringBuilder buff = new StringBuilder("threads");
+        for (String[] mode : MODES) {
+            buff.append(", ").append(mode[0]);
+        }
+        System.out.println("commits/sec");
+        System.out.println(buff);
+        for (int threadCount : THREAD_COUNTS) {
+            buff = new StringBuilder().append(threadCount);
+            for (String[] mode : MODES) {
+                long perSecond = test("jdbc:h2:./" + DIR + "/test" + mode[1],
+                        threadCount, seconds);
+                buff.append(", ").append(perSecond);
+            }
+            System.out.println(buff);
+        }
+        FileUtils.deleteRecursive(DIR, false);
+    }
+
+    private static long test(String url, int threadCount, int seconds)
+            throws Exception {
+        FileUtils.deleteRecursive(DIR, false);
+        Connection conn = DriverManager.getConnection(url);
+        Statement stat = conn.createStatement();
+        stat.execute("create table accounts(aid int primary key, abalance int)");
+        stat.execute("create table history(aid int, delta int)");
+        stat.execute("insert into accounts select x, 0 from system_range(1, " +
+                ACCOUNTS + ")");
+        AtomicLong commits = new AtomicLong();
+        long start = System.nanoTime();
+        long stopAt = start + seconds * 1_000_000_000L;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(new BenchGroupCommit(url, stopAt, commits, i),
+                    "BenchGroupCommit-" + i);
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - start;
+        ResultSet rs = stat.executeQuery("select count(*) from history");
+        rs.next();
+        if (rs.getLong(1) != commits.get()) {
+            throw new AssertionError(rs.getLong(1) + " != " + commits.get());
+        }
+        conn.close();
+        return commits.get() * 1_000_000_000L / nanos;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Connection conn = DriverManager.getConnection(url);
+            conn.setAutoCommit(false);
+            PreparedStatement updateAccount = conn.prepareStatement(
+                    "update accounts set abalance = abalance + ? where aid = ?");
+            PreparedStatement insertHistory = conn.prepareStatement(
+                    "insert into history values(?, ?)");
+            Random random = new Random(seed);
+            while (System.nanoTime() < stopAt) {
+                int account = 1 + random.nextInt(ACCOUNTS);
+                int delta = random.nextInt(1000);
+                try {
+                    updateAccount.setInt(1, delta);
+                    updateAccount.setInt(2, account);
+                    updateAccount.executeUpdate();
+                    insertHistory.setInt(1, account);
+                    insertHistory.setInt(2, delta);
+                    insertHistory.executeUpdate();
+                    conn.commit();
+                    commits.incrementAndGet();
+                } catch (SQLException e) {
+                    // concurrent update of the same account
+                    conn.rollback();
+                }
+            }
+            conn.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
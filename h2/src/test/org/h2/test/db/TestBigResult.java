@@ -48,6 +48,8 @@ public void test() throws SQLException {
         testLargeUpdateDelete();
         testCloseConnectionDelete();
         testOrderGroup();
+        testGroupBy();
+        testSortedLimit();
         testLimitBufferedResult();
         deleteDb("bigResult");
     }
@@ -419,6 +421,72 @@ private void testLimitBufferedResult() throws SQLException {
         conn.close();
     }
 
+    private void testGroupBy() throws SQLException {
+        deleteDb("bigResult");
+        Connection conn = getConnection("bigResult");
+        Statement stat = conn.createStatement();
+        stat.execute("CREATE TABLE TEST(ID INT PRIMARY KEY, G INT, H VARCHAR, V INT)");
+        stat.execute("INSERT INTO TEST SELECT X, MOD(X, 97), 'H' || MOD(X, 5), MOD(X * 7, 13) "
+                + "FROM SYSTEM_RANGE(1, 2000)");
+        String[] queries = {
+                "SELECT G, COUNT(*), COUNT(V), SUM(V), MIN(V), MAX(V), AVG(V), "
+                        + "ROUND(STDDEV_POP(V), 6), ROUND(VAR_SAMP(V), 6), BIT_OR(V), BOOL_AND(V > 0) FROM TEST GROUP BY G",
+                "SELECT G, H, COUNT(DISTINCT V), SUM(DISTINCT V), MIN(ID) FROM TEST GROUP BY G, H",
+                "SELECT G, MEDIAN(V), HISTOGRAM(V), ARRAY_LENGTH(ARRAY_AGG(ID)), "
+                        + "GROUP_CONCAT(DISTINCT V ORDER BY V) FROM TEST GROUP BY G",
+                "SELECT G, MAX(H), SUM(ID) FROM TEST GROUP BY G HAVING SUM(V) > 100",
+                "SELECT DISTINCT H, COUNT(*) FROM TEST GROUP BY G, H",
+                "SELECT COUNT(*), SUM(V) FROM TEST WHERE G < 0",
+        };
+        for (String query : queries) {
+            String sql = "SELECT * FROM (" + query + ") ORDER BY 1, 2";
+            stat.execute("SET MAX_MEMORY_ROWS 1000000");
+            String expected = getResult(stat.executeQuery(sql));
+            for (int maxRows : new int[] { 0, 1, 10, 50 }) {
+                stat.execute("SET MAX_MEMORY_ROWS " + maxRows);
+                assertEquals(query, expected, getResult(stat.executeQuery(sql)));
+            }
+        }
+        conn.close();
+    }
+
+    private void testSortedLimit() throws SQLException {
+        deleteDb("bigResult");
+        Connection conn = getConnection("bigResult");
+        Statement stat = conn.createStatement();
+        stat.execute("CREATE TABLE TEST(ID INT PRIMARY KEY, V INT, N VARCHAR)");
+        stat.execute("INSERT INTO TEST SELECT X, CASEWHEN(MOD(X, 11) = 0, NULL, MOD(X * 37, 101)), "
+                + "'N' || X FROM SYSTEM_RANGE(1, 1000)");
+        stat.execute("SET MAX_MEMORY_ROWS 100");
+        String[] orders = { "V, ID", "V DESC, ID", "V NULLS LAST, ID DESC" };
+        for (String order : orders) {
+            String all = getResult(stat.executeQuery("SELECT * FROM TEST ORDER BY " + order));
+            String[] rows = all.split("\n");
+            for (int[] p : new int[][] { { 1, 0 }, { 10, 0 }, { 50, 20 }, { 100, 0 }, { 70, 40 },
+                    { 200, 5 }, { 10, 995 }, { 10, 2000 } }) {
+                int limit = p[0], offset = p[1];
+                StringBuilder buff = new StringBuilder();
+                for (int i = offset; i < offset + limit && i < rows.length; i++) {
+                    buff.append(rows[i]).append('\n');
+                }
+                String sql = "SELECT * FROM TEST ORDER BY " + order + " LIMIT " + limit + " OFFSET " + offset;
+                assertEquals(sql, buff.toString(), getResult(stat.executeQuery(sql)));
+            }
+        }
+        conn.close();
+    }
+
+    private static String getResult(ResultSet rs) throws SQLException {
+        StringBuilder buff = new StringBuilder();
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(i < columnCount ? ", " : "\n");
+            }
+        }
+        return buff.toString();
+    }
+
     private void testOrderGroup() throws SQLException {
         deleteDb("bigResult");
         Connection conn = getConnection("bigResult");
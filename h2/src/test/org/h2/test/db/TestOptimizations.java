@@ -64,6 +64,9 @@ public void test() throws Exception {
         testInSelectJoin();
         testMinMaxNullOptimization();
         testUseCoveringIndex();
+        testHashJoin();
+        testMergeJoin();
+        testParallelScan();
         // testUseIndexWhenAllColumnsNotInOrderBy();
         if (config.networked) {
             return;
@@ -1170,11 +1173,226 @@ private void testUseCoveringIndex() throws SQLException {
                 "FROM table_b b JOIN table_a a ON b.table_a_id = a.id GROUP BY b.table_a_id " +
                 "HAVING A.ACTIVE = TRUE");
         rs.next();
-        assertContains(rs.getString(1), "/* PUBLIC.TABLE_B_IDX: TABLE_A_ID = A.ID */");
+        assertContains(rs.getString(1), "/* mergeJoin(PUBLIC.TABLE_B_IDX): TABLE_A_ID = A.ID */");
 
         rs = stat.executeQuery("EXPLAIN ANALYZE SELECT MAX(id) FROM table_b GROUP BY table_a_id");
         rs.next();
         assertContains(rs.getString(1), "/* PUBLIC.TABLE_B_IDX");
         conn.close();
     }
+
+    private void testHashJoin() throws SQLException {
+        deleteDb("optimizations");
+        Connection conn = getConnection("optimizations");
+        Statement stat = conn.createStatement();
+        stat.execute("create table a(id int primary key, v int, name varchar)");
+        stat.execute("create table b(id int primary key, v int)");
+        stat.execute("insert into a select x, mod(x, 100), 'a' || x " +
+                "from system_range(1, 2000)");
+        stat.execute("insert into b select x, mod(x, 50) from system_range(1, 1000)");
+        stat.execute("insert into a values(2001, null, null)");
+        stat.execute("insert into b values(1001, null)");
+        long[] expected = new long[3], expected2 = new long[3];
+        for (int x = 1; x <= 2000; x++) {
+            for (int y = 1; y <= 1000; y++) {
+                if (x % 100 == y % 50) {
+                    expected[0]++;
+                    expected[1] += x;
+                    expected[2] += y;
+                    if (x == y) {
+                        expected2[0]++;
+                        expected2[1] += x;
+                        expected2[2] += y;
+                    }
+                }
+            }
+        }
+        String sql = "select count(*), sum(a.id), sum(b.id) " +
+                "from a inner join b on a.v = b.v";
+        ResultSet rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertContains(rs.getString(1), "hashJoin(");
+        checkJoin(stat, sql, expected);
+        // a view can not be indexed
+        checkJoin(stat, "select count(*), sum(a.id), sum(b.id) " +
+                "from a inner join (select id, v from b where id > 0) b " +
+                "on a.v = b.v", expected);
+        // multiple join columns
+        checkJoin(stat, "select count(*), sum(a.id), sum(b.id) " +
+                "from a inner join b on a.v = b.v and a.id = b.id", expected2);
+        // the rows are moved to a temporary file
+        stat.execute("set max_memory_rows 100");
+        checkJoin(stat, sql, expected);
+        conn.close();
+        deleteDb("optimizations");
+        // with a collation, different strings may be equal
+        conn = getConnection("optimizations");
+        stat = conn.createStatement();
+        stat.execute("set collation english strength primary");
+        stat.execute("create table a(id int primary key, name varchar_ignorecase)");
+        stat.execute("create table b(id int primary key, name varchar_ignorecase)");
+        stat.execute("insert into a select x, case when mod(x, 2) = 0 " +
+                "then 'a' else 'A' end || x from system_range(1, 200)");
+        stat.execute("insert into b select x, case when mod(x, 2) = 0 " +
+                "then '\u00e1' else 'a' end || x from system_range(1, 200)");
+        sql = "select count(*) from a inner join b on a.name = b.name";
+        rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertFalse(rs.getString(1).contains("hashJoin("));
+        rs = stat.executeQuery(sql);
+        rs.next();
+        assertEquals(200, rs.getInt(1));
+        conn.close();
+        deleteDb("optimizations");
+    }
+
+    private void checkJoin(Statement stat, String sql, long[] expected)
+            throws SQLException {
+        ResultSet rs = stat.executeQuery(sql);
+        rs.next();
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], rs.getLong(i + 1));
+        }
+    }
+
+    private void testMergeJoin() throws SQLException {
+        deleteDb("optimizations");
+        Connection conn = getConnection("optimizations");
+        Statement stat = conn.createStatement();
+        stat.execute("create table a(id int primary key, v int)");
+        stat.execute("create table b(id int primary key, a_id int, k int)");
+        stat.execute("create index b_a_id on b(a_id)");
+        stat.execute("create index b_k on b(k)");
+        stat.execute("insert into a select x, mod(x, 10) from system_range(1, 2000)");
+        stat.execute("insert into b select x, mod(x * 7, 1000), mod(x, 300) " +
+                "from system_range(1, 3000)");
+        stat.execute("insert into b values(3001, null, null)");
+        long[] expected = new long[3], expected2 = new long[3];
+        for (int x = 1; x <= 3000; x++) {
+            int aId = x * 7 % 1000;
+            if (aId != 0) {
+                expected[0]++;
+                expected[1] += aId;
+                expected[2] += x % 300;
+                int r = Math.min(3, aId - 1);
+                expected2[0] += r;
+                expected2[1] += r * aId;
+                expected2[2] += r * (x % 300);
+            }
+        }
+        // b.k is not in the index
+        String sql = "select count(*), sum(a.id), sum(b.k) " +
+                "from a inner join b on b.a_id = a.id";
+        ResultSet rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertContains(rs.getString(1), "mergeJoin(PUBLIC.B_A_ID)");
+        checkJoin(stat, sql, expected);
+        // the join keys start again for each row of the first table
+        checkJoin(stat, "select count(*), sum(a.id), sum(b.k) " +
+                "from system_range(1, 3) r inner join a on a.id > r.x " +
+                "inner join b on b.a_id = a.id", expected2);
+        // duplicate keys on both sides
+        expected = new long[2];
+        for (int x = 1; x <= 3000; x++) {
+            for (int y = 1; y <= 3000; y++) {
+                if (x % 300 == y % 300 && x % 300 > 0) {
+                    expected[0]++;
+                    expected[1] += x;
+                }
+            }
+        }
+        sql = "select count(*), sum(b1.id) from b b1 " +
+                "inner join b b2 on b2.k = b1.k where b1.k > 0";
+        rs = stat.executeQuery("explain " + sql);
+        rs.next();
+        assertContains(rs.getString(1), "mergeJoin(PUBLIC.B_K)");
+        checkJoin(stat, sql, expected);
+        conn.close();
+        deleteDb("optimizations");
+    }
+
+    private void testParallelScan() throws SQLException {
+        deleteDb("optimizations");
+        Connection conn = getConnection("optimizations");
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, v int, n varchar)");
+        stat.execute("insert into test select x, mod(x * 37, 1000), " +
+                "casewhen(mod(x, 7) = 0, null, 'n' || mod(x, 100)) " +
+                "from system_range(1, 30000)");
+        String[] queries = {
+                "select id from test where v = 7",
+                "select id, n from test where v < 20 and n > 'n5' and id > 100",
+                "select id from test where n is null and v between 10 and 30",
+                "select count(*), sum(id) from test where v <> 3 and n is not null",
+                "select n, count(*) from test where v >= 990 group by n order by n",
+                "select id from test where v = 7 or n = 'n3'",
+                "select id from test where v = 7 limit 5",
+                "select id from test where v = null",
+                "select count(*), count(n), sum(v), avg(v), min(n), max(id) from test",
+                "select sum(id) s, min(v) from test where v > 10 and n < 'n5'",
+                "select count(n), max(n) from test where v > 1000",
+                "select count(*), sum(v) from test where v = 7 or n = 'n3'",
+                "select count(distinct v), sum(v) from test where id > 100",
+        };
+        String[] expected = new String[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            expected[i] = getResult(stat, queries[i]);
+        }
+        stat.execute("set max_parallelism 4");
+        if (config.mvStore) {
+            ResultSet rs = stat.executeQuery("explain " + queries[0]);
+            rs.next();
+            assertContains(rs.getString(1), "parallelScan(PUBLIC.TEST.tableScan)");
+            // the aggregates are computed for parts of the table
+            rs = stat.executeQuery("explain select sum(v) from test");
+            rs.next();
+            assertContains(rs.getString(1), "parallelScan(PUBLIC.TEST.tableScan)");
+        }
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(queries[i], expected[i], getResult(stat, queries[i]));
+        }
+        assertThrows(ErrorCode.DATA_CONVERSION_ERROR_1, stat).
+                executeQuery("select count(*) from test where n = 5");
+        PreparedStatement prep = conn.prepareStatement(
+                "select count(*) from test where v = ?");
+        prep.setInt(1, 7);
+        ResultSet rs = prep.executeQuery();
+        rs.next();
+        assertEquals(30, rs.getInt(1));
+        if (config.mvStore) {
+            // rows of other open transactions are not visible
+            Connection conn2 = getConnection("optimizations");
+            conn2.setAutoCommit(false);
+            Statement stat2 = conn2.createStatement();
+            stat2.execute("set max_parallelism 4");
+            stat2.execute("insert into test values(30001, 7, 'x'), (30002, 7, 'y')");
+            stat2.execute("update test set v = 8 where id = (select min(id) from test where v = 7)");
+            rs = stat2.executeQuery("select count(*) from test where v = 7");
+            rs.next();
+            assertEquals(31, rs.getInt(1));
+            rs = prep.executeQuery();
+            rs.next();
+            assertEquals(30, rs.getInt(1));
+            conn2.commit();
+            rs = prep.executeQuery();
+            rs.next();
+            assertEquals(31, rs.getInt(1));
+            conn2.close();
+        }
+        conn.close();
+        deleteDb("optimizations");
+    }
+
+    private static String getResult(Statement stat, String sql) throws SQLException {
+        ResultSet rs = stat.executeQuery(sql);
+        StringBuilder buff = new StringBuilder();
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            for (int i = 1; i <= columnCount; i++) {
+                buff.append(rs.getString(i)).append(i < columnCount ? ", " : "\n");
+            }
+        }
+        return buff.toString();
+    }
+
 }
@@ -1118,6 +1118,8 @@ private void testGeneral() throws SQLException {
         rs.next();
         assertEquals("LOCKS", rs.getString("TABLE_NAME"));
         rs.next();
+        assertEquals("LOCK_WAITS", rs.getString("TABLE_NAME"));
+        rs.next();
         assertEquals("QUERY_STATISTICS", rs.getString("TABLE_NAME"));
         rs.next();
         assertEquals("REFERENTIAL_CONSTRAINTS", rs.getString("TABLE_NAME"));
@@ -43,6 +43,7 @@ private void testCache() {
         testLimitNonResident();
         testLimitMemory();
         testScanResistance();
+        testPutCold();
         testRandomOperations();
     }
 
@@ -407,6 +408,52 @@ private void testScanResistance() {
         }
     }
 
+    private void testPutCold() {
+        CacheLongKeyLIRS<Integer> test = createCache(4);
+        for (int i = 0; i < 4; i++) {
+            test.put(i, 10 * i);
+        }
+        verify(test, "mem: 4 stack: 3 2 1 0 cold: non-resident:");
+        // an existing entry is not replaced
+        assertFalse(test.putCold(3, 99, 1));
+        assertEquals(30, test.peek(3).intValue());
+        // cold entries that are added this way are evicted first
+        assertTrue(test.putCold(10, 100, 1));
+        verify(test, "mem: 4 stack: 3 2 1 cold: 10 non-resident: 0");
+        assertTrue(test.putCold(11, 110, 1));
+        verify(test, "mem: 4 stack: 3 2 1 cold: 11 non-resident: 10 0");
+        // unless they are accessed
+        assertEquals(110, test.get(11).intValue());
+        assertEquals(110, test.get(11).intValue());
+        test.put(12, 120);
+        verify(test, "mem: 4 stack: 12 11 3 2 cold: 12 non-resident: 1 10 0");
+        assertNull(test.peek(10));
+        assertEquals(110, test.peek(11).intValue());
+
+        // mixed with other operations
+        Random r = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            test = createCache(1 + r.nextInt(10));
+            for (int j = 0; j < 50; j++) {
+                int key = r.nextInt(20);
+                switch (r.nextInt(4)) {
+                case 0:
+                    test.put(key, j, r.nextInt(3) + 1);
+                    break;
+                case 1:
+                    test.putCold(key, j, r.nextInt(3) + 1);
+                    break;
+                case 2:
+                    test.remove(key);
+                    break;
+                default:
+                    test.get(key);
+                }
+                verify(test, null);
+            }
+        }
+    }
+
     private void testRandomOperations() {
         boolean log = false;
         int size = 10;
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+import org.h2.mvstore.cache.CacheLongKeyOffHeap;
+import org.h2.test.TestBase;
+
+/**
+ * Tests the off-heap cache.
+ */
+public class TestCacheLongKeyOffHeap extends TestBase {
+
+    /**
+     * Run just this test.
+     *
+     * @param a ignored
+     */
+    public static void main(String... a) throws Exception {
+        TestBase.createCaller().init().test();
+    }
+
+    @Override
+    public void test() throws Exception {
+        testEdgeCases();
+        testGetPutRemove();
+        testEviction();
+        testRandomOperations();
+    }
+
+    private void testEdgeCases() {
+        try {
+            new CacheLongKeyOffHeap(0, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new CacheLongKeyOffHeap(1024, 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        CacheLongKeyOffHeap test = new CacheLongKeyOffHeap(4 * 1024, 1);
+        try {
+            test.put(0, 0, createData(1, 10));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // too large
+        assertFalse(test.put(1, 0, createData(1, 2000)));
+        assertEquals(0, test.size());
+        assertNull(test.get(1, 0));
+    }
+
+    private void testGetPutRemove() {
+        CacheLongKeyOffHeap test = new CacheLongKeyOffHeap(1024 * 1024, 4);
+        assertEquals(0, test.getAllocatedMemory());
+        ByteBuffer data = createData(1, 100);
+        data.position(10);
+        assertTrue(test.put(1, 5, data));
+        // the position is not changed
+        assertEquals(10, data.position());
+        assertTrue(test.containsKey(1));
+        assertEquals(1, test.size());
+        assertEquals(12 + 90, test.getUsedMemory());
+        assertTrue(test.getAllocatedMemory() > 0);
+        ByteBuffer buff = test.get(1, 5);
+        assertEquals(90, buff.remaining());
+        assertEquals(data, buff);
+        assertEquals(1, test.getHits());
+
+        // replace
+        assertTrue(test.put(1, 6, createData(2, 20)));
+        assertEquals(1, test.size());
+        assertEquals(12 + 20, test.getUsedMemory());
+        assertEquals(createData(2, 20), test.get(1, 6));
+
+        // a different stamp means the entry is outdated
+        assertNull(test.get(1, 5));
+        assertFalse(test.containsKey(1));
+        assertEquals(0, test.size());
+        assertEquals(0, test.getUsedMemory());
+        assertEquals(1, test.getMisses());
+
+        test.put(2, 0, createData(3, 10));
+        test.remove(2);
+        test.remove(3);
+        assertNull(test.get(2, 0));
+        assertEquals(0, test.size());
+
+        test.put(4, 0, createData(4, 10));
+        test.clear();
+        assertEquals(0, test.size());
+        assertEquals(0, test.getAllocatedMemory());
+        assertNull(test.get(4, 0));
+    }
+
+    private void testEviction() {
+        // one segment with 4 blocks of 1 KB
+        int blockSize = 1024;
+        CacheLongKeyOffHeap test = new CacheLongKeyOffHeap(4 * blockSize, 1);
+        // 8 entries per block
+        int len = blockSize / 8 - 12;
+        for (int i = 1; i <= 32; i++) {
+            assertTrue(test.put(i, i, createData(i, len)));
+        }
+        assertEquals(32, test.size());
+        assertEquals(4 * blockSize, test.getUsedMemory());
+        // the first block is re-used, so the oldest entries are removed
+        assertTrue(test.put(33, 33, createData(33, len)));
+        assertEquals(25, test.size());
+        for (int i = 1; i <= 8; i++) {
+            assertNull(test.get(i, i));
+        }
+        for (int i = 9; i <= 33; i++) {
+            assertEquals(createData(i, len), test.get(i, i));
+        }
+        assertEquals(3 * blockSize + 12 + len, test.getUsedMemory());
+        assertEquals(4 * blockSize, test.getAllocatedMemory());
+    }
+
+    private void testRandomOperations() {
+        Random r = new Random(1);
+        for (int j = 0; j < 20; j++) {
+            CacheLongKeyOffHeap test = new CacheLongKeyOffHeap(
+                    1024 + r.nextInt(16 * 1024), 1 << r.nextInt(3));
+            HashMap<Long, Integer> good = new HashMap<>();
+            for (int i = 0; i < 10000; i++) {
+                long key = 1 + r.nextInt(200);
+                switch (r.nextInt(4)) {
+                case 0:
+                case 1: {
+                    int len = r.nextInt(200);
+                    if (test.put(key, key, createData(i, len))) {
+                        good.put(key, i);
+                    } else {
+                        good.remove(key);
+                    }
+                    break;
+                }
+                case 2:
+                    test.remove(key);
+                    good.remove(key);
+                    break;
+                default: {
+                    ByteBuffer buff = test.get(key, key);
+                    Integer seed = good.get(key);
+                    if (buff != null) {
+                        // entries may have been evicted, but must never
+                        // return the wrong data
+                        assertNotNull(seed);
+                        assertEquals(createData(seed, buff.remaining()), buff);
+                    }
+                }
+                }
+                assertTrue(test.getUsedMemory() <= test.getMaxMemory());
+                assertTrue(test.size() <= good.size());
+            }
+        }
+    }
+
+    private static ByteBuffer createData(int seed, int len) {
+        ByteBuffer buff = ByteBuffer.allocate(len);
+        Random r = new Random(seed);
+        r.nextBytes(buff.array());
+        return buff;
+    }
+
+}
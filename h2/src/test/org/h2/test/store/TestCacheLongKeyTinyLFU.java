@@ -0,0 +1,290 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.cache.CacheLongKey;
+import org.h2.mvstore.cache.CacheLongKeyLIRS;
+import org.h2.mvstore.cache.CacheLongKeyTinyLFU;
+import org.h2.test.TestBase;
+import org.h2.util.Task;
+
+/**
+ * Tests the lock-free cache with the TinyLFU admission policy.
+ */
+public class TestCacheLongKeyTinyLFU extends TestBase {
+
+    /**
+     * Run just this test.
+     *
+     * @param a ignored
+     */
+    public static void main(String... a) throws Exception {
+        TestBase.createCaller().init().test();
+    }
+
+    @Override
+    public void test() throws Exception {
+        testEdgeCases();
+        testGetPutRemove();
+        testMemory();
+        testPutCold();
+        testScanResistance();
+        testConcurrent();
+        testMVStore();
+    }
+
+    private void testEdgeCases() {
+        try {
+            new CacheLongKeyTinyLFU<Integer>(0, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new CacheLongKeyTinyLFU<Integer>(1024, 3);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        CacheLongKeyTinyLFU<Integer> test = new CacheLongKeyTinyLFU<>(1600, 1);
+        try {
+            test.put(1, null, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(100, test.getMaxItemSize());
+        // too large
+        assertNull(test.put(1, 10, 101));
+        assertEquals(0, test.size());
+        assertFalse(test.putCold(1, 10, 101));
+        assertEquals(0, test.size());
+        // replacing with a value that is too large removes the entry
+        test.put(1, 10, 1);
+        assertEquals(10, test.put(1, 20, 101).intValue());
+        assertNull(test.get(1));
+        assertEquals(0, test.getUsedMemory());
+    }
+
+    private void testGetPutRemove() {
+        CacheLongKeyTinyLFU<Integer> test = new CacheLongKeyTinyLFU<>(1000, 4);
+        assertNull(test.get(1));
+        assertEquals(0, test.getHits());
+        assertEquals(1, test.getMisses());
+        assertNull(test.put(1, 10, 5));
+        assertTrue(test.containsKey(1));
+        assertEquals(10, test.get(1).intValue());
+        assertEquals(1, test.getHits());
+        assertEquals(5, test.getUsedMemory());
+        assertEquals(10, test.put(1, 11, 7).intValue());
+        assertEquals(11, test.get(1).intValue());
+        assertEquals(7, test.getUsedMemory());
+        assertEquals(1, test.size());
+        assertEquals(11, test.remove(1).intValue());
+        assertNull(test.remove(1));
+        assertFalse(test.containsKey(1));
+        assertEquals(0, test.getUsedMemory());
+        assertEquals(0, test.size());
+        for (int i = 0; i < 10; i++) {
+            test.put(i, i, 1);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, test.get(i).intValue());
+        }
+        test.clear();
+        assertEquals(0, test.size());
+        assertEquals(0, test.getUsedMemory());
+        assertEquals(0, test.getHits());
+        assertEquals(0, test.getMisses());
+        assertNull(test.get(1));
+    }
+
+    private void testMemory() {
+        CacheLongKeyTinyLFU<Integer> test = new CacheLongKeyTinyLFU<>(1000, 1);
+        Random r = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            int key = r.nextInt(500);
+            switch (r.nextInt(4)) {
+            case 0:
+                test.remove(key);
+                break;
+            case 1:
+                test.get(key);
+                break;
+            default:
+                test.put(key, key, 1 + r.nextInt(50));
+            }
+            assertTrue(test.getUsedMemory() <= 1000);
+        }
+        // reducing the maximum memory evicts entries immediately
+        test.setMaxMemory(100);
+        assertTrue(test.getUsedMemory() <= 100);
+        assertEquals(100, test.getMaxMemory());
+        test.setMaxMemory(1000);
+        for (int i = 0; i < 1000; i++) {
+            test.put(i, i, 1);
+        }
+        assertEquals(1000, test.getUsedMemory());
+        assertEquals(1000, test.size());
+    }
+
+    private void testPutCold() {
+        CacheLongKeyTinyLFU<Integer> test = new CacheLongKeyTinyLFU<>(1000, 1);
+        for (int i = 0; i < 1000; i++) {
+            test.put(i, i, 1);
+            test.get(i);
+        }
+        assertTrue(test.putCold(1000, 1000, 1));
+        assertFalse(test.putCold(1000, 1000, 1));
+        assertFalse(test.putCold(1, 1, 1));
+        assertEquals(1000, test.size());
+        // entries that are read ahead but not used do not replace
+        // entries that were used
+        for (int i = 1001; i < 2000; i++) {
+            test.putCold(i, i, 1);
+        }
+        int used = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (test.containsKey(i)) {
+                used++;
+            }
+        }
+        // only the window contains entries that were read ahead
+        assertTrue("used: " + used, used >= 980);
+        assertEquals(1000, test.size());
+    }
+
+    private void testScanResistance() {
+        int hot = 500;
+        long[] hits = new long[2];
+        for (int type = 0; type < 2; type++) {
+            CacheLongKeyLIRS.Config cc = new CacheLongKeyLIRS.Config();
+            cc.maxMemory = 1000;
+            cc.segmentCount = 1;
+            CacheLongKey<Integer> test = type == 0 ?
+                    new CacheLongKeyTinyLFU<Integer>(1000, 1) :
+                    new CacheLongKeyLIRS<Integer>(cc);
+            // the hot entries are used often
+            for (int j = 0; j < 5; j++) {
+                for (int i = 0; i < hot; i++) {
+                    if (test.get(i) == null) {
+                        test.put(i, i, 1);
+                    }
+                }
+            }
+            // a large scan of entries that are only used once
+            long hitsBefore = test.getHits();
+            Random r = new Random(1);
+            for (int i = 0; i < 100000; i++) {
+                int key = 1000 + i;
+                test.put(key, key, 1);
+                int h = r.nextInt(hot);
+                if (i % 10 == 0 && test.get(h) == null) {
+                    test.put(h, h, 1);
+                }
+            }
+            hits[type] = test.getHits() - hitsBefore;
+            assertTrue(test.getUsedMemory() <= 1000);
+        }
+        // with TinyLFU, almost all of the hot entries are still cached
+        assertTrue("hits: " + hits[0], hits[0] > 9500);
+        assertTrue("TinyLFU: " + hits[0] + " LIRS: " + hits[1],
+                hits[0] >= hits[1]);
+    }
+
+    private void testConcurrent() throws Exception {
+        final CacheLongKeyTinyLFU<Integer> test =
+                new CacheLongKeyTinyLFU<>(1000, 4);
+        final AtomicInteger wrongValues = new AtomicInteger();
+        Task[] tasks = new Task[8];
+        for (int i = 0; i < tasks.length; i++) {
+            final int seed = i;
+            tasks[i] = new Task() {
+                @Override
+                public void call() {
+                    Random r = new Random(seed);
+                    while (!stop) {
+                        int key = r.nextInt(2000);
+                        switch (r.nextInt(10)) {
+                        case 0:
+                            test.remove(key);
+                            break;
+                        case 1:
+                        case 2:
+                            test.put(key, key, 1 + r.nextInt(10));
+                            break;
+                        case 3:
+                            test.putCold(key, key, 1 + r.nextInt(10));
+                            break;
+                        default:
+                            Integer v = test.get(key);
+                            if (v != null && v != key) {
+                                wrongValues.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            };
+            tasks[i].execute();
+        }
+        Thread.sleep(1000);
+        for (Task t : tasks) {
+            t.get();
+        }
+        assertEquals(0, wrongValues.get());
+        assertTrue(test.getUsedMemory() <= 1000);
+        assertTrue(test.getHits() > 0);
+        // the memory is still accounted correctly
+        for (int i = 0; i < 2000; i++) {
+            test.remove(i);
+        }
+        assertEquals(0, test.getUsedMemory());
+        assertEquals(0, test.size());
+    }
+
+    @SuppressWarnings("deprecation")
+    private void testMVStore() {
+        MVStore s = new MVStore.Builder().
+                fileName(getBaseDir() + "/" + getTestName()).
+                cacheType("TinyLFU").cacheSize(1).open();
+        assertTrue(s.getPageCache() instanceof CacheLongKeyTinyLFU);
+        // the old accessor only returns a LIRS cache
+        assertNull(s.getCache());
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, "Hello " + i);
+            if (i % 1000 == 0) {
+                s.commit();
+            }
+        }
+        s.close();
+        s = new MVStore.Builder().
+                fileName(getBaseDir() + "/" + getTestName()).
+                cacheType("TinyLFU").cacheSize(1).open();
+        map = s.openMap("data");
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < 10000; i++) {
+                assertEquals("Hello " + i, map.get(i));
+            }
+        }
+        assertTrue(s.getPageCache().getHits() > 0);
+        assertTrue(s.getPageCache().getUsedMemory() <= 1024 * 1024);
+        s.close();
+        try {
+            new MVStore.Builder().
+                    fileName(getBaseDir() + "/" + getTestName()).
+                    cacheType("FIFO").open();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -6,9 +6,11 @@
 package org.h2.test.store;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -17,13 +19,17 @@
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import org.h2.compress.Compressor;
 import org.h2.mvstore.Chunk;
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.FileStore;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MappedFileStore;
 import org.h2.mvstore.OffHeapStore;
+import org.h2.mvstore.Page;
+import org.h2.mvstore.cache.CacheLongKeyOffHeap;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.mvstore.type.StringDataType;
@@ -57,6 +63,14 @@ public void test() throws Exception {
         testEntrySet();
         testCompressEmptyPage();
         testCompressed();
+        testCompressedPerMap();
+        testFormatUpgrade();
+        testBackgroundCompaction();
+        testWriteConcurrency();
+        testConcurrentLeafChanges();
+        testRemoveTail();
+        testPipelinedWrite();
+        testLiveCounters();
         testFileFormatExample();
         testMaxChunkLength();
         testCacheInfo();
@@ -66,6 +80,9 @@ public void test() throws Exception {
         testRemoveMap();
         testIsEmpty();
         testOffHeapStorage();
+        testMemoryMappedRead();
+        testReadAhead();
+        testOffHeapCache();
         testNewerWriteVersion();
         testCompactFully();
         testBackgroundExceptionListener();
@@ -255,6 +272,473 @@ private void testCompressed() {
         }
     }
 
+    private void testCompressedPerMap() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        try {
+            new MVMap.Builder<String, String>().compress(10);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_UNSUPPORTED_FORMAT,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        String data = new String(new char[1000]).replace((char) 0, 'x');
+        for (int threads = 1; threads <= 2; threads++) {
+            FileUtils.delete(fileName);
+            MVStore s = new MVStore.Builder().
+                    fileName(fileName).
+                    writeConcurrency(threads).
+                    compress(Compressor.LZ4).
+                    open();
+            int[] algorithms = { -1, Compressor.NO, Compressor.LZF,
+                    Compressor.DEFLATE, Compressor.LZ4 };
+            for (int m = 0; m < algorithms.length; m++) {
+                MVMap.Builder<String, String> b = new MVMap.Builder<>();
+                if (algorithms[m] >= 0) {
+                    b.compress(algorithms[m]);
+                }
+                MVMap<String, String> map = s.openMap("data" + m, b);
+                assertEquals(algorithms[m], map.getCompressionAlgorithm());
+                for (int i = 0; i < 400; i++) {
+                    map.put(data + i, data);
+                }
+            }
+            s.close();
+            // uncompressed, each map needs about 800 KB
+            assertTrue(FileUtils.size(fileName) < 2 * 800 * 1024);
+            // the pages can be read without compression settings
+            s = new MVStore.Builder().fileName(fileName).open();
+            for (int m = 0; m < algorithms.length; m++) {
+                MVMap<String, String> map = s.openMap("data" + m);
+                assertEquals(algorithms[m], map.getCompressionAlgorithm());
+                for (int i = 0; i < 400; i++) {
+                    assertEquals(data, map.get(data + i));
+                }
+            }
+            s.close();
+            // the builder overrides the stored algorithm
+            s = new MVStore.Builder().fileName(fileName).open();
+            MVMap<String, String> map = s.openMap("data1",
+                    new MVMap.Builder<String, String>().compress(Compressor.LZ4));
+            assertEquals(Compressor.LZ4, map.getCompressionAlgorithm());
+            map.put("x", data);
+            s.close();
+            s = new MVStore.Builder().fileName(fileName).open();
+            map = s.openMap("data1");
+            assertEquals(Compressor.NO, map.getCompressionAlgorithm());
+            assertEquals(data, map.get("x"));
+            s.close();
+        }
+    }
+
+    private void testFormatUpgrade() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().fileName(fileName).compress().open();
+        s.openMap("data").put(1, "Hello");
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).open();
+        Map<String, Object> header = s.getStoreHeader();
+        assertEquals("1", header.get("format").toString());
+        assertNull(header.get("formatRead"));
+        // opening a map that uses LZ4 upgrades the store
+        MVMap<Integer, String> map = s.openMap("lz4",
+                new MVMap.Builder<Integer, String>().compress(Compressor.LZ4));
+        assertEquals("2", header.get("format").toString());
+        assertEquals("2", header.get("formatRead").toString());
+        map.put(1, "World");
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).readOnly().open();
+        header = s.getStoreHeader();
+        assertEquals("2", header.get("format").toString());
+        assertEquals("2", header.get("formatRead").toString());
+        assertEquals("World", s.openMap("lz4").get(1));
+        s.close();
+        // so does a store that uses LZ4
+        FileUtils.delete(fileName);
+        s = new MVStore.Builder().fileName(fileName).
+                compress(Compressor.LZ4).open();
+        assertEquals("2", s.getStoreHeader().get("formatRead").toString());
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testRemoveTail() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().fileName(fileName).open();
+        MVMap<Integer, Integer> map = s.openMap("data");
+        TreeMap<Integer, Integer> expected = new TreeMap<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 2000; j++) {
+                int x = r.nextInt(20000);
+                map.put(x, j);
+                expected.put(x, j);
+            }
+            if (i % 3 == 0) {
+                s.commit();
+            }
+            int from = i == 0 ? -1 : r.nextInt(20000);
+            map.removeTail(from);
+            expected.tailMap(from).clear();
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.isEmpty() ? null : expected.lastKey(), map.lastKey());
+        }
+        s.commit();
+        s.compactMoveChunks();
+        s.close();
+
+        s = new MVStore.Builder().fileName(fileName).open();
+        map = s.openMap("data");
+        assertEquals(expected.size(), map.size());
+        Cursor<Integer, Integer> cursor = map.cursor(null);
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            assertTrue(cursor.hasNext());
+            assertEquals(e.getKey(), cursor.next());
+            assertEquals(e.getValue(), cursor.getValue());
+        }
+        assertFalse(cursor.hasNext());
+        s.close();
+    }
+
+    private void testConcurrentLeafChanges() {
+        MVStore s = MVStore.open(null);
+        MVMap<Integer, Integer> map = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+        }
+        // a concurrent change of another leaf doesn't require to decide again
+        ConcurrentChange change = new ConcurrentChange(map, 900);
+        map.operate(10, 100, change);
+        assertEquals(1, change.decisions);
+        assertEquals(100, map.get(10).intValue());
+        assertEquals(-1, map.get(900).intValue());
+        change = new ConcurrentChange(map, 800);
+        map.operate(20, null, change);
+        assertEquals(1, change.decisions);
+        assertNull(map.get(20));
+        assertEquals(-1, map.get(800).intValue());
+        // but a concurrent change of the same leaf does
+        change = new ConcurrentChange(map, 31);
+        map.operate(30, 300, change);
+        assertEquals(2, change.decisions);
+        assertEquals(300, map.get(30).intValue());
+        assertEquals(-1, map.get(31).intValue());
+        assertEquals(999, map.size());
+        s.close();
+    }
+
+    /**
+     * A decision maker that changes another entry of the map when deciding
+     * for the first time.
+     */
+    private static final class ConcurrentChange
+            extends MVMap.DecisionMaker<Integer> {
+
+        private final MVMap<Integer, Integer> map;
+        private final int otherKey;
+
+        /**
+         * The number of decisions made.
+         */
+        int decisions;
+
+        ConcurrentChange(MVMap<Integer, Integer> map, int otherKey) {
+            this.map = map;
+            this.otherKey = otherKey;
+        }
+
+        @Override
+        public MVMap.Decision decide(Integer existingValue,
+                Integer providedValue) {
+            if (decisions++ == 0) {
+                map.put(otherKey, -1);
+            }
+            return providedValue == null ?
+                    MVMap.Decision.REMOVE : MVMap.Decision.PUT;
+        }
+
+    }
+
+    private void testWriteConcurrency() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        for (int level = 0; level <= 1; level++) {
+            FileUtils.delete(fileName);
+            MVStore.Builder builder = new MVStore.Builder().
+                    fileName(fileName).
+                    writeConcurrency(4).
+                    pageSplitSize(1024);
+            if (level == 1) {
+                builder.compress();
+            }
+            MVStore s = builder.open();
+            s.setAutoCommitDelay(0);
+            ArrayList<TreeMap<Integer, String>> expected = new ArrayList<>();
+            for (int m = 0; m < 10; m++) {
+                expected.add(new TreeMap<Integer, String>());
+            }
+            Random r = new Random(level);
+            for (int commit = 0; commit < 5; commit++) {
+                for (int m = 0; m < 10; m++) {
+                    MVMap<Integer, String> map = s.openMap("data" + m);
+                    TreeMap<Integer, String> e = expected.get(m);
+                    for (int i = 0; i < 1000; i++) {
+                        int key = r.nextInt(3000);
+                        if (r.nextInt(10) == 0) {
+                            map.remove(key);
+                            e.remove(key);
+                        } else {
+                            String value = "Hello " + m + " " + key + " " + commit;
+                            map.put(key, value);
+                            e.put(key, value);
+                        }
+                    }
+                }
+                s.commit();
+            }
+            s.close();
+            s = new MVStore.Builder().fileName(fileName).open();
+            for (int m = 0; m < 10; m++) {
+                MVMap<Integer, String> map = s.openMap("data" + m);
+                assertEquals(expected.get(m).size(), map.size());
+                for (Entry<Integer, String> e : expected.get(m).entrySet()) {
+                    assertEquals(e.getValue(), map.get(e.getKey()));
+                }
+            }
+            s.close();
+        }
+    }
+
+    private void testPipelinedWrite() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pipelinedWrite().
+                cacheSize(1).
+                autoCommitBufferSize(64).
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            int key = r.nextInt(5000);
+            String value = "Hello " + i;
+            map.put(key, value);
+            expected.put(key, value);
+            if (i % 1000 == 0) {
+                s.commit();
+                // read pages that may be in chunks that are not written yet
+                for (int j = 0; j < 100; j++) {
+                    int k = r.nextInt(5000);
+                    assertEquals(expected.get(k), map.get(k));
+                }
+            }
+        }
+        long version = s.commit();
+        map.put(-1, "rolled back");
+        s.commit();
+        s.rollbackTo(version);
+        assertNull(map.get(-1));
+        s.sync();
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).open();
+        map = s.openMap("data");
+        assertEquals(expected.size(), map.size());
+        for (Entry<Integer, String> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                pipelinedWrite().
+                open();
+        map = s.openMap("data");
+        map.put(-2, "synced");
+        s.commit();
+        // an interrupted thread still waits until the data is written
+        Thread.currentThread().interrupt();
+        s.sync();
+        assertTrue(Thread.interrupted());
+        // the file writer thread stops when it is interrupted
+        Thread writer = null;
+        String name = "MVStore file writer " + s.getFileStore().getFileName();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name)) {
+                writer = t;
+            }
+        }
+        assertNotNull(writer);
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        map.put(-3, "not written");
+        try {
+            s.commit();
+            s.sync();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_WRITING_FAILED,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        s.closeImmediately();
+        s = new MVStore.Builder().fileName(fileName).open();
+        map = s.openMap("data");
+        assertEquals("synced", map.get(-2));
+        assertNull(map.get(-3));
+        s.close();
+    }
+
+    private void testLiveCounters() throws Exception {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                open();
+        Random r = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            if (i == 100) {
+                // from now on, free unused chunks immediately
+                s.setRetentionTime(0);
+            }
+            MVMap<Integer, String> map = s.openMap("data" + r.nextInt(5));
+            for (int j = 0; j < 200; j++) {
+                int key = r.nextInt(2000);
+                if (r.nextInt(4) == 0) {
+                    map.remove(key);
+                } else {
+                    map.put(key, "Hello " + i);
+                }
+            }
+            switch (r.nextInt(10)) {
+            case 0:
+                s.rollback();
+                break;
+            case 1:
+                s.removeMap(map);
+                s.commit();
+                break;
+            case 2:
+                if (i < 100) {
+                    long version = s.commit();
+                    map.put(-1, "rolled back");
+                    s.commit();
+                    s.rollbackTo(version);
+                } else {
+                    s.commit();
+                }
+                break;
+            default:
+                s.commit();
+            }
+        }
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).open();
+        verifyLiveCounters(s);
+        // unused chunks are freed without scanning all pages
+        assertTrue(s.getMetaMap().containsKey("setting.liveCounters"));
+        int chunkCount = 0;
+        for (Iterator<String> it = s.getMetaMap().keyIterator("chunk."); it.hasNext();) {
+            if (!it.next().startsWith("chunk.")) {
+                break;
+            }
+            chunkCount++;
+        }
+        assertTrue("chunks: " + chunkCount, chunkCount < 50);
+        // simulate a file written by an older version, with wrong counters
+        writeAsOlderVersion(s);
+        s.getMetaMap().remove("setting.liveCounters");
+        s.commit();
+        s.closeImmediately();
+        s = new MVStore.Builder().fileName(fileName).open();
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).open();
+        assertTrue(s.getMetaMap().containsKey("setting.liveCounters"));
+        verifyLiveCounters(s);
+        // simulate a file that was changed by an older version, which keeps
+        // the metadata entry, but doesn't maintain the counters
+        String version = s.getMetaMap().get("setting.liveCounters");
+        writeAsOlderVersion(s);
+        s.commit();
+        assertEquals(version, s.getMetaMap().get("setting.liveCounters"));
+        s.closeImmediately();
+        s = new MVStore.Builder().fileName(fileName).open();
+        verifyLiveCounters(s);
+        s.close();
+    }
+
+    private static void writeAsOlderVersion(MVStore s) throws Exception {
+        Field exact = MVStore.class.getDeclaredField("liveCountersExact");
+        exact.setAccessible(true);
+        exact.setBoolean(s, false);
+        s.<Integer, String>openMap("data0").put(-1, "Hello");
+        MVMap<String, String> meta = s.getMetaMap();
+        String key = meta.keyIterator("chunk.").next();
+        Chunk c = Chunk.fromString(meta.get(key));
+        c.pageCountLive = 0;
+        c.maxLenLive = 0;
+        meta.put(key, c.asString());
+    }
+
+    private void verifyLiveCounters(MVStore s) {
+        // apply the pages freed when opening
+        s.commit();
+        // count the pages of the newest version
+        TreeMap<Integer, long[]> live = new TreeMap<>();
+        MVMap<String, String> meta = s.getMetaMap();
+        countLivePages(meta.getRootPage(), live);
+        for (String name : s.getMapNames()) {
+            countLivePages(s.openMap(name).getRootPage(), live);
+        }
+        for (Iterator<String> it = meta.keyIterator("chunk."); it.hasNext();) {
+            String key = it.next();
+            if (!key.startsWith("chunk.")) {
+                break;
+            }
+            Chunk c = Chunk.fromString(meta.get(key));
+            long[] counts = live.remove(c.id);
+            if (counts == null) {
+                counts = new long[2];
+            }
+            assertEquals(counts[0], c.pageCountLive);
+            assertEquals(counts[1], c.maxLenLive);
+        }
+        // the metadata of the last chunk is not stored yet
+        assertTrue(live.toString(), live.size() <= 1);
+    }
+
+    private static void countLivePages(Page p, Map<Integer, long[]> live) {
+        countLivePage(p.getPos(), live);
+        if (!p.isLeaf()) {
+            for (int i = 0; i < p.getRawChildPageCount(); i++) {
+                long pos = p.getChildPagePos(i);
+                if (DataUtils.getPageType(pos) == DataUtils.PAGE_TYPE_LEAF) {
+                    countLivePage(pos, live);
+                } else {
+                    countLivePages(p.getChildPage(i), live);
+                }
+            }
+        }
+    }
+
+    private static void countLivePage(long pos, Map<Integer, long[]> live) {
+        if (DataUtils.isPageSaved(pos)) {
+            int chunkId = DataUtils.getPageChunkId(pos);
+            long[] counts = live.get(chunkId);
+            if (counts == null) {
+                counts = new long[2];
+                live.put(chunkId, counts);
+            }
+            counts[0]++;
+            counts[1] += DataUtils.getPageMaxLength(pos);
+        }
+    }
+
     private void testFileFormatExample() {
         String fileName = getBaseDir() + "/" + getTestName();
         FileUtils.delete(fileName);
@@ -423,6 +907,165 @@ private void testOffHeapStorage() throws Exception {
         s.close();
     }
 
+    private void testMemoryMappedRead() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        // small segments, so that reads span segments,
+        // and segments are re-mapped while the file grows
+        MappedFileStore fileStore = new MappedFileStore(64 * 1024);
+        fileStore.open(fileName, false, null);
+        MVStore s = new MVStore.Builder().
+                fileStore(fileStore).
+                cacheSize(0).
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            int key = r.nextInt(5000);
+            String value = "Hello " + i;
+            map.put(key, value);
+            expected.put(key, value);
+            if (i % 500 == 0) {
+                s.commit();
+                for (int j = 0; j < 100; j++) {
+                    int k = r.nextInt(5000);
+                    assertEquals(expected.get(k), map.get(k));
+                }
+            }
+        }
+        assertTrue(fileStore.getReadCount() > 0);
+        s.close();
+        fileStore.close();
+
+        for (int encrypted = 0; encrypted <= 1; encrypted++) {
+            MVStore.Builder builder = new MVStore.Builder().
+                    fileName(fileName).
+                    memoryMappedRead().
+                    cacheSize(0);
+            if (encrypted == 1) {
+                // not mapped
+                FileUtils.delete(fileName);
+                builder.encryptionKey("007".toCharArray());
+            }
+            s = builder.open();
+            assertTrue(s.getFileStore() instanceof MappedFileStore);
+            map = s.openMap("data");
+            if (encrypted == 1) {
+                map.putAll(expected);
+                s.commit();
+            }
+            assertEquals(expected.size(), map.size());
+            for (Entry<Integer, String> e : expected.entrySet()) {
+                assertEquals(e.getValue(), map.get(e.getKey()));
+            }
+            s.close();
+        }
+    }
+
+    private void testReadAhead() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 50000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                cacheSize(1).
+                readAhead(8).
+                open();
+        map = s.openMap("data");
+        for (int j = 0; j < 2; j++) {
+            int i = 0;
+            for (Cursor<Integer, String> c = map.cursor(null); c.hasNext(); i++) {
+                assertEquals(i, c.next().intValue());
+                assertEquals("Hello " + i, c.getValue());
+            }
+            assertEquals(50000, i);
+        }
+        // reading starting from a key, and reading a range
+        Iterator<Integer> it = map.keyIterator(25000);
+        for (int i = 25000; i < 50000; i++) {
+            assertEquals(i, it.next().intValue());
+        }
+        assertFalse(it.hasNext());
+        assertTrue(s.getReadAheadCount() > 0);
+        assertTrue(s.getReadAheadHitCount() > 0);
+        assertTrue(s.getReadAheadHitCount() <= s.getReadAheadCount());
+        trace("read ahead: " + s.getReadAheadCount() +
+                " hit ratio: " + s.getReadAheadHitRatio());
+        s.close();
+    }
+
+    private void testOffHeapCache() {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                cacheSize(0).
+                offHeapCacheSize(1).
+                open();
+        assertEquals(1, s.getOffHeapCacheSize());
+        MVMap<Integer, String> map = s.openMap("data");
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        Random r = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            int key = r.nextInt(1000);
+            String value = "Hello " + i;
+            map.put(key, value);
+            expected.put(key, value);
+            if (i % 100 == 0) {
+                long version = s.commit();
+                if (i == 2500) {
+                    // from now on, chunk ids are re-used
+                    s.setRetentionTime(0);
+                    s.setVersionsToKeep(0);
+                }
+                s.compact(90, 1024);
+                if (i < 2500 && r.nextBoolean()) {
+                    map.put(-1, "rollback");
+                    s.commit();
+                    s.rollbackTo(version);
+                    map = s.openMap("data");
+                }
+                for (int j = 0; j < 100; j++) {
+                    int k = r.nextInt(1000);
+                    assertEquals(expected.get(k), map.get(k));
+                }
+            }
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                cacheSize(0).
+                offHeapCacheSize(8).
+                open();
+        map = s.openMap("data");
+        CacheLongKeyOffHeap cache = s.getOffHeapCache();
+        for (int j = 0; j < 2; j++) {
+            long readCount = s.getFileStore().getReadCount();
+            assertEquals(expected.size(), map.size());
+            for (Entry<Integer, String> e : expected.entrySet()) {
+                assertEquals(e.getValue(), map.get(e.getKey()));
+            }
+            if (j == 1) {
+                // everything was read from the off-heap cache
+                assertEquals(readCount, s.getFileStore().getReadCount());
+            }
+        }
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.size() > 0);
+        assertTrue(cache.getUsedMemory() <= cache.getMaxMemory());
+        s.close();
+    }
+
     private void testNewerWriteVersion() throws Exception {
         String fileName = getBaseDir() + "/" + getTestName();
         FileUtils.delete(fileName);
@@ -434,7 +1077,7 @@ private void testNewerWriteVersion() throws Exception {
         Map<String, Object> header = s.getStoreHeader();
         assertEquals("1", header.get("format").toString());
         header.put("formatRead", "1");
-        header.put("format", "2");
+        header.put("format", "3");
         forceWriteStoreHeader(s);
         MVMap<Integer, String> m = s.openMap("data");
         forceWriteStoreHeader(s);
@@ -757,7 +1400,7 @@ private void testFileFormatChange() {
         Map<String, Object> header = s.getStoreHeader();
         int format = Integer.parseInt(header.get("format").toString());
         assertEquals(1, format);
-        header.put("format", Integer.toString(format + 1));
+        header.put("format", Integer.toString(format + 2));
         forceWriteStoreHeader(s);
         s.close();
         try {
@@ -855,9 +1498,9 @@ private void testCacheSize() {
             assertTrue("Cache "+cacheMB+"Mb, reads: " + readCount + " expected: " + expected +
                     " size: " + s.getFileStore().getReadBytes() +
                     " cache used: " + s.getCacheSizeUsed() +
-                    " cache hits: " + s.getCache().getHits() +
-                    " cache misses: " + s.getCache().getMisses() +
-                    " cache requests: " + (s.getCache().getHits() + s.getCache().getMisses()) +
+                    " cache hits: " + s.getPageCache().getHits() +
+                    " cache misses: " + s.getPageCache().getMisses() +
+                    " cache requests: " + (s.getPageCache().getHits() + s.getPageCache().getMisses()) +
                     "",
                     Math.abs(100 - (100 * expected / readCount)) < 15);
             s.close();
@@ -1840,6 +2483,54 @@ private void testCompact() {
         // System.out.println("len2: " + len);
     }
 
+    private void testBackgroundCompaction() throws Exception {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                backgroundCompactionRate(1).
+                open();
+        s.setRetentionTime(0);
+        assertEquals(100, s.getBackgroundCompactionProgress());
+        MVMap<Integer, String> m = s.openMap("data");
+        MVMap<Integer, String> temp = s.openMap("temp");
+        for (int i = 0; i < 2000; i++) {
+            m.put(i, "Hello World " + i);
+            for (int j = 0; j < 10; j++) {
+                temp.put((i * 10 + j) % 1000, "Temporary data " + i);
+            }
+            if (i % 100 == 0) {
+                s.commit();
+            }
+        }
+        s.commit();
+        // the old chunks now mostly contain data that was overwritten
+        int fillRate = s.getCurrentFillRate();
+        assertTrue("fill rate: " + fillRate, fillRate < 40);
+        for (int i = 0; i < 200 && s.getCurrentFillRate() < 40; i++) {
+            Thread.sleep(100);
+            // concurrent changes are not blocked
+            m.put(-1, "Hello " + i);
+            s.commit();
+        }
+        fillRate = s.getCurrentFillRate();
+        assertTrue("fill rate: " + fillRate, fillRate >= 40);
+        assertTrue(s.getBackgroundCompactionPageCount() > 0);
+        assertTrue(s.getBackgroundCompactionByteCount() > 0);
+        long rate = s.getBackgroundCompactionRate();
+        assertTrue("rate: " + rate, rate > 0 && rate < 2 * 1024 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("Hello World " + i, m.get(i));
+        }
+        s.close();
+        s = openStore(fileName);
+        m = s.openMap("data");
+        assertEquals(2001, m.size());
+        assertEquals("Hello World 1999", m.get(1999));
+        assertEquals(0, s.getBackgroundCompactionPageCount());
+        s.close();
+    }
+
     private void testReuseSpace() {
         String fileName = getBaseDir() + "/" + getTestName();
         FileUtils.delete(fileName);
@@ -31,21 +31,29 @@ public static void main(String... a) throws Exception {
 
     @Override
     public void test() throws Exception {
-        testCache(1, "");
-        testCache(1, "cache:");
-        testCache(10, "");
-        testCache(10, "cache:");
-        testCache(100, "");
-        testCache(100, "cache:");
+        for (String cacheType : new String[] { "LIRS", "TinyLFU" }) {
+            testCache(1, "", cacheType, 16);
+            testCache(1, "cache:", cacheType, 16);
+            testCache(10, "", cacheType, 16);
+            testCache(10, "cache:", cacheType, 16);
+            testCache(100, "", cacheType, 16);
+            testCache(100, "cache:", cacheType, 16);
+            // all pages fit in the cache, to measure the cache overhead
+            testCache(1, "", cacheType, 256);
+            testCache(8, "", cacheType, 256);
+            testCache(64, "", cacheType, 256);
+        }
     }
 
-    private void testCache(int threadCount, String fileNamePrefix) {
+    private void testCache(int threadCount, String fileNamePrefix,
+            String cacheType, int cacheSize) {
         String fileName = getBaseDir() + "/" + getTestName();
         fileName = fileNamePrefix  + fileName;
         FileUtils.delete(fileName);
         MVStore store = new MVStore.Builder().
                 fileName(fileName).
-                // cacheSize(1024).
+                cacheType(cacheType).
+                cacheSize(cacheSize).
                 open();
         final MVMap<Integer, byte[]> map = store.openMap("test");
         final AtomicInteger counter = new AtomicInteger();
@@ -91,7 +99,8 @@ public void call() throws Exception {
         }
         store.close();
         System.out.println(counter.get() / 10000 + " ops/ms; " +
-                threadCount + " thread(s); " + fileNamePrefix);
+                threadCount + " thread(s); " + fileNamePrefix + "; " +
+                cacheType + " " + cacheSize + " MB");
     }
 
 }
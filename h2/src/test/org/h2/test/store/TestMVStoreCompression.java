@@ -0,0 +1,174 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.h2.compress.CompressDeflate;
+import org.h2.compress.CompressLZ4;
+import org.h2.compress.CompressLZF;
+import org.h2.compress.Compressor;
+import org.h2.mvstore.Chunk;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVStore;
+import org.h2.test.TestBase;
+import org.h2.test.TestDb;
+
+/**
+ * Compares the compression ratio and the compression and decompression speed
+ * of the page compression algorithms, using the leaf pages of a database
+ * table.
+ */
+public class TestMVStoreCompression extends TestDb {
+
+    /**
+     * The block size of the file format.
+     */
+    private static final int BLOCK_SIZE = 4 * 1024;
+
+    /**
+     * Run just this test.
+     *
+     * @param a ignored
+     */
+    public static void main(String... a) throws Exception {
+        TestBase test = TestBase.createCaller().init();
+        test.config.traceTest = true;
+        test.test();
+    }
+
+    @Override
+    public void test() throws Exception {
+        if (!config.mvStore || config.memory) {
+            return;
+        }
+        ArrayList<byte[]> pages = readTablePages();
+        assertTrue(pages.size() > 0);
+        for (Compressor compressor : new Compressor[] {
+                new CompressLZF(), new CompressLZ4(), new CompressDeflate() }) {
+            testCompressor(compressor, pages);
+        }
+        deleteDb(getTestName());
+    }
+
+    private ArrayList<byte[]> readTablePages() throws Exception {
+        deleteDb(getTestName());
+        Connection conn = getConnection(getTestName());
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, " +
+                "name varchar, city varchar, amount decimal(10, 2), created timestamp)");
+        PreparedStatement prep = conn.prepareStatement(
+                "insert into test values(?, ?, ?, ?, ?)");
+        String[] cities = { "Berlin", "London", "New York", "Paris", "Tokyo", "Zurich" };
+        Random r = new Random(1);
+        for (int i = 0; i < 50_000; i++) {
+            prep.setInt(1, i);
+            prep.setString(2, "Customer " + r.nextInt(10_000));
+            prep.setString(3, cities[r.nextInt(cities.length)]);
+            prep.setBigDecimal(4, BigDecimal.valueOf(r.nextInt(1_000_000), 2));
+            prep.setTimestamp(5, new Timestamp(1_500_000_000_000L + i * 1000L));
+            prep.execute();
+        }
+        conn.close();
+
+        // the serialized keys and values of the leaf pages (the part of
+        // a page that is compressed)
+        ArrayList<byte[]> pages = new ArrayList<>();
+        String fileName = getBaseDir() + "/" + getTestName() + ".mv.db";
+        MVStore s = new MVStore.Builder().fileName(fileName).readOnly().open();
+        for (String key : s.getMetaMap().keyList()) {
+            if (!key.startsWith("chunk.")) {
+                continue;
+            }
+            Chunk c = Chunk.fromString(s.getMetaMap().get(key));
+            ByteBuffer buff = s.getFileStore().readFully(
+                    c.block * BLOCK_SIZE, c.len * BLOCK_SIZE);
+            // skip the chunk header
+            int p = 0;
+            while (buff.get(p) != '\n') {
+                p++;
+            }
+            p++;
+            for (int i = 0; i < c.pageCount; i++) {
+                buff.position(p);
+                int pageLength = buff.getInt();
+                // check value
+                buff.getShort();
+                int mapId = DataUtils.readVarInt(buff);
+                DataUtils.readVarInt(buff);
+                int type = buff.get();
+                if (mapId != 0 && (type & 1) == DataUtils.PAGE_TYPE_LEAF &&
+                        (type & DataUtils.PAGE_COMPRESSED) == 0) {
+                    byte[] data = new byte[p + pageLength - buff.position()];
+                    buff.get(data);
+                    pages.add(data);
+                }
+                p += pageLength;
+            }
+        }
+        s.close();
+        trace(pages.size() + " pages");
+        return pages;
+    }
+
+    private void testCompressor(Compressor compressor, ArrayList<byte[]> pages) {
+        int pageCount = pages.size();
+        byte[][] compressed = new byte[pageCount][];
+        long rawLength = 0, compressedLength = 0;
+        byte[] buff = new byte[0];
+        long compressTime = 0;
+        for (int test = 0; test < 5; test++) {
+            long time = System.nanoTime();
+            for (int i = 0; i < pageCount; i++) {
+                byte[] data = pages.get(i);
+                if (buff.length < data.length * 2 + 16) {
+                    buff = new byte[data.length * 2 + 16];
+                }
+                int len = compressor.compress(data, data.length, buff, 0);
+                compressed[i] = Arrays.copyOf(buff, len);
+            }
+            compressTime = System.nanoTime() - time;
+        }
+        for (int i = 0; i < pageCount; i++) {
+            rawLength += pages.get(i).length;
+            compressedLength += compressed[i].length;
+        }
+        long expandTime = 0;
+        int iterations = 20;
+        for (int test = 0; test < iterations; test++) {
+            long time = System.nanoTime();
+            for (int i = 0; i < pageCount; i++) {
+                byte[] data = pages.get(i);
+                byte[] comp = compressed[i];
+                if (buff.length < data.length) {
+                    buff = new byte[data.length];
+                }
+                compressor.expand(comp, 0, comp.length, buff, 0, data.length);
+            }
+            if (test >= iterations / 2) {
+                // ignore the warm-up
+                expandTime += System.nanoTime() - time;
+            }
+        }
+        // verify the last page
+        byte[] last = pages.get(pageCount - 1);
+        assertEquals(last, Arrays.copyOf(buff, last.length));
+        long expandBytes = rawLength * (iterations - iterations / 2);
+        trace(compressor.getClass().getSimpleName() +
+                " ratio: " + (100 * compressedLength / rawLength) + "%" +
+                " compress: " + TimeUnit.NANOSECONDS.toMillis(compressTime) + " ms" +
+                " expand: " + (expandBytes * 1000 / Math.max(1, expandTime)) + " MB/s");
+    }
+
+}
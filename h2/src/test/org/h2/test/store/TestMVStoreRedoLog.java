@@ -0,0 +1,321 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.tx.Transaction;
+import org.h2.mvstore.tx.TransactionMap;
+import org.h2.mvstore.tx.TransactionStore;
+import org.h2.store.fs.FilePath;
+import org.h2.store.fs.FileUtils;
+import org.h2.test.TestBase;
+
+/**
+ * Tests the redo log of the MVStore.
+ */
+public class TestMVStoreRedoLog extends TestBase {
+
+    /**
+     * Run just this test.
+     *
+     * @param a ignored
+     */
+    public static void main(String... a) throws Exception {
+        TestBase.createCaller().init().test();
+    }
+
+    @Override
+    public void test() throws Exception {
+        FileUtils.createDirectories(getBaseDir());
+        testCommitWithoutChunk();
+        testCorruptTail();
+        testCloseDeletesLog();
+        testRollbackTo();
+        testRenameMap();
+        testRemoveTail();
+        testTransactionStore();
+        testCheckpointWithUnopenedMap();
+        testEncrypted();
+    }
+
+    private String getFileName() {
+        String fileName = getBaseDir() + "/" + getTestName() + ".h3";
+        FileUtils.delete(fileName);
+        FileUtils.delete(fileName + ".redo");
+        return fileName;
+    }
+
+    private static MVStore open(String fileName) {
+        return new MVStore.Builder().fileName(fileName).
+                redoLog().autoCommitDisabled().open();
+    }
+
+    private void testCommitWithoutChunk() {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        MVMap<Integer, String> map = s.openMap("data");
+        map.put(0, "Hello");
+        s.commit();
+        long stored = s.getLastStoredVersion();
+        for (int i = 1; i < 100; i++) {
+            map.put(i, "Hello " + i);
+            map.remove(i - 1);
+            s.commit();
+        }
+        assertEquals(stored, s.getLastStoredVersion());
+        assertTrue(FileUtils.exists(fileName + ".redo"));
+        map.put(1000, "uncommitted");
+        s.closeImmediately();
+
+        // the log is used even if the option is not set
+        s = new MVStore.Builder().fileName(fileName).open();
+        map = s.openMap("data");
+        assertEquals(1, map.size());
+        assertEquals("Hello 99", map.get(99));
+        assertNull(map.get(1000));
+        map.put(100, "Hello 100");
+        s.commit();
+        s.closeImmediately();
+
+        s = open(fileName);
+        map = s.openMap("data");
+        assertEquals(2, map.size());
+        assertEquals("Hello 100", map.get(100));
+        // storing a chunk truncates the log
+        map.clear();
+        s.commit();
+        s.compactMoveChunks();
+        s.closeImmediately();
+
+        s = open(fileName);
+        map = s.openMap("data");
+        assertEquals(0, map.size());
+        s.close();
+    }
+
+    private void testCorruptTail() throws Exception {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        MVMap<Integer, String> map = s.openMap("data");
+        s.commit();
+        for (int i = 0; i < 10; i++) {
+            map.put(i, "Hello " + i);
+            s.commit();
+        }
+        s.closeImmediately();
+        FileChannel f = FilePath.get(fileName + ".redo").open("rw");
+        try {
+            // a batch that was not completely written
+            ByteBuffer buff = ByteBuffer.allocate(100);
+            buff.putInt(0, 1000);
+            f.write(buff, f.size());
+        } finally {
+            f.close();
+        }
+
+        s = open(fileName);
+        map = s.openMap("data");
+        assertEquals(10, map.size());
+        map.put(10, "Hello 10");
+        s.commit();
+        s.closeImmediately();
+
+        s = open(fileName);
+        map = s.openMap("data");
+        assertEquals(11, map.size());
+        assertEquals("Hello 10", map.get(10));
+        s.close();
+    }
+
+    private void testCloseDeletesLog() {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        MVMap<Integer, String> map = s.openMap("data");
+        s.commit();
+        map.put(1, "Hello");
+        s.commit();
+        assertTrue(FileUtils.exists(fileName + ".redo"));
+        s.close();
+        assertFalse(FileUtils.exists(fileName + ".redo"));
+
+        s = new MVStore.Builder().fileName(fileName).open();
+        map = s.openMap("data");
+        assertEquals("Hello", map.get(1));
+        map.put(2, "World");
+        s.commit();
+        // the option is not set, so no log is created
+        assertFalse(FileUtils.exists(fileName + ".redo"));
+        s.close();
+    }
+
+    private void testRollbackTo() {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        MVMap<Integer, String> map = s.openMap("data");
+        map.put(1, "Hello");
+        s.commit();
+        map.put(2, "World");
+        long version = s.commit();
+        map.put(3, "!");
+        s.commit();
+        map.put(4, "uncommitted");
+        s.rollbackTo(version);
+        assertNull(map.get(3));
+        assertNull(map.get(4));
+        map.put(5, "after rollback");
+        s.commit();
+        s.closeImmediately();
+
+        s = open(fileName);
+        map = s.openMap("data");
+        assertEquals(3, map.size());
+        assertEquals("World", map.get(2));
+        assertNull(map.get(3));
+        assertEquals("after rollback", map.get(5));
+        s.close();
+    }
+
+    private void testRenameMap() {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        MVMap<Integer, String> map = s.openMap("data");
+        s.commit();
+        long stored = s.getLastStoredVersion();
+        map.put(1, "Hello");
+        s.renameMap(map, "renamed");
+        s.commit();
+        assertEquals(stored, s.getLastStoredVersion());
+        s.closeImmediately();
+
+        s = open(fileName);
+        assertFalse(s.hasMap("data"));
+        assertTrue(s.hasData("renamed"));
+        map = s.openMap("renamed");
+        assertEquals("Hello", map.get(1));
+        s.close();
+    }
+
+    private void testRemoveTail() {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        MVMap<Integer, String> map = s.openMap("data");
+        s.commit();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.commit();
+        map.removeTail(500);
+        map.put(600, "World");
+        s.commit();
+        s.closeImmediately();
+
+        s = open(fileName);
+        map = s.openMap("data");
+        assertEquals(501, map.size());
+        assertEquals("Hello 499", map.get(499));
+        assertNull(map.get(500));
+        assertEquals("World", map.get(600));
+        s.close();
+    }
+
+    private void testTransactionStore() {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, String> map = tx.openMap("data");
+        map.put(1, "Hello");
+        tx.commit();
+        long stored = s.getLastStoredVersion();
+        for (int i = 2; i < 10; i++) {
+            tx = ts.begin();
+            map = tx.openMap("data");
+            map.put(i, "Hello " + i);
+            tx.commit();
+        }
+        assertEquals(stored, s.getLastStoredVersion());
+        tx = ts.begin();
+        map = tx.openMap("data");
+        map.put(10, "uncommitted");
+        map.remove(1);
+        // the uncommitted changes are in the log, but need to be rolled back
+        s.commit();
+        s.closeImmediately();
+
+        s = open(fileName);
+        ts = new TransactionStore(s);
+        ts.init();
+        ts.endLeftoverTransactions();
+        tx = ts.begin();
+        map = tx.openMap("data");
+        assertEquals(9, map.sizeAsLong());
+        assertEquals("Hello", map.get(1));
+        assertEquals("Hello 9", map.get(9));
+        assertNull(map.get(10));
+        tx.commit();
+        s.close();
+    }
+
+    private void testCheckpointWithUnopenedMap() throws Exception {
+        String fileName = getFileName();
+        MVStore s = open(fileName);
+        MVMap<Integer, String> map = s.openMap("data");
+        MVMap<Integer, String> other = s.openMap("other");
+        s.commit();
+        map.put(1, "Hello");
+        other.put(1, "World");
+        s.commit();
+        s.closeImmediately();
+        // a new log of an interrupted checkpoint
+        FileChannel f = FilePath.get(fileName + ".redo.new").open("rw");
+        try {
+            f.write(ByteBuffer.allocate(100));
+        } finally {
+            f.close();
+        }
+
+        for (int i = 0; i < 2; i++) {
+            s = open(fileName);
+            map = s.openMap("data");
+            assertEquals("Hello", map.get(1));
+            map.put(2, "Hello " + i);
+            // creating a map stores a chunk, the changes of "other" are
+            // only in the log
+            long stored = s.getLastStoredVersion();
+            s.openMap("new" + i);
+            s.commit();
+            assertTrue(s.getLastStoredVersion() > stored);
+            assertFalse(FileUtils.exists(fileName + ".redo.new"));
+            s.closeImmediately();
+        }
+
+        s = open(fileName);
+        assertEquals("Hello 1", s.<Integer, String>openMap("data").get(2));
+        assertEquals("World", s.<Integer, String>openMap("other").get(1));
+        s.close();
+    }
+
+    private void testEncrypted() {
+        String fileName = getFileName();
+        try {
+            new MVStore.Builder().fileName(fileName).
+                    encryptionKey("007".toCharArray()).redoLog().open();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // the file is not locked
+        MVStore s = new MVStore.Builder().fileName(fileName).
+                encryptionKey("007".toCharArray()).open();
+        s.close();
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2004-2018 H2 Group. Multiple-Licensed under the MPL 2.0,
+ * and the EPL 1.0 (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.store.fs.FileUtils;
+import org.h2.test.TestBase;
+
+/**
+ * Compares the time needed to store chunks with a different number of page
+ * writer threads.
+ */
+public class TestMVStoreWriteConcurrency extends TestBase {
+
+    /**
+     * Run just this test.
+     *
+     * @param a ignored
+     */
+    public static void main(String... a) throws Exception {
+        TestBase test = TestBase.createCaller().init();
+        test.config.traceTest = true;
+        test.test();
+    }
+
+    @Override
+    public void test() throws Exception {
+        for (int compress = 0; compress <= 1; compress++) {
+            for (int threads : new int[] { 1, 4, 8 }) {
+                testWriteTime(threads, compress == 1);
+            }
+        }
+    }
+
+    private void testWriteTime(int threads, boolean compress) {
+        String fileName = getBaseDir() + "/" + getTestName();
+        FileUtils.delete(fileName);
+        MVStore.Builder builder = new MVStore.Builder().
+                fileName(fileName).
+                autoCommitDisabled().
+                writeConcurrency(threads);
+        if (compress) {
+            builder.compress();
+        }
+        MVStore s = builder.open();
+        int mapCount = 32;
+        Random r = new Random(1);
+        long storeTime = 0;
+        for (int commit = 0; commit < 20; commit++) {
+            for (int m = 0; m < mapCount; m++) {
+                MVMap<Integer, String> map = s.openMap("data" + m);
+                for (int i = 0; i < 2000; i++) {
+                    int key = r.nextInt(100_000);
+                    map.put(key, "Hello World " + key + " " + commit);
+                }
+            }
+            long time = System.nanoTime();
+            s.commit();
+            storeTime += System.nanoTime() - time;
+        }
+        s.close();
+        trace("threads: " + threads + " compress: " + compress +
+                " store: " + TimeUnit.NANOSECONDS.toMillis(storeTime) + " ms");
+        FileUtils.delete(fileName);
+    }
+
+}
@@ -18,16 +18,22 @@
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.h2.api.ErrorCode;
 import org.h2.engine.Constants;
 import org.h2.engine.Database;
+import org.h2.engine.Session;
 import org.h2.jdbc.JdbcConnection;
+import org.h2.message.DbException;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.tx.Transaction;
 import org.h2.mvstore.tx.TransactionStore;
 import org.h2.store.fs.FileUtils;
+import org.h2.table.Table;
 import org.h2.test.TestBase;
 import org.h2.test.TestDb;
 import org.h2.tools.Recover;
@@ -65,6 +71,7 @@ public void test() throws Exception {
         testTemporaryTables();
         testUniqueIndex();
         testSecondaryIndex();
+        testCompressIndexKeys();
         testGarbageCollectionForLOB();
         testSpatial();
         testCount();
@@ -80,6 +87,10 @@ public void test() throws Exception {
         testRollbackAfterCrash();
         testReferentialIntegrity();
         testWriteDelay();
+        testGroupCommit();
+        testLockWaits();
+        testTableLocks();
+        testReadOnlyTransactions();
         testAutoCommit();
         testReopen();
         testBlob();
@@ -416,6 +427,75 @@ private void testUniqueIndex() throws SQLException {
         conn.close();
     }
 
+    private void testCompressIndexKeys() throws SQLException {
+        if (config.memory) {
+            return;
+        }
+        long[] size = new long[2];
+        String[] result = new String[2];
+        for (int compress = 0; compress <= 1; compress++) {
+            deleteDb(getTestName());
+            String url = getTestName() +
+                    (compress == 1 ? ";COMPRESS_INDEX_KEYS=TRUE" : "");
+            Connection conn = getConnection(url);
+            Statement stat = conn.createStatement();
+            stat.execute("create table test(id int primary key, tenant int, " +
+                    "created timestamp, name varchar, note varchar_ignorecase)");
+            stat.execute("create index idx_tenant on test(tenant, created, name)");
+            stat.execute("create index idx_note on test(note, name)");
+            PreparedStatement prep = conn.prepareStatement(
+                    "insert into test values(?, ?, ?, ?, ?)");
+            for (int i = 0; i < 20_000; i++) {
+                prep.setInt(1, i);
+                prep.setInt(2, i % 5);
+                prep.setTimestamp(3, new Timestamp(1_500_000_000_000L + i / 20 * 1000L));
+                prep.setString(4, i % 7 == 0 ? null : "Name " + i % 13);
+                prep.setString(5, i % 2 == 0 ? "Note" : "NOTE");
+                prep.execute();
+            }
+            stat.execute("delete from test where id % 10 = 1");
+            stat.execute("update test set name = 'Other' where id % 10 = 2");
+            conn.close();
+            conn = getConnection(url);
+            result[compress] = getIndexQueryResult(conn);
+            conn.createStatement().execute("shutdown compact");
+            conn.close();
+            size[compress] = FileUtils.size(getBaseDir() + "/" + getTestName() +
+                    Constants.SUFFIX_MV_FILE);
+        }
+        assertTrue(result[0].startsWith("738 9597154 19982OtherNote "));
+        assertEquals(result[0], result[1]);
+        assertTrue("compressed: " + size[1] + " uncompressed: " + size[0],
+                size[1] < size[0]);
+        // older versions can not open the compacted file
+        MVStore s = new MVStore.Builder().readOnly().fileName(getBaseDir() +
+                "/" + getTestName() + Constants.SUFFIX_MV_FILE).open();
+        assertEquals("2", s.getStoreHeader().get("formatRead").toString());
+        s.close();
+        // compressed keys are read even if the setting is not enabled
+        Connection conn = getConnection(getTestName());
+        assertEquals(result[0], getIndexQueryResult(conn));
+        conn.close();
+    }
+
+    private static String getIndexQueryResult(Connection conn) throws SQLException {
+        StringBuilder buff = new StringBuilder();
+        PreparedStatement prep = conn.prepareStatement(
+                "select count(*), sum(id) from test " +
+                "where tenant = 3 and created >= ? and name > 'Name 5'");
+        prep.setTimestamp(1, new Timestamp(1_500_000_000_000L + 300_000));
+        ResultSet rs = prep.executeQuery();
+        rs.next();
+        buff.append(rs.getInt(1)).append(' ').append(rs.getLong(2));
+        rs = conn.createStatement().executeQuery("select id, name, note from test " +
+                "where note = 'note' and name = 'Other' order by created desc");
+        while (rs.next()) {
+            buff.append(' ').append(rs.getInt(1)).append(rs.getString(2)).
+                    append(rs.getString(3));
+        }
+        return buff.toString();
+    }
+
     private void testSecondaryIndex() throws SQLException {
         Connection conn;
         Statement stat;
@@ -546,8 +626,8 @@ private void testCount() throws Exception {
         rs = stat2.executeQuery("explain analyze select count(*) from test");
         rs.next();
         plan = rs.getString(1);
-        // transaction log is larger than the table, so read the table
-        assertContains(plan, "reads:");
+        // the count doesn't depend on the size of the transaction log
+        assertTrue(plan, plan.indexOf("reads:") < 0);
         rs = stat2.executeQuery("select count(*) from test");
         rs.next();
         assertEquals(10000, rs.getInt(1));
@@ -1008,6 +1088,246 @@ private void testWriteDelay() throws Exception {
         conn.close();
     }
 
+    private void testGroupCommit() throws Exception {
+        if (config.memory) {
+            return;
+        }
+        deleteDb(getTestName());
+        final String url = getTestName() + ";MV_STORE=TRUE;GROUP_COMMIT=TRUE;" +
+                "GROUP_COMMIT_WINDOW=2000;GROUP_COMMIT_MAX_BATCH=4";
+        Connection conn = getConnection(url);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, name varchar)");
+        Task[] tasks = new Task[4];
+        for (int i = 0; i < tasks.length; i++) {
+            final int x = i;
+            tasks[i] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    Connection c = getConnection(url);
+                    PreparedStatement prep = c.prepareStatement(
+                            "insert into test values(?, 'Hello')");
+                    for (int j = 0; j < 50; j++) {
+                        prep.setInt(1, x * 1000 + j);
+                        prep.execute();
+                    }
+                    c.close();
+                }
+            };
+            tasks[i].execute();
+        }
+        for (Task t : tasks) {
+            t.get();
+        }
+        ResultSet rs = stat.executeQuery("select value from information_schema.settings " +
+                "where name = 'info.GROUP_COMMIT_COUNT'");
+        rs.next();
+        long commits = rs.getLong(1);
+        rs = stat.executeQuery("select value from information_schema.settings " +
+                "where name = 'info.GROUP_COMMIT_WRITE_COUNT'");
+        rs.next();
+        long writes = rs.getLong(1);
+        assertTrue("commits: " + commits, commits >= 200);
+        // commits of concurrent sessions were grouped
+        assertTrue("commits: " + commits + " writes: " + writes,
+                writes > 0 && writes < commits);
+        // committed transactions are durable
+        stat.execute("shutdown immediately");
+        try {
+            conn.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        rs = stat.executeQuery("select count(*) from test");
+        rs.next();
+        assertEquals(200, rs.getInt(1));
+        conn.close();
+    }
+
+    private void testLockWaits() throws Exception {
+        deleteDb(getTestName());
+        final String url = getTestName() + ";MV_STORE=TRUE";
+        Connection conn = getConnection(url);
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, name varchar)");
+        stat.execute("insert into test values(1, 'Hello')");
+        conn.setAutoCommit(false);
+        stat.execute("update test set name = 'Hi' where id = 1");
+        Task task = new Task() {
+            @Override
+            public void call() throws Exception {
+                Connection c = getConnection(url);
+                c.createStatement().execute("set lock_timeout 10000");
+                c.createStatement().execute("update test set name = 'World' where id = 1");
+                c.close();
+            }
+        };
+        task.execute();
+        // wait until the other session waits for the row
+        for (int i = 0;; i++) {
+            ResultSet rs = stat.executeQuery("select count(*) from information_schema.sessions " +
+                    "where blocker_id is not null");
+            rs.next();
+            if (rs.getInt(1) > 0) {
+                break;
+            }
+            assertTrue(i < 1000);
+            Thread.sleep(10);
+        }
+        conn.commit();
+        task.get();
+        ResultSet rs = stat.executeQuery("select sum(wait_count) from information_schema.lock_waits " +
+                "where table_name = 'TEST'");
+        rs.next();
+        assertEquals(1, rs.getLong(1));
+        rs = stat.executeQuery("select name from test");
+        rs.next();
+        assertEquals("World", rs.getString(1));
+        conn.close();
+    }
+
+    private void testTableLocks() throws Exception {
+        deleteDb(getTestName());
+        final String url = getTestName() + ";MV_STORE=TRUE;MULTI_THREADED=TRUE";
+        Connection conn = getConnection(url);
+        conn.createStatement().execute("create table test(id int primary key)");
+        Session s1 = (Session) ((JdbcConnection) conn).getSession();
+        Connection conn2 = getConnection(url);
+        Session s2 = (Session) ((JdbcConnection) conn2).getSession();
+        final Table table = s1.getDatabase().getSchema("PUBLIC").getTableOrView(s1, "TEST");
+        // a shared lock blocks an exclusive lock
+        assertFalse(table.lock(s1, false, true));
+        assertTrue(table.lock(s1, false, true));
+        s2.setLockTimeout(10);
+        try {
+            table.lock(s2, true, true);
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.LOCK_TIMEOUT_1, e.getErrorCode());
+        }
+        s1.commit(false);
+        // an exclusive lock blocks a shared lock
+        assertFalse(table.lock(s2, true, true));
+        assertTrue(table.isLockedExclusivelyBy(s2));
+        s1.setLockTimeout(10);
+        try {
+            table.lock(s1, false, true);
+            fail();
+        } catch (DbException e) {
+            assertEquals(ErrorCode.LOCK_TIMEOUT_1, e.getErrorCode());
+        }
+        s2.commit(false);
+        conn2.close();
+
+        // concurrent shared and exclusive locks
+        final AtomicBoolean exclusive = new AtomicBoolean();
+        final AtomicInteger shared = new AtomicInteger();
+        Task[] tasks = new Task[5];
+        for (int i = 0; i < tasks.length; i++) {
+            final boolean lockExclusive = i == 0;
+            tasks[i] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    Connection c = getConnection(url);
+                    Session s = (Session) ((JdbcConnection) c).getSession();
+                    s.setLockTimeout(10000);
+                    for (int j = 0; j < 500; j++) {
+                        if (lockExclusive) {
+                            table.lock(s, true, true);
+                            exclusive.set(true);
+                            assertEquals(0, shared.get());
+                            exclusive.set(false);
+                        } else {
+                            table.lock(s, false, true);
+                            shared.incrementAndGet();
+                            assertFalse(exclusive.get());
+                            shared.decrementAndGet();
+                        }
+                        s.commit(false);
+                    }
+                    c.close();
+                }
+            };
+            tasks[i].execute();
+        }
+        for (Task t : tasks) {
+            t.get();
+        }
+        assertFalse(table.isLockedExclusively());
+        conn.close();
+    }
+
+    private void testReadOnlyTransactions() throws Exception {
+        deleteDb(getTestName());
+        Connection conn = getConnection(getTestName());
+        Session session = (Session) ((JdbcConnection) conn).getSession();
+        TransactionStore ts = session.getDatabase().getMvStore().getTransactionStore();
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, name varchar)");
+        stat.execute("insert into test values(1, 'Hello')");
+        conn.setAutoCommit(false);
+
+        // a read-only statement starts a read-only transaction
+        ResultSet rs = stat.executeQuery("select name from test where id = 1");
+        assertTrue(rs.next());
+        assertTrue(session.getTransaction().isReadOnly());
+        assertEquals(0, ts.getOpenTransactions().size());
+        // a change replaces it with a regular transaction
+        stat.execute("insert into test values(2, 'World')");
+        assertFalse(session.getTransaction().isReadOnly());
+        assertEquals(1, ts.getOpenTransactions().size());
+        rs = stat.executeQuery("select count(*) from test");
+        assertTrue(rs.next());
+        assertEquals(2, rs.getInt(1));
+        conn.rollback();
+        assertEquals(0, ts.getOpenTransactions().size());
+
+        // queries that are not known to be read-only
+        stat.executeQuery("select rand() from test");
+        assertFalse(session.getTransaction().isReadOnly());
+        conn.commit();
+        conn.setReadOnly(true);
+        stat.executeQuery("select rand() from test");
+        assertTrue(session.getTransaction().isReadOnly());
+        conn.commit();
+
+        // locking rows replaces the read-only transaction
+        stat.executeQuery("select * from test where id = 1 for update");
+        assertFalse(session.getTransaction().isReadOnly());
+        Connection conn2 = getConnection(getTestName());
+        Statement stat2 = conn2.createStatement();
+        stat2.execute("set lock_timeout 10");
+        assertThrows(ErrorCode.LOCK_TIMEOUT_1, stat2).
+                execute("update test set name = 'Hi' where id = 1");
+        conn.commit();
+        stat2.execute("update test set name = 'Hi' where id = 1");
+        conn2.close();
+
+        // changes are possible in read-only mode
+        stat.execute("update test set name = 'Hello' where id = 1");
+        conn.rollback();
+        rs = stat.executeQuery("select name from test where id = 1");
+        assertTrue(rs.next());
+        assertEquals("Hi", rs.getString(1));
+        conn.commit();
+
+        // a read-only transaction replaced within a statement is only ended
+        // at the end of the statement
+        session.startStatementWithinTransaction(true);
+        Transaction readOnly = session.getTransaction();
+        assertTrue(readOnly.isReadOnly());
+        Transaction t = session.getWritableTransaction();
+        assertFalse(t.isReadOnly());
+        assertTrue(t == session.getTransaction());
+        assertEquals(Transaction.STATUS_OPEN, readOnly.getStatus());
+        session.endStatement();
+        assertEquals(Transaction.STATUS_CLOSED, readOnly.getStatus());
+        conn.rollback();
+        conn.close();
+    }
+
     private void testAutoCommit() throws SQLException {
         Connection conn;
         Statement stat;
@@ -11,6 +11,7 @@
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
@@ -19,6 +20,7 @@
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.tx.LockWaitHistogram;
 import org.h2.mvstore.tx.Transaction;
 import org.h2.mvstore.tx.TransactionMap;
 import org.h2.mvstore.tx.TransactionStore;
@@ -49,14 +51,21 @@ public void test() throws Exception {
         testConcurrentAddRemove();
         testConcurrentAdd();
         testCountWithOpenTransactions();
+        testCountWithChanges(false);
+        testCountWithChanges(true);
+        testReadOnlyTransaction();
+        testManyOpenTransactions();
         testConcurrentUpdate();
         testRepeatedChange();
         testTransactionAge();
         testStopWhileCommitting();
+        testLazyCommit();
+        testLockWaitQueue();
         testGetModifiedMaps();
         testKeyIterator();
         testTwoPhaseCommit();
         testSavepoint();
+        testLargeSavepointRollback();
         testConcurrentTransactionsReadCommitted();
         testSingleConnection();
         testCompareWithPostgreSQL();
@@ -247,6 +256,203 @@ private void testCountWithOpenTransactions() {
         s.close();
     }
 
+    private void testReadOnlyTransaction() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+
+        Transaction tx = ts.begin();
+        TransactionMap<String, String> m = tx.openMap("test");
+        m.put("1", "Hello");
+        tx.commit();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        m.put("2", "World");
+
+        Transaction ro = ts.beginReadOnly();
+        assertTrue(ro.isReadOnly());
+        assertFalse(tx.isReadOnly());
+        assertEquals(1, ts.getOpenTransactions().size());
+        TransactionMap<String, String> m2 = ro.openMap("test");
+        // only sees committed data
+        assertEquals("Hello", m2.get("1"));
+        assertNull(m2.get("2"));
+        assertEquals(1, m2.sizeAsLong());
+        try {
+            m2.put("3", "!");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_ILLEGAL_STATE,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        ro.rollbackToSavepoint(ro.setSavepoint());
+        tx.commit();
+        assertEquals("World", m2.get("2"));
+        assertEquals(2, m2.sizeAsLong());
+        ro.commit();
+        assertEquals(Transaction.STATUS_CLOSED, ro.getStatus());
+        assertEquals(0, ts.getOpenTransactions().size());
+
+        // many read-only transactions don't use up the transaction ids
+        ts.setMaxTransactionId(2);
+        ArrayList<Transaction> list = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            list.add(ts.beginReadOnly());
+        }
+        tx = ts.begin();
+        tx.openMap("test").put("3", "!");
+        tx.commit();
+        for (Transaction t : list) {
+            assertEquals("!", t.openMap("test").get("3"));
+            t.rollback();
+        }
+        ts.close();
+        s.close();
+    }
+
+    private void testManyOpenTransactions() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        try {
+            ts.setMaxTransactionId(1 << 24);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // more than the old limit of 65535
+        ts.setMaxTransactionId(100000);
+
+        int count = 10000;
+        Transaction[] list = new Transaction[count];
+        for (int i = 0; i < count; i++) {
+            Transaction t = ts.begin();
+            TransactionMap<Integer, Integer> m = t.openMap("test");
+            m.put(i, i);
+            list[i] = t;
+        }
+        assertEquals(count, ts.getOpenTransactions().size());
+        Transaction tx = ts.begin();
+        assertEquals(count + 1, tx.getId());
+        TransactionMap<Integer, Integer> m = tx.openMap("test");
+        assertEquals(0, m.sizeAsLong());
+        assertNull(m.get(0));
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                list[i].commit();
+            } else {
+                list[i].rollback();
+            }
+        }
+        assertEquals(count / 2, m.sizeAsLong());
+        assertEquals(0, m.get(0).intValue());
+        assertNull(m.get(1));
+        tx.commit();
+        assertEquals(0, ts.getOpenTransactions().size());
+
+        // the lowest ids are re-used first
+        for (int i = 0; i < count; i++) {
+            list[i] = ts.begin();
+            assertEquals(i + 1, list[i].getId());
+        }
+        list[10].commit();
+        tx = ts.begin();
+        assertEquals(11, tx.getId());
+        tx.commit();
+        for (int i = 0; i < count; i++) {
+            if (i != 10) {
+                list[i].commit();
+            }
+        }
+        assertEquals(0, ts.getOpenTransactions().size());
+        ts.close();
+        s.close();
+    }
+
+    private void testCountWithChanges(boolean lazyCommit) {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        ts.setLazyCommit(lazyCommit);
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> m = tx.openMap("data");
+        for (int i = 0; i < 100; i++) {
+            m.put(i, i);
+        }
+        tx.commit();
+        Random r = new Random(1);
+        Transaction[] txs = new Transaction[3];
+        long[] savepoints = new long[txs.length];
+        for (int i = 0; i < 2000; i++) {
+            int x = r.nextInt(txs.length);
+            if (txs[x] == null) {
+                txs[x] = ts.begin();
+                savepoints[x] = txs[x].setSavepoint();
+            }
+            TransactionMap<Integer, Integer> map = txs[x].openMap("data");
+            int k = r.nextInt(150);
+            switch (r.nextInt(20)) {
+            case 0:
+                txs[x].commit();
+                txs[x] = null;
+                break;
+            case 1:
+                txs[x].rollback();
+                txs[x] = null;
+                break;
+            case 2:
+                txs[x].rollbackToSavepoint(savepoints[x]);
+                break;
+            case 3:
+                savepoints[x] = txs[x].setSavepoint();
+                break;
+            case 4:
+                if (map.get(k) != null) {
+                    try {
+                        map.lock(k);
+                    } catch (IllegalStateException e) {
+                        // locked by another transaction
+                    }
+                }
+                break;
+            default:
+                if (r.nextBoolean()) {
+                    map.tryPut(k, i);
+                } else {
+                    map.tryRemove(k);
+                }
+            }
+            tx = ts.begin();
+            m = tx.openMap("data");
+            assertEquals("op: " + i, count(m), (int) m.sizeAsLong());
+            tx.commit();
+            for (Transaction t : txs) {
+                if (t != null) {
+                    TransactionMap<Integer, Integer> tm = t.openMap("data");
+                    assertEquals("op: " + i, count(tm), (int) tm.sizeAsLong());
+                }
+            }
+        }
+        // clear
+        tx = ts.begin();
+        m = tx.openMap("data");
+        m.clear();
+        assertEquals(0, m.sizeAsLong());
+        m.put(1, 1);
+        assertEquals(1, m.sizeAsLong());
+        tx.commit();
+        ts.close();
+        s.close();
+    }
+
+    private static int count(TransactionMap<Integer, Integer> map) {
+        int count = 0;
+        for (Iterator<Integer> it = map.keyIterator(null); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
     private void testConcurrentUpdate() {
         MVStore s;
         TransactionStore ts;
@@ -421,6 +627,131 @@ public void call() throws Exception {
         }
     }
 
+    private void testLazyCommit() throws Exception {
+        String fileName = getBaseDir() + "/testLazyCommit.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        TransactionStore ts = new TransactionStore(s, new ObjectDataType(), 10000);
+        ts.init();
+        ts.setLazyCommit(true);
+        assertTrue(ts.isLazyCommit());
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, String> m = tx.openMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "Hello " + i);
+        }
+        final Transaction tx2 = ts.begin();
+        final TransactionMap<Integer, String> m2 = tx2.openMap("test");
+        // tx2 waits until tx is committed
+        Task task = new Task() {
+            @Override
+            public void call() throws Exception {
+                m2.put(0, "World");
+            }
+        };
+        task.execute();
+        tx.commit();
+        task.get();
+        // the changes are visible even if they were not applied yet
+        Transaction tx3 = ts.begin();
+        TransactionMap<Integer, String> m3 = tx3.openMap("test");
+        assertEquals(10000, m3.sizeAsLong());
+        for (int i = 1; i < 10000; i++) {
+            assertEquals("Hello " + i, m3.get(i));
+        }
+        assertEquals("Hello 0", m3.get(0));
+        assertEquals("World", m2.get(0));
+        tx2.commit();
+        tx3.commit();
+        // the transactions are closed by the commit sweeper
+        for (int i = 0; ts.getLazilyCommittedCount() > 0; i++) {
+            assertTrue(i < 1000);
+            Thread.sleep(10);
+        }
+        assertEquals(Transaction.STATUS_CLOSED, tx.getStatus());
+        assertEquals(Transaction.STATUS_CLOSED, tx2.getStatus());
+        assertEquals(0, ts.getOpenTransactions().size());
+        tx3 = ts.begin();
+        m3 = tx3.openMap("test");
+        assertEquals("World", m3.get(0));
+        tx3.commit();
+
+        // closing the transaction store applies the pending commits
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "Hi " + i);
+        }
+        tx.commit();
+        ts.close();
+        assertEquals(0, ts.getLazilyCommittedCount());
+        assertEquals(Transaction.STATUS_CLOSED, tx.getStatus());
+        s.close();
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        ts.init();
+        assertEquals(0, ts.getOpenTransactions().size());
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals(10000, m.sizeAsLong());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("Hi " + i, m.get(i));
+        }
+        tx.commit();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testLockWaitQueue() throws Exception {
+        MVStore s = MVStore.open(null);
+        final TransactionStore ts = new TransactionStore(s, new ObjectDataType(), 10000);
+        ts.init();
+        Transaction tx = ts.begin(TransactionStore.RollbackListener.NONE, 10000, 100);
+        TransactionMap<Integer, String> m = tx.openMap("test");
+        m.put(1, "Hello");
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        int count = 4;
+        Task[] tasks = new Task[count];
+        for (int i = 0; i < count; i++) {
+            final int x = i;
+            final Transaction t = ts.begin(TransactionStore.RollbackListener.NONE, 10000, 1 + i);
+            final TransactionMap<Integer, String> tm = t.openMap("test");
+            tasks[i] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    tm.put(1, "Hello " + x);
+                    order.add(x);
+                    t.commit();
+                }
+            };
+            tasks[i].execute();
+            // wait until the task is queued
+            for (int j = 0; t.getBlockerId() == 0; j++) {
+                assertTrue(j < 1000);
+                Thread.sleep(10);
+            }
+        }
+        tx.commit();
+        for (Task task : tasks) {
+            task.get();
+        }
+        // the waiters got the entry in the order they started to wait
+        assertEquals("[0, 1, 2, 3]", order.toString());
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals("Hello 3", m.get(1));
+        LockWaitHistogram histogram = ts.getLockWaitHistogram(m.map.getId());
+        long[] counts = new long[LockWaitHistogram.BUCKET_COUNT];
+        histogram.addTo(counts);
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        assertEquals(count, total);
+        tx.commit();
+        s.close();
+    }
+
     private boolean hasDataUndoLog(MVStore s) {
         for (int i = 0; i < 255; i++) {
             if(s.hasData(TransactionStore.getUndoLogName(true, 1))) {
@@ -655,6 +986,58 @@ private void testSavepoint() {
         s.close();
     }
 
+    private void testLargeSavepointRollback() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.init();
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, String> m = tx.openMap("test");
+        for (int i = 0; i < 1000; i++) {
+            m.put(i, "committed " + i);
+        }
+        tx.commit();
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 1000; i += 2) {
+            m.put(i, "before " + i);
+        }
+        long savepoint = tx.setSavepoint();
+        // the undo log spans many pages, and some keys are changed twice
+        for (int i = 0; i < 3000; i++) {
+            m.put(i, "after " + i);
+        }
+        for (int i = 0; i < 1000; i += 3) {
+            m.remove(i);
+        }
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, String> m2 = tx2.openMap("test");
+        m2.put(5000, "other");
+        tx2.commit();
+
+        tx.rollbackToSavepoint(savepoint);
+        assertEquals(1001, m.sizeAsLong());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals((i % 2 == 0 ? "before " : "committed ") + i, m.get(i));
+        }
+        assertNull(m.get(1000));
+        assertEquals("other", m.get(5000));
+        assertFalse(tx.getChanges(savepoint).hasNext());
+
+        // changes after the rollback are rolled back as well
+        m.put(1, "again");
+        tx.rollback();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals(1001, m.sizeAsLong());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("committed " + i, m.get(i));
+        }
+        tx.commit();
+        ts.close();
+        s.close();
+    }
+
     private void testCompareWithPostgreSQL() throws Exception {
         ArrayList<Statement> statements = new ArrayList<>();
         ArrayList<Transaction> transactions = new ArrayList<>();
@@ -137,6 +137,7 @@ private void testVariableEnd() {
             String test = b.toString();
             byte[] in = test.getBytes();
             assertEquals(in, utils.expand(utils.compress(in, "LZF")));
+            assertEquals(in, utils.expand(utils.compress(in, "LZ4")));
         }
     }
 
@@ -245,7 +246,7 @@ private void testByteArray(int len) throws IOException {
             }
             CompressTool utils = CompressTool.getInstance();
             // level 9 is highest, strategy 2 is huffman only
-            for (String a : new String[] { "LZF", "No",
+            for (String a : new String[] { "LZF", "No", "LZ4",
                     "Deflate", "Deflate level 9 strategy 2" }) {
                 long time = System.nanoTime();
                 byte[] out = utils.compress(b, a);